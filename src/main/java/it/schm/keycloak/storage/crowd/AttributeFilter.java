@@ -0,0 +1,100 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import static java.util.stream.Collectors.toSet;
+
+/**
+ * Decides which Crowd attributes of users and groups are kept. Attributes are dropped as soon as users are converted
+ * to {@link CrowdUserRecord}s, respectively once group attributes are collected by their adapter, so attributes which
+ * are never mapped take up no space in cached entries and adapters.
+ * <p>
+ * An attribute is kept if it is part of the allowlist, or the allowlist is empty, and it is not part of the denylist.
+ * Attribute names are matched exactly.
+ *
+ * @author Sam Schmit
+ * @since 1.1.0
+ * @see CrowdUserRecord
+ */
+public final class AttributeFilter implements Predicate<String> {
+
+    /**
+     * A filter keeping all attributes.
+     */
+    public static final AttributeFilter ALL = new AttributeFilter(Collections.emptySet(), Collections.emptySet());
+
+    private final Set<String> allowlist;
+    private final Set<String> denylist;
+
+    private AttributeFilter(Set<String> allowlist, Set<String> denylist) {
+        this.allowlist = allowlist;
+        this.denylist = denylist;
+    }
+
+    /**
+     * Creates a filter from the given comma separated lists of attribute names.
+     *
+     * @param allowlist the names of the attributes to keep, or null or empty to keep all attributes
+     * @param denylist the names of the attributes to drop, or null or empty to not drop any attributes
+     * @return the attribute filter
+     */
+    public static AttributeFilter of(String allowlist, String denylist) {
+        Set<String> allowed = parse(allowlist);
+        Set<String> denied = parse(denylist);
+
+        return allowed.isEmpty() && denied.isEmpty() ? ALL : new AttributeFilter(allowed, denied);
+    }
+
+    /**
+     * Checks whether the attribute with the given name is kept.
+     *
+     * @param name the name of the attribute
+     * @return true if the attribute is kept, false if it is dropped
+     */
+    @Override
+    public boolean test(String name) {
+        return (allowlist.isEmpty() || allowlist.contains(name)) && !denylist.contains(name);
+    }
+
+    @Override
+    public String toString() {
+        return "allowlist=" + allowlist + ", denylist=" + denylist;
+    }
+
+    private static Set<String> parse(String names) {
+        if (names == null) {
+            return Collections.emptySet();
+        }
+
+        return Collections.unmodifiableSet(Arrays.stream(names.split(","))
+                .map(String::trim)
+                .filter(name -> !name.isEmpty())
+                .collect(toSet()));
+    }
+
+}
@@ -0,0 +1,1137 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd;
+
+import com.atlassian.crowd.exception.ApplicationPermissionException;
+import com.atlassian.crowd.exception.InvalidAuthenticationException;
+import com.atlassian.crowd.exception.OperationFailedException;
+import com.atlassian.crowd.exception.UserNotFoundException;
+import com.atlassian.crowd.integration.rest.service.factory.RestCrowdClientFactory;
+import com.atlassian.crowd.model.user.User;
+import com.atlassian.crowd.service.client.ClientPropertiesImpl;
+import com.atlassian.crowd.service.client.CrowdClient;
+import it.schm.keycloak.storage.crowd.cache.ExpiringCache;
+import it.schm.keycloak.storage.crowd.cache.RequestCoalescer;
+import it.schm.keycloak.storage.crowd.client.AdaptiveLimiter;
+import it.schm.keycloak.storage.crowd.client.Bulkhead;
+import it.schm.keycloak.storage.crowd.client.CircuitBreaker;
+import it.schm.keycloak.storage.crowd.client.GuardedCrowdClient;
+import it.schm.keycloak.storage.crowd.client.OperationType;
+import it.schm.keycloak.storage.crowd.group.CrowdGroupHierarchy;
+import it.schm.keycloak.storage.crowd.group.CrowdGroupMapper;
+import it.schm.keycloak.storage.crowd.group.CrowdGroupPool;
+import it.schm.keycloak.storage.crowd.group.CrowdGroupWalker;
+import it.schm.keycloak.storage.crowd.group.MembershipStrategy;
+import org.jboss.logging.Logger;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ModelException;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.cache.UserCache;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.provider.ProviderConfigProperty;
+import org.keycloak.storage.StorageId;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.adapter.InMemoryUserAdapter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_ADAPTIVE_LIMIT_MAX;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_ADAPTIVE_LIMIT_MIN;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_APPLICATION_NAME;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_APPLICATION_PASSWORD;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_ATTRIBUTE_ALLOWLIST;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_ATTRIBUTE_DENYLIST;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_AUTHENTICATION_CONCURRENCY;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_AUTHENTICATION_TIMEOUT;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_CIRCUIT_BREAKER_FAILURE_THRESHOLD;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_CIRCUIT_BREAKER_OPEN_DURATION;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_CIRCUIT_BREAKER_SLOW_CALL_THRESHOLD;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_CONCURRENCY_MAX_WAIT;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_EVENT_POLL_INTERVAL;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_GROUP_CONCURRENCY;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_GROUP_HIERARCHY_MAX_GROUPS;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_GROUP_HIERARCHY_REFRESH_INTERVAL;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_GROUP_LOAD_PARALLELISM;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_GROUP_LOAD_TIMEOUT;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_GROUP_MAX_DEPTH;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_GROUP_MEMBERSHIP_STRATEGY;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_GROUP_TIMEOUT;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_HTTP_MAX_CONNECTIONS;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_HTTP_SOCKET_TIMEOUT;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_HTTP_TIMEOUT;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_LOOKUP_CONCURRENCY;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_LOOKUP_TIMEOUT;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_NEGATIVE_CACHE_MAX_ENTRIES;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_NEGATIVE_CACHE_TTL;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_SEARCH_CONCURRENCY;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_SEARCH_MAX_RESULTS;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_SEARCH_TIMEOUT;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_URL;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_USER_CACHE_MAX_ENTRIES;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_USER_CACHE_REFRESH_AHEAD;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_USER_CACHE_REFRESH_MIN_HITS;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_USER_CACHE_STALE_TTL;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_USER_CACHE_TTL;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.CONFIG_USERS_COUNT_REFRESH_INTERVAL;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.DEFAULT_ADAPTIVE_LIMIT_MAX;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.DEFAULT_ADAPTIVE_LIMIT_MIN;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.DEFAULT_AUTHENTICATION_CONCURRENCY;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_THRESHOLD;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.DEFAULT_CONCURRENCY_MAX_WAIT;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.DEFAULT_EVENT_POLL_INTERVAL;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.DEFAULT_GROUP_CONCURRENCY;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.DEFAULT_GROUP_HIERARCHY_MAX_GROUPS;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.DEFAULT_GROUP_HIERARCHY_REFRESH_INTERVAL;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.DEFAULT_GROUP_LOAD_PARALLELISM;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.DEFAULT_GROUP_LOAD_TIMEOUT;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.DEFAULT_GROUP_MAX_DEPTH;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.DEFAULT_LOOKUP_CONCURRENCY;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.DEFAULT_NEGATIVE_CACHE_MAX_ENTRIES;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.DEFAULT_NEGATIVE_CACHE_TTL;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.DEFAULT_SEARCH_CONCURRENCY;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.DEFAULT_SEARCH_MAX_RESULTS;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.DEFAULT_USER_CACHE_MAX_ENTRIES;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.DEFAULT_USER_CACHE_REFRESH_AHEAD;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.DEFAULT_USER_CACHE_REFRESH_MIN_HITS;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.DEFAULT_USER_CACHE_STALE_TTL;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.DEFAULT_USER_CACHE_TTL;
+import static it.schm.keycloak.storage.crowd.CrowdStorageProviderFactory.DEFAULT_USERS_COUNT_REFRESH_INTERVAL;
+
+/**
+ * Long-lived state of a single configured Crowd component, shared by all {@link CrowdStorageProvider} instances
+ * created for it. The context owns the crowd rest client, and with it the pooled http connections to Crowd, so that
+ * sessions no longer pay for connection setup on every request, as well as the caches shared across sessions. All
+ * requests to Crowd are guarded by a {@link Bulkhead}, an {@link AdaptiveLimiter} and a {@link CircuitBreaker}, see
+ * {@link GuardedCrowdClient}.
+ * <p>
+ * Cached data is kept in line with Crowd by a {@link CrowdEventPoller}, which invalidates the affected entries of
+ * this context's caches, as well as of Keycloak's user cache, whenever Crowd reports a change. Expired users and
+ * memberships are kept for a while longer, so they can be served while they are refreshed in the background, see
+ * {@link #refreshInBackground(String, Runnable)}, or while Crowd is unavailable. Frequently used users and memberships
+ * are refreshed shortly before they expire, so that their next use does not have to wait for Crowd.
+ * <p>
+ * Sessions using the context {@link #retain()} it and {@link #release()} it once they are done, so that a context
+ * replaced after a configuration change only shuts down its client once the last session using it has finished.
+ *
+ * @author Sam Schmit
+ * @since 1.1.0
+ * @see CrowdStorageProviderFactory
+ */
+public class CrowdComponentContext {
+
+    private static final Logger logger = Logger.getLogger(CrowdComponentContext.class);
+
+    private static final long STATISTICS_INTERVAL = 60;
+    private static final int MAX_REFRESHES_AHEAD_PER_CYCLE = 50;
+    private static final int USERS_COUNT_PAGE_SIZE = 1000;
+    private static final int CROWD_CLIENT_MAX_CONNECTIONS = 20;
+    private static final int MAX_SERVED_USERS = 10000;
+
+    private static final Map<OperationType, String> OPERATION_TIMEOUTS = new EnumMap<>(OperationType.class);
+
+    static {
+        OPERATION_TIMEOUTS.put(OperationType.AUTHENTICATION, CONFIG_AUTHENTICATION_TIMEOUT);
+        OPERATION_TIMEOUTS.put(OperationType.LOOKUP, CONFIG_LOOKUP_TIMEOUT);
+        OPERATION_TIMEOUTS.put(OperationType.SEARCH, CONFIG_SEARCH_TIMEOUT);
+        OPERATION_TIMEOUTS.put(OperationType.GROUP, CONFIG_GROUP_TIMEOUT);
+    }
+
+    private final Map<String, List<String>> config;
+    private final CrowdClient client;
+    private final CircuitBreaker circuitBreaker;
+    private final Bulkhead bulkhead;
+    private final AdaptiveLimiter adaptiveLimiter;
+    private final int searchMaxResults;
+    private final boolean importEnabled;
+    private final CrowdGroupWalker groupWalker;
+    private final MembershipStrategy membershipStrategy;
+    private final AttributeFilter attributeFilter;
+
+    private final ComponentModel model;
+    private final String componentId;
+    private final String realmId;
+    private final KeycloakSessionFactory sessionFactory;
+    private final ScheduledExecutorService scheduler;
+    private final Executor refresher;
+    private final Executor backgroundLoader;
+    private final Set<String> pendingRefreshes = ConcurrentHashMap.newKeySet();
+    private final LongAdder droppedRefreshes = new LongAdder();
+    private final Map<String, String> servedUsers = new HashMap<>();
+    private boolean servedUsersOverflowed;
+
+    private final ExpiringCache<String, CrowdUserRecord> userCache;
+    private final ExpiringCache<String, Boolean> negativeCache;
+    private final ExpiringCache<String, Set<GroupModel>> membershipCache;
+    private volatile CrowdGroupHierarchy groupHierarchy;
+    private final CrowdGroupPool groupPool = new CrowdGroupPool();
+    private volatile Integer usersCount;
+    private final long refreshAhead;
+    private final int refreshAheadMinHits;
+    private final LongAdder refreshedAhead = new LongAdder();
+    private final Runnable groupHierarchyJob = inBackground(this::refreshGroupHierarchy);
+
+    private final RequestCoalescer<String, CrowdUserRecord> userRequests = new RequestCoalescer<>();
+    private final RequestCoalescer<List<Object>, List<User>> searchRequests = new RequestCoalescer<>();
+    private final RequestCoalescer<String, Set<GroupModel>> groupRequests = new RequestCoalescer<>();
+
+    private final ScheduledFuture<?> statisticsTask;
+    private final ScheduledFuture<?> groupHierarchyTask;
+    private final ScheduledFuture<?> usersCountTask;
+    private final ScheduledFuture<?> eventTask;
+    private final ScheduledFuture<?> refreshAheadTask;
+
+    // one reference is held from creation until close(), and one by every session retaining this context
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * Creates a new context for the given component, building a new crowd rest client from its configuration.
+     *
+     * @param model the component model to create the context for
+     * @param scheduler the scheduler used to run this context's background tasks
+     */
+    public CrowdComponentContext(ComponentModel model, ScheduledExecutorService scheduler) {
+        this(model, scheduler, null);
+    }
+
+    /**
+     * Creates a new context for the given component, building a new crowd rest client from its configuration.
+     *
+     * @param model the component model to create the context for
+     * @param scheduler the scheduler used to run this context's background tasks
+     * @param sessionFactory the session factory used to evict changed users from Keycloak's user cache
+     */
+    public CrowdComponentContext(
+            ComponentModel model, ScheduledExecutorService scheduler, KeycloakSessionFactory sessionFactory) {
+        this(model, scheduler, null, sessionFactory);
+    }
+
+    /**
+     * Creates a new context for the given component, building a new crowd rest client from its configuration.
+     *
+     * @param model the component model to create the context for
+     * @param scheduler the scheduler used to run this context's background tasks
+     * @param groupLoader the executor used to walk groups in Crowd concurrently, or null to walk them sequentially
+     * @param sessionFactory the session factory used to evict changed users from Keycloak's user cache
+     */
+    public CrowdComponentContext(ComponentModel model, ScheduledExecutorService scheduler,
+                                 ExecutorService groupLoader, KeycloakSessionFactory sessionFactory) {
+        this(model, scheduler, groupLoader, null, sessionFactory);
+    }
+
+    /**
+     * Creates a new context for the given component, building a new crowd rest client from its configuration.
+     *
+     * @param model the component model to create the context for
+     * @param scheduler the scheduler used to run this context's background tasks
+     * @param groupLoader the executor used to walk groups in Crowd concurrently, or null to walk them sequentially
+     * @param refresher the bounded executor used to refresh cached entries in the background, or null to not refresh
+     *                  them in the background
+     * @param sessionFactory the session factory used to evict changed users from Keycloak's user cache
+     */
+    public CrowdComponentContext(ComponentModel model, ScheduledExecutorService scheduler, ExecutorService groupLoader,
+                                 ExecutorService refresher, KeycloakSessionFactory sessionFactory) {
+        this(model, scheduler, groupLoader, refresher, null, sessionFactory);
+    }
+
+    /**
+     * Creates a new context for the given component, building a new crowd rest client from its configuration.
+     *
+     * @param model the component model to create the context for
+     * @param scheduler the scheduler used to time this context's background tasks
+     * @param groupLoader the executor used to walk groups in Crowd concurrently, or null to walk them sequentially
+     * @param refresher the bounded executor used to refresh cached entries in the background, or null to not refresh
+     *                  them in the background
+     * @param backgroundLoader the executor running long running background tasks like event polling, so that they do
+     *                         not delay the scheduler, or null to run them on the scheduler itself
+     * @param sessionFactory the session factory used to evict changed users from Keycloak's user cache
+     */
+    public CrowdComponentContext(ComponentModel model, ScheduledExecutorService scheduler, ExecutorService groupLoader,
+                                 ExecutorService refresher, ExecutorService backgroundLoader,
+                                 KeycloakSessionFactory sessionFactory) {
+        this(model, configOf(model), null, model.getId(), model.getParentId(), sessionFactory, scheduler, groupLoader,
+                refresher, backgroundLoader);
+    }
+
+    /**
+     * Creates a new context with default settings around an existing crowd rest client, without any background tasks.
+     *
+     * @param client the crowd rest client
+     */
+    CrowdComponentContext(CrowdClient client) {
+        this(null, Collections.emptyMap(), client, null, null, null, null, null, null, null);
+    }
+
+    private CrowdComponentContext(ComponentModel model, Map<String, List<String>> config, CrowdClient client,
+            String componentId, String realmId, KeycloakSessionFactory sessionFactory,
+            ScheduledExecutorService scheduler, ExecutorService groupLoader, ExecutorService refresher,
+            ExecutorService backgroundLoader) {
+        this.config = config;
+        this.circuitBreaker = new CircuitBreaker(
+                intValue(CONFIG_CIRCUIT_BREAKER_FAILURE_THRESHOLD, DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD),
+                intValue(CONFIG_CIRCUIT_BREAKER_SLOW_CALL_THRESHOLD, DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_THRESHOLD),
+                TimeUnit.SECONDS.toMillis(
+                        intValue(CONFIG_CIRCUIT_BREAKER_OPEN_DURATION, DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION)));
+        this.bulkhead = createBulkhead();
+        this.adaptiveLimiter = new AdaptiveLimiter(
+                intValue(CONFIG_ADAPTIVE_LIMIT_MIN, DEFAULT_ADAPTIVE_LIMIT_MIN),
+                intValue(CONFIG_ADAPTIVE_LIMIT_MAX, DEFAULT_ADAPTIVE_LIMIT_MAX),
+                intValue(CONFIG_CONCURRENCY_MAX_WAIT, DEFAULT_CONCURRENCY_MAX_WAIT));
+        this.client = GuardedCrowdClient.wrap(client != null ? client : createClient(config, null),
+                client != null ? Collections.emptyMap() : createOperationClients(config), circuitBreaker, bulkhead,
+                adaptiveLimiter);
+        this.searchMaxResults = intValue(CONFIG_SEARCH_MAX_RESULTS, DEFAULT_SEARCH_MAX_RESULTS);
+        this.importEnabled = Boolean.parseBoolean(stringValue(UserStorageProviderModel.IMPORT_ENABLED));
+
+        this.membershipStrategy = MembershipStrategy.fromConfigValue(stringValue(CONFIG_GROUP_MEMBERSHIP_STRATEGY));
+        this.attributeFilter = AttributeFilter.of(
+                stringValue(CONFIG_ATTRIBUTE_ALLOWLIST), stringValue(CONFIG_ATTRIBUTE_DENYLIST));
+
+        int groupLoadParallelism = intValue(CONFIG_GROUP_LOAD_PARALLELISM, DEFAULT_GROUP_LOAD_PARALLELISM);
+        int groupMaxDepth = intValue(CONFIG_GROUP_MAX_DEPTH, DEFAULT_GROUP_MAX_DEPTH);
+        this.groupWalker = groupLoader == null || groupLoadParallelism <= 1 ? new CrowdGroupWalker(groupMaxDepth)
+                : new CrowdGroupWalker(groupLoader, groupLoadParallelism,
+                        intValue(CONFIG_GROUP_LOAD_TIMEOUT, DEFAULT_GROUP_LOAD_TIMEOUT), groupMaxDepth);
+
+        this.model = model;
+        this.componentId = componentId;
+        this.realmId = realmId;
+        this.sessionFactory = sessionFactory;
+        this.scheduler = scheduler;
+        this.refresher = refresher;
+        this.backgroundLoader = backgroundLoader;
+
+        long userCacheStaleTtl =
+                TimeUnit.SECONDS.toMillis(intValue(CONFIG_USER_CACHE_STALE_TTL, DEFAULT_USER_CACHE_STALE_TTL));
+        this.userCache = new ExpiringCache<>(
+                TimeUnit.SECONDS.toMillis(intValue(CONFIG_USER_CACHE_TTL, DEFAULT_USER_CACHE_TTL)),
+                userCacheStaleTtl, intValue(CONFIG_USER_CACHE_MAX_ENTRIES, DEFAULT_USER_CACHE_MAX_ENTRIES));
+        this.negativeCache = new ExpiringCache<>(
+                TimeUnit.SECONDS.toMillis(intValue(CONFIG_NEGATIVE_CACHE_TTL, DEFAULT_NEGATIVE_CACHE_TTL)),
+                intValue(CONFIG_NEGATIVE_CACHE_MAX_ENTRIES, DEFAULT_NEGATIVE_CACHE_MAX_ENTRIES));
+        this.membershipCache = new ExpiringCache<>(
+                TimeUnit.SECONDS.toMillis(intValue(CONFIG_USER_CACHE_TTL, DEFAULT_USER_CACHE_TTL)),
+                userCacheStaleTtl, intValue(CONFIG_USER_CACHE_MAX_ENTRIES, DEFAULT_USER_CACHE_MAX_ENTRIES));
+
+        this.statisticsTask = scheduler == null ? null : scheduler.scheduleAtFixedRate(
+                this::logStatistics, STATISTICS_INTERVAL, STATISTICS_INTERVAL, TimeUnit.SECONDS);
+
+        int groupHierarchyRefreshInterval =
+                intValue(CONFIG_GROUP_HIERARCHY_REFRESH_INTERVAL, DEFAULT_GROUP_HIERARCHY_REFRESH_INTERVAL);
+        this.groupHierarchyTask = scheduler == null || groupHierarchyRefreshInterval <= 0 ? null
+                : scheduler.scheduleWithFixedDelay(
+                        groupHierarchyJob, 0, groupHierarchyRefreshInterval, TimeUnit.SECONDS);
+
+        int usersCountRefreshInterval =
+                intValue(CONFIG_USERS_COUNT_REFRESH_INTERVAL, DEFAULT_USERS_COUNT_REFRESH_INTERVAL);
+        this.usersCountTask = scheduler == null || usersCountRefreshInterval <= 0 ? null
+                : scheduler.scheduleWithFixedDelay(
+                        inBackground(this::refreshUsersCountQuietly), 0, usersCountRefreshInterval, TimeUnit.SECONDS);
+
+        int eventPollInterval = intValue(CONFIG_EVENT_POLL_INTERVAL, DEFAULT_EVENT_POLL_INTERVAL);
+        this.eventTask = scheduler == null || eventPollInterval <= 0 ? null
+                : scheduler.scheduleWithFixedDelay(
+                        inBackground(new CrowdEventPoller(this.client, this)), 0, eventPollInterval, TimeUnit.SECONDS);
+
+        this.refreshAhead =
+                TimeUnit.SECONDS.toMillis(intValue(CONFIG_USER_CACHE_REFRESH_AHEAD, DEFAULT_USER_CACHE_REFRESH_AHEAD));
+        this.refreshAheadMinHits = intValue(CONFIG_USER_CACHE_REFRESH_MIN_HITS, DEFAULT_USER_CACHE_REFRESH_MIN_HITS);
+        long refreshAheadInterval = Math.max(1000, refreshAhead / 2);
+        this.refreshAheadTask = scheduler == null || model == null || refreshAhead <= 0 ? null
+                : scheduler.scheduleWithFixedDelay(this::refreshHotEntries,
+                        refreshAheadInterval, refreshAheadInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Checks whether this context was built from the same provider configuration as the one of the given model.
+     *
+     * @param model the component model to compare against
+     * @return true if the provider configuration is unchanged, false otherwise
+     */
+    public boolean isConfiguredFor(ComponentModel model) {
+        return config.equals(configOf(model));
+    }
+
+    /**
+     * Returns the shared crowd rest client of this component.
+     *
+     * @return the crowd rest client
+     */
+    public CrowdClient getClient() {
+        return client;
+    }
+
+    /**
+     * Returns the circuit breaker guarding all requests of this component to Crowd.
+     *
+     * @return the circuit breaker
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Returns the bulkhead limiting the concurrent requests of this component to Crowd per operation type.
+     *
+     * @return the bulkhead
+     */
+    public Bulkhead getBulkhead() {
+        return bulkhead;
+    }
+
+    /**
+     * Returns the limiter adapting the number of all concurrent requests of this component to Crowd's latency.
+     *
+     * @return the adaptive limiter
+     */
+    public AdaptiveLimiter getAdaptiveLimiter() {
+        return adaptiveLimiter;
+    }
+
+    /**
+     * Returns the maximum number of users returned by searches which do not limit their number of results themselves.
+     *
+     * @return the maximum number of search results
+     */
+    public int getSearchMaxResults() {
+        return searchMaxResults;
+    }
+
+    /**
+     * Checks whether users are imported into Keycloak's local storage. Unlike Keycloak's own default, import has to
+     * be switched on explicitly, so existing deployments keep serving users from Crowd directly.
+     *
+     * @return true if users are imported, false otherwise
+     */
+    public boolean isImportEnabled() {
+        return importEnabled;
+    }
+
+    /**
+     * Returns the walker used to resolve groups missing from the group hierarchy snapshot.
+     *
+     * @return the group walker
+     */
+    public CrowdGroupWalker getGroupWalker() {
+        return groupWalker;
+    }
+
+    /**
+     * Returns the strategy used to resolve the group memberships of users.
+     *
+     * @return the membership strategy
+     */
+    public MembershipStrategy getMembershipStrategy() {
+        return membershipStrategy;
+    }
+
+    /**
+     * Returns the filter deciding which Crowd attributes of users and groups are kept.
+     *
+     * @return the attribute filter
+     */
+    public AttributeFilter getAttributeFilter() {
+        return attributeFilter;
+    }
+
+    /**
+     * Returns the cache of crowd user records, keyed by their lower case username.
+     *
+     * @return the user cache
+     */
+    public ExpiringCache<String, CrowdUserRecord> getUserCache() {
+        return userCache;
+    }
+
+    /**
+     * Returns the cache of lookups which were not found in Crowd, e.g. unknown usernames or email addresses.
+     *
+     * @return the negative lookup cache
+     */
+    public ExpiringCache<String, Boolean> getNegativeCache() {
+        return negativeCache;
+    }
+
+    /**
+     * Returns the cache of resolved group memberships, keyed by the lower case username like the user cache.
+     *
+     * @return the membership cache
+     */
+    public ExpiringCache<String, Set<GroupModel>> getMembershipCache() {
+        return membershipCache;
+    }
+
+    /**
+     * Returns the coalescer for concurrent lookups of the same user, keyed by lower case username.
+     *
+     * @return the user request coalescer
+     */
+    public RequestCoalescer<String, CrowdUserRecord> getUserRequests() {
+        return userRequests;
+    }
+
+    /**
+     * Returns the coalescer for concurrent identical user searches, keyed by search restriction, paging and whether
+     * attributes are retrieved.
+     *
+     * @return the search request coalescer
+     */
+    public RequestCoalescer<List<Object>, List<User>> getSearchRequests() {
+        return searchRequests;
+    }
+
+    /**
+     * Returns the coalescer for concurrent group resolutions of the same user, keyed by username.
+     *
+     * @return the group request coalescer
+     */
+    public RequestCoalescer<String, Set<GroupModel>> getGroupRequests() {
+        return groupRequests;
+    }
+
+    /**
+     * Runs the given refresh of a stale cache entry in the background, unless a refresh of the same entry is already
+     * pending. Refreshes run on a bounded executor of their own, so they never compete with group walks for threads.
+     * If that executor is saturated, the refresh is dropped and the entry is refreshed on a later access. A failing
+     * refresh is only logged, the stale entry keeps being served until its stale time to live has passed.
+     *
+     * @param key the key identifying the refreshed entry
+     * @param refresh the refresh to run
+     * @return true if the stale entry may be served, false if there is no background executor and the caller has to
+     *         refresh the entry itself
+     */
+    public boolean refreshInBackground(String key, Runnable refresh) {
+        if (refresher == null) {
+            return false;
+        }
+
+        if (!pendingRefreshes.add(key)) {
+            return true;
+        }
+
+        try {
+            refresher.execute(() -> {
+                try {
+                    runRetained(refresh);
+                } catch (Exception e) {
+                    logger.warnf("Failed to refresh stale crowd data %s, serving stale value: %s", key, e);
+                } finally {
+                    pendingRefreshes.remove(key);
+                }
+            });
+
+            return true;
+        } catch (RejectedExecutionException e) {
+            pendingRefreshes.remove(key);
+            droppedRefreshes.increment();
+            return true;
+        }
+    }
+
+    /**
+     * Refreshes the frequently used users and group memberships which are about to expire in the background. Every
+     * refresh is started after a random delay of up to half the refresh ahead time, so that nodes of a cluster, which
+     * tend to load the same users at about the same time, do not refresh them in sync. At most
+     * {@value #MAX_REFRESHES_AHEAD_PER_CYCLE} entries are refreshed per cycle, the remaining ones are either picked up
+     * by the next cycle or refreshed once they are used while stale.
+     */
+    void refreshHotEntries() {
+        Map<String, CrowdUserRecord> hotUsers = userCache.getHotEntries(refreshAhead, refreshAheadMinHits);
+        hotUsers.entrySet().stream().limit(MAX_REFRESHES_AHEAD_PER_CYCLE).forEach(entry -> scheduleRefresh(
+                CrowdStorageProvider.USER_REFRESH_KEY_PREFIX + entry.getKey(), () -> userRequests.execute(
+                        entry.getKey(), () -> refreshUser(entry.getKey(), entry.getValue().getName()))));
+
+        membershipCache.getHotEntries(refreshAhead, refreshAheadMinHits).keySet().stream()
+                .limit(Math.max(0, MAX_REFRESHES_AHEAD_PER_CYCLE - hotUsers.size()))
+                .forEach(username -> scheduleRefresh(
+                        CrowdStorageProvider.MEMBERSHIP_REFRESH_KEY_PREFIX + username, () -> groupRequests.execute(
+                                username, () -> refreshMemberships(username))));
+    }
+
+    /**
+     * Returns the most recently loaded snapshot of Crowd's group hierarchy. Snapshots are loaded in the background
+     * and replaced atomically on every refresh.
+     *
+     * @return the current group hierarchy snapshot, or null if none has been loaded (yet)
+     */
+    public CrowdGroupHierarchy getGroupHierarchy() {
+        return groupHierarchy;
+    }
+
+    /**
+     * Returns the pool interning the group adapters resolved from the current group hierarchy snapshot, shared by all
+     * sessions of this component.
+     *
+     * @return the group pool
+     */
+    public CrowdGroupPool getGroupPool() {
+        return groupPool;
+    }
+
+    /**
+     * Returns new settings for a {@link CrowdGroupMapper} resolving groups with this component's group hierarchy
+     * snapshot, group walker, membership strategy, group pool and attribute filter.
+     *
+     * @return the group mapper settings
+     */
+    public CrowdGroupMapper.Settings getGroupMapperSettings() {
+        return new CrowdGroupMapper.Settings()
+                .withGroupHierarchy(this::getGroupHierarchy)
+                .withGroupWalker(groupWalker)
+                .withMembershipStrategy(membershipStrategy)
+                .withGroupPool(groupPool)
+                .withAttributeFilter(attributeFilter);
+    }
+
+    /**
+     * Loads a new snapshot of Crowd's group hierarchy and replaces the current one with it. If loading fails, the
+     * current snapshot is kept.
+     */
+    public void refreshGroupHierarchy() {
+        try {
+            long start = System.currentTimeMillis();
+            int maxGroups = intValue(CONFIG_GROUP_HIERARCHY_MAX_GROUPS, DEFAULT_GROUP_HIERARCHY_MAX_GROUPS);
+            CrowdGroupHierarchy hierarchy = CrowdGroupHierarchy.load(client, maxGroups);
+
+            if (hierarchy == null) {
+                logger.warnf("Crowd of %s has more than %d groups, walking groups in Crowd instead of loading a "
+                        + "group hierarchy snapshot", stringValue(CONFIG_URL), maxGroups);
+                groupHierarchy = null;
+                return;
+            }
+
+            groupHierarchy = hierarchy;
+
+            logger.debugf("Loaded crowd group hierarchy of %s with %d groups in %d ms",
+                    stringValue(CONFIG_URL), groupHierarchy.size(), System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            logger.warn("Failed to load crowd group hierarchy, keeping previous snapshot", e);
+        }
+    }
+
+    /**
+     * Returns the number of Crowd users as last counted in the background.
+     *
+     * @return the number of users, or null if users are not counted in the background or have not been counted yet
+     */
+    public Integer getUsersCount() {
+        return usersCount;
+    }
+
+    /**
+     * Counts all Crowd users, paging through their names instead of retrieving them all at once. If users are
+     * counted in the background, the result is kept and served by {@link #getUsersCount()} until the next refresh.
+     *
+     * @return the number of users
+     * @throws OperationFailedException if the operation failed for any other reason
+     * @throws InvalidAuthenticationException if the application and password are not valid
+     * @throws ApplicationPermissionException if the application is not permitted to perform the requested operation
+     */
+    public int refreshUsersCount()
+            throws OperationFailedException, InvalidAuthenticationException, ApplicationPermissionException {
+        int count = 0;
+
+        List<String> page;
+        do {
+            page = client.searchUserNames(CrowdStorageProvider.NOOP_SEARCH_RESTRICTION, count, USERS_COUNT_PAGE_SIZE);
+            count += page.size();
+        } while (page.size() == USERS_COUNT_PAGE_SIZE);
+
+        if (usersCountTask != null) {
+            usersCount = count;
+        }
+
+        return count;
+    }
+
+    private void refreshUsersCountQuietly() {
+        try {
+            refreshUsersCount();
+        } catch (Exception e) {
+            logger.warn("Failed to count crowd users, keeping previous count", e);
+        }
+    }
+
+    /**
+     * Invalidates all cached data of the given users, i.e. their details, group memberships and negative lookups of
+     * their username and email address, and evicts them from Keycloak's user cache.
+     *
+     * @param emailsByUsername the email addresses of the changed users, keyed by username; email addresses may be
+     *                         null if they are not known
+     */
+    public void invalidateUsers(Map<String, String> emailsByUsername) {
+        emailsByUsername.forEach((username, email) -> {
+            String cacheKey = username.toLowerCase(Locale.ROOT);
+            userCache.invalidate(cacheKey);
+            membershipCache.invalidate(cacheKey);
+            negativeCache.invalidate(CrowdStorageProvider.USERNAME_KEY_PREFIX + cacheKey);
+
+            if (email != null) {
+                negativeCache.invalidate(CrowdStorageProvider.EMAIL_KEY_PREFIX + email.toLowerCase(Locale.ROOT));
+            }
+        });
+
+        evictFromUserCache((session, realm) -> emailsByUsername.forEach(
+                (username, email) -> evictUser(session, realm, username, email)));
+    }
+
+    /**
+     * Invalidates all cached group memberships, reloads the group hierarchy snapshot in the background and evicts
+     * the users served by this component from Keycloak's user cache, as any of their groups may have changed. Only
+     * if more users were served since the last eviction than can be tracked, the realm's users are evicted instead.
+     */
+    public void invalidateGroups() {
+        membershipCache.invalidateAll();
+        refreshGroupHierarchyInBackground();
+
+        evictFromUserCache(this::evictServedUsers);
+    }
+
+    /**
+     * Invalidates all cached data, reloads the group hierarchy snapshot in the background and evicts the realm's
+     * users from Keycloak's user cache. This is only done once Crowd's event token expired, i.e. any change in Crowd
+     * may have been missed.
+     */
+    public void invalidateAll() {
+        userCache.invalidateAll();
+        negativeCache.invalidateAll();
+        membershipCache.invalidateAll();
+        refreshGroupHierarchyInBackground();
+
+        evictFromUserCache((session, realm) -> {
+            session.userCache().evict(realm);
+            clearServedUsers();
+        });
+    }
+
+    /**
+     * Remembers that the given user was handed to Keycloak, which may cache it until it is evicted.
+     *
+     * @param user the served user
+     */
+    public void trackServedUser(CrowdUserRecord user) {
+        synchronized (servedUsers) {
+            if (servedUsers.size() >= MAX_SERVED_USERS && !servedUsers.containsKey(user.getName())) {
+                servedUsersOverflowed = true;
+                return;
+            }
+
+            servedUsers.put(user.getName(), user.getEmailAddress());
+        }
+    }
+
+    private void evictServedUsers(KeycloakSession session, RealmModel realm) {
+        Map<String, String> users;
+        boolean overflowed;
+
+        synchronized (servedUsers) {
+            users = new HashMap<>(servedUsers);
+            overflowed = servedUsersOverflowed;
+        }
+
+        if (overflowed) {
+            session.userCache().evict(realm);
+        } else {
+            users.forEach((username, email) -> evictUser(session, realm, username, email));
+        }
+
+        clearServedUsers();
+    }
+
+    private void clearServedUsers() {
+        synchronized (servedUsers) {
+            servedUsers.clear();
+            servedUsersOverflowed = false;
+        }
+    }
+
+    private void evictUser(KeycloakSession session, RealmModel realm, String username, String email) {
+        if (importEnabled) {
+            // imported users are cached by the id of their local copy
+            UserModel localUser = session.userLocalStorage().getUserByUsername(username, realm);
+
+            if (localUser != null) {
+                session.userCache().evict(realm, localUser);
+            }
+
+            return;
+        }
+
+        InMemoryUserAdapter user =
+                new InMemoryUserAdapter(session, realm, new StorageId(componentId, username).getId());
+        user.setUsername(username);
+        user.setEmail(email);
+
+        session.userCache().evict(realm, user);
+    }
+
+    private void scheduleRefresh(String key, Runnable refresh) {
+        long delay = ThreadLocalRandom.current().nextLong(Math.max(1, refreshAhead / 2));
+
+        scheduler.schedule(() -> refreshInBackground(key, () -> {
+            refresh.run();
+            refreshedAhead.increment();
+        }), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private CrowdUserRecord refreshUser(String cacheKey, String username) {
+        try {
+            CrowdUserRecord user = CrowdUserRecord.of(model, client.getUserWithAttributes(username), attributeFilter);
+            userCache.put(cacheKey, user);
+
+            return user;
+        } catch (UserNotFoundException e) {
+            userCache.invalidate(cacheKey);
+            negativeCache.put(CrowdStorageProvider.USERNAME_KEY_PREFIX + cacheKey, Boolean.TRUE);
+            return null;
+        } catch (OperationFailedException | InvalidAuthenticationException | ApplicationPermissionException e) {
+            throw new ModelException(e);
+        }
+    }
+
+    private Set<GroupModel> refreshMemberships(String username) {
+        Map<String, Set<GroupModel>> loadedGroups = new CrowdGroupMapper(model, client, getGroupMapperSettings())
+                .loadGroups(Collections.singletonList(username));
+        loadedGroups.forEach(membershipCache::put);
+
+        return loadedGroups.get(username);
+    }
+
+    private void refreshGroupHierarchyInBackground() {
+        if (groupHierarchyTask != null) {
+            scheduler.execute(groupHierarchyJob);
+        }
+    }
+
+    /**
+     * Wraps the given periodic job, so that the scheduler only hands it over to the background loader instead of
+     * running it itself, keeping the scheduler's single thread free for timely refreshes. A job still running from a
+     * previous run is not submitted again.
+     */
+    private Runnable inBackground(Runnable job) {
+        AtomicBoolean running = new AtomicBoolean();
+
+        return () -> {
+            if (backgroundLoader == null) {
+                runRetained(job);
+                return;
+            }
+
+            if (!running.compareAndSet(false, true)) {
+                return;
+            }
+
+            try {
+                backgroundLoader.execute(() -> {
+                    try {
+                        runRetained(job);
+                    } finally {
+                        running.set(false);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                running.set(false);
+            }
+        };
+    }
+
+    // background work keeps the client open while it runs, and is skipped once the client has been shut down
+    private void runRetained(Runnable job) {
+        if (!retain()) {
+            return;
+        }
+
+        try {
+            job.run();
+        } finally {
+            release();
+        }
+    }
+
+    private void evictFromUserCache(BiConsumer<KeycloakSession, RealmModel> eviction) {
+        if (sessionFactory == null || realmId == null) {
+            return;
+        }
+
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                UserCache keycloakUserCache = session.userCache();
+                RealmModel realm = session.realms().getRealm(realmId);
+
+                if (keycloakUserCache != null && realm != null) {
+                    eviction.accept(session, realm);
+                }
+            });
+        } catch (Exception e) {
+            logger.warn("Failed to evict changed crowd users from Keycloak's user cache", e);
+        }
+    }
+
+    /**
+     * Acquires a reference to this context for a session using it, which has to {@link #release()} it once done.
+     *
+     * @return true if the reference was acquired, false if this context has already been shut down
+     */
+    public boolean retain() {
+        int count;
+
+        do {
+            count = references.get();
+
+            if (count == 0) {
+                return false;
+            }
+        } while (!references.compareAndSet(count, count + 1));
+
+        return true;
+    }
+
+    /**
+     * Releases a reference acquired by {@link #retain()}. Once this context has been closed and its last reference is
+     * released, the crowd rest client is shut down, releasing all pooled connections.
+     */
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            shutdown();
+        }
+    }
+
+    /**
+     * Stops all background tasks and shuts down the crowd rest client as soon as no session retains this context any
+     * longer, i.e. right away if none does.
+     */
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+
+        cancelTasks();
+        release();
+    }
+
+    private void cancelTasks() {
+        if (statisticsTask != null) {
+            statisticsTask.cancel(false);
+        }
+
+        if (groupHierarchyTask != null) {
+            groupHierarchyTask.cancel(false);
+        }
+
+        if (usersCountTask != null) {
+            usersCountTask.cancel(false);
+        }
+
+        if (eventTask != null) {
+            eventTask.cancel(false);
+        }
+
+        if (refreshAheadTask != null) {
+            refreshAheadTask.cancel(false);
+        }
+    }
+
+    private void shutdown() {
+        logStatistics();
+
+        try {
+            client.shutdown();
+        } catch (Exception e) {
+            logger.warn("Failed to shut down crowd client", e);
+        }
+    }
+
+    private void logStatistics() {
+        if (logger.isDebugEnabled()) {
+            CrowdGroupHierarchy hierarchy = groupHierarchy;
+
+            logger.debugf("Crowd cache statistics of %s: users [%s], unknown lookups [%s], memberships [%s], "
+                    + "group hierarchy [%s], group pool [%s], refreshed ahead [%d], dropped refreshes [%d]",
+                    stringValue(CONFIG_URL), userCache, negativeCache, membershipCache,
+                    hierarchy != null ? hierarchy.size() + " groups" : "not loaded", groupPool, refreshedAhead.sum(),
+                    droppedRefreshes.sum());
+            logger.debugf("Crowd request statistics of %s: user lookups [%s], searches [%s], group resolutions [%s], "
+                    + "group walks [%s], circuit breaker [%s], bulkhead [%s], adaptive limit [%s]",
+                    stringValue(CONFIG_URL), userRequests, searchRequests, groupRequests, groupWalker, circuitBreaker,
+                    bulkhead, adaptiveLimiter);
+        }
+    }
+
+    private String stringValue(String key) {
+        return stringValue(config, key);
+    }
+
+    private int intValue(String key, int defaultValue) {
+        String value = stringValue(key);
+
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            logger.warnf("Invalid value '%s' for %s, using default %d", value, key, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private static Map<String, List<String>> configOf(ComponentModel model) {
+        Map<String, List<String>> config = new HashMap<>();
+
+        Stream.concat(
+                CrowdStorageProviderFactory.configMetadata.stream().map(ProviderConfigProperty::getName),
+                Stream.of(UserStorageProviderModel.IMPORT_ENABLED))
+                .filter(name -> model.getConfig().containsKey(name))
+                .forEach(name -> config.put(name, new ArrayList<>(model.getConfig().get(name))));
+
+        return config;
+    }
+
+    private Bulkhead createBulkhead() {
+        Map<OperationType, Integer> limits = new EnumMap<>(OperationType.class);
+        limits.put(OperationType.AUTHENTICATION,
+                intValue(CONFIG_AUTHENTICATION_CONCURRENCY, DEFAULT_AUTHENTICATION_CONCURRENCY));
+        limits.put(OperationType.LOOKUP, intValue(CONFIG_LOOKUP_CONCURRENCY, DEFAULT_LOOKUP_CONCURRENCY));
+        limits.put(OperationType.SEARCH, intValue(CONFIG_SEARCH_CONCURRENCY, DEFAULT_SEARCH_CONCURRENCY));
+        limits.put(OperationType.GROUP, intValue(CONFIG_GROUP_CONCURRENCY, DEFAULT_GROUP_CONCURRENCY));
+
+        return new Bulkhead(limits, intValue(CONFIG_CONCURRENCY_MAX_WAIT, DEFAULT_CONCURRENCY_MAX_WAIT));
+    }
+
+    private static Map<OperationType, CrowdClient> createOperationClients(Map<String, List<String>> config) {
+        Map<OperationType, CrowdClient> clients = new EnumMap<>(OperationType.class);
+
+        OPERATION_TIMEOUTS.forEach((type, key) -> {
+            if (stringValue(config, key) != null) {
+                clients.put(type, createClient(config, key));
+            }
+        });
+
+        return clients;
+    }
+
+    private static CrowdClient createClient(Map<String, List<String>> config, String socketTimeoutKey) {
+        Properties properties = toClientProperties(config);
+        int clientCount = clientCount(config);
+
+        if (clientCount > 1) {
+            properties.setProperty(
+                    "http.max.connections", String.valueOf(maxConnectionsPerClient(config, clientCount)));
+        }
+
+        if (socketTimeoutKey != null) {
+            setProperty(properties, "socket.timeout", config, socketTimeoutKey);
+        }
+
+        return new RestCrowdClientFactory().newInstance(ClientPropertiesImpl.newInstanceFromProperties(properties));
+    }
+
+    /**
+     * Counts the crowd rest clients created for the given configuration, i.e. the default client and one client per
+     * operation type with a timeout of its own. Every client has a connection pool of its own.
+     */
+    private static int clientCount(Map<String, List<String>> config) {
+        return 1 + (int) OPERATION_TIMEOUTS.values().stream().filter(key -> stringValue(config, key) != null).count();
+    }
+
+    /**
+     * Splits the configured maximum number of connections evenly across the connection pools of all clients, so that
+     * together they never open more connections than configured, unless there are more clients than connections.
+     */
+    private static int maxConnectionsPerClient(Map<String, List<String>> config, int clientCount) {
+        String maxConnections = stringValue(config, CONFIG_HTTP_MAX_CONNECTIONS);
+        int total = CROWD_CLIENT_MAX_CONNECTIONS;
+
+        if (maxConnections != null) {
+            try {
+                total = Integer.parseInt(maxConnections);
+            } catch (NumberFormatException e) {
+                logger.warnf("Invalid value '%s' for %s, using default %d", maxConnections,
+                        CONFIG_HTTP_MAX_CONNECTIONS, CROWD_CLIENT_MAX_CONNECTIONS);
+            }
+        }
+
+        return Math.max(1, total / clientCount);
+    }
+
+    private static Properties toClientProperties(Map<String, List<String>> config) {
+        Properties properties = new Properties();
+        setProperty(properties, "crowd.server.url", config, CONFIG_URL);
+        setProperty(properties, "crowd.base.url", config, CONFIG_URL);
+        setProperty(properties, "application.name", config, CONFIG_APPLICATION_NAME);
+        setProperty(properties, "application.password", config, CONFIG_APPLICATION_PASSWORD);
+        setProperty(properties, "http.max.connections", config, CONFIG_HTTP_MAX_CONNECTIONS);
+        setProperty(properties, "http.timeout", config, CONFIG_HTTP_TIMEOUT);
+        setProperty(properties, "socket.timeout", config, CONFIG_HTTP_SOCKET_TIMEOUT);
+
+        return properties;
+    }
+
+    private static void setProperty(
+            Properties properties, String property, Map<String, List<String>> config, String key) {
+        String value = stringValue(config, key);
+
+        if (value != null) {
+            properties.setProperty(property, value);
+        }
+    }
+
+    private static String stringValue(Map<String, List<String>> config, String key) {
+        List<String> values = config.get(key);
+
+        if (values == null || values.isEmpty() || values.get(0) == null || values.get(0).trim().isEmpty()) {
+            return null;
+        }
+
+        return values.get(0).trim();
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd;
+
+import com.atlassian.crowd.event.EventTokenExpiredException;
+import com.atlassian.crowd.event.Events;
+import com.atlassian.crowd.event.IncrementalSynchronisationNotAvailableException;
+import com.atlassian.crowd.exception.ApplicationPermissionException;
+import com.atlassian.crowd.exception.InvalidAuthenticationException;
+import com.atlassian.crowd.exception.OperationFailedException;
+import com.atlassian.crowd.exception.UnsupportedCrowdApiException;
+import com.atlassian.crowd.model.event.GroupEvent;
+import com.atlassian.crowd.model.event.GroupMembershipEvent;
+import com.atlassian.crowd.model.event.OperationEvent;
+import com.atlassian.crowd.model.event.UserEvent;
+import com.atlassian.crowd.model.event.UserMembershipEvent;
+import com.atlassian.crowd.model.user.User;
+import com.atlassian.crowd.service.client.CrowdClient;
+import org.jboss.logging.Logger;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Polls Crowd for user, group and membership events and invalidates the affected cached data of a
+ * {@link CrowdComponentContext}. Changed users, as well as users whose memberships have changed, are invalidated
+ * individually, while any group change invalidates all memberships. If Crowd no longer accepts the event token, e.g.
+ * because too many events have happened since the last poll, all cached data is invalidated.
+ *
+ * @author Sam Schmit
+ * @since 1.1.0
+ */
+public class CrowdEventPoller implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(CrowdEventPoller.class);
+
+    private final CrowdClient client;
+    private final CrowdComponentContext context;
+
+    private String eventToken;
+    private boolean invalidateAllOnStart;
+    private boolean eventsUnavailableLogged;
+
+    /**
+     * Creates a new poller.
+     *
+     * @param client the crowd rest client
+     * @param context the context whose cached data to invalidate
+     */
+    public CrowdEventPoller(CrowdClient client, CrowdComponentContext context) {
+        this.client = client;
+        this.context = context;
+    }
+
+    /**
+     * Retrieves and applies all events that have happened since the last run. The first run only starts tracking
+     * events.
+     */
+    @Override
+    public void run() {
+        try {
+            if (eventToken == null) {
+                startTracking();
+            } else {
+                pollEvents();
+            }
+        } catch (EventTokenExpiredException e) {
+            logger.info("Crowd event token has expired, invalidating all cached data");
+
+            eventToken = null;
+            invalidateAllOnStart = true;
+            run();
+        } catch (IncrementalSynchronisationNotAvailableException e) {
+            if (!eventsUnavailableLogged) {
+                logger.warn("Crowd does not provide events for this application, cached data is only refreshed "
+                        + "once it expires");
+                eventsUnavailableLogged = true;
+            }
+        } catch (Exception e) {
+            logger.warn("Failed to poll crowd events", e);
+        }
+    }
+
+    private void startTracking() throws ApplicationPermissionException, InvalidAuthenticationException,
+            UnsupportedCrowdApiException, OperationFailedException, IncrementalSynchronisationNotAvailableException {
+        eventToken = client.getCurrentEventToken();
+
+        if (invalidateAllOnStart) {
+            context.invalidateAll();
+            invalidateAllOnStart = false;
+        }
+    }
+
+    private void pollEvents() throws EventTokenExpiredException, ApplicationPermissionException,
+            InvalidAuthenticationException, UnsupportedCrowdApiException, OperationFailedException {
+        Events events = client.getNewEvents(eventToken);
+
+        Map<String, String> changedUsers = new HashMap<>();
+        boolean groupsChanged = false;
+
+        for (OperationEvent event : events.getEvents()) {
+            if (event instanceof UserEvent) {
+                User user = ((UserEvent) event).getUser();
+                changedUsers.put(user.getName(), user.getEmailAddress());
+            } else if (event instanceof UserMembershipEvent) {
+                changedUsers.putIfAbsent(((UserMembershipEvent) event).getChildUsername(), null);
+            } else if (event instanceof GroupEvent || event instanceof GroupMembershipEvent) {
+                groupsChanged = true;
+            }
+        }
+
+        logger.debugf("Received crowd events for %d users, groups changed: %s", changedUsers.size(), groupsChanged);
+
+        if (groupsChanged) {
+            context.invalidateGroups();
+        }
+
+        if (!changedUsers.isEmpty()) {
+            context.invalidateUsers(changedUsers);
+        }
+
+        eventToken = events.getNewEventToken();
+    }
+
+}
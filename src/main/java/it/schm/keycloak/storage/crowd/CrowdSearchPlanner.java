@@ -0,0 +1,161 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd;
+
+import com.atlassian.crowd.embedded.api.SearchRestriction;
+import com.atlassian.crowd.model.user.User;
+import com.atlassian.crowd.search.query.entity.restriction.BooleanRestrictionImpl;
+import com.atlassian.crowd.search.query.entity.restriction.MatchMode;
+import com.atlassian.crowd.search.query.entity.restriction.PropertyImpl;
+import com.atlassian.crowd.search.query.entity.restriction.TermRestriction;
+import org.jboss.logging.Logger;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static com.atlassian.crowd.search.query.entity.restriction.BooleanRestriction.BooleanLogic.OR;
+import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Translates Keycloak's free text user search into the cheapest Crowd search restriction able to answer it:
+ * <ul>
+ * <li>an empty search, or {@code *}, matches all users</li>
+ * <li>a quoted search, e.g. {@code "jdoe"}, exactly matches usernames and email addresses</li>
+ * <li>a search looking like an email address exactly matches usernames and email addresses</li>
+ * <li>a search ending with a single {@code *}, e.g. {@code jd*}, matches the start of usernames, email addresses,
+ * first and last names</li>
+ * <li>any other search matches usernames, email addresses, first and last names containing it; wildcards
+ * elsewhere in the search are honored by searching Crowd for its longest part without wildcards, and filtering the
+ * results against the complete search, see {@link #filter(String)}</li>
+ * </ul>
+ * The chosen plan is logged on debug level.
+ *
+ * @author Sam Schmit
+ * @since 1.1.0
+ */
+public class CrowdSearchPlanner {
+
+    private static final Logger logger = Logger.getLogger(CrowdSearchPlanner.class);
+
+    private static final String WILDCARD = "*";
+    private static final String QUOTE = "\"";
+
+    private static final Pattern EMAIL_PATTERN = Pattern.compile("[^\\s@*\"]+@[^\\s@*\"]+\\.[^\\s@*\"]+");
+
+    private static final String EMAIL_PROPERTY = "email";
+    private static final List<String> EXACT_PROPERTIES = Arrays.asList("name", EMAIL_PROPERTY);
+    private static final List<String> ALL_PROPERTIES = Arrays.asList("name", EMAIL_PROPERTY, "firstName", "lastName");
+
+    private CrowdSearchPlanner() {
+    }
+
+    /**
+     * Plans the Crowd search restriction for the given search string.
+     *
+     * @param search the search string entered in Keycloak
+     * @return the search restriction to send to Crowd
+     */
+    public static SearchRestriction plan(String search) {
+        String term = search != null ? search.trim() : "";
+
+        if (term.replace(WILDCARD, "").isEmpty()) {
+            return planned("all users", search, CrowdStorageProvider.NOOP_SEARCH_RESTRICTION);
+        }
+
+        if (isQuoted(term)) {
+            String value = term.substring(1, term.length() - 1);
+            return planned("exact username or email", search,
+                    restriction(EXACT_PROPERTIES, MatchMode.EXACTLY_MATCHES, value));
+        }
+
+        if (EMAIL_PATTERN.matcher(term).matches()) {
+            return planned("exact email", search, restriction(EXACT_PROPERTIES, MatchMode.EXACTLY_MATCHES, term));
+        }
+
+        if (term.endsWith(WILDCARD) && term.indexOf(WILDCARD) == term.length() - 1) {
+            String prefix = term.substring(0, term.length() - 1);
+            return planned("prefix", search, restriction(ALL_PROPERTIES, MatchMode.STARTS_WITH, prefix));
+        }
+
+        String value = parts(term).stream()
+                .max(Comparator.comparingInt(String::length))
+                .orElse(term);
+
+        return planned("contains", search, restriction(ALL_PROPERTIES, MatchMode.CONTAINS, value));
+    }
+
+    /**
+     * Returns the filter which the results of the planned Crowd search have to pass, if that search is broader than
+     * the given search. This is the case for searches with wildcards between their parts, e.g. {@code j*doe}, for
+     * which Crowd is only searched for their longest part. Users pass the filter if their username, email address,
+     * first or last name contains all parts of the search in the given order, ignoring case.
+     *
+     * @param search the search string entered in Keycloak
+     * @return the filter to apply to the results, or null if the results of the planned search need no filtering
+     */
+    public static Predicate<User> filter(String search) {
+        String term = search != null ? search.trim() : "";
+        List<String> parts = parts(term);
+
+        if (isQuoted(term) || parts.size() < 2) {
+            return null;
+        }
+
+        Pattern pattern = Pattern.compile(parts.stream().map(Pattern::quote).collect(joining(".*")),
+                Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+
+        return user -> Stream.of(user.getName(), user.getEmailAddress(), user.getFirstName(), user.getLastName())
+                .anyMatch(value -> value != null && pattern.matcher(value).find());
+    }
+
+    private static boolean isQuoted(String term) {
+        return term.length() > 2 && term.startsWith(QUOTE) && term.endsWith(QUOTE);
+    }
+
+    private static List<String> parts(String term) {
+        return Arrays.stream(term.split(Pattern.quote(WILDCARD)))
+                .filter(part -> !part.isEmpty())
+                .collect(toList());
+    }
+
+    private static SearchRestriction restriction(List<String> properties, MatchMode matchMode, String value) {
+        return new BooleanRestrictionImpl(OR, properties.stream()
+                .map(property -> term(property, matchMode, value))
+                .collect(toList()));
+    }
+
+    private static SearchRestriction term(String property, MatchMode matchMode, String value) {
+        return new TermRestriction<>(new PropertyImpl<>(property, String.class), matchMode, value);
+    }
+
+    private static SearchRestriction planned(String plan, String search, SearchRestriction restriction) {
+        logger.debugf("Planned crowd search '%s' as %s search", search, plan);
+        return restriction;
+    }
+
+}
@@ -30,6 +30,7 @@ import com.atlassian.crowd.exception.InactiveAccountException;
 import com.atlassian.crowd.exception.InvalidAuthenticationException;
 import com.atlassian.crowd.exception.OperationFailedException;
 import com.atlassian.crowd.exception.UserNotFoundException;
+import com.atlassian.crowd.model.user.User;
 import com.atlassian.crowd.model.user.UserWithAttributes;
 import com.atlassian.crowd.search.query.entity.restriction.BooleanRestrictionImpl;
 import com.atlassian.crowd.search.query.entity.restriction.MatchMode;
@@ -40,6 +41,7 @@ import it.schm.keycloak.storage.crowd.group.CrowdGroupMapper;
 import org.jboss.logging.Logger;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.credential.CredentialInput;
+import org.keycloak.credential.CredentialInputUpdater;
 import org.keycloak.credential.CredentialInputValidator;
 import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
@@ -47,21 +49,40 @@ import org.keycloak.models.ModelException;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.models.credential.PasswordCredentialModel;
+import org.keycloak.storage.ReadOnlyException;
 import org.keycloak.storage.StorageId;
 import org.keycloak.storage.UserStorageProvider;
+import org.keycloak.storage.user.ImportedUserValidation;
 import org.keycloak.storage.user.UserLookupProvider;
 import org.keycloak.storage.user.UserQueryProvider;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static com.atlassian.crowd.search.query.entity.restriction.BooleanRestriction.BooleanLogic.OR;
 import static java.util.stream.Collectors.toList;
 
 /**
  * UserStorageProvider implementation providing read-only user federation to an Atlassian Crowd deployment.
+ * <p>
+ * If user import is enabled for the component, users found in Crowd are imported into Keycloak's local storage by a
+ * {@link CrowdUserImporter} and returned from there. Keycloak then serves them from its own database and only turns
+ * to this provider to validate their passwords. Imported users are served as read-only views, just like users which
+ * are not imported, and their passwords can only be changed in Crowd.
  *
  * @author Sam Schmit
  * @since 1.0.0
@@ -69,12 +90,16 @@ import static java.util.stream.Collectors.toList;
  * @see <a href="https://www.keycloak.org/docs-api/9.0/javadocs/org/keycloak/storage/user/UserLookupProvider.html">org.keycloak.storage.user.UserLookupProvider</a>
  * @see <a href="https://www.keycloak.org/docs-api/9.0/javadocs/org/keycloak/storage/user/UserQueryProvider.html">org.keycloak.storage.user.UserQueryProvider</a>
  * @see <a href="https://www.keycloak.org/docs-api/9.0/javadocs/org/keycloak/credential/CredentialInputValidator.html">org.keycloak.credential.CredentialInputValidator</a>
+ * @see <a href="https://www.keycloak.org/docs-api/9.0/javadocs/org/keycloak/credential/CredentialInputUpdater.html">org.keycloak.credential.CredentialInputUpdater</a>
+ * @see <a href="https://www.keycloak.org/docs-api/9.0/javadocs/org/keycloak/storage/user/ImportedUserValidation.html">org.keycloak.storage.user.ImportedUserValidation</a>
  */
 public class CrowdStorageProvider implements
         UserStorageProvider,
         UserLookupProvider,
         UserQueryProvider,
-        CredentialInputValidator {
+        CredentialInputValidator,
+        CredentialInputUpdater,
+        ImportedUserValidation {
 
     private static final Logger logger = Logger.getLogger(CrowdStorageProvider.class);
 
@@ -82,9 +107,20 @@ public class CrowdStorageProvider implements
      * A Crowd search restriction matching everything, used in cases where an unrestricted Keycloak method is mapped
      * to a search in Crowd.
      */
-    protected static final SearchRestriction NOOP_SEARCH_RESTRICTION =
+    public static final SearchRestriction NOOP_SEARCH_RESTRICTION =
             new TermRestriction<>(new PropertyImpl<>("name", String.class), MatchMode.CONTAINS, "");
 
+    /**
+     * The number of users retrieved from Crowd per request when searching for users.
+     */
+    protected static final int SEARCH_PAGE_SIZE = 500;
+
+    static final String USERNAME_KEY_PREFIX = "username:";
+    static final String EMAIL_KEY_PREFIX = "email:";
+
+    static final String USER_REFRESH_KEY_PREFIX = "user:";
+    static final String MEMBERSHIP_REFRESH_KEY_PREFIX = "memberships:";
+
     private static final Map<String, String> PARAM_MAP;
 
     static {
@@ -97,24 +133,40 @@ public class CrowdStorageProvider implements
     private KeycloakSession session;
     private CrowdClient client;
     private ComponentModel model;
+    private CrowdComponentContext context;
 
     /**
-     * Creates a new instance of this provider.
+     * Creates a new instance of this provider, using a context with default settings around the given client.
      *
      * @param session the Keycloak session
      * @param model the provider's component model
      * @param client the crowd rest client
      */
     public CrowdStorageProvider(KeycloakSession session, ComponentModel model, CrowdClient client) {
+        this(session, model, new CrowdComponentContext(client));
+    }
+
+    /**
+     * Creates a new instance of this provider.
+     *
+     * @param session the Keycloak session
+     * @param model the provider's component model
+     * @param context the component's shared context, providing the crowd rest client and caches
+     */
+    public CrowdStorageProvider(KeycloakSession session, ComponentModel model, CrowdComponentContext context) {
         this.session = session;
         this.model = model;
-        this.client = client;
+        this.context = context;
+        this.client = context.getClient();
     }
 
     // UserLookupProvider methods
 
     /**
-     * Retrieves a user by its username.
+     * Retrieves a user by its username. Crowd users are cached across sessions, so Crowd is only queried if the
+     * user is not found in the component's user cache. Usernames unknown to Crowd are remembered for a short time,
+     * so repeated lookups of the same unknown username are answered without querying Crowd. Concurrent lookups of
+     * the same username share a single request to Crowd.
      *
      * @param username The username of the user to retrieve
      * @param realm The realm from which to retrieve the user.
@@ -122,14 +174,9 @@ public class CrowdStorageProvider implements
      */
     @Override
     public UserModel getUserByUsername(String username, RealmModel realm) {
-        try {
-            return convertToKeycloakUser(realm, client.getUserWithAttributes(username));
-        } catch (UserNotFoundException e) {
-            return null;
-        } catch (OperationFailedException | InvalidAuthenticationException | ApplicationPermissionException e) {
-            logger.error(e);
-            throw new ModelException(e);
-        }
+        CrowdUserRecord user = getCrowdUser(username);
+
+        return user != null ? convertToKeycloakUser(realm, user) : null;
     }
 
     /**
@@ -145,7 +192,8 @@ public class CrowdStorageProvider implements
     }
 
     /**
-     * Retrieves a user by its email address.
+     * Retrieves a user by its email address. Email addresses unknown to Crowd are remembered for a short time, so
+     * repeated lookups of the same unknown email address are answered without querying Crowd.
      *
      * @param email The email address of the user to retrieve
      * @param realm The realm from which to retrieve the user.
@@ -153,24 +201,43 @@ public class CrowdStorageProvider implements
      */
     @Override
     public UserModel getUserByEmail(String email, RealmModel realm) {
+        String cacheKey = EMAIL_KEY_PREFIX + toCacheKey(email);
+
+        if (context.getNegativeCache().get(cacheKey) != null) {
+            return null;
+        }
+
         Map<String, String> params = new HashMap<>();
         params.put("email", email);
 
-        return searchForUser(params, realm, 0, 1).stream().findFirst().orElse(null);
+        UserModel user = searchForUser(params, realm, 0, 1).stream().findFirst().orElse(null);
+
+        if (user == null) {
+            context.getNegativeCache().put(cacheKey, Boolean.TRUE);
+        }
+
+        return user;
     }
 
     // UserQueryProvider methods
 
     /**
-     * Returns the number of users, without considering any service account.
+     * Returns the number of users, without considering any service account. If enabled, the number is counted in the
+     * background and served from memory, otherwise users are counted on every call.
      *
      * @param realm the realm
      * @return the number of users
      */
     @Override
     public int getUsersCount(RealmModel realm) {
+        Integer usersCount = context.getUsersCount();
+
+        if (usersCount != null) {
+            return usersCount;
+        }
+
         try {
-            return client.searchUserNames(NOOP_SEARCH_RESTRICTION, 0, Integer.MAX_VALUE).size();
+            return context.refreshUsersCount();
         } catch (OperationFailedException | InvalidAuthenticationException | ApplicationPermissionException e) {
             logger.error(e);
             throw new ModelException(e);
@@ -214,7 +281,10 @@ public class CrowdStorageProvider implements
     }
 
     /**
-     * Search for users with username, email or first + last name that is like search string.
+     * Search for users with username, email or first + last name that is like search string. The search string is
+     * translated into the cheapest matching Crowd search restriction by the {@link CrowdSearchPlanner}. If that
+     * restriction is broader than the search string, e.g. for {@code j*doe}, at most the configured maximum number of
+     * search results is retrieved from Crowd and filtered against the complete search string.
      *
      * @param search the search string to use
      * @param realm the realm in which to search for users
@@ -224,13 +294,8 @@ public class CrowdStorageProvider implements
      */
     @Override
     public List<UserModel> searchForUser(String search, RealmModel realm, int firstResult, int maxResults) {
-        Map<String, String> params = new HashMap<>();
-        params.put("first", search);
-        params.put("last", search);
-        params.put("email", search);
-        params.put("username", search);
-
-        return searchForUser(params, realm, firstResult, maxResults);
+        return findUsers(CrowdSearchPlanner.plan(search), CrowdSearchPlanner.filter(search), realm,
+                firstResult, maxResults);
     }
 
     /**
@@ -260,6 +325,10 @@ public class CrowdStorageProvider implements
      * <li>"username" - username</li>
      * </ul>
      *
+     * Users are retrieved from Crowd in pages of {@value #SEARCH_PAGE_SIZE}. Unbounded searches, i.e. with a
+     * {@code maxResults} of {@code Integer.MAX_VALUE} or less than zero, are limited to the configured maximum
+     * number of search results.
+     *
      * @param params the parameters to match against
      * @param realm the realm in which to search for users
      * @param firstResult the index of the first user to retrieve
@@ -269,30 +338,7 @@ public class CrowdStorageProvider implements
     @Override
     public List<UserModel> searchForUser(
             Map<String, String> params, RealmModel realm, int firstResult, int maxResults) {
-        SearchRestriction searchRestriction;
-
-        if (params.isEmpty()) {
-            searchRestriction = NOOP_SEARCH_RESTRICTION;
-        } else {
-            List<SearchRestriction> termRestrictions = params.entrySet().stream()
-                    .map(param -> new TermRestriction<>(
-                            new PropertyImpl<>(PARAM_MAP.getOrDefault(param.getKey(), param.getKey()), String.class),
-                            MatchMode.CONTAINS,
-                            param.getValue()))
-                    .collect(toList());
-
-            searchRestriction = new BooleanRestrictionImpl(OR, termRestrictions);
-        }
-
-        try {
-            return client.searchUsersWithAttributes(searchRestriction, firstResult, maxResults)
-                    .stream()
-                    .map(user -> convertToKeycloakUser(realm, user))
-                    .collect(toList());
-        } catch (InvalidAuthenticationException | OperationFailedException | ApplicationPermissionException e) {
-            logger.error(e);
-            throw new ModelException(e);
-        }
+        return findUsers(toSearchRestriction(params), null, realm, firstResult, maxResults);
     }
 
     /**
@@ -326,6 +372,10 @@ public class CrowdStorageProvider implements
     /**
      * Get users that belong to a specific group.
      *
+     * Members are retrieved from Crowd in pages of {@value #SEARCH_PAGE_SIZE}. Unbounded requests, i.e. with a
+     * {@code maxResults} of {@code Integer.MAX_VALUE} or less than zero, are limited to the configured maximum
+     * number of search results.
+     *
      * @param realm the realm in which to search for users
      * @param group the group for which to retrieve users
      * @param firstResult the index of the first user to retrieve
@@ -334,16 +384,16 @@ public class CrowdStorageProvider implements
      */
     @Override
     public List<UserModel> getGroupMembers(RealmModel realm, GroupModel group, int firstResult, int maxResults) {
-        try {
-            return client.getUsersOfGroup(group.getName(), firstResult, maxResults).stream()
-                    .map(user -> convertToKeycloakUser(realm, (UserWithAttributes) user))
-                    .collect(toList());
-        } catch (GroupNotFoundException e) {
-            return Collections.emptyList();
-        } catch (ApplicationPermissionException | InvalidAuthenticationException | OperationFailedException e) {
-            logger.error(e);
-            throw new ModelException(e);
-        }
+        int limit = maxResults < 0 || maxResults == Integer.MAX_VALUE ? context.getSearchMaxResults() : maxResults;
+
+        Iterator<User> members = new PagingIterator<>(
+                (pageIndex, pageSize) -> getUsersOfGroup(group.getName(), pageIndex, pageSize),
+                firstResult, limit, SEARCH_PAGE_SIZE);
+
+        List<User> users = new ArrayList<>();
+        members.forEachRemaining(users::add);
+
+        return convertToKeycloakUsers(realm, toRecords(users), true);
     }
 
     // CredentialInputValidator methods
@@ -396,6 +446,68 @@ public class CrowdStorageProvider implements
         }
     }
 
+    // CredentialInputUpdater methods
+
+    /**
+     * Rejects password changes of imported users, as passwords of Crowd users can only be changed in Crowd. Without
+     * this, Keycloak would store the new password locally, next to the one in Crowd. Without import, credentials are
+     * left to Keycloak as before.
+     *
+     * @param realm the realm of the user
+     * @param user the user whose credential is to be updated
+     * @param input the new credential
+     * @return false if import is disabled or the credential is not a password, so that Keycloak handles it itself
+     * @throws ReadOnlyException if import is enabled and the credential is a password
+     */
+    @Override
+    public boolean updateCredential(RealmModel realm, UserModel user, CredentialInput input) {
+        if (context.isImportEnabled() && supportsCredentialType(input.getType())) {
+            throw new ReadOnlyException("Passwords of Crowd users can only be changed in Crowd");
+        }
+
+        return false;
+    }
+
+    /**
+     * Does nothing, as passwords of Crowd users cannot be disabled in Keycloak.
+     *
+     * @param realm the realm of the user
+     * @param user the user whose credential type is to be disabled
+     * @param credentialType the credential type to disable
+     */
+    @Override
+    public void disableCredentialType(RealmModel realm, UserModel user, String credentialType) {
+        // no-op
+    }
+
+    /**
+     * Returns no credential types, as passwords of Crowd users cannot be disabled in Keycloak.
+     *
+     * @param realm the realm of the user
+     * @param user the user to return the disableable credential types for
+     * @return an empty set
+     */
+    @Override
+    public Set<String> getDisableableCredentialTypes(RealmModel realm, UserModel user) {
+        return Collections.emptySet();
+    }
+
+    // ImportedUserValidation methods
+
+    /**
+     * Returns a read-only view of the given imported user, as its details are overwritten by the next import anyway.
+     * Whether the user still exists in Crowd is left to the synchronization, so that Keycloak keeps serving imported
+     * users from its own database without asking Crowd.
+     *
+     * @param realm the realm of the user
+     * @param local the imported local user
+     * @return a read-only view of the user
+     */
+    @Override
+    public UserModel validate(RealmModel realm, UserModel local) {
+        return new ReadOnlyCrowdUserDelegate(local, model.getId());
+    }
+
     // Provider method implementations
 
     /**
@@ -408,8 +520,224 @@ public class CrowdStorageProvider implements
 
     // helpers
 
-    private CrowdUserAdapter convertToKeycloakUser(RealmModel realm, UserWithAttributes user) {
-        return new CrowdGroupMapper(model, client).onLoadUser(new CrowdUserAdapter(session, realm, model, user));
+    private List<UserModel> findUsers(SearchRestriction searchRestriction, Predicate<User> filter, RealmModel realm,
+                                      int firstResult, int maxResults) {
+        int limit = maxResults < 0 || maxResults == Integer.MAX_VALUE ? context.getSearchMaxResults() : maxResults;
+        boolean withAttributes = context.isImportEnabled();
+
+        // filtered searches page through all results up to the search limit, as matches can be on any page
+        Iterator<User> users = new PagingIterator<>(
+                (pageIndex, pageSize) -> context.getSearchRequests().execute(
+                        Arrays.asList(searchRestriction, pageIndex, pageSize, withAttributes),
+                        () -> searchUsers(searchRestriction, pageIndex, pageSize, withAttributes)),
+                filter == null ? firstResult : 0,
+                filter == null ? limit : context.getSearchMaxResults(),
+                SEARCH_PAGE_SIZE);
+
+        Stream<User> stream = StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(users, Spliterator.ORDERED), false);
+
+        if (filter != null) {
+            stream = stream.filter(filter).skip(Math.max(firstResult, 0)).limit(limit);
+        }
+
+        return convertToKeycloakUsers(realm, toRecords(stream.collect(toList())), true);
+    }
+
+    private CrowdUserRecord getCrowdUser(String username) {
+        String cacheKey = toCacheKey(username);
+        CrowdUserRecord user = context.getUserCache().get(cacheKey);
+
+        if (user != null) {
+            return user;
+        }
+
+        if (context.getNegativeCache().get(USERNAME_KEY_PREFIX + cacheKey) != null) {
+            return null;
+        }
+
+        CrowdUserRecord staleUser = context.getUserCache().getStale(cacheKey);
+
+        if (staleUser != null && context.refreshInBackground(USER_REFRESH_KEY_PREFIX + cacheKey,
+                () -> context.getUserRequests().execute(cacheKey, () -> loadUser(username, cacheKey)))) {
+            return staleUser;
+        }
+
+        try {
+            return context.getUserRequests().execute(cacheKey, () -> loadUser(username, cacheKey));
+        } catch (ModelException e) {
+            if (staleUser == null) {
+                throw e;
+            }
+
+            logger.warnf("Failed to load crowd user %s, serving stale user: %s", username, e);
+            return staleUser;
+        }
+    }
+
+    private CrowdUserRecord loadUser(String username, String cacheKey) {
+        try {
+            CrowdUserRecord user = CrowdUserRecord.of(
+                    model, client.getUserWithAttributes(username), context.getAttributeFilter());
+            context.getUserCache().put(cacheKey, user);
+
+            return user;
+        } catch (UserNotFoundException e) {
+            context.getUserCache().invalidate(cacheKey);
+            context.getNegativeCache().put(USERNAME_KEY_PREFIX + cacheKey, Boolean.TRUE);
+            return null;
+        } catch (OperationFailedException | InvalidAuthenticationException | ApplicationPermissionException e) {
+            logger.error(e);
+            throw new ModelException(e);
+        }
+    }
+
+    private List<User> searchUsers(
+            SearchRestriction searchRestriction, int firstResult, int maxResults, boolean withAttributes) {
+        try {
+            return withAttributes
+                    ? new ArrayList<>(client.searchUsersWithAttributes(searchRestriction, firstResult, maxResults))
+                    : client.searchUsers(searchRestriction, firstResult, maxResults);
+        } catch (InvalidAuthenticationException | OperationFailedException | ApplicationPermissionException e) {
+            logger.error(e);
+            throw new ModelException(e);
+        }
+    }
+
+    private List<User> getUsersOfGroup(String groupName, int firstResult, int maxResults) {
+        try {
+            return client.getUsersOfGroup(groupName, firstResult, maxResults);
+        } catch (GroupNotFoundException e) {
+            return Collections.emptyList();
+        } catch (ApplicationPermissionException | InvalidAuthenticationException | OperationFailedException e) {
+            logger.error(e);
+            throw new ModelException(e);
+        }
+    }
+
+    private static SearchRestriction toSearchRestriction(Map<String, String> params) {
+        if (params.isEmpty()) {
+            return NOOP_SEARCH_RESTRICTION;
+        }
+
+        List<SearchRestriction> termRestrictions = params.entrySet().stream()
+                .map(param -> new TermRestriction<>(
+                        new PropertyImpl<>(PARAM_MAP.getOrDefault(param.getKey(), param.getKey()), String.class),
+                        MatchMode.CONTAINS,
+                        param.getValue()))
+                .collect(toList());
+
+        return new BooleanRestrictionImpl(OR, termRestrictions);
+    }
+
+    private static String toCacheKey(String value) {
+        return value.toLowerCase(Locale.ROOT);
+    }
+
+    private List<CrowdUserRecord> toRecords(List<? extends User> users) {
+        // users are only retrieved with attributes if they are imported, otherwise they are served by lite adapters
+        return users.stream()
+                .map(user -> context.isImportEnabled() && user instanceof UserWithAttributes
+                        ? CrowdUserRecord.of(model, (UserWithAttributes) user, context.getAttributeFilter())
+                        : CrowdUserRecord.withoutAttributes(model, user))
+                .collect(toList());
+    }
+
+    private UserModel convertToKeycloakUser(RealmModel realm, CrowdUserRecord user) {
+        return convertToKeycloakUsers(realm, Collections.singletonList(user), false).stream().findFirst().orElse(null);
+    }
+
+    private List<UserModel> convertToKeycloakUsers(RealmModel realm, List<CrowdUserRecord> users, boolean lite) {
+        List<String> usernames = users.stream().map(CrowdUserRecord::getName).collect(toList());
+        users.forEach(context::trackServedUser);
+
+        if (context.isImportEnabled()) {
+            Map<String, Set<GroupModel>> groups = loadGroups(usernames);
+            CrowdUserImporter importer = new CrowdUserImporter(session, realm, model);
+
+            return users.stream()
+                    .map(user -> importer.importUser(user, groups.get(user.getName())))
+                    .filter(Objects::nonNull)
+                    .collect(toList());
+        }
+
+        // the groups of all users are resolved as a batch, as soon as the groups of any of them are needed
+        Map<String, Set<GroupModel>> groups = new HashMap<>();
+        Function<String, Set<GroupModel>> groupsLoader = username -> {
+            if (groups.isEmpty()) {
+                groups.putAll(loadGroups(usernames));
+            }
+
+            return groups.get(username);
+        };
+
+        return users.stream()
+                .map(user -> {
+                    CrowdUserAdapter userAdapter = lite
+                            ? new CrowdUserAdapter(session, realm, model, user, () -> getCrowdUser(user.getName()))
+                            : new CrowdUserAdapter(session, realm, model, user);
+                    userAdapter.setGroupsLoader(() -> groupsLoader.apply(user.getName()));
+
+                    return userAdapter;
+                })
+                .collect(toList());
+    }
+
+    private Map<String, Set<GroupModel>> loadGroups(List<String> usernames) {
+        Map<String, Set<GroupModel>> groups = new HashMap<>();
+        Map<String, Set<GroupModel>> staleGroups = new HashMap<>();
+        List<String> missingUsernames = new ArrayList<>();
+
+        usernames.forEach(username -> {
+            String cacheKey = toCacheKey(username);
+            Set<GroupModel> cachedGroups = context.getMembershipCache().get(cacheKey);
+
+            if (cachedGroups != null) {
+                groups.put(username, cachedGroups);
+                return;
+            }
+
+            Set<GroupModel> staleUserGroups = context.getMembershipCache().getStale(cacheKey);
+
+            if (staleUserGroups != null && context.refreshInBackground(MEMBERSHIP_REFRESH_KEY_PREFIX + cacheKey,
+                    () -> loadMissingGroups(Collections.singletonList(username)))) {
+                groups.put(username, staleUserGroups);
+            } else {
+                missingUsernames.add(username);
+
+                if (staleUserGroups != null) {
+                    staleGroups.put(username, staleUserGroups);
+                }
+            }
+        });
+
+        try {
+            if (missingUsernames.size() == 1) {
+                String username = missingUsernames.get(0);
+                groups.put(username, context.getGroupRequests().execute(
+                        toCacheKey(username), () -> loadMissingGroups(missingUsernames).get(username)));
+            } else if (!missingUsernames.isEmpty()) {
+                groups.putAll(loadMissingGroups(missingUsernames));
+            }
+        } catch (ModelException e) {
+            if (staleGroups.size() < missingUsernames.size()) {
+                throw e;
+            }
+
+            logger.warnf("Failed to load crowd group memberships of %s, serving stale memberships: %s",
+                    missingUsernames, e);
+            groups.putAll(staleGroups);
+        }
+
+        return groups;
+    }
+
+    private Map<String, Set<GroupModel>> loadMissingGroups(List<String> usernames) {
+        CrowdGroupMapper groupMapper = new CrowdGroupMapper(model, client, context.getGroupMapperSettings());
+        Map<String, Set<GroupModel>> loadedGroups = groupMapper.loadGroups(usernames);
+        loadedGroups.forEach((username, groups) -> context.getMembershipCache().put(toCacheKey(username), groups));
+
+        return loadedGroups;
     }
 
 }
@@ -22,17 +22,33 @@
 
 package it.schm.keycloak.storage.crowd;
 
-import com.atlassian.crowd.integration.rest.service.factory.RestCrowdClientFactory;
-import com.atlassian.crowd.service.client.CrowdClient;
+import it.schm.keycloak.storage.crowd.group.CrowdGroupWalker;
+import it.schm.keycloak.storage.crowd.group.MembershipStrategy;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.component.ComponentValidationException;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.provider.ProviderConfigurationBuilder;
 import org.keycloak.storage.UserStorageProviderFactory;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.ImportSynchronization;
+import org.keycloak.storage.user.SynchronizationResult;
 
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Factory implementation to manage the configuration and creation of the {@link CrowdStorageProvider}.
@@ -40,15 +56,83 @@ import java.util.List;
  * @author Sam Schmit
  * @since 1.0.0
  * @see <a href="https://www.keycloak.org/docs-api/9.0/javadocs/org/keycloak/storage/UserStorageProviderFactory.html">org.keycloak.storage.UserStorageProviderFactory</a>
+ * @see <a href="https://www.keycloak.org/docs-api/9.0/javadocs/org/keycloak/storage/user/ImportSynchronization.html">org.keycloak.storage.user.ImportSynchronization</a>
  * @see CrowdStorageProvider
  */
-public class CrowdStorageProviderFactory implements UserStorageProviderFactory<CrowdStorageProvider> {
+public class CrowdStorageProviderFactory
+        implements UserStorageProviderFactory<CrowdStorageProvider>, ImportSynchronization {
 
     private static final String PROVIDER_NAME = "crowd";
 
     protected static final String CONFIG_URL = "url";
     protected static final String CONFIG_APPLICATION_NAME = "applicationName";
     protected static final String CONFIG_APPLICATION_PASSWORD = "applicationPassword";
+    protected static final String CONFIG_HTTP_MAX_CONNECTIONS = "httpMaxConnections";
+    protected static final String CONFIG_HTTP_TIMEOUT = "httpTimeout";
+    protected static final String CONFIG_HTTP_SOCKET_TIMEOUT = "httpSocketTimeout";
+    protected static final String CONFIG_USER_CACHE_TTL = "userCacheTtl";
+    protected static final String CONFIG_USER_CACHE_MAX_ENTRIES = "userCacheMaxEntries";
+    protected static final String CONFIG_USER_CACHE_STALE_TTL = "userCacheStaleTtl";
+    protected static final String CONFIG_USER_CACHE_REFRESH_AHEAD = "userCacheRefreshAhead";
+    protected static final String CONFIG_USER_CACHE_REFRESH_MIN_HITS = "userCacheRefreshMinHits";
+    protected static final String CONFIG_NEGATIVE_CACHE_TTL = "negativeCacheTtl";
+    protected static final String CONFIG_NEGATIVE_CACHE_MAX_ENTRIES = "negativeCacheMaxEntries";
+    protected static final String CONFIG_GROUP_HIERARCHY_REFRESH_INTERVAL = "groupHierarchyRefreshInterval";
+    protected static final String CONFIG_GROUP_HIERARCHY_MAX_GROUPS = "groupHierarchyMaxGroups";
+    protected static final String CONFIG_USERS_COUNT_REFRESH_INTERVAL = "usersCountRefreshInterval";
+    protected static final String CONFIG_SEARCH_MAX_RESULTS = "searchMaxResults";
+    protected static final String CONFIG_EVENT_POLL_INTERVAL = "eventPollInterval";
+    protected static final String CONFIG_GROUP_LOAD_PARALLELISM = "groupLoadParallelism";
+    protected static final String CONFIG_GROUP_LOAD_TIMEOUT = "groupLoadTimeout";
+    protected static final String CONFIG_GROUP_MAX_DEPTH = "groupMaxDepth";
+    protected static final String CONFIG_GROUP_MEMBERSHIP_STRATEGY = "groupMembershipStrategy";
+    protected static final String CONFIG_ATTRIBUTE_ALLOWLIST = "attributeAllowlist";
+    protected static final String CONFIG_ATTRIBUTE_DENYLIST = "attributeDenylist";
+    protected static final String CONFIG_AUTHENTICATION_TIMEOUT = "authenticationTimeout";
+    protected static final String CONFIG_LOOKUP_TIMEOUT = "lookupTimeout";
+    protected static final String CONFIG_SEARCH_TIMEOUT = "searchTimeout";
+    protected static final String CONFIG_GROUP_TIMEOUT = "groupTimeout";
+    protected static final String CONFIG_CIRCUIT_BREAKER_FAILURE_THRESHOLD = "circuitBreakerFailureThreshold";
+    protected static final String CONFIG_CIRCUIT_BREAKER_SLOW_CALL_THRESHOLD = "circuitBreakerSlowCallThreshold";
+    protected static final String CONFIG_CIRCUIT_BREAKER_OPEN_DURATION = "circuitBreakerOpenDuration";
+    protected static final String CONFIG_AUTHENTICATION_CONCURRENCY = "authenticationConcurrency";
+    protected static final String CONFIG_LOOKUP_CONCURRENCY = "lookupConcurrency";
+    protected static final String CONFIG_SEARCH_CONCURRENCY = "searchConcurrency";
+    protected static final String CONFIG_GROUP_CONCURRENCY = "groupConcurrency";
+    protected static final String CONFIG_CONCURRENCY_MAX_WAIT = "concurrencyMaxWait";
+    protected static final String CONFIG_ADAPTIVE_LIMIT_MIN = "adaptiveLimitMin";
+    protected static final String CONFIG_ADAPTIVE_LIMIT_MAX = "adaptiveLimitMax";
+
+    protected static final int DEFAULT_USER_CACHE_TTL = 60;
+    protected static final int DEFAULT_USER_CACHE_MAX_ENTRIES = 10000;
+    protected static final int DEFAULT_USER_CACHE_STALE_TTL = 300;
+    protected static final int DEFAULT_USER_CACHE_REFRESH_AHEAD = 15;
+    protected static final int DEFAULT_USER_CACHE_REFRESH_MIN_HITS = 3;
+    protected static final int DEFAULT_NEGATIVE_CACHE_TTL = 10;
+    protected static final int DEFAULT_NEGATIVE_CACHE_MAX_ENTRIES = 10000;
+    protected static final int DEFAULT_GROUP_HIERARCHY_REFRESH_INTERVAL = 0;
+    protected static final int DEFAULT_GROUP_HIERARCHY_MAX_GROUPS = 5000;
+    protected static final int DEFAULT_USERS_COUNT_REFRESH_INTERVAL = 300;
+    protected static final int DEFAULT_SEARCH_MAX_RESULTS = 10000;
+    protected static final int DEFAULT_EVENT_POLL_INTERVAL = 30;
+    protected static final int DEFAULT_GROUP_LOAD_PARALLELISM = 4;
+    protected static final int DEFAULT_GROUP_LOAD_TIMEOUT = 10000;
+    protected static final int DEFAULT_GROUP_MAX_DEPTH = CrowdGroupWalker.DEFAULT_MAX_DEPTH;
+    protected static final int DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD = 5;
+    protected static final int DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_THRESHOLD = 10000;
+    protected static final int DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION = 30;
+    protected static final int DEFAULT_AUTHENTICATION_CONCURRENCY = 0;
+    protected static final int DEFAULT_LOOKUP_CONCURRENCY = 0;
+    protected static final int DEFAULT_SEARCH_CONCURRENCY = 4;
+    protected static final int DEFAULT_GROUP_CONCURRENCY = 0;
+    protected static final int DEFAULT_CONCURRENCY_MAX_WAIT = 2000;
+    protected static final int DEFAULT_ADAPTIVE_LIMIT_MIN = 4;
+    protected static final int DEFAULT_ADAPTIVE_LIMIT_MAX = 64;
+
+    private static final int GROUP_LOADER_THREADS = 16;
+    private static final int REFRESHER_THREADS = 4;
+    private static final int REFRESHER_QUEUE_SIZE = 100;
+    private static final int BACKGROUND_THREADS = 4;
 
     protected static final List<ProviderConfigProperty> configMetadata;
 
@@ -72,9 +156,303 @@ public class CrowdStorageProviderFactory implements UserStorageProviderFactory<C
                     .label("Crowd Application Password")
                     .helpText("Application password registered in Crowd server")
                     .add()
+                .property()
+                    .name(CONFIG_HTTP_MAX_CONNECTIONS)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("Max Connections")
+                    .helpText("Maximum number of pooled http connections to the Crowd server, shared by all sessions "
+                            + "of this provider. If operations have timeouts of their own, the connections are split "
+                            + "evenly between their pools. Leave empty to use the Crowd client default")
+                    .add()
+                .property()
+                    .name(CONFIG_HTTP_TIMEOUT)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("Connection Timeout")
+                    .helpText("Timeout in milliseconds for establishing a connection to the Crowd server. Leave empty "
+                            + "to use the Crowd client default")
+                    .add()
+                .property()
+                    .name(CONFIG_HTTP_SOCKET_TIMEOUT)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("Socket Timeout")
+                    .helpText("Timeout in milliseconds for waiting on data from the Crowd server. Leave empty to use "
+                            + "the Crowd client default")
+                    .add()
+                .property()
+                    .name(CONFIG_AUTHENTICATION_TIMEOUT)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("Authentication Timeout")
+                    .helpText("Socket timeout in milliseconds for authenticating users against the Crowd server. "
+                            + "Leave empty to use the socket timeout")
+                    .add()
+                .property()
+                    .name(CONFIG_LOOKUP_TIMEOUT)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("Lookup Timeout")
+                    .helpText("Socket timeout in milliseconds for looking up single users in the Crowd server. Leave "
+                            + "empty to use the socket timeout")
+                    .add()
+                .property()
+                    .name(CONFIG_SEARCH_TIMEOUT)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("Search Timeout")
+                    .helpText("Socket timeout in milliseconds for searching users and groups in the Crowd server. "
+                            + "Leave empty to use the socket timeout")
+                    .add()
+                .property()
+                    .name(CONFIG_GROUP_TIMEOUT)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("Group Timeout")
+                    .helpText("Socket timeout in milliseconds for looking up groups and memberships in the Crowd "
+                            + "server, e.g. when walking a user's groups. Leave empty to use the socket timeout")
+                    .add()
+                .property()
+                    .name(CONFIG_CIRCUIT_BREAKER_FAILURE_THRESHOLD)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("Circuit Breaker Failure Threshold")
+                    .helpText("Number of consecutive requests to Crowd which failed or were slow, after which all "
+                            + "requests fail immediately for the circuit breaker open duration. Set to 0 to disable "
+                            + "the circuit breaker")
+                    .defaultValue(String.valueOf(DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD))
+                    .add()
+                .property()
+                    .name(CONFIG_CIRCUIT_BREAKER_SLOW_CALL_THRESHOLD)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("Circuit Breaker Slow Call Threshold")
+                    .helpText("Time in milliseconds from which on a request to Crowd counts as failed for the "
+                            + "circuit breaker, even if it succeeded. Set to 0 to only count failed requests")
+                    .defaultValue(String.valueOf(DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_THRESHOLD))
+                    .add()
+                .property()
+                    .name(CONFIG_CIRCUIT_BREAKER_OPEN_DURATION)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("Circuit Breaker Open Duration")
+                    .helpText("Time in seconds for which requests fail immediately once the circuit breaker has "
+                            + "opened, before a single request probes whether Crowd has recovered")
+                    .defaultValue(String.valueOf(DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION))
+                    .add()
+                .property()
+                    .name(CONFIG_AUTHENTICATION_CONCURRENCY)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("Authentication Concurrency")
+                    .helpText("Maximum number of concurrent user authentications against the Crowd server. Set to 0 "
+                            + "to not limit authentications")
+                    .defaultValue(String.valueOf(DEFAULT_AUTHENTICATION_CONCURRENCY))
+                    .add()
+                .property()
+                    .name(CONFIG_LOOKUP_CONCURRENCY)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("Lookup Concurrency")
+                    .helpText("Maximum number of concurrent lookups of single users in the Crowd server. Set to 0 to "
+                            + "not limit lookups")
+                    .defaultValue(String.valueOf(DEFAULT_LOOKUP_CONCURRENCY))
+                    .add()
+                .property()
+                    .name(CONFIG_SEARCH_CONCURRENCY)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("Search Concurrency")
+                    .helpText("Maximum number of concurrent user and group searches and listings in the Crowd "
+                            + "server, so that they cannot take up the connections needed for authentications. Set "
+                            + "to 0 to not limit searches")
+                    .defaultValue(String.valueOf(DEFAULT_SEARCH_CONCURRENCY))
+                    .add()
+                .property()
+                    .name(CONFIG_GROUP_CONCURRENCY)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("Group Concurrency")
+                    .helpText("Maximum number of concurrent lookups of groups and memberships in the Crowd server. "
+                            + "Set to 0 to not limit group lookups")
+                    .defaultValue(String.valueOf(DEFAULT_GROUP_CONCURRENCY))
+                    .add()
+                .property()
+                    .name(CONFIG_CONCURRENCY_MAX_WAIT)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("Concurrency Max Wait")
+                    .helpText("Time in milliseconds a request to Crowd waits for one of the concurrent requests of "
+                            + "its kind to finish, before it fails")
+                    .defaultValue(String.valueOf(DEFAULT_CONCURRENCY_MAX_WAIT))
+                    .add()
+                .property()
+                    .name(CONFIG_ADAPTIVE_LIMIT_MIN)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("Adaptive Limit Min")
+                    .helpText("Minimum number of concurrent requests to the Crowd server the adaptive limit is "
+                            + "lowered to while Crowd responds slowly or fails")
+                    .defaultValue(String.valueOf(DEFAULT_ADAPTIVE_LIMIT_MIN))
+                    .add()
+                .property()
+                    .name(CONFIG_ADAPTIVE_LIMIT_MAX)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("Adaptive Limit Max")
+                    .helpText("Maximum number of concurrent requests to the Crowd server the adaptive limit is "
+                            + "raised to while Crowd responds quickly. Authentications may always use up to this "
+                            + "maximum. Set to 0 to disable the adaptive limit")
+                    .defaultValue(String.valueOf(DEFAULT_ADAPTIVE_LIMIT_MAX))
+                    .add()
+                .property()
+                    .name(CONFIG_USER_CACHE_TTL)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("User Cache TTL")
+                    .helpText("Time in seconds for which Crowd users are cached and shared across sessions. Set to 0 "
+                            + "to disable the user cache")
+                    .defaultValue(String.valueOf(DEFAULT_USER_CACHE_TTL))
+                    .add()
+                .property()
+                    .name(CONFIG_USER_CACHE_MAX_ENTRIES)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("User Cache Size")
+                    .helpText("Maximum number of cached Crowd users, least recently used users are evicted first")
+                    .defaultValue(String.valueOf(DEFAULT_USER_CACHE_MAX_ENTRIES))
+                    .add()
+                .property()
+                    .name(CONFIG_USER_CACHE_STALE_TTL)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("User Cache Stale TTL")
+                    .helpText("Time in seconds after their expiry for which cached Crowd users and group memberships "
+                            + "are still served while they are refreshed in the background, or while Crowd is "
+                            + "unavailable. Set to 0 to never serve stale users")
+                    .defaultValue(String.valueOf(DEFAULT_USER_CACHE_STALE_TTL))
+                    .add()
+                .property()
+                    .name(CONFIG_USER_CACHE_REFRESH_AHEAD)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("User Cache Refresh Ahead")
+                    .helpText("Time in seconds before their expiry within which frequently used Crowd users and group "
+                            + "memberships are refreshed in the background, at a random point in time. Set to 0 to "
+                            + "disable refreshing ahead")
+                    .defaultValue(String.valueOf(DEFAULT_USER_CACHE_REFRESH_AHEAD))
+                    .add()
+                .property()
+                    .name(CONFIG_USER_CACHE_REFRESH_MIN_HITS)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("User Cache Refresh Min Hits")
+                    .helpText("Minimum number of times a cached Crowd user or group membership must have been used "
+                            + "since it was loaded to be refreshed ahead of its expiry")
+                    .defaultValue(String.valueOf(DEFAULT_USER_CACHE_REFRESH_MIN_HITS))
+                    .add()
+                .property()
+                    .name(CONFIG_NEGATIVE_CACHE_TTL)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("Negative Cache TTL")
+                    .helpText("Time in seconds for which usernames and email addresses unknown to Crowd are "
+                            + "remembered, so that repeated lookups are answered without querying Crowd. Set to 0 to "
+                            + "disable the negative cache")
+                    .defaultValue(String.valueOf(DEFAULT_NEGATIVE_CACHE_TTL))
+                    .add()
+                .property()
+                    .name(CONFIG_NEGATIVE_CACHE_MAX_ENTRIES)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("Negative Cache Size")
+                    .helpText("Maximum number of remembered unknown usernames and email addresses, least recently "
+                            + "used entries are evicted first")
+                    .defaultValue(String.valueOf(DEFAULT_NEGATIVE_CACHE_MAX_ENTRIES))
+                    .add()
+                .property()
+                    .name(CONFIG_GROUP_HIERARCHY_REFRESH_INTERVAL)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("Group Hierarchy Refresh Interval")
+                    .helpText("Interval in seconds in which a snapshot of all Crowd groups and their nesting is "
+                            + "reloaded. Group parents and children are resolved from the snapshot instead of "
+                            + "walking them in Crowd for every user. Loading the snapshot takes one request per "
+                            + "group. Set to 0 to always walk groups in Crowd")
+                    .defaultValue(String.valueOf(DEFAULT_GROUP_HIERARCHY_REFRESH_INTERVAL))
+                    .add()
+                .property()
+                    .name(CONFIG_GROUP_HIERARCHY_MAX_GROUPS)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("Group Hierarchy Max Groups")
+                    .helpText("Maximum number of Crowd groups for which a group hierarchy snapshot is loaded. With "
+                            + "more groups, loading is aborted and groups are walked in Crowd instead")
+                    .defaultValue(String.valueOf(DEFAULT_GROUP_HIERARCHY_MAX_GROUPS))
+                    .add()
+                .property()
+                    .name(CONFIG_USERS_COUNT_REFRESH_INTERVAL)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("Users Count Refresh Interval")
+                    .helpText("Interval in seconds in which the number of Crowd users is recounted in the "
+                            + "background. The count is served from memory in between. Set to 0 to count users on "
+                            + "every request")
+                    .defaultValue(String.valueOf(DEFAULT_USERS_COUNT_REFRESH_INTERVAL))
+                    .add()
+                .property()
+                    .name(CONFIG_EVENT_POLL_INTERVAL)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("Event Poll Interval")
+                    .helpText("Interval in seconds in which Crowd is polled for changed users, groups and "
+                            + "memberships, invalidating their cached data. Set to 0 to only rely on cache expiry")
+                    .defaultValue(String.valueOf(DEFAULT_EVENT_POLL_INTERVAL))
+                    .add()
+                .property()
+                    .name(CONFIG_GROUP_MEMBERSHIP_STRATEGY)
+                    .type(ProviderConfigProperty.LIST_TYPE)
+                    .label("Group Membership Strategy")
+                    .helpText("How a user's groups are resolved. 'direct' retrieves the user's direct groups and "
+                            + "resolves their parents and children, 'nested' retrieves all direct and inherited groups "
+                            + "of the user with a single request to Crowd. With 'nested', parents and subgroups are "
+                            + "only resolved while the group hierarchy snapshot is enabled")
+                    .options(MembershipStrategy.DIRECT.getConfigValue(), MembershipStrategy.NESTED.getConfigValue())
+                    .defaultValue(MembershipStrategy.DIRECT.getConfigValue())
+                    .add()
+                .property()
+                    .name(CONFIG_GROUP_LOAD_PARALLELISM)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("Group Load Parallelism")
+                    .helpText("Maximum number of concurrent requests to Crowd when walking the parents and children "
+                            + "of a user's groups which are not part of the group hierarchy snapshot. Set to 1 to walk "
+                            + "groups sequentially")
+                    .defaultValue(String.valueOf(DEFAULT_GROUP_LOAD_PARALLELISM))
+                    .add()
+                .property()
+                    .name(CONFIG_GROUP_LOAD_TIMEOUT)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("Group Load Timeout")
+                    .helpText("Time in milliseconds after which walking the groups of a user concurrently is given "
+                            + "up")
+                    .defaultValue(String.valueOf(DEFAULT_GROUP_LOAD_TIMEOUT))
+                    .add()
+                .property()
+                    .name(CONFIG_GROUP_MAX_DEPTH)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("Group Max Depth")
+                    .helpText("Maximum number of nesting levels resolved above and below each of a user's groups. "
+                            + "Deeper groups are ignored")
+                    .defaultValue(String.valueOf(DEFAULT_GROUP_MAX_DEPTH))
+                    .add()
+                .property()
+                    .name(CONFIG_SEARCH_MAX_RESULTS)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("Max Search Results")
+                    .helpText("Maximum number of users returned by user listings, searches and group member listings "
+                            + "which do not limit their number of results themselves")
+                    .defaultValue(String.valueOf(DEFAULT_SEARCH_MAX_RESULTS))
+                    .add()
+                .property()
+                    .name(CONFIG_ATTRIBUTE_ALLOWLIST)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("Attribute Allowlist")
+                    .helpText("Comma separated names of the Crowd user and group attributes which are kept, all "
+                            + "other attributes are dropped before users and groups are cached, imported or mapped. "
+                            + "Leave empty to keep all attributes")
+                    .add()
+                .property()
+                    .name(CONFIG_ATTRIBUTE_DENYLIST)
+                    .type(ProviderConfigProperty.STRING_TYPE)
+                    .label("Attribute Denylist")
+                    .helpText("Comma separated names of Crowd user and group attributes which are dropped, even if "
+                            + "they are part of the allowlist")
+                    .add()
                 .build();
     }
 
+    private final Map<String, CrowdComponentContext> contexts = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler =
+            Executors.newScheduledThreadPool(1, daemonThreadFactory("crowd-user-storage-"));
+    private final ExecutorService groupLoader = createGroupLoader();
+    private final ExecutorService refresher = createRefresher();
+    private final ExecutorService backgroundLoader = createBackgroundLoader();
+
+    private volatile KeycloakSessionFactory sessionFactory;
+
     /**
      * Returns the name of this provider ("crowd").
      *
@@ -120,10 +498,45 @@ public class CrowdStorageProviderFactory implements UserStorageProviderFactory<C
         if (applicationPassword == null) {
             throw new ComponentValidationException("Please provide Application password registered in crowd");
         }
+
+        validateNumber(config, CONFIG_HTTP_MAX_CONNECTIONS, "Max Connections", 1);
+        validateNumber(config, CONFIG_HTTP_TIMEOUT, "Connection Timeout", 1);
+        validateNumber(config, CONFIG_HTTP_SOCKET_TIMEOUT, "Socket Timeout", 1);
+        validateNumber(config, CONFIG_AUTHENTICATION_TIMEOUT, "Authentication Timeout", 1);
+        validateNumber(config, CONFIG_LOOKUP_TIMEOUT, "Lookup Timeout", 1);
+        validateNumber(config, CONFIG_SEARCH_TIMEOUT, "Search Timeout", 1);
+        validateNumber(config, CONFIG_GROUP_TIMEOUT, "Group Timeout", 1);
+        validateNumber(config, CONFIG_CIRCUIT_BREAKER_FAILURE_THRESHOLD, "Circuit Breaker Failure Threshold", 0);
+        validateNumber(config, CONFIG_CIRCUIT_BREAKER_SLOW_CALL_THRESHOLD, "Circuit Breaker Slow Call Threshold", 0);
+        validateNumber(config, CONFIG_CIRCUIT_BREAKER_OPEN_DURATION, "Circuit Breaker Open Duration", 1);
+        validateNumber(config, CONFIG_AUTHENTICATION_CONCURRENCY, "Authentication Concurrency", 0);
+        validateNumber(config, CONFIG_LOOKUP_CONCURRENCY, "Lookup Concurrency", 0);
+        validateNumber(config, CONFIG_SEARCH_CONCURRENCY, "Search Concurrency", 0);
+        validateNumber(config, CONFIG_GROUP_CONCURRENCY, "Group Concurrency", 0);
+        validateNumber(config, CONFIG_CONCURRENCY_MAX_WAIT, "Concurrency Max Wait", 0);
+        validateNumber(config, CONFIG_ADAPTIVE_LIMIT_MIN, "Adaptive Limit Min", 1);
+        validateNumber(config, CONFIG_ADAPTIVE_LIMIT_MAX, "Adaptive Limit Max", 0);
+        validateNumber(config, CONFIG_USER_CACHE_TTL, "User Cache TTL", 0);
+        validateNumber(config, CONFIG_USER_CACHE_MAX_ENTRIES, "User Cache Size", 0);
+        validateNumber(config, CONFIG_USER_CACHE_STALE_TTL, "User Cache Stale TTL", 0);
+        validateNumber(config, CONFIG_USER_CACHE_REFRESH_AHEAD, "User Cache Refresh Ahead", 0);
+        validateNumber(config, CONFIG_USER_CACHE_REFRESH_MIN_HITS, "User Cache Refresh Min Hits", 1);
+        validateNumber(config, CONFIG_NEGATIVE_CACHE_TTL, "Negative Cache TTL", 0);
+        validateNumber(config, CONFIG_NEGATIVE_CACHE_MAX_ENTRIES, "Negative Cache Size", 0);
+        validateNumber(config, CONFIG_GROUP_HIERARCHY_REFRESH_INTERVAL, "Group Hierarchy Refresh Interval", 0);
+        validateNumber(config, CONFIG_GROUP_HIERARCHY_MAX_GROUPS, "Group Hierarchy Max Groups", 1);
+        validateNumber(config, CONFIG_USERS_COUNT_REFRESH_INTERVAL, "Users Count Refresh Interval", 0);
+        validateNumber(config, CONFIG_SEARCH_MAX_RESULTS, "Max Search Results", 1);
+        validateNumber(config, CONFIG_EVENT_POLL_INTERVAL, "Event Poll Interval", 0);
+        validateNumber(config, CONFIG_GROUP_LOAD_PARALLELISM, "Group Load Parallelism", 1);
+        validateNumber(config, CONFIG_GROUP_LOAD_TIMEOUT, "Group Load Timeout", 1);
+        validateNumber(config, CONFIG_GROUP_MAX_DEPTH, "Group Max Depth", 0);
     }
 
     /**
-     * Creates a new instance of the {@link CrowdStorageProvider}.
+     * Creates a new instance of the {@link CrowdStorageProvider}. All providers of a component share the same
+     * {@link CrowdComponentContext}, which is only rebuilt once the component's configuration changes. The session
+     * retains its context until it is closed, so a context replaced in the meantime is only shut down afterwards.
      *
      * @param session the keycloak session
      * @param model the keycloak component model
@@ -131,12 +544,194 @@ public class CrowdStorageProviderFactory implements UserStorageProviderFactory<C
      */
     @Override
     public CrowdStorageProvider create(KeycloakSession session, ComponentModel model) {
-        CrowdClient client = new RestCrowdClientFactory().newInstance(
-                model.getConfig().getFirst(CONFIG_URL),
-                model.getConfig().getFirst(CONFIG_APPLICATION_NAME),
-                model.getConfig().getFirst(CONFIG_APPLICATION_PASSWORD));
+        CrowdComponentContext context = retainContext(model);
+        session.enlistForClose(context::release);
+
+        return new CrowdStorageProvider(session, model, context);
+    }
+
+    /**
+     * Imports all Crowd users, their attributes and group memberships into Keycloak's local storage, and removes
+     * previously imported users which no longer exist in Crowd. Synchronization is skipped unless user import has
+     * been enabled explicitly for the component.
+     *
+     * @param sessionFactory the keycloak session factory
+     * @param realmId the id of the realm to synchronize users into
+     * @param model the provider's model
+     * @return the synchronization result
+     */
+    @Override
+    public SynchronizationResult sync(
+            KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+        CrowdComponentContext context = retainContext(model);
+
+        try {
+            if (!context.isImportEnabled()) {
+                return SynchronizationResult.ignored();
+            }
+
+            return new CrowdUserSynchronizer(context, sessionFactory, realmId, model).syncAll();
+        } finally {
+            context.release();
+        }
+    }
+
+    /**
+     * Imports all Crowd users which were updated since the last synchronization into Keycloak's local storage. If
+     * there was no previous synchronization, all users are synchronized. Synchronization is skipped unless user import
+     * has been enabled explicitly for the component. Crowd does not record membership changes and removals in a
+     * user's update date, so these are only picked up by the full synchronization.
+     *
+     * @param lastSync the date of the last synchronization, may be null
+     * @param sessionFactory the keycloak session factory
+     * @param realmId the id of the realm to synchronize users into
+     * @param model the provider's model
+     * @return the synchronization result
+     */
+    @Override
+    public SynchronizationResult syncSince(
+            Date lastSync, KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+        if (lastSync == null) {
+            return sync(sessionFactory, realmId, model);
+        }
+
+        CrowdComponentContext context = retainContext(model);
+
+        try {
+            if (!context.isImportEnabled()) {
+                return SynchronizationResult.ignored();
+            }
+
+            return new CrowdUserSynchronizer(context, sessionFactory, realmId, model).syncSince(lastSync);
+        } finally {
+            context.release();
+        }
+    }
+
+    /**
+     * Keeps a reference to the session factory, which is used to evict users changed in Crowd from Keycloak's user
+     * cache.
+     *
+     * @param factory the keycloak session factory
+     */
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        this.sessionFactory = factory;
+    }
+
+    /**
+     * Releases the shared context of a component that is about to be removed.
+     *
+     * @param session the keycloak session
+     * @param realm the keycloak realm
+     * @param model the keycloak component model being removed
+     */
+    @Override
+    public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        CrowdComponentContext context = contexts.remove(model.getId());
+
+        if (context != null) {
+            context.close();
+        }
+    }
+
+    /**
+     * Closes this factory, releasing the shared contexts of all components and stopping their background tasks.
+     */
+    @Override
+    public void close() {
+        contexts.values().forEach(CrowdComponentContext::close);
+        contexts.clear();
+        scheduler.shutdownNow();
+        groupLoader.shutdownNow();
+        refresher.shutdownNow();
+        backgroundLoader.shutdownNow();
+    }
+
+    private CrowdComponentContext retainContext(ComponentModel model) {
+        CrowdComponentContext context;
+
+        // a context closed by a concurrent configuration change is retried with the context replacing it
+        do {
+            context = getContext(model);
+        } while (!context.retain());
+
+        return context;
+    }
+
+    private CrowdComponentContext getContext(ComponentModel model) {
+        CrowdComponentContext context = contexts.get(model.getId());
+
+        if (context == null || !context.isConfiguredFor(model)) {
+            context = contexts.compute(model.getId(), (id, existing) -> {
+                if (existing != null) {
+                    if (existing.isConfiguredFor(model)) {
+                        return existing;
+                    }
+
+                    existing.close();
+                }
+
+                return new CrowdComponentContext(
+                        model, scheduler, groupLoader, refresher, backgroundLoader, sessionFactory);
+            });
+        }
+
+        return context;
+    }
+
+    private static void validateNumber(ComponentModel config, String key, String label, int minimum) {
+        String value = config.getConfig().getFirst(key);
+
+        if (value != null && !value.trim().isEmpty() && parseInt(value) < minimum) {
+            throw new ComponentValidationException(label + " must be a number of at least " + minimum);
+        }
+    }
+
+    private static int parseInt(String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return Integer.MIN_VALUE;
+        }
+    }
+
+    private static ExecutorService createGroupLoader() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(GROUP_LOADER_THREADS, GROUP_LOADER_THREADS,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), daemonThreadFactory("crowd-group-loader-"));
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
+    }
+
+    private static ExecutorService createRefresher() {
+        // bounded, so that refreshes are dropped instead of piling up while Crowd is slow
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(REFRESHER_THREADS, REFRESHER_THREADS,
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(REFRESHER_QUEUE_SIZE),
+                daemonThreadFactory("crowd-cache-refresher-"));
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
+    }
+
+    private static ExecutorService createBackgroundLoader() {
+        // every component submits each of its periodic jobs at most once at a time, which bounds the queue
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(BACKGROUND_THREADS, BACKGROUND_THREADS,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), daemonThreadFactory("crowd-background-"));
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
+    }
+
+    private static ThreadFactory daemonThreadFactory(String namePrefix) {
+        AtomicInteger count = new AtomicInteger();
+
+        return runnable -> {
+            Thread thread = new Thread(runnable, namePrefix + count.incrementAndGet());
+            thread.setDaemon(true);
 
-        return new CrowdStorageProvider(session, model, client);
+            return thread;
+        };
     }
 
 }
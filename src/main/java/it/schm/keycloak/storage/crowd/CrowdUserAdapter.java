@@ -22,40 +22,51 @@
 
 package it.schm.keycloak.storage.crowd;
 
-import com.atlassian.crowd.model.user.UserWithAttributes;
-import org.keycloak.common.util.MultivaluedHashMap;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.storage.ReadOnlyException;
-import org.keycloak.storage.StorageId;
 import org.keycloak.storage.adapter.AbstractUserAdapterFederatedStorage;
 
-import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Supplier;
 
 /**
- * A read-only UserModel implementation for Crowd's UserWithAttributes.
+ * A read-only UserModel implementation for Crowd users, backed by a {@link CrowdUserRecord}. The user's groups can
+ * either be set directly, or be resolved lazily on first access, so that code paths which never look at groups never
+ * query them.
+ * <p>
+ * A lite adapter only holds the record of a Crowd user without attributes, as returned by user listings and searches.
+ * Username, email address and names are served from it directly, while the user's attributes are only retrieved from
+ * Crowd once they are first accessed.
+ * <p>
+ * All attributes are collected into an immutable map on first access, which is then served by all attribute getters
+ * without any further copying.
  *
  * @author Sam Schmit
  * @since 1.0.0
  * @see <a href="https://www.keycloak.org/docs-api/9.0/javadocs/org/keycloak/storage/adapter/AbstractUserAdapterFederatedStorage.html">org.keycloak.storage.adapter.AbstractUserAdapterFederatedStorage</a>
  * @see <a href="https://www.keycloak.org/docs-api/9.0/javadocs/org/keycloak/models/UserModel.html">org.keycloak.models.UserModel</a>
  * @see <a href="https://www.keycloak.org/docs-api/9.0/javadocs/org/keycloak/models/RoleMapperModel.html">org.keycloak.models.RoleMapperModel</a>
- * @see <a href="https://docs.atlassian.com/atlassian-crowd/4.0.0/com/atlassian/crowd/model/user/UserWithAttributes.html">com.atlassian.crowd.model.user.UserWithAttributes</a>
+ * @see CrowdUserRecord
  */
 public class CrowdUserAdapter extends AbstractUserAdapterFederatedStorage {
 
     public static final String ATTR_DISPLAY_NAME = "displayName";
 
-    private final String keycloakId;
-    private final UserWithAttributes entity;
+    private final CrowdUserRecord entity;
+
+    private CrowdUserRecord attributes;
+    private Supplier<CrowdUserRecord> attributesLoader;
+    private Map<String, List<String>> attributeMap;
 
     private Set<GroupModel> groups;
+    private Supplier<Set<GroupModel>> groupsLoader;
 
     /**
      * Creates a new instance of this adapter.
@@ -63,19 +74,46 @@ public class CrowdUserAdapter extends AbstractUserAdapterFederatedStorage {
      * @param session the keycloak session
      * @param realm the realm model
      * @param model the provider's component model
-     * @param entity the crowd user entity
+     * @param entity the crowd user's record, including its attributes
      */
     public CrowdUserAdapter(
-            KeycloakSession session, RealmModel realm, ComponentModel model, UserWithAttributes entity) {
+            KeycloakSession session, RealmModel realm, ComponentModel model, CrowdUserRecord entity) {
         super(session, realm, model);
 
-        this.keycloakId = StorageId.keycloakId(model, entity.getName());
         this.entity = entity;
+        this.attributes = entity;
+    }
+
+    /**
+     * Creates a new lite instance of this adapter, which retrieves the user's attributes on first access.
+     *
+     * @param session the keycloak session
+     * @param realm the realm model
+     * @param model the provider's component model
+     * @param entity the crowd user's record, without attributes
+     * @param attributesLoader the loader retrieving the crowd user's record including its attributes, which may
+     *                         return null if the user no longer exists
+     */
+    public CrowdUserAdapter(KeycloakSession session, RealmModel realm, ComponentModel model, CrowdUserRecord entity,
+                            Supplier<CrowdUserRecord> attributesLoader) {
+        super(session, realm, model);
+
+        this.entity = entity;
+        this.attributesLoader = attributesLoader;
+    }
+
+    /**
+     * Checks whether this adapter's attributes have not been retrieved from Crowd yet.
+     *
+     * @return true if this is a lite adapter whose attributes have not been accessed yet, false otherwise
+     */
+    public boolean isLite() {
+        return attributesLoader != null;
     }
 
     @Override
     public String getId() {
-        return keycloakId;
+        return entity.getKeycloakId();
     }
 
     @Override
@@ -132,9 +170,24 @@ public class CrowdUserAdapter extends AbstractUserAdapterFederatedStorage {
         this.groups = groups;
     }
 
+    /**
+     * Sets the loader used to resolve this user's groups on first access, unless they have been set directly. The
+     * loaded groups are kept for the lifetime of this adapter.
+     *
+     * @param groupsLoader the loader resolving the user's groups
+     */
+    public void setGroupsLoader(Supplier<Set<GroupModel>> groupsLoader) {
+        this.groupsLoader = groupsLoader;
+    }
+
     @Override
     protected Set<GroupModel> getGroupsInternal() {
-        return groups;
+        if (groups == null && groupsLoader != null) {
+            groups = groupsLoader.get();
+            groupsLoader = null;
+        }
+
+        return groups != null ? groups : Collections.emptySet();
     }
 
     @Override
@@ -144,19 +197,12 @@ public class CrowdUserAdapter extends AbstractUserAdapterFederatedStorage {
 
     @Override
     public List<String> getAttribute(String name) {
-        if (ATTR_DISPLAY_NAME.equals(name)) {
-            List<String> strings = new ArrayList<>();
-            strings.add(entity.getDisplayName());
-
-            return strings;
-        }
-
-        if (entity.getKeys().contains(name)) {
-            Set<String> values = entity.getValues(name);
-            return values != null ? new ArrayList<>(values) : Collections.emptyList();
+        if (ATTR_DISPLAY_NAME.equals(name) && isLite()) {
+            String displayName = entity.getDisplayName();
+            return displayName != null ? Collections.singletonList(displayName) : Collections.emptyList();
         }
 
-        return Collections.emptyList();
+        return getAttributes().getOrDefault(name, Collections.emptyList());
     }
 
     @Override
@@ -166,11 +212,8 @@ public class CrowdUserAdapter extends AbstractUserAdapterFederatedStorage {
 
     @Override
     public String getFirstAttribute(String name) {
-        if (ATTR_DISPLAY_NAME.equals(name)) {
-            return entity.getDisplayName();
-        }
-
-        return entity.getValue(name);
+        List<String> values = getAttribute(name);
+        return values.isEmpty() ? null : values.get(0);
     }
 
     @Override
@@ -180,14 +223,31 @@ public class CrowdUserAdapter extends AbstractUserAdapterFederatedStorage {
 
     @Override
     public Map<String, List<String>> getAttributes() {
-        MultivaluedHashMap<String, String> all = new MultivaluedHashMap<>();
-        all.putSingle(ATTR_DISPLAY_NAME, entity.getDisplayName());
+        if (attributeMap == null) {
+            attributeMap = toAttributeMap(entity.getDisplayName(), getAttributesEntity());
+        }
+
+        return attributeMap;
+    }
+
+    private CrowdUserRecord getAttributesEntity() {
+        if (attributesLoader != null) {
+            attributes = attributesLoader.get();
+            attributesLoader = null;
+        }
 
-        entity.getKeys().stream()
-                .filter(key -> entity.getValues(key) != null)
-                .forEach(key -> all.put(key, new ArrayList<>(entity.getValues(key))));
+        return attributes;
+    }
+
+    private static Map<String, List<String>> toAttributeMap(String displayName, CrowdUserRecord attributes) {
+        Map<String, List<String>> attributeMap = new HashMap<>();
+        attributeMap.put(ATTR_DISPLAY_NAME, Collections.singletonList(displayName));
+
+        if (attributes != null) {
+            attributes.forEachAttribute(attributeMap::put);
+        }
 
-        return all;
+        return Collections.unmodifiableMap(attributeMap);
     }
 
 }
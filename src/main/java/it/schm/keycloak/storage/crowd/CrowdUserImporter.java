@@ -0,0 +1,226 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd;
+
+import org.jboss.logging.Logger;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Copies Crowd users, their attributes and group memberships into Keycloak's local storage. Imported users are
+ * linked to the Crowd component, so that Keycloak serves them from its own database and only turns to Crowd for
+ * password validation.
+ * <p>
+ * Crowd groups are imported as realm groups, nested below their first parent, and are marked with the
+ * {@value #ATTR_FEDERATION_LINK} attribute. Only marked groups are left when a user is no longer a member of them in
+ * Crowd, so group memberships managed in Keycloak itself are kept. Likewise, only marked groups are reused for Crowd
+ * groups, a local group with the same name as a Crowd group is never taken over; the Crowd group is skipped instead.
+ * <p>
+ * An importer is bound to a single session and must not be shared across transactions.
+ *
+ * @author Sam Schmit
+ * @since 1.1.0
+ * @see CrowdUserSynchronizer
+ */
+public class CrowdUserImporter {
+
+    private static final Logger logger = Logger.getLogger(CrowdUserImporter.class);
+
+    /**
+     * Name of the group attribute holding the id of the Crowd component a group was imported from.
+     */
+    public static final String ATTR_FEDERATION_LINK = "crowdFederationLink";
+
+    private final KeycloakSession session;
+    private final RealmModel realm;
+    private final ComponentModel model;
+
+    private final Map<String, GroupModel> localGroups = new HashMap<>();
+    private int addedCount;
+    private int updatedCount;
+
+    /**
+     * Creates a new importer.
+     *
+     * @param session the keycloak session to import users in
+     * @param realm the realm to import users into
+     * @param model the provider's component model
+     */
+    public CrowdUserImporter(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        this.session = session;
+        this.realm = realm;
+        this.model = model;
+    }
+
+    /**
+     * Imports the given Crowd user and its group memberships, adding it to local storage if it has not been imported
+     * yet, or updating the previously imported user otherwise.
+     *
+     * @param crowdUser the record of the crowd user to import
+     * @param groups the user's resolved Crowd groups, may be null if they are not known
+     * @return the imported local user, or null if a local user with the same username, which does not belong to this
+     *         component, already exists
+     */
+    public UserModel importUser(CrowdUserRecord crowdUser, Set<GroupModel> groups) {
+        UserProvider localStorage = session.userLocalStorage();
+        UserModel user = localStorage.getUserByUsername(crowdUser.getName(), realm);
+
+        if (user == null) {
+            user = localStorage.addUser(realm, crowdUser.getName());
+            user.setFederationLink(model.getId());
+            addedCount++;
+        } else if (model.getId().equals(user.getFederationLink())) {
+            updatedCount++;
+        } else {
+            logger.warnf("Skipping import of crowd user %s, a local user with the same username already exists",
+                    crowdUser.getName());
+            return null;
+        }
+
+        copyDetails(crowdUser, user);
+        importGroups(user, groups);
+
+        return user;
+    }
+
+    /**
+     * Returns the number of users added to local storage by this importer.
+     *
+     * @return the number of added users
+     */
+    public int getAddedCount() {
+        return addedCount;
+    }
+
+    /**
+     * Returns the number of previously imported users updated by this importer.
+     *
+     * @return the number of updated users
+     */
+    public int getUpdatedCount() {
+        return updatedCount;
+    }
+
+    private void copyDetails(CrowdUserRecord crowdUser, UserModel user) {
+        CrowdUserAdapter source = new CrowdUserAdapter(session, realm, model, crowdUser);
+        user.setEnabled(crowdUser.isActive());
+        user.setEmail(source.getEmail());
+        user.setEmailVerified(source.isEmailVerified());
+        user.setFirstName(source.getFirstName());
+        user.setLastName(source.getLastName());
+
+        source.getAttributes().forEach((name, values) -> {
+            List<String> nonNullValues = values.stream().filter(Objects::nonNull).collect(toList());
+
+            if (nonNullValues.isEmpty()) {
+                user.removeAttribute(name);
+            } else {
+                user.setAttribute(name, nonNullValues);
+            }
+        });
+    }
+
+    private void importGroups(UserModel user, Set<GroupModel> groups) {
+        Set<GroupModel> targetGroups = new HashSet<>();
+
+        if (groups != null) {
+            groups.stream().map(this::toLocalGroup).filter(Objects::nonNull).forEach(targetGroups::add);
+        }
+
+        Set<GroupModel> currentGroups = user.getGroups();
+
+        currentGroups.stream()
+                .filter(group -> model.getId().equals(group.getFirstAttribute(ATTR_FEDERATION_LINK)))
+                .filter(group -> !targetGroups.contains(group))
+                .collect(toList())
+                .forEach(user::leaveGroup);
+
+        targetGroups.stream()
+                .filter(group -> !currentGroups.contains(group))
+                .forEach(user::joinGroup);
+    }
+
+    private GroupModel toLocalGroup(GroupModel crowdGroup) {
+        return toLocalGroup(crowdGroup, new HashSet<>());
+    }
+
+    private GroupModel toLocalGroup(GroupModel crowdGroup, Set<String> path) {
+        path.add(crowdGroup.getName());
+
+        GroupModel crowdParent = crowdGroup.getParent();
+        GroupModel parent = null;
+
+        if (crowdParent != null && !path.contains(crowdParent.getName())) {
+            parent = toLocalGroup(crowdParent, path);
+
+            if (parent == null) {
+                return null;
+            }
+        }
+
+        String key = (parent != null ? parent.getId() : "") + "/" + crowdGroup.getName();
+        GroupModel localParent = parent;
+
+        return localGroups.computeIfAbsent(key, k -> findOrCreateGroup(crowdGroup.getName(), localParent));
+    }
+
+    private GroupModel findOrCreateGroup(String name, GroupModel parent) {
+        Collection<GroupModel> siblings = parent != null ? parent.getSubGroups() : realm.getTopLevelGroups();
+
+        GroupModel group = siblings.stream()
+                .filter(sibling -> name.equals(sibling.getName()))
+                .findFirst()
+                .orElse(null);
+
+        if (group != null && !model.getId().equals(group.getFirstAttribute(ATTR_FEDERATION_LINK))) {
+            logger.warnf("Skipping import of crowd group %s, a local group with the same name already exists", name);
+            return null;
+        }
+
+        if (group == null) {
+            group = realm.createGroup(name);
+            group.setSingleAttribute(ATTR_FEDERATION_LINK, model.getId());
+
+            if (parent != null) {
+                realm.moveGroup(group, parent);
+            }
+        }
+
+        return group;
+    }
+
+}
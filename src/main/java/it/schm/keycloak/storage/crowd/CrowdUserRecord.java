@@ -0,0 +1,188 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd;
+
+import com.atlassian.crowd.model.user.User;
+import com.atlassian.crowd.model.user.UserWithAttributes;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.storage.StorageId;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * A compact, immutable copy of a Crowd user, which is kept by {@link CrowdUserAdapter} and the user cache instead of
+ * the client's {@link UserWithAttributes} and its mutable attribute maps.
+ * <p>
+ * Attributes are held in two parallel arrays, sorted by key. Keys are interned, so that all users share a single
+ * instance of every attribute name, and single values, which most attributes have, are held without any collection
+ * around them. The user's keycloak id is computed once, when the record is created.
+ *
+ * @author Sam Schmit
+ * @since 1.1.0
+ * @see CrowdUserAdapter
+ */
+public final class CrowdUserRecord {
+
+    private static final String[] NO_KEYS = new String[0];
+    private static final Object[] NO_VALUES = new Object[0];
+
+    private final String keycloakId;
+    private final String name;
+    private final String emailAddress;
+    private final String firstName;
+    private final String lastName;
+    private final String displayName;
+    private final boolean active;
+
+    private final String[] keys;
+    private final Object[] values;
+
+    private CrowdUserRecord(ComponentModel model, User user, String[] keys, Object[] values) {
+        this.keycloakId = StorageId.keycloakId(model, user.getName());
+        this.name = user.getName();
+        this.emailAddress = user.getEmailAddress();
+        this.firstName = user.getFirstName();
+        this.lastName = user.getLastName();
+        this.displayName = user.getDisplayName();
+        this.active = user.isActive();
+        this.keys = keys;
+        this.values = values;
+    }
+
+    /**
+     * Creates a record of the given user, including its attributes.
+     *
+     * @param model the provider's component model
+     * @param user the crowd user
+     * @return the user's record
+     */
+    public static CrowdUserRecord of(ComponentModel model, UserWithAttributes user) {
+        return of(model, user, AttributeFilter.ALL);
+    }
+
+    /**
+     * Creates a record of the given user, including those of its attributes which are kept by the given filter.
+     *
+     * @param model the provider's component model
+     * @param user the crowd user
+     * @param filter the filter deciding which attributes are kept
+     * @return the user's record
+     */
+    public static CrowdUserRecord of(ComponentModel model, UserWithAttributes user, AttributeFilter filter) {
+        List<String> sortedKeys = user.getKeys().stream().filter(filter).sorted().collect(toList());
+
+        String[] keys = new String[sortedKeys.size()];
+        Object[] values = new Object[sortedKeys.size()];
+        int count = 0;
+
+        for (String key : sortedKeys) {
+            Set<String> keyValues = user.getValues(key);
+
+            if (keyValues != null) {
+                keys[count] = key.intern();
+                values[count] = keyValues.size() == 1
+                        ? keyValues.iterator().next() : keyValues.toArray(new String[0]);
+                count++;
+            }
+        }
+
+        return count == 0
+                ? new CrowdUserRecord(model, user, NO_KEYS, NO_VALUES)
+                : new CrowdUserRecord(model, user, Arrays.copyOf(keys, count), Arrays.copyOf(values, count));
+    }
+
+    /**
+     * Creates a record of the given user, without any attributes, e.g. for users returned by listings and searches.
+     *
+     * @param model the provider's component model
+     * @param user the crowd user
+     * @return the user's record
+     */
+    public static CrowdUserRecord withoutAttributes(ComponentModel model, User user) {
+        return new CrowdUserRecord(model, user, NO_KEYS, NO_VALUES);
+    }
+
+    public String getKeycloakId() {
+        return keycloakId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getEmailAddress() {
+        return emailAddress;
+    }
+
+    public String getFirstName() {
+        return firstName;
+    }
+
+    public String getLastName() {
+        return lastName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Returns the values of the attribute with the given key.
+     *
+     * @param key the attribute's key
+     * @return an unmodifiable list of the attribute's values, or an empty list if the user has no such attribute
+     */
+    public List<String> getValues(String key) {
+        int index = Arrays.binarySearch(keys, key);
+
+        return index >= 0 ? toValueList(values[index]) : Collections.emptyList();
+    }
+
+    /**
+     * Passes every attribute of this user, with an unmodifiable list of its values, to the given action.
+     *
+     * @param action the action to perform for every attribute
+     */
+    public void forEachAttribute(BiConsumer<String, List<String>> action) {
+        for (int i = 0; i < keys.length; i++) {
+            action.accept(keys[i], toValueList(values[i]));
+        }
+    }
+
+    private static List<String> toValueList(Object value) {
+        return value instanceof String[]
+                ? Collections.unmodifiableList(Arrays.asList((String[]) value))
+                : Collections.singletonList((String) value);
+    }
+
+}
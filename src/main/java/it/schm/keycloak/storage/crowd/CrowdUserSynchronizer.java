@@ -0,0 +1,237 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd;
+
+import com.atlassian.crowd.embedded.api.SearchRestriction;
+import com.atlassian.crowd.exception.ApplicationPermissionException;
+import com.atlassian.crowd.exception.InvalidAuthenticationException;
+import com.atlassian.crowd.exception.OperationFailedException;
+import com.atlassian.crowd.search.query.entity.restriction.MatchMode;
+import com.atlassian.crowd.search.query.entity.restriction.TermRestriction;
+import com.atlassian.crowd.search.query.entity.restriction.constants.UserTermKeys;
+import it.schm.keycloak.storage.crowd.group.CrowdGroupMapper;
+import org.jboss.logging.Logger;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.ModelException;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Synchronizes Crowd users into Keycloak's local storage. Users are retrieved from Crowd in batches of
+ * {@value #BATCH_SIZE}, and every batch is imported in its own transaction, so that a large directory is never held
+ * in memory, nor in a single transaction, at once. Group memberships are resolved before a batch's transaction is
+ * started, so no transaction is kept open while waiting for Crowd.
+ * <p>
+ * Crowd only tracks the update date of a user's own details, so the changed users synchronization misses users whose
+ * group memberships changed, as well as users which were removed from Crowd. Only the full synchronization
+ * reconciles them: it re-imports the memberships of every user and removes imported users which no longer exist.
+ *
+ * @author Sam Schmit
+ * @since 1.1.0
+ * @see CrowdUserImporter
+ * @see <a href="https://www.keycloak.org/docs-api/9.0/javadocs/org/keycloak/storage/user/ImportSynchronization.html">org.keycloak.storage.user.ImportSynchronization</a>
+ */
+public class CrowdUserSynchronizer {
+
+    private static final Logger logger = Logger.getLogger(CrowdUserSynchronizer.class);
+
+    /**
+     * The number of users retrieved from Crowd and imported per transaction.
+     */
+    protected static final int BATCH_SIZE = 100;
+
+    private final CrowdComponentContext context;
+    private final KeycloakSessionFactory sessionFactory;
+    private final String realmId;
+    private final ComponentModel model;
+
+    /**
+     * Creates a new synchronizer.
+     *
+     * @param context the component's shared context, providing the crowd rest client and group hierarchy
+     * @param sessionFactory the session factory used to open a transaction per batch
+     * @param realmId the id of the realm to synchronize users into
+     * @param model the provider's component model
+     */
+    public CrowdUserSynchronizer(CrowdComponentContext context, KeycloakSessionFactory sessionFactory, String realmId,
+                                 ComponentModel model) {
+        this.context = context;
+        this.sessionFactory = sessionFactory;
+        this.realmId = realmId;
+        this.model = model;
+    }
+
+    /**
+     * Imports all Crowd users and removes previously imported users which no longer exist in Crowd.
+     *
+     * @return the synchronization result
+     */
+    public SynchronizationResult syncAll() {
+        SynchronizationResult result = new SynchronizationResult();
+        Set<String> usernames = importUsers(CrowdStorageProvider.NOOP_SEARCH_RESTRICTION, result);
+        removeMissingUsers(usernames, result);
+
+        logger.infof("Synchronized all crowd users of component %s: %d added, %d updated, %d removed, %d failed",
+                model.getName(), result.getAdded(), result.getUpdated(), result.getRemoved(), result.getFailed());
+
+        return result;
+    }
+
+    /**
+     * Imports all Crowd users whose details were updated since the given date. Changes of group memberships and
+     * removed users are not detected, they are only reconciled by {@link #syncAll()}.
+     *
+     * @param lastSync the date of the last synchronization
+     * @return the synchronization result
+     */
+    public SynchronizationResult syncSince(Date lastSync) {
+        SynchronizationResult result = new SynchronizationResult();
+        importUsers(new TermRestriction<>(UserTermKeys.UPDATED_DATE, MatchMode.GREATER_THAN, lastSync), result);
+
+        logger.infof("Synchronized crowd users of component %s changed since %s: %d added, %d updated, %d failed",
+                model.getName(), lastSync, result.getAdded(), result.getUpdated(), result.getFailed());
+
+        return result;
+    }
+
+    private Set<String> importUsers(SearchRestriction searchRestriction, SynchronizationResult result) {
+        Set<String> usernames = new HashSet<>();
+        CrowdGroupMapper groupMapper = new CrowdGroupMapper(model, context.getClient(),
+                context.getGroupMapperSettings());
+
+        int start = 0;
+        List<CrowdUserRecord> batch;
+        do {
+            batch = searchUsers(searchRestriction, start);
+            start += batch.size();
+
+            Map<String, Set<GroupModel>> groups =
+                    groupMapper.loadGroups(batch.stream().map(CrowdUserRecord::getName).collect(toList()));
+
+            Map<CrowdUserRecord, Set<GroupModel>> groupsByUser = new LinkedHashMap<>();
+            batch.forEach(user -> groupsByUser.put(user, groups.get(user.getName())));
+
+            importBatch(groupsByUser, result);
+            batch.forEach(user -> usernames.add(user.getName().toLowerCase(Locale.ROOT)));
+        } while (batch.size() == BATCH_SIZE);
+
+        return usernames;
+    }
+
+    private void importBatch(Map<CrowdUserRecord, Set<GroupModel>> groupsByUser, SynchronizationResult result) {
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            CrowdUserImporter importer = new CrowdUserImporter(session, realm, model);
+
+            groupsByUser.forEach((crowdUser, groups) -> {
+                try {
+                    UserModel user = importer.importUser(crowdUser, groups);
+
+                    if (user == null) {
+                        result.increaseFailed();
+                    } else {
+                        evict(session, realm, user);
+                    }
+                } catch (ModelException e) {
+                    logger.warnf(e, "Failed to import crowd user %s", crowdUser.getName());
+                    result.increaseFailed();
+                }
+            });
+
+            result.setAdded(result.getAdded() + importer.getAddedCount());
+            result.setUpdated(result.getUpdated() + importer.getUpdatedCount());
+        });
+    }
+
+    private void removeMissingUsers(Set<String> usernames, SynchronizationResult result) {
+        List<String> missingUsernames = new ArrayList<>();
+
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+
+            int start = 0;
+            List<UserModel> page;
+            do {
+                page = session.userLocalStorage().getUsers(realm, start, BATCH_SIZE, false);
+                start += page.size();
+
+                page.stream()
+                        .filter(user -> model.getId().equals(user.getFederationLink()))
+                        .filter(user -> !usernames.contains(user.getUsername().toLowerCase(Locale.ROOT)))
+                        .forEach(user -> missingUsernames.add(user.getUsername()));
+            } while (page.size() == BATCH_SIZE);
+        });
+
+        for (int i = 0; i < missingUsernames.size(); i += BATCH_SIZE) {
+            List<String> batch = missingUsernames.subList(i, Math.min(i + BATCH_SIZE, missingUsernames.size()));
+
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+
+                batch.forEach(username -> {
+                    UserModel user = session.userLocalStorage().getUserByUsername(username, realm);
+
+                    if (user != null && model.getId().equals(user.getFederationLink())) {
+                        evict(session, realm, user);
+                        session.userLocalStorage().removeUser(realm, user);
+                        result.increaseRemoved();
+                    }
+                });
+            });
+        }
+    }
+
+    private List<CrowdUserRecord> searchUsers(SearchRestriction searchRestriction, int start) {
+        try {
+            return context.getClient().searchUsersWithAttributes(searchRestriction, start, BATCH_SIZE).stream()
+                    .map(user -> CrowdUserRecord.of(model, user, context.getAttributeFilter()))
+                    .collect(toList());
+        } catch (InvalidAuthenticationException | OperationFailedException | ApplicationPermissionException e) {
+            logger.error(e);
+            throw new ModelException(e);
+        }
+    }
+
+    private static void evict(KeycloakSession session, RealmModel realm, UserModel user) {
+        if (session.userCache() != null) {
+            session.userCache().evict(realm, user);
+        }
+    }
+
+}
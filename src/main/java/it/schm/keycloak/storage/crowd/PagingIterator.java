@@ -0,0 +1,94 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.BiFunction;
+
+/**
+ * An iterator over the results of a paged Crowd request. Results are fetched in fixed-size pages on demand, so that
+ * only a single page is held at any time, and iteration stops once the requested number of results has been returned
+ * or Crowd has no more results.
+ *
+ * @param <T> the type of results
+ * @author Sam Schmit
+ * @since 1.1.0
+ */
+public class PagingIterator<T> implements Iterator<T> {
+
+    private final BiFunction<Integer, Integer, List<T>> pageFetcher;
+    private final int pageSize;
+
+    private int nextPageIndex;
+    private int remaining;
+    private boolean exhausted;
+    private Iterator<T> page = Collections.emptyIterator();
+
+    /**
+     * Creates a new iterator.
+     *
+     * @param pageFetcher fetches a page of results, given the index of its first result and the page size
+     * @param firstResult the index of the first result to return
+     * @param maxResults the maximum number of results to return
+     * @param pageSize the number of results fetched per page
+     */
+    public PagingIterator(
+            BiFunction<Integer, Integer, List<T>> pageFetcher, int firstResult, int maxResults, int pageSize) {
+        this.pageFetcher = pageFetcher;
+        this.pageSize = pageSize;
+        this.nextPageIndex = Math.max(firstResult, 0);
+        this.remaining = Math.max(maxResults, 0);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (remaining > 0 && !page.hasNext() && !exhausted) {
+            fetchNextPage();
+        }
+
+        return remaining > 0 && page.hasNext();
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        remaining--;
+        return page.next();
+    }
+
+    private void fetchNextPage() {
+        int size = Math.min(pageSize, remaining);
+        List<T> results = pageFetcher.apply(nextPageIndex, size);
+
+        nextPageIndex += results.size();
+        exhausted = results.size() < size;
+        page = results.iterator();
+    }
+
+}
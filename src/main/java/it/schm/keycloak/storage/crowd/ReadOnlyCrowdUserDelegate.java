@@ -0,0 +1,124 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd;
+
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.UserModelDelegate;
+import org.keycloak.storage.ReadOnlyException;
+
+import java.util.List;
+
+/**
+ * A read-only view of a user imported from Crowd. Details and attributes of imported users mirror Crowd and would be
+ * overwritten by the next import anyway, so changing them is rejected. The same applies to memberships of groups
+ * imported from Crowd, while memberships of groups managed in Keycloak itself can still be changed.
+ *
+ * @author Sam Schmit
+ * @since 1.1.0
+ * @see CrowdStorageProvider#validate(org.keycloak.models.RealmModel, UserModel)
+ */
+public class ReadOnlyCrowdUserDelegate extends UserModelDelegate {
+
+    private final String componentId;
+
+    /**
+     * Creates a read-only view of the given imported user.
+     *
+     * @param delegate the imported local user
+     * @param componentId the id of the Crowd component the user was imported from
+     */
+    public ReadOnlyCrowdUserDelegate(UserModel delegate, String componentId) {
+        super(delegate);
+        this.componentId = componentId;
+    }
+
+    @Override
+    public void setUsername(String username) {
+        throw new ReadOnlyException();
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        throw new ReadOnlyException();
+    }
+
+    @Override
+    public void setEmail(String email) {
+        throw new ReadOnlyException();
+    }
+
+    @Override
+    public void setEmailVerified(boolean verified) {
+        throw new ReadOnlyException();
+    }
+
+    @Override
+    public void setFirstName(String firstName) {
+        throw new ReadOnlyException();
+    }
+
+    @Override
+    public void setLastName(String lastName) {
+        throw new ReadOnlyException();
+    }
+
+    @Override
+    public void setSingleAttribute(String name, String value) {
+        throw new ReadOnlyException();
+    }
+
+    @Override
+    public void setAttribute(String name, List<String> values) {
+        throw new ReadOnlyException();
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+        throw new ReadOnlyException();
+    }
+
+    @Override
+    public void setFederationLink(String link) {
+        throw new ReadOnlyException();
+    }
+
+    @Override
+    public void joinGroup(GroupModel group) {
+        checkNotImported(group);
+        super.joinGroup(group);
+    }
+
+    @Override
+    public void leaveGroup(GroupModel group) {
+        checkNotImported(group);
+        super.leaveGroup(group);
+    }
+
+    private void checkNotImported(GroupModel group) {
+        if (componentId.equals(group.getFirstAttribute(CrowdUserImporter.ATTR_FEDERATION_LINK))) {
+            throw new ReadOnlyException();
+        }
+    }
+
+}
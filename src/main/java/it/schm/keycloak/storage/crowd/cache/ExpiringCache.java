@@ -0,0 +1,295 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd.cache;
+
+import org.keycloak.common.util.Time;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A thread-safe, size-bounded cache whose entries expire a fixed time after they have been written. Once the maximum
+ * number of entries is reached, the least recently used entry is evicted. A cache with a time to live or a maximum
+ * size of zero is disabled, i.e. never returns nor stores any value.
+ * <p>
+ * Expired entries may be kept for an additional stale time to live, during which {@link #get(Object)} no longer
+ * returns them, but {@link #getStale(Object)} does. This allows callers to serve a stale value while it is refreshed
+ * in the background, or while its source is unavailable, instead of failing outright.
+ * <p>
+ * Every entry counts how often it has been read since it was written, so that frequently read entries can be found by
+ * {@link #getHotEntries(long, int)} and refreshed before they expire.
+ *
+ * @param <K> the type of keys maintained by this cache
+ * @param <V> the type of cached values
+ * @author Sam Schmit
+ * @since 1.1.0
+ */
+public class ExpiringCache<K, V> {
+
+    private final long timeToLive;
+    private final long staleTimeToLive;
+    private final int maxEntries;
+    private final LongSupplier clock;
+
+    private final Map<K, CacheEntry<V>> entries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param timeToLive the time in milliseconds after which an entry expires
+     * @param maxEntries the maximum number of entries held by the cache
+     */
+    public ExpiringCache(long timeToLive, int maxEntries) {
+        this(timeToLive, 0, maxEntries);
+    }
+
+    /**
+     * Creates a new cache keeping expired entries as stale values.
+     *
+     * @param timeToLive the time in milliseconds after which an entry expires
+     * @param staleTimeToLive the time in milliseconds after its expiry for which an entry is kept as stale value
+     * @param maxEntries the maximum number of entries held by the cache
+     */
+    public ExpiringCache(long timeToLive, long staleTimeToLive, int maxEntries) {
+        this(timeToLive, staleTimeToLive, maxEntries, Time::currentTimeMillis);
+    }
+
+    ExpiringCache(long timeToLive, int maxEntries, LongSupplier clock) {
+        this(timeToLive, 0, maxEntries, clock);
+    }
+
+    ExpiringCache(long timeToLive, long staleTimeToLive, int maxEntries, LongSupplier clock) {
+        this.timeToLive = timeToLive;
+        this.staleTimeToLive = Math.max(0, staleTimeToLive);
+        this.maxEntries = maxEntries;
+        this.clock = clock;
+        this.entries = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest) {
+                return size() > ExpiringCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Checks whether this cache stores values at all.
+     *
+     * @return true if both time to live and maximum size are positive, false otherwise
+     */
+    public boolean isEnabled() {
+        return timeToLive > 0 && maxEntries > 0;
+    }
+
+    /**
+     * Returns the value cached for the given key.
+     *
+     * @param key the key to look up
+     * @return the cached value, or null if there is none or it has expired
+     */
+    public V get(K key) {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        synchronized (entries) {
+            CacheEntry<V> entry = getUnlessDiscarded(key);
+
+            if (entry == null || entry.expiresAt <= clock.getAsLong()) {
+                misses.increment();
+                return null;
+            }
+
+            entry.hits++;
+            hits.increment();
+            return entry.value;
+        }
+    }
+
+    /**
+     * Returns the hot entries of this cache which expire within the given time, i.e. the entries which have not expired
+     * yet, but will within the given time, and which have been read by {@link #get(Object)} at least the given number
+     * of times since they were written.
+     *
+     * @param expiresWithin the time in milliseconds within which the returned entries expire
+     * @param minHits the minimum number of reads of the returned entries
+     * @return the keys and values of the hot entries
+     */
+    public Map<K, V> getHotEntries(long expiresWithin, int minHits) {
+        Map<K, V> hotEntries = new HashMap<>();
+
+        if (!isEnabled()) {
+            return hotEntries;
+        }
+
+        synchronized (entries) {
+            long now = clock.getAsLong();
+
+            entries.forEach((key, entry) -> {
+                if (entry.expiresAt > now && entry.expiresAt <= now + expiresWithin && entry.hits >= minHits) {
+                    hotEntries.put(key, entry.value);
+                }
+            });
+        }
+
+        return hotEntries;
+    }
+
+    /**
+     * Returns the value cached for the given key, even if it has expired, as long as its stale time to live has not
+     * passed yet.
+     *
+     * @param key the key to look up
+     * @return the cached value, which may be stale, or null if there is none or it has been discarded
+     */
+    public V getStale(K key) {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        synchronized (entries) {
+            CacheEntry<V> entry = getUnlessDiscarded(key);
+
+            if (entry == null) {
+                return null;
+            }
+
+            if (entry.expiresAt <= clock.getAsLong()) {
+                staleHits.increment();
+            }
+
+            return entry.value;
+        }
+    }
+
+    /**
+     * Caches the given value, replacing any previous value of the given key.
+     *
+     * @param key the key to cache the value under
+     * @param value the value to cache, must not be null
+     */
+    public void put(K key, V value) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        synchronized (entries) {
+            entries.put(key, new CacheEntry<>(value, clock.getAsLong() + timeToLive));
+        }
+    }
+
+    /**
+     * Removes the value cached for the given key, if any.
+     *
+     * @param key the key to remove
+     */
+    public void invalidate(K key) {
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Removes all cached values.
+     */
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Returns the number of entries currently held, including expired entries which have not been removed yet.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Returns the number of lookups which were answered from this cache.
+     *
+     * @return the number of cache hits
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of lookups which were answered with a stale value by {@link #getStale(Object)}.
+     *
+     * @return the number of stale cache hits
+     */
+    public long getStaleHitCount() {
+        return staleHits.sum();
+    }
+
+    /**
+     * Returns the number of lookups which could not be answered from this cache.
+     *
+     * @return the number of cache misses
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "size=" + size() + ", hits=" + getHitCount() + ", stale hits=" + getStaleHitCount()
+                + ", misses=" + getMissCount();
+    }
+
+    private CacheEntry<V> getUnlessDiscarded(K key) {
+        CacheEntry<V> entry = entries.get(key);
+
+        if (entry != null && entry.expiresAt + staleTimeToLive <= clock.getAsLong()) {
+            entries.remove(key);
+            return null;
+        }
+
+        return entry;
+    }
+
+    private static final class CacheEntry<V> {
+
+        private final V value;
+        private final long expiresAt;
+        private int hits;
+
+        private CacheEntry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+    }
+
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd.client;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe limit on the number of concurrent requests to Crowd, which adapts itself to the observed latency of
+ * these requests, following the additive increase, multiplicative decrease scheme of TCP congestion control.
+ * <p>
+ * Every request which completes within twice the average latency of its {@link OperationType} while the limit is
+ * being used raises the limit a little, so it grows by about one per round trip. A request which failed, or took
+ * longer than that, is a sign of an overloaded Crowd server, and lowers the limit by ten percent. The limit always
+ * stays between the configured minimum and maximum. Requests beyond the current limit wait for a running request to
+ * complete, and are shed once they waited for the configured maximum time.
+ * <p>
+ * Authentications are only held back by the maximum, not by the current limit. The capacity between the two is
+ * reserved for them, so that slow searches which lowered the limit cannot take up all permits and starve logins,
+ * which stay bounded per type by the {@link Bulkhead} instead.
+ *
+ * @author Sam Schmit
+ * @since 1.1.0
+ * @see GuardedCrowdClient
+ */
+public class AdaptiveLimiter {
+
+    private static final int INITIAL_LIMIT = 20;
+    private static final double BACKOFF_RATIO = 0.9;
+    private static final double LATENCY_TOLERANCE = 2;
+    private static final double LATENCY_SMOOTHING = 0.05;
+    private static final long MIN_CONGESTED_LATENCY = 50;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long maxWait;
+
+    private double limit;
+    private int inFlight;
+    private final double[] averageLatencies = new double[OperationType.values().length];
+
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Creates a new limiter.
+     *
+     * @param minLimit the minimum number of concurrent requests
+     * @param maxLimit the maximum number of concurrent requests, 0 to disable the limiter
+     * @param maxWait the time in milliseconds a request waits for a running request to complete before it is shed
+     */
+    public AdaptiveLimiter(int minLimit, int maxLimit, long maxWait) {
+        this.minLimit = Math.max(1, Math.min(minLimit, maxLimit));
+        this.maxLimit = maxLimit;
+        this.maxWait = maxWait;
+        this.limit = Math.max(this.minLimit, Math.min(maxLimit, INITIAL_LIMIT));
+    }
+
+    /**
+     * Creates a limiter which does not limit any requests.
+     *
+     * @return the disabled limiter
+     */
+    public static AdaptiveLimiter disabled() {
+        return new AdaptiveLimiter(0, 0, 0);
+    }
+
+    /**
+     * Checks whether this limiter is enabled at all.
+     *
+     * @return true if the maximum limit is positive, false otherwise
+     */
+    public boolean isEnabled() {
+        return maxLimit > 0;
+    }
+
+    /**
+     * Requests permission for a request, waiting at most the configured time for the number of running requests to drop
+     * below the current limit, or below the maximum for authentications. Every permitted request has to be reported by
+     * either {@link #release(OperationType, long, boolean)} or {@link #cancel()}.
+     *
+     * @param type the type of the request
+     * @return true if the request is permitted, false if it has to be shed
+     */
+    public synchronized boolean tryAcquire(OperationType type) {
+        if (!isEnabled()) {
+            return true;
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait);
+
+        try {
+            while (inFlight >= limitOf(type)) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+
+                if (remaining <= 0) {
+                    rejected.increment();
+                    return false;
+                }
+
+                wait(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rejected.increment();
+            return false;
+        }
+
+        inFlight++;
+        return true;
+    }
+
+    private int limitOf(OperationType type) {
+        return type == OperationType.AUTHENTICATION ? maxLimit : (int) limit;
+    }
+
+    /**
+     * Reports a completed request and adapts the limit to its outcome.
+     *
+     * @param type the type of the request
+     * @param latency the duration of the request in milliseconds
+     * @param failed true if the request failed to get a response from Crowd, false otherwise
+     */
+    public synchronized void release(OperationType type, long latency, boolean failed) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        double averageLatency = averageLatencies[type.ordinal()];
+        boolean congested = failed || latency >= MIN_CONGESTED_LATENCY && averageLatency > 0
+                && latency > averageLatency * LATENCY_TOLERANCE;
+
+        if (congested) {
+            limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+        } else if (inFlight * 2 >= limit) {
+            // only grow while the limit is actually used, otherwise it would grow without bounds on idle servers
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+
+        if (!failed) {
+            averageLatencies[type.ordinal()] = averageLatency > 0
+                    ? averageLatency + LATENCY_SMOOTHING * (latency - averageLatency) : latency;
+        }
+
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Reports a permitted request which was not performed after all, without adapting the limit.
+     */
+    public synchronized void cancel() {
+        if (!isEnabled()) {
+            return;
+        }
+
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Returns the current maximum number of concurrent requests.
+     *
+     * @return the current limit, or 0 if the limiter is disabled
+     */
+    public synchronized int getLimit() {
+        return isEnabled() ? (int) limit : 0;
+    }
+
+    /**
+     * Returns the number of currently running requests.
+     *
+     * @return the number of running requests
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Returns the number of requests shed by this limiter.
+     *
+     * @return the number of shed requests
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "limit=" + getLimit() + ", in flight=" + getInFlight() + ", rejected=" + getRejectedCount();
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd.client;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Limits the number of concurrent requests to Crowd per {@link OperationType}, so that expensive operations like user
+ * listings cannot take up all threads and connections needed by others, e.g. authentications.
+ * <p>
+ * Every operation type gets a pool of permits of its own. A request waits at most the configured time for a permit of
+ * its type to become available, and is rejected otherwise. Operation types without a limit are not restricted.
+ *
+ * @author Sam Schmit
+ * @since 1.1.0
+ * @see GuardedCrowdClient
+ */
+public class Bulkhead {
+
+    private final Map<OperationType, Integer> limits;
+    private final Map<OperationType, Semaphore> permits = new EnumMap<>(OperationType.class);
+    private final long maxWait;
+
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Creates a new bulkhead.
+     *
+     * @param limits the maximum number of concurrent requests per operation type, types without a positive limit are
+     *               not restricted
+     * @param maxWait the time in milliseconds a request waits for a permit before it is rejected
+     */
+    public Bulkhead(Map<OperationType, Integer> limits, long maxWait) {
+        this.limits = new EnumMap<>(OperationType.class);
+        this.maxWait = maxWait;
+
+        limits.forEach((type, limit) -> {
+            if (limit != null && limit > 0) {
+                this.limits.put(type, limit);
+                permits.put(type, new Semaphore(limit, true));
+            }
+        });
+    }
+
+    /**
+     * Creates a bulkhead which does not restrict any operation type.
+     *
+     * @return the unrestricted bulkhead
+     */
+    public static Bulkhead unlimited() {
+        return new Bulkhead(Collections.emptyMap(), 0);
+    }
+
+    /**
+     * Requests a permit for a request of the given type, waiting at most the configured time for it. Every acquired
+     * permit has to be returned by {@link #release(OperationType)}.
+     *
+     * @param type the type of the request
+     * @return true if a permit was acquired, false if the request has to be rejected
+     */
+    public boolean tryAcquire(OperationType type) {
+        Semaphore semaphore = permits.get(type);
+
+        if (semaphore == null) {
+            return true;
+        }
+
+        try {
+            if (semaphore.tryAcquire(maxWait, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        rejected.increment();
+        return false;
+    }
+
+    /**
+     * Returns a permit acquired for a request of the given type.
+     *
+     * @param type the type of the request
+     */
+    public void release(OperationType type) {
+        Semaphore semaphore = permits.get(type);
+
+        if (semaphore != null) {
+            semaphore.release();
+        }
+    }
+
+    /**
+     * Returns the maximum number of concurrent requests of the given type.
+     *
+     * @param type the operation type
+     * @return the maximum number of concurrent requests, or 0 if the type is not restricted
+     */
+    public int getLimit(OperationType type) {
+        return limits.getOrDefault(type, 0);
+    }
+
+    /**
+     * Returns the number of requests rejected by this bulkhead.
+     *
+     * @return the number of rejected requests
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    @Override
+    public String toString() {
+        return permits.entrySet().stream()
+                .map(entry -> entry.getKey().name().toLowerCase(Locale.ROOT) + "="
+                        + (limits.get(entry.getKey()) - entry.getValue().availablePermits()) + "/"
+                        + limits.get(entry.getKey()) + ", ")
+                .collect(Collectors.joining()) + "rejected=" + getRejectedCount();
+    }
+
+}
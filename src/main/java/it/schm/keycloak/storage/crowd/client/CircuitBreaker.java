@@ -0,0 +1,184 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd.client;
+
+import org.keycloak.common.util.Time;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A thread-safe circuit breaker, which stops calls to Crowd once it keeps failing or responding slowly.
+ * <p>
+ * While closed, all calls are permitted. Once the configured number of consecutive calls failed, or took at least the
+ * slow call threshold, the breaker opens and rejects all calls. After the open duration has passed, the breaker is
+ * half-open and permits a single probe call: if it succeeds, the breaker closes again, otherwise it stays open for
+ * another open duration. Only the probe decides, calls permitted before the breaker opened do not change its state once
+ * they complete. Calls are identified by the thread which acquired them, so every call has to be reported by the thread
+ * which requested its permission. A breaker with a failure threshold of zero is disabled, i.e. never opens.
+ *
+ * @author Sam Schmit
+ * @since 1.1.0
+ * @see GuardedCrowdClient
+ */
+public class CircuitBreaker {
+
+    /**
+     * The states of a circuit breaker.
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long slowCallThreshold;
+    private final long openDuration;
+    private final LongSupplier clock;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+    private Thread probe;
+
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Creates a new circuit breaker.
+     *
+     * @param failureThreshold the number of consecutive failed or slow calls opening the breaker, 0 to disable it
+     * @param slowCallThreshold the duration in milliseconds from which on a call counts as failed, 0 to not consider
+     *                          the duration of calls
+     * @param openDuration the time in milliseconds for which calls are rejected before a probe call is permitted
+     */
+    public CircuitBreaker(int failureThreshold, long slowCallThreshold, long openDuration) {
+        this(failureThreshold, slowCallThreshold, openDuration, Time::currentTimeMillis);
+    }
+
+    CircuitBreaker(int failureThreshold, long slowCallThreshold, long openDuration, LongSupplier clock) {
+        this.failureThreshold = failureThreshold;
+        this.slowCallThreshold = slowCallThreshold;
+        this.openDuration = openDuration;
+        this.clock = clock;
+    }
+
+    /**
+     * Checks whether this breaker is enabled at all.
+     *
+     * @return true if the failure threshold is positive, false otherwise
+     */
+    public boolean isEnabled() {
+        return failureThreshold > 0;
+    }
+
+    /**
+     * Requests permission for a call. Every permitted call has to be reported by either {@link #onSuccess(long)} or
+     * {@link #onFailure()}.
+     *
+     * @return true if the call is permitted, false if it has to be rejected
+     */
+    public synchronized boolean tryAcquire() {
+        if (!isEnabled() || state == State.CLOSED) {
+            return true;
+        }
+
+        if (state == State.OPEN && clock.getAsLong() - openedAt >= openDuration) {
+            state = State.HALF_OPEN;
+        }
+
+        if (state == State.HALF_OPEN && probe == null) {
+            probe = Thread.currentThread();
+            return true;
+        }
+
+        rejected.increment();
+        return false;
+    }
+
+    /**
+     * Reports a call to which Crowd responded, counting it as failed if it was slow.
+     *
+     * @param duration the duration of the call in milliseconds
+     */
+    public void onSuccess(long duration) {
+        if (slowCallThreshold > 0 && duration >= slowCallThreshold) {
+            onFailure();
+            return;
+        }
+
+        synchronized (this) {
+            // calls permitted before the breaker opened must not close it again, only the probe call can
+            if (!isEnabled() || state == State.OPEN || !isProbeOrClosed()) {
+                return;
+            }
+
+            failures = 0;
+            probe = null;
+            state = State.CLOSED;
+        }
+    }
+
+    /**
+     * Reports a call which failed to reach Crowd or to get a response from it.
+     */
+    public synchronized void onFailure() {
+        if (!isEnabled() || state == State.OPEN || !isProbeOrClosed()) {
+            return;
+        }
+
+        failures++;
+
+        if (state == State.HALF_OPEN || failures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = clock.getAsLong();
+            probe = null;
+        }
+    }
+
+    private boolean isProbeOrClosed() {
+        return state == State.CLOSED || probe == Thread.currentThread();
+    }
+
+    /**
+     * Returns the current state of this breaker.
+     *
+     * @return the current state
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Returns the number of calls rejected by this breaker.
+     *
+     * @return the number of rejected calls
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "state=" + getState() + ", rejected=" + getRejectedCount();
+    }
+
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd.client;
+
+import com.atlassian.crowd.exception.OperationFailedException;
+import com.atlassian.crowd.service.client.CrowdClient;
+import org.jboss.logging.Logger;
+import org.keycloak.models.ModelException;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Collections.newSetFromMap;
+
+/**
+ * Decorates the Crowd rest client, routing every operation to the client configured for its {@link OperationType},
+ * e.g. with a shorter read timeout for authentications than for searches, and guarding all of them with a
+ * {@link Bulkhead} limiting concurrent operations per type, an {@link AdaptiveLimiter} limiting all concurrent
+ * operations to what Crowd currently handles without slowing down, while keeping some capacity for authentications,
+ * and a {@link CircuitBreaker}.
+ * <p>
+ * Only operations which failed to get a response from Crowd, i.e. threw an {@link OperationFailedException} or a
+ * runtime exception, or which took too long count as failures. Responses like an unknown user or an invalid password
+ * are successful calls as far as the breaker is concerned. While the breaker is open, operations fail fast with a
+ * {@link ModelException}, instead of blocking a Keycloak worker thread on an unresponsive Crowd server. The same
+ * applies to operations which did not get a permit of the bulkhead or the limiter in time.
+ *
+ * @author Sam Schmit
+ * @since 1.1.0
+ * @see CircuitBreaker
+ */
+public class GuardedCrowdClient implements InvocationHandler {
+
+    private static final Logger logger = Logger.getLogger(GuardedCrowdClient.class);
+
+    private final Map<OperationType, CrowdClient> clients;
+    private final CircuitBreaker circuitBreaker;
+    private final Bulkhead bulkhead;
+    private final AdaptiveLimiter limiter;
+
+    private GuardedCrowdClient(Map<OperationType, CrowdClient> clients, CircuitBreaker circuitBreaker,
+                               Bulkhead bulkhead, AdaptiveLimiter limiter) {
+        this.clients = clients;
+        this.circuitBreaker = circuitBreaker;
+        this.bulkhead = bulkhead;
+        this.limiter = limiter;
+    }
+
+    /**
+     * Creates a guarded client performing all operations with the given client.
+     *
+     * @param client the crowd rest client to guard
+     * @param circuitBreaker the breaker guarding all operations
+     * @return the guarded client
+     */
+    public static CrowdClient wrap(CrowdClient client, CircuitBreaker circuitBreaker) {
+        return wrap(client, new EnumMap<>(OperationType.class), circuitBreaker);
+    }
+
+    /**
+     * Creates a guarded client performing operations with the client configured for their type.
+     *
+     * @param defaultClient the crowd rest client performing operations of types without a client of their own
+     * @param clients the crowd rest clients performing operations of the respective type
+     * @param circuitBreaker the breaker guarding all operations
+     * @return the guarded client
+     */
+    public static CrowdClient wrap(CrowdClient defaultClient, Map<OperationType, CrowdClient> clients,
+                                   CircuitBreaker circuitBreaker) {
+        return wrap(defaultClient, clients, circuitBreaker, Bulkhead.unlimited());
+    }
+
+    /**
+     * Creates a guarded client performing operations with the client configured for their type.
+     *
+     * @param defaultClient the crowd rest client performing operations of types without a client of their own
+     * @param clients the crowd rest clients performing operations of the respective type
+     * @param circuitBreaker the breaker guarding all operations
+     * @param bulkhead the bulkhead limiting concurrent operations per type
+     * @return the guarded client
+     */
+    public static CrowdClient wrap(CrowdClient defaultClient, Map<OperationType, CrowdClient> clients,
+                                   CircuitBreaker circuitBreaker, Bulkhead bulkhead) {
+        return wrap(defaultClient, clients, circuitBreaker, bulkhead, AdaptiveLimiter.disabled());
+    }
+
+    /**
+     * Creates a guarded client performing operations with the client configured for their type.
+     *
+     * @param defaultClient the crowd rest client performing operations of types without a client of their own
+     * @param clients the crowd rest clients performing operations of the respective type
+     * @param circuitBreaker the breaker guarding all operations
+     * @param bulkhead the bulkhead limiting concurrent operations per type
+     * @param limiter the limiter adapting the number of all concurrent operations to Crowd's latency
+     * @return the guarded client
+     */
+    public static CrowdClient wrap(CrowdClient defaultClient, Map<OperationType, CrowdClient> clients,
+                                   CircuitBreaker circuitBreaker, Bulkhead bulkhead, AdaptiveLimiter limiter) {
+        Map<OperationType, CrowdClient> allClients = new EnumMap<>(OperationType.class);
+
+        for (OperationType type : OperationType.values()) {
+            allClients.put(type, clients.getOrDefault(type, defaultClient));
+        }
+
+        return (CrowdClient) Proxy.newProxyInstance(CrowdClient.class.getClassLoader(),
+                new Class<?>[] {CrowdClient.class},
+                new GuardedCrowdClient(allClients, circuitBreaker, bulkhead, limiter));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            return invokeObjectMethod(proxy, method, args);
+        }
+
+        if ("shutdown".equals(method.getName())) {
+            shutdown();
+            return null;
+        }
+
+        OperationType type = OperationType.of(method);
+
+        // the bulkhead and the limiter are passed first,
+        // so that a probe call permitted by the breaker is always performed
+        if (!bulkhead.tryAcquire(type)) {
+            throw new ModelException("Too many concurrent " + type + " requests to Crowd");
+        }
+
+        try {
+            return invokeGuarded(method, args, type);
+        } finally {
+            bulkhead.release(type);
+        }
+    }
+
+    private Object invokeGuarded(Method method, Object[] args, OperationType type) throws Throwable {
+        if (!limiter.tryAcquire(type)) {
+            throw new ModelException("Crowd is overloaded, too many concurrent requests");
+        }
+
+        if (!circuitBreaker.tryAcquire()) {
+            limiter.cancel();
+            throw new ModelException("Crowd is unavailable, circuit breaker is open");
+        }
+
+        long start = System.nanoTime();
+        boolean failed = false;
+
+        try {
+            return method.invoke(clients.get(type), args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            failed = cause instanceof OperationFailedException || cause instanceof RuntimeException;
+
+            throw cause;
+        } finally {
+            long duration = elapsedMillis(start);
+
+            if (failed) {
+                circuitBreaker.onFailure();
+            } else {
+                circuitBreaker.onSuccess(duration);
+            }
+
+            limiter.release(type, duration, failed);
+        }
+    }
+
+    private Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            default:
+                return "guarded " + clients.get(OperationType.LOOKUP)
+                        + " [" + circuitBreaker + ", " + bulkhead + ", " + limiter + "]";
+        }
+    }
+
+    private void shutdown() {
+        Set<CrowdClient> distinctClients = newSetFromMap(new IdentityHashMap<>());
+        distinctClients.addAll(clients.values());
+
+        for (CrowdClient client : distinctClients) {
+            try {
+                client.shutdown();
+            } catch (Exception e) {
+                logger.warn("Failed to shut down crowd client", e);
+            }
+        }
+    }
+
+    private static long elapsedMillis(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd.client;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The types of operations performed against Crowd, which can be given their own timeouts.
+ *
+ * @author Sam Schmit
+ * @since 1.1.0
+ * @see GuardedCrowdClient
+ */
+public enum OperationType {
+
+    /**
+     * Authentication of users, e.g. validating their password.
+     */
+    AUTHENTICATION,
+
+    /**
+     * Lookups of single users and events, as well as any other operation not covered by another type.
+     */
+    LOOKUP,
+
+    /**
+     * Searches and listings of users and groups.
+     */
+    SEARCH,
+
+    /**
+     * Lookups of groups and memberships, e.g. when walking the parents and children of a user's groups.
+     */
+    GROUP;
+
+    private static final Map<String, OperationType> TYPES_BY_METHOD = new HashMap<>();
+
+    static {
+        register(AUTHENTICATION, "authenticateUser", "authenticateSSOUser",
+                "authenticateSSOUserWithoutValidatingPassword", "validateSSOAuthentication",
+                "validateSSOAuthenticationAndGetSession", "findUserFromSSOToken", "findSessionFromToken",
+                "invalidateSSOToken", "invalidateSSOTokensForUser");
+
+        register(LOOKUP, "getUser", "getUserByKey", "getUserWithAttributes", "addUser", "updateUser", "renameUser",
+                "updateUserCredential", "storeUserAttributes", "removeUserAttributes", "removeUser",
+                "requestPasswordReset", "requestUsernames", "addGroup", "updateGroup", "storeGroupAttributes",
+                "removeGroupAttributes", "removeGroup", "addUserToGroup", "removeUserFromGroup", "addGroupToGroup",
+                "removeGroupFromGroup", "getCurrentEventToken", "getNewEvents", "getCookieConfiguration",
+                "testConnection", "shutdown", "registerWebhook", "unregisterWebhook", "getWebhook");
+
+        register(SEARCH, "searchUsers", "searchUsersWithAttributes", "searchUserNames", "searchGroups",
+                "searchGroupsWithAttributes", "searchGroupNames", "getUsersOfGroup", "getNamesOfUsersOfGroup",
+                "getNestedUsersOfGroup", "getNamesOfNestedUsersOfGroup", "getMemberships");
+
+        register(GROUP, "getGroup", "getGroupWithAttributes", "isUserDirectGroupMember", "isUserNestedGroupMember",
+                "isGroupDirectGroupMember", "getGroupsForUser", "getNamesOfGroupsForUser", "getGroupsForNestedUser",
+                "getNamesOfGroupsForNestedUser", "getChildGroupsOfGroup", "getNamesOfChildGroupsOfGroup",
+                "getNestedChildGroupsOfGroup", "getNamesOfNestedChildGroupsOfGroup", "getParentGroupsForGroup",
+                "getNamesOfParentGroupsForGroup", "getParentGroupsForNestedGroup",
+                "getNamesOfParentGroupsForNestedGroup");
+    }
+
+    /**
+     * Returns the type of the given client operation. Listings of a group's members are searches, as they may return
+     * any number of users, while lookups of a user's or group's groups are group operations.
+     *
+     * @param method the client method performing the operation
+     * @return the type of the operation, {@link #LOOKUP} for methods of the client unknown to this version
+     */
+    public static OperationType of(Method method) {
+        return TYPES_BY_METHOD.getOrDefault(method.getName(), LOOKUP);
+    }
+
+    /**
+     * Checks whether the type of the given client operation is mapped explicitly.
+     *
+     * @param method the client method performing the operation
+     * @return true if the operation has an explicit type, false if it falls back to {@link #LOOKUP}
+     */
+    static boolean isMapped(Method method) {
+        return TYPES_BY_METHOD.containsKey(method.getName());
+    }
+
+    private static void register(OperationType type, String... methodNames) {
+        for (String methodName : methodNames) {
+            TYPES_BY_METHOD.put(methodName, type);
+        }
+    }
+
+}
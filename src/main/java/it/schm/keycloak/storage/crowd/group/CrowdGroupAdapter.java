@@ -23,6 +23,7 @@
 package it.schm.keycloak.storage.crowd.group;
 
 import com.atlassian.crowd.model.group.GroupWithAttributes;
+import it.schm.keycloak.storage.crowd.AttributeFilter;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.models.ClientModel;
 import org.keycloak.models.GroupModel;
@@ -32,16 +33,21 @@ import org.keycloak.storage.StorageId;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 
-import static java.util.stream.Collectors.toMap;
-
 /**
  * A read-only GroupModel implementation for Crowd's GroupWithAttributes.
+ * <p>
+ * Like Keycloak's own group adapters, two adapters are equal if they represent the same group, i.e. have the same id,
+ * however their parents and children have been resolved. Once resolved, adapters are frozen, so that they can be
+ * shared by all users of the group, see {@link CrowdGroupPool}. The group's attributes are collected into an immutable
+ * map on first access, which is then served by all attribute getters without any further copying. Attributes dropped
+ * by the component's {@link AttributeFilter} are left out of it.
  *
  * @author Sam Schmit
  * @since 1.0.0
@@ -53,13 +59,21 @@ public class CrowdGroupAdapter implements GroupModel {
 
     private final String id;
     private final GroupWithAttributes group;
+    private final AttributeFilter attributeFilter;
 
     private GroupModel parent;
     private Set<GroupModel> subGroups = new HashSet<>();
+    private boolean frozen;
+    private volatile Map<String, List<String>> attributes;
 
     public CrowdGroupAdapter(ComponentModel model, GroupWithAttributes group) {
+        this(model, group, AttributeFilter.ALL);
+    }
+
+    public CrowdGroupAdapter(ComponentModel model, GroupWithAttributes group, AttributeFilter attributeFilter) {
         this.id = StorageId.keycloakId(model, group.getName());
         this.group = group;
+        this.attributeFilter = attributeFilter;
     }
 
     @Override
@@ -94,19 +108,38 @@ public class CrowdGroupAdapter implements GroupModel {
 
     @Override
     public String getFirstAttribute(String name) {
-        return group.getValue(name);
+        List<String> values = getAttribute(name);
+
+        return values.isEmpty() ? null : values.get(0);
     }
 
     @Override
     public List<String> getAttribute(String name) {
-        Set<String> values = group.getValues(name);
-
-        return values != null ? new ArrayList<>(values) : Collections.emptyList();
+        return getAttributes().getOrDefault(name, Collections.emptyList());
     }
 
     @Override
     public Map<String, List<String>> getAttributes() {
-        return group.getKeys().stream().collect(toMap(key -> key, this::getAttribute));
+        Map<String, List<String>> attributes = this.attributes;
+
+        if (attributes == null) {
+            attributes = new HashMap<>();
+
+            for (String key : group.getKeys()) {
+                if (!attributeFilter.test(key)) {
+                    continue;
+                }
+
+                Set<String> values = group.getValues(key);
+                attributes.put(key, values != null
+                        ? Collections.unmodifiableList(new ArrayList<>(values)) : Collections.emptyList());
+            }
+
+            attributes = Collections.unmodifiableMap(attributes);
+            this.attributes = attributes;
+        }
+
+        return attributes;
     }
 
     @Override
@@ -126,19 +159,58 @@ public class CrowdGroupAdapter implements GroupModel {
 
     @Override
     public void setParent(GroupModel group) {
+        checkNotFrozen();
         this.parent = group;
     }
 
     @Override
     public void addChild(GroupModel subGroup) {
+        checkNotFrozen();
         subGroups.add(subGroup);
     }
 
     @Override
     public void removeChild(GroupModel subGroup) {
+        checkNotFrozen();
         subGroups.remove(subGroup);
     }
 
+    /**
+     * Checks whether this adapter has been frozen.
+     *
+     * @return true if this adapter's parent and children can no longer be changed, false otherwise
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * Freezes this adapter, as well as its parents and children, after which their parents and children can no longer
+     * be changed.
+     */
+    void freeze() {
+        if (frozen) {
+            return;
+        }
+
+        frozen = true;
+        subGroups = Collections.unmodifiableSet(subGroups);
+
+        if (parent instanceof CrowdGroupAdapter) {
+            ((CrowdGroupAdapter) parent).freeze();
+        }
+
+        subGroups.stream()
+                .filter(CrowdGroupAdapter.class::isInstance)
+                .forEach(subGroup -> ((CrowdGroupAdapter) subGroup).freeze());
+    }
+
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new ReadOnlyException();
+        }
+    }
+
     @Override
     public Set<RoleModel> getRealmRoleMappings() {
         return Collections.emptySet();
@@ -180,14 +252,12 @@ public class CrowdGroupAdapter implements GroupModel {
         }
 
         CrowdGroupAdapter that = (CrowdGroupAdapter) o;
-        return Objects.equals(id, that.id) &&
-                Objects.equals(parent, that.parent) &&
-                Objects.equals(subGroups, that.subGroups);
+        return Objects.equals(id, that.id);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(id, parent, subGroups);
+        return Objects.hashCode(id);
     }
 
 }
@@ -0,0 +1,237 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd.group;
+
+import com.atlassian.crowd.exception.ApplicationPermissionException;
+import com.atlassian.crowd.exception.GroupNotFoundException;
+import com.atlassian.crowd.exception.InvalidAuthenticationException;
+import com.atlassian.crowd.exception.OperationFailedException;
+import com.atlassian.crowd.model.group.GroupWithAttributes;
+import com.atlassian.crowd.service.client.CrowdClient;
+import it.schm.keycloak.storage.crowd.CrowdStorageProvider;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * An immutable snapshot of Crowd's complete group graph, i.e. all groups including their attributes, as well as the
+ * parent/child relations between them. A snapshot is loaded once and then used to resolve group hierarchies from
+ * memory, instead of walking them with a rest call per group.
+ * <p>
+ * Loading a snapshot takes a rest call per group to retrieve its children, so it is only loaded up to a maximum
+ * number of groups. Nestings which would close a cycle are left out of the snapshot.
+ *
+ * @author Sam Schmit
+ * @since 1.1.0
+ */
+public class CrowdGroupHierarchy {
+
+    private static final int PAGE_SIZE = 1000;
+
+    private final Map<String, GroupWithAttributes> groups;
+    private final Map<String, List<String>> parents;
+    private final Map<String, List<String>> children;
+
+    CrowdGroupHierarchy(
+            Map<String, GroupWithAttributes> groups,
+            Map<String, List<String>> parents,
+            Map<String, List<String>> children) {
+        this.groups = Collections.unmodifiableMap(groups);
+        this.parents = Collections.unmodifiableMap(parents);
+        this.children = Collections.unmodifiableMap(children);
+    }
+
+    /**
+     * Loads a new snapshot of all groups visible to the configured Crowd application.
+     *
+     * @param client the crowd rest client
+     * @return the loaded snapshot
+     * @throws OperationFailedException if the operation failed for any other reason
+     * @throws InvalidAuthenticationException if the application and password are not valid
+     * @throws ApplicationPermissionException if the application is not permitted to perform the requested operation
+     * @throws GroupNotFoundException if a group was removed while the snapshot was being loaded
+     */
+    public static CrowdGroupHierarchy load(CrowdClient client) throws OperationFailedException,
+            InvalidAuthenticationException, ApplicationPermissionException, GroupNotFoundException {
+        return load(client, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Loads a new snapshot of all groups visible to the configured Crowd application, unless there are more than the
+     * given number of groups. The groups are counted before any of their children are retrieved.
+     *
+     * @param client the crowd rest client
+     * @param maxGroups the maximum number of groups to load a snapshot for
+     * @return the loaded snapshot, or null if there are more groups than the given maximum
+     * @throws OperationFailedException if the operation failed for any other reason
+     * @throws InvalidAuthenticationException if the application and password are not valid
+     * @throws ApplicationPermissionException if the application is not permitted to perform the requested operation
+     * @throws GroupNotFoundException if a group was removed while the snapshot was being loaded
+     */
+    public static CrowdGroupHierarchy load(CrowdClient client, int maxGroups) throws OperationFailedException,
+            InvalidAuthenticationException, ApplicationPermissionException, GroupNotFoundException {
+        Map<String, GroupWithAttributes> groups = new HashMap<>();
+
+        List<GroupWithAttributes> page;
+        int startIndex = 0;
+        do {
+            page = client.searchGroupsWithAttributes(
+                    CrowdStorageProvider.NOOP_SEARCH_RESTRICTION, startIndex, PAGE_SIZE);
+            page.forEach(group -> groups.put(group.getName(), group));
+            startIndex += page.size();
+
+            if (groups.size() > maxGroups) {
+                return null;
+            }
+        } while (page.size() == PAGE_SIZE);
+
+        Map<String, List<String>> parents = new HashMap<>();
+        Map<String, List<String>> children = new HashMap<>();
+
+        for (String name : groups.keySet()) {
+            List<String> childNames = new ArrayList<>(client.getNamesOfChildGroupsOfGroup(name, 0, Integer.MAX_VALUE));
+            childNames.removeIf(childName -> !groups.containsKey(childName));
+            children.put(name, childNames);
+
+            childNames.forEach(childName -> parents.computeIfAbsent(childName, key -> new ArrayList<>()).add(name));
+        }
+
+        removeCycles(parents, children);
+
+        parents.values().forEach(Collections::sort);
+        parents.replaceAll((name, parentNames) -> Collections.unmodifiableList(parentNames));
+        children.replaceAll((name, childNames) -> Collections.unmodifiableList(childNames));
+
+        return new CrowdGroupHierarchy(groups, parents, children);
+    }
+
+    /*
+     * Removes every nesting which closes a cycle, so that parents and children can be resolved from the snapshot
+     * without tracking the path they were reached on. Groups are visited in the order of their names, so the same
+     * nestings are removed from every snapshot of the same groups. The depth-first search keeps its path on an
+     * explicit stack, so that deeply nested groups cannot overflow the thread's stack.
+     */
+    private static void removeCycles(Map<String, List<String>> parents, Map<String, List<String>> children) {
+        Set<String> visited = new HashSet<>();
+        Set<String> path = new HashSet<>();
+        Deque<Visit> stack = new ArrayDeque<>();
+
+        for (String name : new TreeSet<>(children.keySet())) {
+            if (visited.add(name)) {
+                path.add(name);
+                stack.push(new Visit(name, children.get(name).iterator()));
+            }
+
+            while (!stack.isEmpty()) {
+                Visit visit = stack.peek();
+
+                if (!visit.childNames.hasNext()) {
+                    path.remove(visit.name);
+                    stack.pop();
+                    continue;
+                }
+
+                String childName = visit.childNames.next();
+
+                if (path.contains(childName)) {
+                    visit.childNames.remove();
+                    parents.get(childName).remove(visit.name);
+                } else if (visited.add(childName)) {
+                    path.add(childName);
+                    stack.push(new Visit(childName, children.get(childName).iterator()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks whether the snapshot contains the group with the given name.
+     *
+     * @param name the name of the group
+     * @return true if the group is part of this snapshot, false otherwise
+     */
+    public boolean contains(String name) {
+        return groups.containsKey(name);
+    }
+
+    /**
+     * Returns the group with the given name.
+     *
+     * @param name the name of the group
+     * @return the group, or null if it is not part of this snapshot
+     */
+    public GroupWithAttributes getGroup(String name) {
+        return groups.get(name);
+    }
+
+    /**
+     * Returns the names of the direct parents of the given group, sorted by name.
+     *
+     * @param name the name of the group
+     * @return the names of the group's parents, or an empty list if it has none
+     */
+    public List<String> getParents(String name) {
+        return parents.getOrDefault(name, Collections.emptyList());
+    }
+
+    /**
+     * Returns the names of the direct children of the given group.
+     *
+     * @param name the name of the group
+     * @return the names of the group's children, or an empty list if it has none
+     */
+    public List<String> getChildren(String name) {
+        return children.getOrDefault(name, Collections.emptyList());
+    }
+
+    /**
+     * Returns the number of groups in this snapshot.
+     *
+     * @return the number of groups
+     */
+    public int size() {
+        return groups.size();
+    }
+
+    private static final class Visit {
+
+        private final String name;
+        private final Iterator<String> childNames;
+
+        private Visit(String name, Iterator<String> childNames) {
+            this.name = name;
+            this.childNames = childNames;
+        }
+
+    }
+
+}
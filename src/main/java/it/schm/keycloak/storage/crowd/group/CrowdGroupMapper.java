@@ -27,21 +27,45 @@ import com.atlassian.crowd.exception.GroupNotFoundException;
 import com.atlassian.crowd.exception.InvalidAuthenticationException;
 import com.atlassian.crowd.exception.OperationFailedException;
 import com.atlassian.crowd.exception.UserNotFoundException;
+import com.atlassian.crowd.model.group.Group;
 import com.atlassian.crowd.model.group.GroupWithAttributes;
 import com.atlassian.crowd.service.client.CrowdClient;
+import it.schm.keycloak.storage.crowd.AttributeFilter;
 import it.schm.keycloak.storage.crowd.CrowdStorageProvider;
 import it.schm.keycloak.storage.crowd.CrowdUserAdapter;
 import org.jboss.logging.Logger;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.models.GroupModel;
 import org.keycloak.models.ModelException;
-import org.keycloak.storage.StorageId;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 /**
- * A mapper used to resolve a user's groups, retrieving them, as well as their respective parents and children.
+ * A mapper used to resolve a user's groups, retrieving them, as well as their respective parents and children. If a
+ * {@link CrowdGroupHierarchy} snapshot is available, parents and children are resolved from it, so that only the
+ * user's direct group memberships need to be retrieved from Crowd. Groups missing from the snapshot are walked in
+ * Crowd by a {@link CrowdGroupWalker}, which retrieves every group only once per user, however many of the user's
+ * groups it is shared by.
+ * <p>
+ * With the {@link MembershipStrategy#NESTED} strategy, all of a user's direct and nested memberships are instead
+ * retrieved with a single call to Crowd, and no groups are walked at all. Their subgroups can then only be resolved
+ * from the snapshot, without one, groups have no subgroups.
+ * <p>
+ * The groups of several users, e.g. of a page of users, can be resolved as a batch, which walks every group shared by
+ * these users only once.
+ * <p>
+ * All resolved adapters are frozen. Adapters of groups resolved from the snapshot are interned in a
+ * {@link CrowdGroupPool}, so they are only resolved once per snapshot and shared by all users of the group.
  *
  * @author Sam Schmit
  * @since 1.0.0
@@ -52,16 +76,27 @@ public class CrowdGroupMapper {
 
     private final ComponentModel model;
     private final CrowdClient client;
+    private final Supplier<CrowdGroupHierarchy> groupHierarchy;
+    private final CrowdGroupWalker groupWalker;
+    private final MembershipStrategy membershipStrategy;
+    private final CrowdGroupPool groupPool;
+    private final AttributeFilter attributeFilter;
 
     /**
-     * Create's a new instance of this mapper.
+     * Creates a new instance of this mapper.
      *
      * @param model this provider's component model
      * @param client the crowd rest client
+     * @param settings the settings of this mapper
      */
-    public CrowdGroupMapper(ComponentModel model, CrowdClient client) {
+    public CrowdGroupMapper(ComponentModel model, CrowdClient client, Settings settings) {
         this.model = model;
         this.client = client;
+        this.groupHierarchy = settings.groupHierarchy;
+        this.groupWalker = settings.groupWalker;
+        this.membershipStrategy = settings.membershipStrategy;
+        this.groupPool = settings.groupPool;
+        this.attributeFilter = settings.attributeFilter;
     }
 
     /**
@@ -71,18 +106,85 @@ public class CrowdGroupMapper {
      * @return The provided user with it's groups set
      */
     public CrowdUserAdapter onLoadUser(CrowdUserAdapter user) {
-        try {
-            Set<GroupModel> userGroups = client.getGroupsForUser(user.getUsername(), 0, Integer.MAX_VALUE).stream()
-                    .map(group -> new CrowdGroupAdapter(model, (GroupWithAttributes) group))
-                    .peek(group -> {
-                        loadParent(group);
-                        loadSubGroups(group);
-                    })
-                    .collect(Collectors.toSet());
+        user.setGroupsInternal(loadGroups(user.getUsername()));
+
+        return user;
+    }
+
+    /**
+     * Retrieves the groups of the user with the given username and resolves their respective parents and children.
+     *
+     * @param username The username of the user for which to resolve groups
+     * @return The user's groups
+     */
+    public Set<GroupModel> loadGroups(String username) {
+        return loadGroups(Collections.singletonList(username)).get(username);
+    }
+
+    /**
+     * Retrieves the groups of all users with the given usernames and resolves their respective parents and children
+     * as a batch. All users are resolved against the same group hierarchy snapshot, groups shared by several users are
+     * only walked in Crowd once, and their resolved adapters are shared by all of these users.
+     *
+     * @param usernames The usernames of the users for which to resolve groups
+     * @return The users' groups, keyed by username
+     */
+    public Map<String, Set<GroupModel>> loadGroups(Collection<String> usernames) {
+        CrowdGroupHierarchy hierarchy = groupHierarchy.get();
+
+        Map<String, List<GroupWithAttributes>> memberships = new LinkedHashMap<>();
+        usernames.forEach(username -> memberships.put(username, fetchMemberships(username)));
+
+        return membershipStrategy == MembershipStrategy.NESTED
+                ? resolveNestedGroups(hierarchy, memberships)
+                : resolveDirectGroups(hierarchy, memberships);
+    }
+
+    private Map<String, Set<GroupModel>> resolveDirectGroups(
+            CrowdGroupHierarchy hierarchy, Map<String, List<GroupWithAttributes>> memberships) {
+        Map<String, GroupWithAttributes> unresolvedGroups = new LinkedHashMap<>();
+        memberships.values().forEach(groups -> groups.stream()
+                .filter(group -> hierarchy == null || !hierarchy.contains(group.getName()))
+                .forEach(group -> unresolvedGroups.putIfAbsent(group.getName(), group)));
+
+        CrowdGroupHierarchy walkedGroups = unresolvedGroups.isEmpty() ? null
+                : groupWalker.walk(unresolvedGroups.values(), this::fetchParent, this::fetchSubGroups);
+
+        Map<String, CrowdGroupAdapter> resolvedGroups = new HashMap<>();
+        Map<String, Set<GroupModel>> groupsByUser = new LinkedHashMap<>();
+        memberships.forEach((username, groups) -> groupsByUser.put(username, groups.stream()
+                .map(group -> resolvedGroups.computeIfAbsent(group.getName(), name -> unresolvedGroups.containsKey(name)
+                        ? resolveGroup(walkedGroups, name)
+                        : groupPool.intern(hierarchy, name, key -> resolvePooledGroup(hierarchy, key))))
+                .collect(Collectors.toSet())));
+
+        return groupsByUser;
+    }
+
+    private Map<String, Set<GroupModel>> resolveNestedGroups(
+            CrowdGroupHierarchy hierarchy, Map<String, List<GroupWithAttributes>> memberships) {
+        Map<String, Set<GroupModel>> groupsByUser = new LinkedHashMap<>();
 
-            user.setGroupsInternal(userGroups);
+        memberships.forEach((username, groups) -> {
+            Map<String, GroupWithAttributes> userGroups = new HashMap<>();
+            groups.forEach(group -> userGroups.put(group.getName(), group));
 
-            return user;
+            groupsByUser.put(username, userGroups.keySet().stream()
+                    .map(name -> resolveNestedGroup(
+                            hierarchy, userGroups, name, new HashSet<>(Collections.singleton(name))))
+                    .collect(Collectors.toSet()));
+        });
+
+        return groupsByUser;
+    }
+
+    private List<GroupWithAttributes> fetchMemberships(String username) {
+        try {
+            List<Group> groups = membershipStrategy == MembershipStrategy.NESTED
+                    ? client.getGroupsForNestedUser(username, 0, Integer.MAX_VALUE)
+                    : client.getGroupsForUser(username, 0, Integer.MAX_VALUE);
+
+            return groups.stream().map(GroupWithAttributes.class::cast).collect(Collectors.toList());
         } catch (OperationFailedException | InvalidAuthenticationException |
                 ApplicationPermissionException | UserNotFoundException e) {
             logger.error(e);
@@ -90,13 +192,137 @@ public class CrowdGroupMapper {
         }
     }
 
-    private void loadParent(CrowdGroupAdapter groupAdapter) {
+    private CrowdGroupAdapter resolveNestedGroup(CrowdGroupHierarchy hierarchy,
+            Map<String, GroupWithAttributes> memberships, String name, Set<String> visited) {
+        CrowdGroupAdapter groupAdapter = createNestedGroup(hierarchy, memberships, name, visited);
+
+        // subgroups are not part of the user's memberships, so they can only be resolved from the snapshot
+        if (hierarchy != null) {
+            linkPooledGroups(hierarchy, groupAdapter, groupWalker.getMaxDepth(), false, true);
+        }
+
+        groupAdapter.freeze();
+        return groupAdapter;
+    }
+
+    private CrowdGroupAdapter createNestedGroup(CrowdGroupHierarchy hierarchy,
+            Map<String, GroupWithAttributes> memberships, String name, Set<String> visited) {
+        CrowdGroupAdapter groupAdapter = new CrowdGroupAdapter(model, memberships.get(name), attributeFilter);
+
+        if (hierarchy != null && visited.size() <= groupWalker.getMaxDepth()) {
+            hierarchy.getParents(name).stream()
+                    .filter(memberships::containsKey)
+                    .filter(visited::add)
+                    .findFirst()
+                    .ifPresent(parent ->
+                            groupAdapter.setParent(createNestedGroup(hierarchy, memberships, parent, visited)));
+        }
+
+        return groupAdapter;
+    }
+
+    private CrowdGroupAdapter resolveGroup(CrowdGroupHierarchy hierarchy, String name) {
+        CrowdGroupAdapter groupAdapter = new CrowdGroupAdapter(model, hierarchy.getGroup(name), attributeFilter);
+
+        Set<String> visited = new HashSet<>();
+        visited.add(name);
+        loadParent(hierarchy, groupAdapter, visited);
+
+        Set<String> path = new HashSet<>();
+        path.add(name);
+        loadSubGroups(hierarchy, groupAdapter, path, new HashMap<>());
+
+        groupAdapter.freeze();
+        return groupAdapter;
+    }
+
+    /*
+     * Resolves a group of the snapshot, whose parents and children are interned in the pool as well, so that they are
+     * shared with all other groups they are a parent or child of. Pooled parents and children are identified by their
+     * name and the number of levels resolved above or below them, so that they are the same whichever group they are
+     * reached from. The snapshot is free of cycles, see CrowdGroupHierarchy.
+     */
+    private CrowdGroupAdapter resolvePooledGroup(CrowdGroupHierarchy hierarchy, String name) {
+        CrowdGroupAdapter groupAdapter = new CrowdGroupAdapter(model, hierarchy.getGroup(name), attributeFilter);
+        linkPooledGroups(hierarchy, groupAdapter, groupWalker.getMaxDepth(), true, true);
+
+        groupAdapter.freeze();
+        return groupAdapter;
+    }
+
+    private CrowdGroupAdapter internPooledGroup(
+            CrowdGroupHierarchy hierarchy, String name, int levels, boolean withParent) {
+        return groupPool.intern(hierarchy, Arrays.asList(name, levels, withParent), () -> {
+            CrowdGroupAdapter groupAdapter = new CrowdGroupAdapter(model, hierarchy.getGroup(name), attributeFilter);
+            linkPooledGroups(hierarchy, groupAdapter, levels, withParent, !withParent);
+
+            groupAdapter.freeze();
+            return groupAdapter;
+        });
+    }
+
+    private void linkPooledGroups(CrowdGroupHierarchy hierarchy, CrowdGroupAdapter groupAdapter, int levels,
+                                  boolean withParent, boolean withSubGroups) {
+        if (levels <= 0) {
+            return;
+        }
+
+        if (withParent) {
+            hierarchy.getParents(groupAdapter.getName()).stream()
+                    .findFirst()
+                    .map(parent -> internPooledGroup(hierarchy, parent, levels - 1, true))
+                    .ifPresent(groupAdapter::setParent);
+        }
+
+        if (withSubGroups) {
+            hierarchy.getChildren(groupAdapter.getName())
+                    .forEach(child -> groupAdapter.addChild(internPooledGroup(hierarchy, child, levels - 1, false)));
+        }
+    }
+
+    private void loadParent(CrowdGroupHierarchy hierarchy, CrowdGroupAdapter groupAdapter, Set<String> visited) {
+        hierarchy.getParents(groupAdapter.getName()).stream()
+                .findFirst()
+                .filter(name -> visited.size() <= groupWalker.getMaxDepth() && visited.add(name))
+                .map(name -> new CrowdGroupAdapter(model, hierarchy.getGroup(name), attributeFilter))
+                .ifPresent(parent -> {
+                    loadParent(hierarchy, parent, visited);
+                    groupAdapter.setParent(parent);
+                });
+    }
+
+    /*
+     * Every child adapter is resolved once and shared by all of its parents, so that groups reachable along several
+     * paths, e.g. in a diamond shaped hierarchy, are not resolved again for every path leading to them.
+     */
+    private void loadSubGroups(CrowdGroupHierarchy hierarchy, CrowdGroupAdapter groupAdapter, Set<String> path,
+                               Map<String, CrowdGroupAdapter> resolvedSubGroups) {
+        if (path.size() > groupWalker.getMaxDepth()) {
+            return;
+        }
+
+        for (String name : hierarchy.getChildren(groupAdapter.getName())) {
+            CrowdGroupAdapter child = resolvedSubGroups.get(name);
+
+            if (child == null && path.add(name)) {
+                child = new CrowdGroupAdapter(model, hierarchy.getGroup(name), attributeFilter);
+                loadSubGroups(hierarchy, child, path, resolvedSubGroups);
+                path.remove(name);
+
+                resolvedSubGroups.put(name, child);
+            }
+
+            if (child != null) {
+                groupAdapter.addChild(child);
+            }
+        }
+    }
+
+    private List<GroupWithAttributes> fetchParent(String name) {
         try {
-            client.getParentGroupsForGroup(StorageId.externalId(groupAdapter.getId()), 0, 1)
-                    .stream()
-                    .map(group -> new CrowdGroupAdapter(model, (GroupWithAttributes) group))
-                    .peek(this::loadParent)
-                    .forEach(groupAdapter::setParent);
+            return client.getParentGroupsForGroup(name, 0, 1).stream()
+                    .map(GroupWithAttributes.class::cast)
+                    .collect(Collectors.toList());
         } catch (OperationFailedException | InvalidAuthenticationException |
                 ApplicationPermissionException | GroupNotFoundException e) {
             logger.error(e);
@@ -104,12 +330,11 @@ public class CrowdGroupMapper {
         }
     }
 
-    private void loadSubGroups(CrowdGroupAdapter groupAdapter) {
+    private List<GroupWithAttributes> fetchSubGroups(String name) {
         try {
-            client.getChildGroupsOfGroup(StorageId.externalId(groupAdapter.getId()), 0, Integer.MAX_VALUE).stream()
-                    .map(group -> new CrowdGroupAdapter(model, (GroupWithAttributes) group))
-                    .peek(this::loadSubGroups)
-                    .forEach(groupAdapter::addChild);
+            return client.getChildGroupsOfGroup(name, 0, Integer.MAX_VALUE).stream()
+                    .map(GroupWithAttributes.class::cast)
+                    .collect(Collectors.toList());
         } catch (OperationFailedException | InvalidAuthenticationException |
                 ApplicationPermissionException | GroupNotFoundException e) {
             logger.error(e);
@@ -117,4 +342,73 @@ public class CrowdGroupMapper {
         }
     }
 
+    /**
+     * The settings of a {@link CrowdGroupMapper}. By default, a mapper resolves all group hierarchies from Crowd, up to
+     * the walker's default depth, resolves direct memberships, and keeps all group attributes.
+     */
+    public static final class Settings {
+
+        private Supplier<CrowdGroupHierarchy> groupHierarchy = () -> null;
+        private CrowdGroupWalker groupWalker = new CrowdGroupWalker(CrowdGroupWalker.DEFAULT_MAX_DEPTH);
+        private MembershipStrategy membershipStrategy = MembershipStrategy.DIRECT;
+        private CrowdGroupPool groupPool = new CrowdGroupPool();
+        private AttributeFilter attributeFilter = AttributeFilter.ALL;
+
+        /**
+         * Sets the supplier of the current group hierarchy snapshot.
+         *
+         * @param groupHierarchy supplies the current group hierarchy snapshot, or null if none is available
+         * @return these settings
+         */
+        public Settings withGroupHierarchy(Supplier<CrowdGroupHierarchy> groupHierarchy) {
+            this.groupHierarchy = groupHierarchy;
+            return this;
+        }
+
+        /**
+         * Sets the walker used to resolve groups missing from the snapshot.
+         *
+         * @param groupWalker the walker used to resolve groups missing from the snapshot
+         * @return these settings
+         */
+        public Settings withGroupWalker(CrowdGroupWalker groupWalker) {
+            this.groupWalker = groupWalker;
+            return this;
+        }
+
+        /**
+         * Sets the strategy used to resolve a user's memberships.
+         *
+         * @param membershipStrategy the strategy used to resolve a user's memberships
+         * @return these settings
+         */
+        public Settings withMembershipStrategy(MembershipStrategy membershipStrategy) {
+            this.membershipStrategy = membershipStrategy;
+            return this;
+        }
+
+        /**
+         * Sets the pool interning the adapters of groups resolved from the snapshot.
+         *
+         * @param groupPool the pool interning the adapters of groups resolved from the snapshot
+         * @return these settings
+         */
+        public Settings withGroupPool(CrowdGroupPool groupPool) {
+            this.groupPool = groupPool;
+            return this;
+        }
+
+        /**
+         * Sets the filter deciding which group attributes are kept.
+         *
+         * @param attributeFilter the filter deciding which group attributes are kept
+         * @return these settings
+         */
+        public Settings withAttributeFilter(AttributeFilter attributeFilter) {
+            this.attributeFilter = attributeFilter;
+            return this;
+        }
+
+    }
+
 }
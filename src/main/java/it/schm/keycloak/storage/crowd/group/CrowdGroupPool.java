@@ -0,0 +1,142 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd.group;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A thread-safe pool interning the resolved {@link CrowdGroupAdapter} of every group of a {@link CrowdGroupHierarchy}
+ * snapshot, so that all users of a component share one immutable adapter per group, instead of resolving and
+ * allocating the same group, including its parents and children, on every user load. The parents and children of a
+ * pooled group are interned as well, so that they are shared by all groups they are a parent or child of.
+ * <p>
+ * Pooled adapters are only valid for the snapshot they were resolved from. As soon as adapters of a different snapshot
+ * are requested, all previously pooled adapters are dropped, so the pool never holds more groups than the current
+ * snapshot.
+ *
+ * @author Sam Schmit
+ * @since 1.1.0
+ * @see CrowdGroupMapper
+ */
+public class CrowdGroupPool {
+
+    private final AtomicReference<Generation> generation = new AtomicReference<>(new Generation(null));
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Returns the pooled adapter of the group with the given name, resolving and pooling it first if it has not been
+     * requested for the given snapshot yet.
+     *
+     * @param hierarchy the snapshot the group is resolved from
+     * @param name the name of the group
+     * @param resolver resolves the group's adapter if it is not pooled yet
+     * @return the pooled adapter
+     */
+    public CrowdGroupAdapter intern(
+            CrowdGroupHierarchy hierarchy, String name, Function<String, CrowdGroupAdapter> resolver) {
+        return intern(hierarchy, (Object) name, () -> resolver.apply(name));
+    }
+
+    /**
+     * Returns the pooled adapter with the given key, resolving and pooling it first if it has not been requested for
+     * the given snapshot yet. The resolver may intern further adapters, e.g. the parents and children of the resolved
+     * group. If several threads resolve the same adapter at once, all of them get the adapter pooled first.
+     *
+     * @param hierarchy the snapshot the group is resolved from
+     * @param key the key identifying the adapter within the snapshot
+     * @param resolver resolves the adapter if it is not pooled yet
+     * @return the pooled adapter
+     */
+    public CrowdGroupAdapter intern(
+            CrowdGroupHierarchy hierarchy, Object key, Supplier<CrowdGroupAdapter> resolver) {
+        Map<Object, CrowdGroupAdapter> adapters = generation
+                .updateAndGet(current -> current.hierarchy == hierarchy ? current : new Generation(hierarchy))
+                .adapters;
+
+        CrowdGroupAdapter adapter = adapters.get(key);
+
+        if (adapter != null) {
+            hits.increment();
+            return adapter;
+        }
+
+        misses.increment();
+
+        // not resolved within computeIfAbsent, which must not update the map again from within the resolver
+        CrowdGroupAdapter resolved = resolver.get();
+        CrowdGroupAdapter pooled = adapters.putIfAbsent(key, resolved);
+
+        return pooled != null ? pooled : resolved;
+    }
+
+    /**
+     * Returns the number of adapters pooled for the current snapshot, including the parents and children of groups.
+     *
+     * @return the number of pooled adapters
+     */
+    public int size() {
+        return generation.get().adapters.size();
+    }
+
+    /**
+     * Returns the number of requests served by an already pooled adapter.
+     *
+     * @return the number of hits
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of requests which had to resolve their group first.
+     *
+     * @return the number of misses
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "size=" + size() + ", hits=" + getHitCount() + ", misses=" + getMissCount();
+    }
+
+    private static final class Generation {
+
+        private final CrowdGroupHierarchy hierarchy;
+        private final Map<Object, CrowdGroupAdapter> adapters = new ConcurrentHashMap<>();
+
+        private Generation(CrowdGroupHierarchy hierarchy) {
+            this.hierarchy = hierarchy;
+        }
+
+    }
+
+}
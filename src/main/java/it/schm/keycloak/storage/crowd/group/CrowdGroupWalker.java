@@ -0,0 +1,297 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd.group;
+
+import com.atlassian.crowd.model.group.GroupWithAttributes;
+import org.jboss.logging.Logger;
+import org.keycloak.models.ModelException;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Walks the parents and children of groups in Crowd, collecting them into a {@link CrowdGroupHierarchy} which only
+ * holds the visited part of Crowd's group graph. The walk is iterative and remembers every group it already looked
+ * up, so ancestors and descendants shared by several groups are only retrieved once, cyclic nestings end the walk
+ * instead of looping forever, and groups nested deeper than the configured maximum depth are not walked at all.
+ * <p>
+ * Given an executor and a parallelism greater than one, every lookup is run on the executor as soon as the group
+ * itself is known, so the time needed to resolve a hierarchy approaches its depth times the round trip time to Crowd,
+ * rather than its number of groups times the round trip time. The calling thread coordinates the walk: it never runs
+ * more than the configured number of lookups at once, and gives up once the walk takes longer than the configured
+ * timeout.
+ *
+ * @author Sam Schmit
+ * @since 1.1.0
+ * @see CrowdGroupMapper
+ */
+public class CrowdGroupWalker {
+
+    private static final Logger logger = Logger.getLogger(CrowdGroupWalker.class);
+
+    /**
+     * Default maximum number of nesting levels walked above and below a group.
+     */
+    public static final int DEFAULT_MAX_DEPTH = 32;
+
+    private final Executor executor;
+    private final int parallelism;
+    private final long timeoutMillis;
+    private final int maxDepth;
+
+    private final LongAdder walks = new LongAdder();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder savedCalls = new LongAdder();
+
+    /**
+     * Creates a new walker, which runs all lookups one after the other on the calling thread.
+     *
+     * @param maxDepth the maximum number of nesting levels walked above and below a group
+     */
+    public CrowdGroupWalker(int maxDepth) {
+        this(Runnable::run, 1, 0, maxDepth);
+    }
+
+    /**
+     * Creates a new walker, which runs lookups concurrently on the given executor.
+     *
+     * @param executor the executor running the lookups, usually shared by all components
+     * @param parallelism the maximum number of concurrent lookups per walk
+     * @param timeoutMillis the maximum time in milliseconds a single walk may take, 0 for no limit
+     * @param maxDepth the maximum number of nesting levels walked above and below a group
+     */
+    public CrowdGroupWalker(Executor executor, int parallelism, long timeoutMillis, int maxDepth) {
+        this.executor = executor;
+        this.parallelism = parallelism;
+        this.timeoutMillis = timeoutMillis;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Walks the parent chain and the subgroup tree of all given groups.
+     *
+     * @param groups the groups to walk
+     * @param parentLoader retrieves the parent of the group with the given name, returning an empty list if it has none
+     * @param childLoader retrieves the direct children of the group with the given name
+     * @return the visited groups and the relations between them
+     * @throws ModelException if a lookup failed, the walk timed out or the calling thread was interrupted
+     */
+    public CrowdGroupHierarchy walk(Collection<GroupWithAttributes> groups,
+                                    Function<String, List<GroupWithAttributes>> parentLoader,
+                                    Function<String, List<GroupWithAttributes>> childLoader) {
+        Walk walk = new Walk(parentLoader, childLoader);
+        groups.forEach(group -> {
+            walk.groups.put(group.getName(), group);
+            walk.enqueue(new Lookup(group.getName(), parentLoader, 0));
+            walk.enqueue(new Lookup(group.getName(), childLoader, 0));
+        });
+
+        CompletionService<Lookup> completionService = new ExecutorCompletionService<>(executor);
+        Set<Future<Lookup>> running = new HashSet<>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+        try {
+            while (!walk.pending.isEmpty() || !running.isEmpty()) {
+                while (running.size() < parallelism && !walk.pending.isEmpty()) {
+                    running.add(completionService.submit(walk.pending.poll()));
+                }
+
+                Future<Lookup> future = timeoutMillis > 0
+                        ? completionService.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)
+                        : completionService.take();
+
+                if (future == null) {
+                    throw new ModelException("Timed out after " + timeoutMillis + " ms resolving crowd groups");
+                }
+
+                running.remove(future);
+                walk.complete(getResult(future));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ModelException("Interrupted while resolving crowd groups", e);
+        } finally {
+            running.forEach(future -> future.cancel(true));
+        }
+
+        walks.increment();
+        calls.add(walk.calls);
+        savedCalls.add(walk.savedCalls);
+        logger.debugf("Walked %d crowd groups with %d calls, %d calls saved", walk.groups.size(), walk.calls,
+                walk.savedCalls);
+
+        return new CrowdGroupHierarchy(walk.groups, walk.parents, walk.children);
+    }
+
+    /**
+     * Returns the maximum number of nesting levels walked above and below a group.
+     *
+     * @return the maximum depth
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Returns the maximum number of concurrent lookups per walk.
+     *
+     * @return the parallelism, 1 if lookups are run one after the other
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Returns the number of lookups sent to Crowd by all walks of this walker.
+     *
+     * @return the number of calls to Crowd
+     */
+    public long getCallCount() {
+        return calls.sum();
+    }
+
+    /**
+     * Returns the number of lookups of groups already visited in the same walk, which were therefore not sent to
+     * Crowd again.
+     *
+     * @return the number of saved calls to Crowd
+     */
+    public long getSavedCallCount() {
+        return savedCalls.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "walks=" + walks.sum() + ", calls=" + getCallCount() + ", saved calls=" + getSavedCallCount();
+    }
+
+    private static Lookup getResult(Future<Lookup> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw new ModelException(e.getCause());
+        }
+    }
+
+    private final class Walk {
+
+        private final Function<String, List<GroupWithAttributes>> parentLoader;
+        private final Function<String, List<GroupWithAttributes>> childLoader;
+
+        private final Map<String, GroupWithAttributes> groups = new HashMap<>();
+        private final Map<String, List<String>> parents = new HashMap<>();
+        private final Map<String, List<String>> children = new HashMap<>();
+
+        private final Map<String, Integer> visitedParents = new HashMap<>();
+        private final Map<String, Integer> visitedChildren = new HashMap<>();
+        private final Deque<Lookup> pending = new ArrayDeque<>();
+        private int calls;
+        private int savedCalls;
+
+        private Walk(Function<String, List<GroupWithAttributes>> parentLoader,
+                     Function<String, List<GroupWithAttributes>> childLoader) {
+            this.parentLoader = parentLoader;
+            this.childLoader = childLoader;
+        }
+
+        /*
+         * Groups are remembered with the lowest depth they were looked up at. A group reached again at a lower depth,
+         * because a shorter path completed later, is looked up again, so that the walked groups do not depend on the
+         * order in which lookups complete.
+         */
+        private void enqueue(Lookup lookup) {
+            Map<String, Integer> visited = lookup.loader == parentLoader ? visitedParents : visitedChildren;
+            Integer visitedDepth = visited.get(lookup.name);
+
+            if (visitedDepth != null && visitedDepth <= lookup.depth) {
+                savedCalls++;
+            } else if (lookup.depth >= maxDepth) {
+                logger.debugf("Not walking crowd groups nested more than %d levels around group %s", maxDepth,
+                        lookup.name);
+            } else {
+                visited.put(lookup.name, lookup.depth);
+                calls++;
+                pending.add(lookup);
+            }
+        }
+
+        private void complete(Lookup lookup) {
+            lookup.result.forEach(group -> groups.putIfAbsent(group.getName(), group));
+
+            if (lookup.loader == parentLoader) {
+                lookup.result.stream().findFirst().ifPresent(parent -> {
+                    parents.put(lookup.name, Collections.singletonList(parent.getName()));
+                    enqueue(new Lookup(parent.getName(), parentLoader, lookup.depth + 1));
+                });
+            } else {
+                children.put(lookup.name, lookup.result.stream().map(GroupWithAttributes::getName).collect(toList()));
+                lookup.result.forEach(child -> enqueue(new Lookup(child.getName(), childLoader, lookup.depth + 1)));
+            }
+        }
+
+    }
+
+    private static final class Lookup implements Callable<Lookup> {
+
+        private final String name;
+        private final Function<String, List<GroupWithAttributes>> loader;
+        private final int depth;
+        private List<GroupWithAttributes> result;
+
+        private Lookup(String name, Function<String, List<GroupWithAttributes>> loader, int depth) {
+            this.name = name;
+            this.loader = loader;
+            this.depth = depth;
+        }
+
+        @Override
+        public Lookup call() {
+            result = loader.apply(name);
+            return this;
+        }
+
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd.group;
+
+import java.util.Locale;
+
+/**
+ * The ways in which {@link CrowdGroupMapper} resolves a user's group memberships.
+ *
+ * @author Sam Schmit
+ * @since 1.1.0
+ */
+public enum MembershipStrategy {
+
+    /**
+     * Retrieves the groups a user is a direct member of, and resolves their parents and children from the group
+     * hierarchy snapshot, or by walking them in Crowd.
+     */
+    DIRECT,
+
+    /**
+     * Retrieves all groups a user is a member of, directly or through nested groups, with a single call to Crowd.
+     * Groups are linked to those of their parents which are part of the user's memberships, and to their subgroups,
+     * as far as the group hierarchy snapshot knows them, but are not walked in Crowd. Without a snapshot, groups have
+     * neither parents nor subgroups.
+     */
+    NESTED;
+
+    /**
+     * Returns the value of this strategy as used in the provider configuration.
+     *
+     * @return the configuration value
+     */
+    public String getConfigValue() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Returns the strategy for the given configuration value.
+     *
+     * @param value the configuration value, may be null
+     * @return the matching strategy, or {@link #DIRECT} if no strategy matches
+     */
+    public static MembershipStrategy fromConfigValue(String value) {
+        for (MembershipStrategy strategy : values()) {
+            if (strategy.getConfigValue().equalsIgnoreCase(value)) {
+                return strategy;
+            }
+        }
+
+        return DIRECT;
+    }
+
+}
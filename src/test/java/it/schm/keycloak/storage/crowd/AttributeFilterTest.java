@@ -0,0 +1,67 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AttributeFilterTest {
+
+    @Test
+    void given_noLists_when_of_then_allAttributesAreKept() {
+        assertThat(AttributeFilter.of(null, " , ")).isSameAs(AttributeFilter.ALL);
+        assertThat(AttributeFilter.ALL.test("attr")).isTrue();
+    }
+
+    @Test
+    void given_allowlist_when_test_then_onlyListedAttributesAreKept() {
+        AttributeFilter filter = AttributeFilter.of("department, location", null);
+
+        assertThat(filter.test("department")).isTrue();
+        assertThat(filter.test("location")).isTrue();
+        assertThat(filter.test("phone")).isFalse();
+    }
+
+    @Test
+    void given_denylist_when_test_then_listedAttributesAreDropped() {
+        AttributeFilter filter = AttributeFilter.of(null, "phone");
+
+        assertThat(filter.test("department")).isTrue();
+        assertThat(filter.test("phone")).isFalse();
+    }
+
+    @Test
+    void given_allowlistAndDenylist_when_test_then_denylistTakesPrecedence() {
+        AttributeFilter filter = AttributeFilter.of("department,phone", "phone");
+
+        assertThat(filter.test("department")).isTrue();
+        assertThat(filter.test("phone")).isFalse();
+    }
+
+    @Test
+    void when_test_then_namesAreMatchedExactly() {
+        assertThat(AttributeFilter.of("Department", null).test("department")).isFalse();
+    }
+
+}
@@ -0,0 +1,476 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd;
+
+import com.atlassian.crowd.model.user.User;
+import com.atlassian.crowd.service.client.CrowdClient;
+import it.schm.keycloak.storage.crowd.client.OperationType;
+import it.schm.keycloak.storage.crowd.group.MembershipStrategy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.ModelException;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.mockito.ArgumentCaptor;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.longThat;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class CrowdComponentContextTest {
+
+    private CrowdComponentContext context;
+
+    @BeforeEach
+    void setup() {
+        context = new CrowdComponentContext(createModelMock(createConfig()), null);
+    }
+
+    @AfterEach
+    void tearDown() {
+        context.close();
+    }
+
+    @Test
+    void when_getClient_then_clientIsReturned() {
+        assertThat(context.getClient()).isNotNull();
+    }
+
+    @Test
+    void given_defaultConfig_when_getUserCache_then_enabledCacheIsReturned() {
+        assertThat(context.getUserCache().isEnabled()).isTrue();
+    }
+
+    @Test
+    void given_disabledUserCache_when_getUserCache_then_disabledCacheIsReturned() {
+        MultivaluedHashMap<String, String> config = createConfig();
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_USER_CACHE_TTL, "0");
+
+        CrowdComponentContext disabledContext = new CrowdComponentContext(createModelMock(config), null);
+
+        assertThat(disabledContext.getUserCache().isEnabled()).isFalse();
+        disabledContext.close();
+    }
+
+    @Test
+    void given_retainedContext_when_close_then_clientIsShutDownOnceReleased() {
+        CrowdClient clientMock = mock(CrowdClient.class);
+        CrowdComponentContext clientContext = new CrowdComponentContext(clientMock);
+
+        assertThat(clientContext.retain()).isTrue();
+        clientContext.close();
+
+        verify(clientMock, never()).shutdown();
+
+        clientContext.release();
+
+        verify(clientMock).shutdown();
+        assertThat(clientContext.retain()).isFalse();
+    }
+
+    @Test
+    void given_closedContext_when_close_then_clientIsShutDownOnce() {
+        CrowdClient clientMock = mock(CrowdClient.class);
+        CrowdComponentContext clientContext = new CrowdComponentContext(clientMock);
+
+        clientContext.close();
+        clientContext.close();
+
+        verify(clientMock, times(1)).shutdown();
+    }
+
+    @Test
+    void given_defaultConfig_when_getNegativeCache_then_enabledCacheIsReturned() {
+        assertThat(context.getNegativeCache().isEnabled()).isTrue();
+    }
+
+    @Test
+    void given_cachedUser_when_invalidateUsers_then_userDataIsInvalidated() {
+        CrowdComponentContext clientContext = new CrowdComponentContext(mock(CrowdClient.class));
+        clientContext.getUserCache().put("user", createUserRecord());
+        clientContext.getMembershipCache().put("user", Collections.emptySet());
+        clientContext.getNegativeCache().put(CrowdStorageProvider.EMAIL_KEY_PREFIX + "user@example.com", true);
+        clientContext.getUserCache().put("other", createUserRecord());
+
+        clientContext.invalidateUsers(Collections.singletonMap("User", "User@Example.com"));
+
+        assertThat(clientContext.getUserCache().get("user")).isNull();
+        assertThat(clientContext.getMembershipCache().get("user")).isNull();
+        assertThat(clientContext.getNegativeCache().get(CrowdStorageProvider.EMAIL_KEY_PREFIX + "user@example.com"))
+                .isNull();
+        assertThat(clientContext.getUserCache().get("other")).isNotNull();
+    }
+
+    @Test
+    void given_cachedData_when_invalidateAll_then_allCachesAreEmpty() {
+        CrowdComponentContext clientContext = new CrowdComponentContext(mock(CrowdClient.class));
+        clientContext.getUserCache().put("user", createUserRecord());
+        clientContext.getMembershipCache().put("user", Collections.emptySet());
+        clientContext.getNegativeCache().put(CrowdStorageProvider.USERNAME_KEY_PREFIX + "unknown", true);
+
+        clientContext.invalidateAll();
+
+        assertThat(clientContext.getUserCache().size()).isZero();
+        assertThat(clientContext.getMembershipCache().size()).isZero();
+        assertThat(clientContext.getNegativeCache().size()).isZero();
+    }
+
+    @Test
+    void given_sameConfig_when_isConfiguredFor_then_trueIsReturned() {
+        assertThat(context.isConfiguredFor(createModelMock(createConfig()))).isTrue();
+    }
+
+    @Test
+    void given_changedProviderConfig_when_isConfiguredFor_then_falseIsReturned() {
+        MultivaluedHashMap<String, String> config = createConfig();
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_HTTP_MAX_CONNECTIONS, "42");
+
+        assertThat(context.isConfiguredFor(createModelMock(config))).isFalse();
+    }
+
+    @Test
+    void given_changedUnrelatedConfig_when_isConfiguredFor_then_trueIsReturned() {
+        MultivaluedHashMap<String, String> config = createConfig();
+        config.putSingle("priority", "42");
+
+        assertThat(context.isConfiguredFor(createModelMock(config))).isTrue();
+    }
+
+    @Test
+    void given_defaultConfig_when_isImportEnabled_then_falseIsReturned() {
+        assertThat(context.isImportEnabled()).isFalse();
+    }
+
+    @Test
+    void given_enabledImport_when_isImportEnabled_then_trueIsReturned() {
+        MultivaluedHashMap<String, String> config = createConfig();
+        config.putSingle(UserStorageProviderModel.IMPORT_ENABLED, "true");
+
+        CrowdComponentContext importContext = new CrowdComponentContext(createModelMock(config), null);
+
+        assertThat(importContext.isImportEnabled()).isTrue();
+        importContext.close();
+    }
+
+    @Test
+    void given_changedImportConfig_when_isConfiguredFor_then_falseIsReturned() {
+        MultivaluedHashMap<String, String> config = createConfig();
+        config.putSingle(UserStorageProviderModel.IMPORT_ENABLED, "true");
+
+        assertThat(context.isConfiguredFor(createModelMock(config))).isFalse();
+    }
+
+    @Test
+    void given_defaultConfig_when_getAttributeFilter_then_allAttributesAreKept() {
+        assertThat(context.getAttributeFilter()).isSameAs(AttributeFilter.ALL);
+    }
+
+    @Test
+    void given_attributeLists_when_getAttributeFilter_then_listedAttributesAreFiltered() {
+        MultivaluedHashMap<String, String> config = createConfig();
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_ATTRIBUTE_ALLOWLIST, "department, location");
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_ATTRIBUTE_DENYLIST, "location");
+
+        CrowdComponentContext filterContext = new CrowdComponentContext(createModelMock(config), null);
+
+        assertThat(filterContext.getAttributeFilter().test("department")).isTrue();
+        assertThat(filterContext.getAttributeFilter().test("location")).isFalse();
+        assertThat(filterContext.getAttributeFilter().test("phone")).isFalse();
+        filterContext.close();
+    }
+
+    @Test
+    void given_defaultConfig_when_getCircuitBreaker_then_enabledBreakerIsReturned() {
+        assertThat(context.getCircuitBreaker().isEnabled()).isTrue();
+    }
+
+    @Test
+    void given_disabledCircuitBreaker_when_getCircuitBreaker_then_disabledBreakerIsReturned() {
+        MultivaluedHashMap<String, String> config = createConfig();
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_CIRCUIT_BREAKER_FAILURE_THRESHOLD, "0");
+
+        CrowdComponentContext breakerContext = new CrowdComponentContext(createModelMock(config), null);
+
+        assertThat(breakerContext.getCircuitBreaker().isEnabled()).isFalse();
+        breakerContext.close();
+    }
+
+    @Test
+    void given_defaultConfig_when_getBulkhead_then_onlySearchesAreLimited() {
+        assertThat(context.getBulkhead().getLimit(OperationType.SEARCH))
+                .isEqualTo(CrowdStorageProviderFactory.DEFAULT_SEARCH_CONCURRENCY);
+        assertThat(context.getBulkhead().getLimit(OperationType.AUTHENTICATION)).isZero();
+    }
+
+    @Test
+    void given_authenticationConcurrency_when_getBulkhead_then_authenticationsAreLimited() {
+        MultivaluedHashMap<String, String> config = createConfig();
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_AUTHENTICATION_CONCURRENCY, "8");
+
+        CrowdComponentContext bulkheadContext = new CrowdComponentContext(createModelMock(config), null);
+
+        assertThat(bulkheadContext.getBulkhead().getLimit(OperationType.AUTHENTICATION)).isEqualTo(8);
+        bulkheadContext.close();
+    }
+
+    @Test
+    void given_defaultConfig_when_getAdaptiveLimiter_then_limiterIsEnabled() {
+        assertThat(context.getAdaptiveLimiter().isEnabled()).isTrue();
+        assertThat(context.getAdaptiveLimiter().getLimit())
+                .isBetween(CrowdStorageProviderFactory.DEFAULT_ADAPTIVE_LIMIT_MIN,
+                        CrowdStorageProviderFactory.DEFAULT_ADAPTIVE_LIMIT_MAX);
+    }
+
+    @Test
+    void given_adaptiveLimitMaxOfZero_when_getAdaptiveLimiter_then_limiterIsDisabled() {
+        MultivaluedHashMap<String, String> config = createConfig();
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_ADAPTIVE_LIMIT_MAX, "0");
+
+        CrowdComponentContext limiterContext = new CrowdComponentContext(createModelMock(config), null);
+
+        assertThat(limiterContext.getAdaptiveLimiter().isEnabled()).isFalse();
+        limiterContext.close();
+    }
+
+    @Test
+    void given_noExecutor_when_refreshInBackground_then_refreshIsLeftToCaller() {
+        Runnable refreshMock = mock(Runnable.class);
+
+        assertThat(context.refreshInBackground("key", refreshMock)).isFalse();
+        verifyNoInteractions(refreshMock);
+    }
+
+    @Test
+    void given_pendingRefresh_when_refreshInBackground_then_refreshIsNotScheduledAgain() {
+        ExecutorService executorMock = mock(ExecutorService.class);
+        CrowdComponentContext refreshContext = new CrowdComponentContext(
+                createModelMock(createConfig()), null, null, executorMock, null);
+
+        assertThat(refreshContext.refreshInBackground("key", () -> { })).isTrue();
+        assertThat(refreshContext.refreshInBackground("key", () -> { })).isTrue();
+
+        verify(executorMock, times(1)).execute(any(Runnable.class));
+        refreshContext.close();
+    }
+
+    @Test
+    void given_saturatedRefresher_when_refreshInBackground_then_refreshIsDroppedAndStaleEntryServed() {
+        ExecutorService executorMock = mock(ExecutorService.class);
+        CrowdComponentContext refreshContext = new CrowdComponentContext(
+                createModelMock(createConfig()), null, null, executorMock, null);
+        doThrow(new RejectedExecutionException("full")).doNothing().when(executorMock).execute(any(Runnable.class));
+
+        assertThat(refreshContext.refreshInBackground("key", () -> { })).isTrue();
+        assertThat(refreshContext.refreshInBackground("key", () -> { })).isTrue();
+
+        verify(executorMock, times(2)).execute(any(Runnable.class));
+        refreshContext.close();
+    }
+
+    @Test
+    void given_failedRefresh_when_refreshInBackground_then_refreshIsScheduledAgain() {
+        ExecutorService executorMock = mock(ExecutorService.class);
+        CrowdComponentContext refreshContext = new CrowdComponentContext(
+                createModelMock(createConfig()), null, null, executorMock, null);
+        ArgumentCaptor<Runnable> refreshCaptor = ArgumentCaptor.forClass(Runnable.class);
+
+        refreshContext.refreshInBackground("key", () -> {
+            throw new ModelException("Boom!");
+        });
+        verify(executorMock).execute(refreshCaptor.capture());
+        refreshCaptor.getValue().run();
+
+        assertThat(refreshContext.refreshInBackground("key", () -> { })).isTrue();
+
+        verify(executorMock, times(2)).execute(any(Runnable.class));
+        refreshContext.close();
+    }
+
+    @Test
+    void given_scheduler_when_createContext_then_hotEntriesAreRefreshedPeriodically() {
+        ScheduledExecutorService schedulerMock = mock(ScheduledExecutorService.class);
+        long interval = TimeUnit.SECONDS.toMillis(CrowdStorageProviderFactory.DEFAULT_USER_CACHE_REFRESH_AHEAD) / 2;
+
+        CrowdComponentContext refreshContext = new CrowdComponentContext(
+                createModelMock(createConfig()), schedulerMock);
+
+        verify(schedulerMock).scheduleWithFixedDelay(
+                any(Runnable.class), eq(interval), eq(interval), eq(TimeUnit.MILLISECONDS));
+        refreshContext.close();
+    }
+
+    @Test
+    void given_hotUserAboutToExpire_when_refreshHotEntries_then_refreshIsScheduledWithJitter() {
+        MultivaluedHashMap<String, String> config = createConfig();
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_USER_CACHE_TTL, "10");
+        ScheduledExecutorService schedulerMock = mock(ScheduledExecutorService.class);
+        long maxDelay = TimeUnit.SECONDS.toMillis(CrowdStorageProviderFactory.DEFAULT_USER_CACHE_REFRESH_AHEAD) / 2;
+
+        CrowdComponentContext refreshContext = new CrowdComponentContext(createModelMock(config), schedulerMock);
+        refreshContext.getUserCache().put("hot", createUserRecord());
+        refreshContext.getUserCache().put("cold", createUserRecord());
+
+        for (int i = 0; i < CrowdStorageProviderFactory.DEFAULT_USER_CACHE_REFRESH_MIN_HITS; i++) {
+            refreshContext.getUserCache().get("hot");
+        }
+
+        refreshContext.refreshHotEntries();
+
+        verify(schedulerMock).schedule(
+                any(Runnable.class), longThat(delay -> delay >= 0 && delay < maxDelay), eq(TimeUnit.MILLISECONDS));
+        refreshContext.close();
+    }
+
+    @Test
+    void given_manyHotUsers_when_refreshHotEntries_then_refreshesPerCycleAreCapped() {
+        MultivaluedHashMap<String, String> config = createConfig();
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_USER_CACHE_TTL, "10");
+        ScheduledExecutorService schedulerMock = mock(ScheduledExecutorService.class);
+
+        CrowdComponentContext refreshContext = new CrowdComponentContext(createModelMock(config), schedulerMock);
+
+        for (int user = 0; user < 60; user++) {
+            refreshContext.getUserCache().put("hot" + user, createUserRecord());
+
+            for (int i = 0; i < CrowdStorageProviderFactory.DEFAULT_USER_CACHE_REFRESH_MIN_HITS; i++) {
+                refreshContext.getUserCache().get("hot" + user);
+            }
+        }
+
+        refreshContext.refreshHotEntries();
+
+        verify(schedulerMock, times(50)).schedule(any(Runnable.class), anyLong(), eq(TimeUnit.MILLISECONDS));
+        refreshContext.close();
+    }
+
+    @Test
+    void given_backgroundLoader_when_eventPollIsDue_then_pollRunsInBackgroundOnlyOnceAtATime() {
+        ScheduledExecutorService schedulerMock = mock(ScheduledExecutorService.class);
+        ExecutorService backgroundLoaderMock = mock(ExecutorService.class);
+        ArgumentCaptor<Runnable> pollCaptor = ArgumentCaptor.forClass(Runnable.class);
+
+        CrowdComponentContext pollContext = new CrowdComponentContext(
+                createModelMock(createConfig()), schedulerMock, null, null, backgroundLoaderMock, null);
+        verify(schedulerMock).scheduleWithFixedDelay(pollCaptor.capture(), eq(0L),
+                eq((long) CrowdStorageProviderFactory.DEFAULT_EVENT_POLL_INTERVAL), eq(TimeUnit.SECONDS));
+
+        pollCaptor.getValue().run();
+        pollCaptor.getValue().run();
+
+        verify(backgroundLoaderMock, times(1)).execute(any(Runnable.class));
+        pollContext.close();
+    }
+
+    @Test
+    void when_getGroupPool_then_samePoolIsReturned() {
+        assertThat(context.getGroupPool()).isNotNull().isSameAs(context.getGroupPool());
+    }
+
+    @Test
+    void given_noGroupLoader_when_getGroupWalker_then_sequentialWalkerIsReturned() {
+        assertThat(context.getGroupWalker().getParallelism()).isEqualTo(1);
+        assertThat(context.getGroupWalker().getMaxDepth())
+                .isEqualTo(CrowdStorageProviderFactory.DEFAULT_GROUP_MAX_DEPTH);
+    }
+
+    @Test
+    void given_groupLoader_when_getGroupWalker_then_parallelWalkerIsReturned() {
+        CrowdComponentContext walkerContext = new CrowdComponentContext(
+                createModelMock(createConfig()), null, mock(ExecutorService.class), null);
+
+        assertThat(walkerContext.getGroupWalker().getParallelism())
+                .isEqualTo(CrowdStorageProviderFactory.DEFAULT_GROUP_LOAD_PARALLELISM);
+        walkerContext.close();
+    }
+
+    @Test
+    void given_sequentialGroupLoading_when_getGroupWalker_then_sequentialWalkerIsReturned() {
+        MultivaluedHashMap<String, String> config = createConfig();
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_GROUP_LOAD_PARALLELISM, "1");
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_GROUP_MAX_DEPTH, "5");
+
+        CrowdComponentContext walkerContext = new CrowdComponentContext(
+                createModelMock(config), null, mock(ExecutorService.class), null);
+
+        assertThat(walkerContext.getGroupWalker().getParallelism()).isEqualTo(1);
+        assertThat(walkerContext.getGroupWalker().getMaxDepth()).isEqualTo(5);
+        walkerContext.close();
+    }
+
+    @Test
+    void given_defaultConfig_when_getMembershipStrategy_then_directStrategyIsReturned() {
+        assertThat(context.getMembershipStrategy()).isEqualTo(MembershipStrategy.DIRECT);
+    }
+
+    @Test
+    void given_nestedStrategy_when_getMembershipStrategy_then_nestedStrategyIsReturned() {
+        MultivaluedHashMap<String, String> config = createConfig();
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_GROUP_MEMBERSHIP_STRATEGY, "nested");
+
+        CrowdComponentContext nestedContext = new CrowdComponentContext(createModelMock(config), null);
+
+        assertThat(nestedContext.getMembershipStrategy()).isEqualTo(MembershipStrategy.NESTED);
+        nestedContext.close();
+    }
+
+    private MultivaluedHashMap<String, String> createConfig() {
+        MultivaluedHashMap<String, String> config = new MultivaluedHashMap<>();
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_URL, "http://localhost");
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_APPLICATION_NAME, "application");
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_APPLICATION_PASSWORD, "password");
+
+        return config;
+    }
+
+    private static CrowdUserRecord createUserRecord() {
+        return CrowdUserRecord.withoutAttributes(mock(ComponentModel.class), mock(User.class));
+    }
+
+    private ComponentModel createModelMock(MultivaluedHashMap<String, String> config) {
+        ComponentModel modelMock = mock(ComponentModel.class);
+        when(modelMock.getConfig()).thenReturn(config);
+
+        return modelMock;
+    }
+
+}
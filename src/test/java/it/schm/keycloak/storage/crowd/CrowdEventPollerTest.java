@@ -0,0 +1,168 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd;
+
+import com.atlassian.crowd.event.EventTokenExpiredException;
+import com.atlassian.crowd.event.Events;
+import com.atlassian.crowd.event.IncrementalSynchronisationNotAvailableException;
+import com.atlassian.crowd.exception.OperationFailedException;
+import com.atlassian.crowd.model.event.GroupEvent;
+import com.atlassian.crowd.model.event.OperationEvent;
+import com.atlassian.crowd.model.event.UserEvent;
+import com.atlassian.crowd.model.event.UserMembershipEvent;
+import com.atlassian.crowd.model.user.User;
+import com.atlassian.crowd.service.client.CrowdClient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class CrowdEventPollerTest {
+
+    @Mock private CrowdClient clientMock;
+    @Mock private CrowdComponentContext contextMock;
+
+    private CrowdEventPoller poller;
+
+    @BeforeEach
+    void setup() {
+        poller = new CrowdEventPoller(clientMock, contextMock);
+    }
+
+    @Test
+    void when_firstRun_then_eventTrackingIsStarted() throws Exception {
+        poller.run();
+
+        verify(clientMock).getCurrentEventToken();
+        verifyNoMoreInteractions(clientMock);
+        verifyNoInteractions(contextMock);
+    }
+
+    @Test
+    void given_userEvents_when_run_then_changedUsersAreInvalidated() throws Exception {
+        User userMock = mock(User.class);
+        when(userMock.getName()).thenReturn("user");
+        when(userMock.getEmailAddress()).thenReturn("user@example.com");
+
+        UserEvent userEventMock = mock(UserEvent.class);
+        when(userEventMock.getUser()).thenReturn(userMock);
+
+        UserMembershipEvent membershipEventMock = mock(UserMembershipEvent.class);
+        when(membershipEventMock.getChildUsername()).thenReturn("member");
+
+        startTracking();
+        Events eventsMock = createEventsMock(userEventMock, membershipEventMock);
+        when(clientMock.getNewEvents("token")).thenReturn(eventsMock);
+
+        poller.run();
+
+        Map<String, String> expectedUsers = new HashMap<>();
+        expectedUsers.put("user", "user@example.com");
+        expectedUsers.put("member", null);
+
+        verify(contextMock).invalidateUsers(expectedUsers);
+        verify(contextMock, never()).invalidateGroups();
+    }
+
+    @Test
+    void given_groupEvent_when_run_then_groupsAreInvalidated() throws Exception {
+        startTracking();
+        Events eventsMock = createEventsMock(mock(GroupEvent.class));
+        when(clientMock.getNewEvents("token")).thenReturn(eventsMock);
+
+        poller.run();
+
+        verify(contextMock).invalidateGroups();
+        verify(contextMock, never()).invalidateUsers(anyMap());
+    }
+
+    @Test
+    void given_events_when_runTwice_then_newEventTokenIsUsed() throws Exception {
+        startTracking();
+        Events eventsMock = createEventsMock();
+        when(clientMock.getNewEvents("token")).thenReturn(eventsMock);
+        when(clientMock.getNewEvents("new token")).thenReturn(eventsMock);
+
+        poller.run();
+        poller.run();
+
+        verify(clientMock).getNewEvents("new token");
+    }
+
+    @Test
+    void given_expiredEventToken_when_run_then_allCachedDataIsInvalidated() throws Exception {
+        startTracking();
+        when(clientMock.getNewEvents("token")).thenThrow(new EventTokenExpiredException());
+
+        poller.run();
+
+        verify(clientMock, times(2)).getCurrentEventToken();
+        verify(contextMock).invalidateAll();
+    }
+
+    @Test
+    void given_eventsNotAvailable_when_run_then_nothingIsInvalidated() throws Exception {
+        when(clientMock.getCurrentEventToken()).thenThrow(new IncrementalSynchronisationNotAvailableException());
+
+        poller.run();
+        poller.run();
+
+        verify(clientMock, times(2)).getCurrentEventToken();
+        verifyNoInteractions(contextMock);
+    }
+
+    @Test
+    void given_pollingFails_when_run_then_eventTokenIsKept() throws Exception {
+        startTracking();
+        when(clientMock.getNewEvents("token")).thenThrow(new OperationFailedException());
+
+        poller.run();
+        poller.run();
+
+        verify(clientMock, times(2)).getNewEvents("token");
+        verifyNoInteractions(contextMock);
+    }
+
+    private void startTracking() throws Exception {
+        when(clientMock.getCurrentEventToken()).thenReturn("token");
+        poller.run();
+    }
+
+    private Events createEventsMock(OperationEvent... events) {
+        Events eventsMock = mock(Events.class);
+        when(eventsMock.getEvents()).thenReturn(Arrays.asList(events));
+        when(eventsMock.getNewEventToken()).thenReturn("new token");
+
+        return eventsMock;
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd;
+
+import com.atlassian.crowd.embedded.api.SearchRestriction;
+import com.atlassian.crowd.model.user.User;
+import com.atlassian.crowd.search.query.entity.restriction.BooleanRestrictionImpl;
+import com.atlassian.crowd.search.query.entity.restriction.MatchMode;
+import com.atlassian.crowd.search.query.entity.restriction.PropertyImpl;
+import com.atlassian.crowd.search.query.entity.restriction.TermRestriction;
+import org.junit.jupiter.api.Test;
+
+import java.util.function.Predicate;
+
+import static com.atlassian.crowd.search.query.entity.restriction.BooleanRestriction.BooleanLogic.OR;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class CrowdSearchPlannerTest {
+
+    @Test
+    void given_emptySearch_when_plan_then_allUsersAreMatched() {
+        assertThat(CrowdSearchPlanner.plan("")).isSameAs(CrowdStorageProvider.NOOP_SEARCH_RESTRICTION);
+        assertThat(CrowdSearchPlanner.plan(null)).isSameAs(CrowdStorageProvider.NOOP_SEARCH_RESTRICTION);
+    }
+
+    @Test
+    void given_wildcardSearch_when_plan_then_allUsersAreMatched() {
+        assertThat(CrowdSearchPlanner.plan(" * ")).isSameAs(CrowdStorageProvider.NOOP_SEARCH_RESTRICTION);
+    }
+
+    @Test
+    void given_quotedSearch_when_plan_then_usernameAndEmailAreMatchedExactly() {
+        assertThat(CrowdSearchPlanner.plan("\"jdoe\"")).isEqualTo(new BooleanRestrictionImpl(OR,
+                term("name", MatchMode.EXACTLY_MATCHES, "jdoe"),
+                term("email", MatchMode.EXACTLY_MATCHES, "jdoe")));
+    }
+
+    @Test
+    void given_emailSearch_when_plan_then_usernameAndEmailAreMatchedExactly() {
+        assertThat(CrowdSearchPlanner.plan("john.doe@example.com")).isEqualTo(new BooleanRestrictionImpl(OR,
+                term("name", MatchMode.EXACTLY_MATCHES, "john.doe@example.com"),
+                term("email", MatchMode.EXACTLY_MATCHES, "john.doe@example.com")));
+    }
+
+    @Test
+    void given_prefixSearch_when_plan_then_allPropertiesAreMatchedByPrefix() {
+        assertThat(CrowdSearchPlanner.plan("jd*")).isEqualTo(allProperties(MatchMode.STARTS_WITH, "jd"));
+    }
+
+    @Test
+    void given_plainSearch_when_plan_then_allPropertiesAreMatchedByContains() {
+        assertThat(CrowdSearchPlanner.plan("doe")).isEqualTo(allProperties(MatchMode.CONTAINS, "doe"));
+    }
+
+    @Test
+    void given_inlineWildcardSearch_when_plan_then_longestPartIsMatchedByContains() {
+        assertThat(CrowdSearchPlanner.plan("*jo*hnson")).isEqualTo(allProperties(MatchMode.CONTAINS, "hnson"));
+    }
+
+    @Test
+    void given_inlineWildcardSearch_when_filter_then_usersMatchingAllPartsInOrderPass() {
+        Predicate<User> filter = CrowdSearchPlanner.filter("j*doe");
+
+        assertThat(filter).isNotNull();
+        assertThat(filter.test(user("JDoe", null, null, null))).isTrue();
+        assertThat(filter.test(user("jsmith", "john.doe@example.com", null, null))).isTrue();
+        assertThat(filter.test(user("doe", "doe@example.com", "Jane", "Doe"))).isFalse();
+        assertThat(filter.test(user("mdoe", null, null, null))).isFalse();
+    }
+
+    @Test
+    void given_searchWithoutInlineWildcard_when_filter_then_noFilterIsNeeded() {
+        assertThat(CrowdSearchPlanner.filter(null)).isNull();
+        assertThat(CrowdSearchPlanner.filter("doe")).isNull();
+        assertThat(CrowdSearchPlanner.filter("jd*")).isNull();
+        assertThat(CrowdSearchPlanner.filter("*doe*")).isNull();
+        assertThat(CrowdSearchPlanner.filter("\"j*doe\"")).isNull();
+    }
+
+    @Test
+    void given_partialEmailSearch_when_plan_then_allPropertiesAreMatchedByContains() {
+        assertThat(CrowdSearchPlanner.plan("john@")).isEqualTo(allProperties(MatchMode.CONTAINS, "john@"));
+    }
+
+    private SearchRestriction allProperties(MatchMode matchMode, String value) {
+        return new BooleanRestrictionImpl(OR,
+                term("name", matchMode, value),
+                term("email", matchMode, value),
+                term("firstName", matchMode, value),
+                term("lastName", matchMode, value));
+    }
+
+    private User user(String name, String email, String firstName, String lastName) {
+        User user = mock(User.class);
+        when(user.getName()).thenReturn(name);
+        when(user.getEmailAddress()).thenReturn(email);
+        when(user.getFirstName()).thenReturn(firstName);
+        when(user.getLastName()).thenReturn(lastName);
+        return user;
+    }
+
+    private SearchRestriction term(String property, MatchMode matchMode, String value) {
+        return new TermRestriction<>(new PropertyImpl<>(property, String.class), matchMode, value);
+    }
+
+}
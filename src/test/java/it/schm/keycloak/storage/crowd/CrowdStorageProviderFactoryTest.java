@@ -22,17 +22,26 @@
 
 package it.schm.keycloak.storage.crowd;
 
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.keycloak.common.util.MultivaluedHashMap;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.component.ComponentValidationException;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.provider.Provider;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.mockito.ArgumentCaptor;
 import org.mockito.junit.jupiter.MockitoExtension;
 
+import java.util.Date;
+import java.util.Map;
+
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.util.introspection.PropertyOrFieldSupport.EXTRACTION;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -40,6 +49,11 @@ class CrowdStorageProviderFactoryTest {
 
     private CrowdStorageProviderFactory providerFactory = new CrowdStorageProviderFactory();
 
+    @AfterEach
+    void tearDown() {
+        providerFactory.close();
+    }
+
     @Test
     void when_getId_then_expectedValueIsReturned() {
         assertThat(providerFactory.getId()).isEqualTo("crowd");
@@ -100,17 +114,187 @@ class CrowdStorageProviderFactoryTest {
     }
 
     @Test
-    void when_create_then_providerWithExpectedValuesIsCreated() {
+    void given_invalidMaxConnections_when_validateConfiguration_then_exceptionIsThrown() {
         MultivaluedHashMap<String, String> config = new MultivaluedHashMap<>();
-        config.putSingle(CrowdStorageProviderFactory.CONFIG_URL, "http://localhost");
-        config.putSingle(CrowdStorageProviderFactory.CONFIG_APPLICATION_NAME, "application");
-        config.putSingle(CrowdStorageProviderFactory.CONFIG_APPLICATION_PASSWORD, "password");
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_URL, "value");
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_APPLICATION_NAME, "value");
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_APPLICATION_PASSWORD, "value");
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_HTTP_MAX_CONNECTIONS, "none");
 
-        KeycloakSession sessionMock = mock(KeycloakSession.class);
         ComponentModel modelMock = mock(ComponentModel.class);
         when(modelMock.getConfig()).thenReturn(config);
 
+        assertThatThrownBy(() -> providerFactory.validateConfiguration(null, null, modelMock))
+                .isExactlyInstanceOf(ComponentValidationException.class);
+    }
+
+    @Test
+    void given_negativeSocketTimeout_when_validateConfiguration_then_exceptionIsThrown() {
+        MultivaluedHashMap<String, String> config = new MultivaluedHashMap<>();
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_URL, "value");
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_APPLICATION_NAME, "value");
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_APPLICATION_PASSWORD, "value");
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_HTTP_SOCKET_TIMEOUT, "-1");
+
+        ComponentModel modelMock = mock(ComponentModel.class);
+        when(modelMock.getConfig()).thenReturn(config);
+
+        assertThatThrownBy(() -> providerFactory.validateConfiguration(null, null, modelMock))
+                .isExactlyInstanceOf(ComponentValidationException.class);
+    }
+
+    @Test
+    void when_create_then_providerWithExpectedValuesIsCreated() {
+        KeycloakSession sessionMock = mock(KeycloakSession.class);
+        ComponentModel modelMock = createModelMock("model id", "password");
+
         assertThat(providerFactory.create(sessionMock, modelMock)).isExactlyInstanceOf(CrowdStorageProvider.class);
     }
 
+    @Test
+    void given_unchangedConfig_when_create_then_clientIsShared() {
+        KeycloakSession sessionMock = mock(KeycloakSession.class);
+        ComponentModel modelMock = createModelMock("model id", "password");
+
+        CrowdStorageProvider first = providerFactory.create(sessionMock, modelMock);
+        CrowdStorageProvider second = providerFactory.create(sessionMock, modelMock);
+
+        assertThat(second).extracting("client").isSameAs(extractClient(first));
+    }
+
+    @Test
+    void given_changedConfig_when_create_then_clientIsRebuilt() {
+        KeycloakSession sessionMock = mock(KeycloakSession.class);
+
+        CrowdStorageProvider first = providerFactory.create(sessionMock, createModelMock("model id", "password"));
+        CrowdStorageProvider second = providerFactory.create(sessionMock, createModelMock("model id", "changed"));
+
+        assertThat(second).extracting("client").isNotSameAs(extractClient(first));
+    }
+
+    @Test
+    void given_changedConfig_when_create_then_previousContextIsShutDownOnceItsSessionIsClosed() {
+        KeycloakSession sessionMock = mock(KeycloakSession.class);
+        ArgumentCaptor<Provider> closer = ArgumentCaptor.forClass(Provider.class);
+
+        CrowdStorageProvider first = providerFactory.create(sessionMock, createModelMock("model id", "password"));
+        verify(sessionMock).enlistForClose(closer.capture());
+        CrowdComponentContext firstContext = (CrowdComponentContext) EXTRACTION.getValueOf("context", first);
+
+        providerFactory.create(mock(KeycloakSession.class), createModelMock("model id", "changed"));
+
+        assertThat(firstContext.retain()).isTrue();
+        firstContext.release();
+
+        closer.getValue().close();
+
+        assertThat(firstContext.retain()).isFalse();
+    }
+
+    @Test
+    void given_differentComponents_when_create_then_clientsAreNotShared() {
+        KeycloakSession sessionMock = mock(KeycloakSession.class);
+
+        CrowdStorageProvider first = providerFactory.create(sessionMock, createModelMock("model id", "password"));
+        CrowdStorageProvider second = providerFactory.create(sessionMock, createModelMock("other id", "password"));
+
+        assertThat(second).extracting("client").isNotSameAs(extractClient(first));
+    }
+
+    @Test
+    void given_removedComponent_when_create_then_clientIsRebuilt() {
+        KeycloakSession sessionMock = mock(KeycloakSession.class);
+        ComponentModel modelMock = createModelMock("model id", "password");
+
+        CrowdStorageProvider first = providerFactory.create(sessionMock, modelMock);
+        providerFactory.preRemove(sessionMock, null, modelMock);
+        CrowdStorageProvider second = providerFactory.create(sessionMock, modelMock);
+
+        assertThat(second).extracting("client").isNotSameAs(extractClient(first));
+    }
+
+    @Test
+    void when_close_then_contextsAreReleased() {
+        providerFactory.create(mock(KeycloakSession.class), createModelMock("model id", "password"));
+
+        providerFactory.close();
+
+        assertThat((Map<?, ?>) EXTRACTION.getValueOf("contexts", providerFactory)).isEmpty();
+    }
+
+    @Test
+    void given_invalidUserCacheTtl_when_validateConfiguration_then_exceptionIsThrown() {
+        MultivaluedHashMap<String, String> config = new MultivaluedHashMap<>();
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_URL, "value");
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_APPLICATION_NAME, "value");
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_APPLICATION_PASSWORD, "value");
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_USER_CACHE_TTL, "-1");
+
+        ComponentModel modelMock = mock(ComponentModel.class);
+        when(modelMock.getConfig()).thenReturn(config);
+
+        assertThatThrownBy(() -> providerFactory.validateConfiguration(null, null, modelMock))
+                .isExactlyInstanceOf(ComponentValidationException.class);
+    }
+
+    @Test
+    void given_invalidNegativeCacheSize_when_validateConfiguration_then_exceptionIsThrown() {
+        MultivaluedHashMap<String, String> config = new MultivaluedHashMap<>();
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_URL, "value");
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_APPLICATION_NAME, "value");
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_APPLICATION_PASSWORD, "value");
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_NEGATIVE_CACHE_MAX_ENTRIES, "many");
+
+        ComponentModel modelMock = mock(ComponentModel.class);
+        when(modelMock.getConfig()).thenReturn(config);
+
+        assertThatThrownBy(() -> providerFactory.validateConfiguration(null, null, modelMock))
+                .isExactlyInstanceOf(ComponentValidationException.class);
+    }
+
+    @Test
+    void given_disabledUserCache_when_validateConfiguration_then_noExceptionIsThrown() {
+        MultivaluedHashMap<String, String> config = new MultivaluedHashMap<>();
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_URL, "value");
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_APPLICATION_NAME, "value");
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_APPLICATION_PASSWORD, "value");
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_USER_CACHE_TTL, "0");
+
+        ComponentModel modelMock = mock(ComponentModel.class);
+        when(modelMock.getConfig()).thenReturn(config);
+
+        providerFactory.validateConfiguration(null, null, modelMock);
+    }
+
+    @Test
+    void given_disabledImport_when_sync_then_synchronizationIsIgnored() {
+        UserStorageProviderModel modelMock = mock(UserStorageProviderModel.class);
+        when(modelMock.getId()).thenReturn("model id");
+        when(modelMock.getConfig()).thenReturn(createConfig("password"));
+
+        assertThat(providerFactory.sync(null, "realm id", modelMock).isIgnored()).isTrue();
+        assertThat(providerFactory.syncSince(new Date(), null, "realm id", modelMock).isIgnored()).isTrue();
+    }
+
+    private ComponentModel createModelMock(String id, String password) {
+        ComponentModel modelMock = mock(ComponentModel.class);
+        when(modelMock.getId()).thenReturn(id);
+        when(modelMock.getConfig()).thenReturn(createConfig(password));
+
+        return modelMock;
+    }
+
+    private MultivaluedHashMap<String, String> createConfig(String password) {
+        MultivaluedHashMap<String, String> config = new MultivaluedHashMap<>();
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_URL, "http://localhost");
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_APPLICATION_NAME, "application");
+        config.putSingle(CrowdStorageProviderFactory.CONFIG_APPLICATION_PASSWORD, password);
+
+        return config;
+    }
+
+    private Object extractClient(CrowdStorageProvider provider) {
+        return EXTRACTION.getValueOf("client", provider);
+    }
+
 }
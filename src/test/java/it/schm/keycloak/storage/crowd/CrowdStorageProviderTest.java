@@ -30,6 +30,7 @@ import com.atlassian.crowd.exception.InactiveAccountException;
 import com.atlassian.crowd.exception.InvalidAuthenticationException;
 import com.atlassian.crowd.exception.OperationFailedException;
 import com.atlassian.crowd.exception.UserNotFoundException;
+import com.atlassian.crowd.model.group.GroupWithAttributes;
 import com.atlassian.crowd.model.user.User;
 import com.atlassian.crowd.model.user.UserWithAttributes;
 import com.atlassian.crowd.search.query.entity.restriction.BooleanRestrictionImpl;
@@ -40,6 +41,7 @@ import com.atlassian.crowd.service.client.CrowdClient;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.keycloak.common.util.Time;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.credential.CredentialInput;
 import org.keycloak.models.GroupModel;
@@ -50,19 +52,34 @@ import org.keycloak.models.UserCredentialModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.models.credential.OTPCredentialModel;
 import org.keycloak.models.credential.PasswordCredentialModel;
+import org.keycloak.storage.ReadOnlyException;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static com.atlassian.crowd.search.query.entity.restriction.BooleanRestriction.BooleanLogic.OR;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
@@ -89,12 +106,141 @@ class CrowdStorageProviderTest {
     @Test
     void given_knownCrowdUser_when_getUserByUsername_then_expectedValueIsReturned() throws Exception {
         UserWithAttributes crowdUserMock = mock(UserWithAttributes.class);
+        when(crowdUserMock.getName()).thenReturn(USERNAME);
         when(clientMock.getUserWithAttributes(USERNAME)).thenReturn(crowdUserMock);
 
         assertThat(crowdStorageProvider.getUserByUsername(USERNAME, realmModelMock))
                 .isExactlyInstanceOf(CrowdUserAdapter.class)
-                .extracting("entity")
-                .isEqualTo(crowdUserMock);
+                .extracting("entity.name")
+                .isEqualTo(USERNAME);
+    }
+
+    @Test
+    void given_knownCrowdUser_when_getUserByUsername_then_groupsAreNotResolved() throws Exception {
+        UserWithAttributes crowdUserMock = mock(UserWithAttributes.class);
+        when(crowdUserMock.getName()).thenReturn(USERNAME);
+        when(clientMock.getUserWithAttributes(USERNAME)).thenReturn(crowdUserMock);
+
+        CrowdUserAdapter user = (CrowdUserAdapter) crowdStorageProvider.getUserByUsername(USERNAME, realmModelMock);
+
+        verify(clientMock, never()).getGroupsForUser(anyString(), anyInt(), anyInt());
+
+        user.getGroupsInternal();
+
+        verify(clientMock).getGroupsForUser(USERNAME, 0, Integer.MAX_VALUE);
+    }
+
+    @Test
+    void given_resolvedGroups_when_getGroupsOfOtherAdapter_then_groupsAreNotResolvedAgain() throws Exception {
+        UserWithAttributes crowdUserMock = mock(UserWithAttributes.class);
+        when(crowdUserMock.getName()).thenReturn(USERNAME);
+        when(clientMock.getUserWithAttributes(USERNAME)).thenReturn(crowdUserMock);
+
+        ((CrowdUserAdapter) crowdStorageProvider.getUserByUsername(USERNAME, realmModelMock)).getGroupsInternal();
+        ((CrowdUserAdapter) crowdStorageProvider.getUserByUsername(USERNAME, realmModelMock)).getGroupsInternal();
+
+        verify(clientMock, times(1)).getGroupsForUser(USERNAME, 0, Integer.MAX_VALUE);
+    }
+
+    @Test
+    void given_resolvedGroups_when_getGroupsOfUsernameInOtherCase_then_groupsAreNotResolvedAgain() throws Exception {
+        String upperCaseUsername = USERNAME.toUpperCase();
+        UserWithAttributes crowdUserMock = mock(UserWithAttributes.class);
+        when(crowdUserMock.getName()).thenReturn(USERNAME);
+        when(clientMock.getUserWithAttributes(USERNAME)).thenReturn(crowdUserMock);
+        UserWithAttributes upperCaseUserMock = mock(UserWithAttributes.class);
+        when(upperCaseUserMock.getName()).thenReturn(upperCaseUsername);
+        when(clientMock.getUserWithAttributes(upperCaseUsername)).thenReturn(upperCaseUserMock);
+        CrowdComponentContext context = new CrowdComponentContext(clientMock);
+        CrowdStorageProvider provider = new CrowdStorageProvider(sessionMock, modelMock, context);
+
+        ((CrowdUserAdapter) provider.getUserByUsername(USERNAME, realmModelMock)).getGroupsInternal();
+        context.getUserCache().invalidateAll();
+        ((CrowdUserAdapter) provider.getUserByUsername(upperCaseUsername, realmModelMock)).getGroupsInternal();
+
+        verify(clientMock).getGroupsForUser(USERNAME, 0, Integer.MAX_VALUE);
+        verify(clientMock, never()).getGroupsForUser(upperCaseUsername, 0, Integer.MAX_VALUE);
+    }
+
+    @Test
+    void given_cachedCrowdUser_when_getUserByUsername_then_crowdIsNotQueriedAgain() throws Exception {
+        UserWithAttributes crowdUserMock = mock(UserWithAttributes.class);
+        when(crowdUserMock.getName()).thenReturn(USERNAME);
+        when(clientMock.getUserWithAttributes(USERNAME)).thenReturn(crowdUserMock);
+
+        crowdStorageProvider.getUserByUsername(USERNAME, realmModelMock);
+
+        assertThat(crowdStorageProvider.getUserByUsername(USERNAME.toUpperCase(), realmModelMock))
+                .extracting("entity.name")
+                .isEqualTo(USERNAME);
+        verify(clientMock, times(1)).getUserWithAttributes(USERNAME);
+    }
+
+    @Test
+    void given_cachedCrowdUser_when_getUserByUsernameFromOtherProvider_then_crowdIsNotQueriedAgain() throws Exception {
+        CrowdComponentContext context = new CrowdComponentContext(clientMock);
+
+        UserWithAttributes crowdUserMock = mock(UserWithAttributes.class);
+        when(clientMock.getUserWithAttributes(USERNAME)).thenReturn(crowdUserMock);
+
+        new CrowdStorageProvider(sessionMock, modelMock, context).getUserByUsername(USERNAME, realmModelMock);
+        new CrowdStorageProvider(sessionMock, modelMock, context).getUserByUsername(USERNAME, realmModelMock);
+
+        verify(clientMock, times(1)).getUserWithAttributes(USERNAME);
+        assertThat(context.getUserCache().getHitCount()).isEqualTo(1);
+        assertThat(context.getUserCache().getMissCount()).isEqualTo(1);
+    }
+
+    @Test
+    void given_expiredCachedUserAndFailingCrowd_when_getUserByUsername_then_staleUserIsReturned() throws Exception {
+        CrowdComponentContext context = new CrowdComponentContext(clientMock);
+
+        UserWithAttributes crowdUserMock = mock(UserWithAttributes.class);
+        when(crowdUserMock.getName()).thenReturn(USERNAME);
+        when(clientMock.getUserWithAttributes(USERNAME))
+                .thenReturn(crowdUserMock)
+                .thenThrow(new OperationFailedException());
+
+        new CrowdStorageProvider(sessionMock, modelMock, context).getUserByUsername(USERNAME, realmModelMock);
+
+        try {
+            Time.setOffset(CrowdStorageProviderFactory.DEFAULT_USER_CACHE_TTL + 1);
+
+            assertThat(new CrowdStorageProvider(sessionMock, modelMock, context)
+                    .getUserByUsername(USERNAME, realmModelMock))
+                    .extracting("entity.name")
+                    .isEqualTo(USERNAME);
+        } finally {
+            Time.setOffset(0);
+        }
+
+        verify(clientMock, times(2)).getUserWithAttributes(USERNAME);
+        assertThat(context.getUserCache().getStaleHitCount()).isEqualTo(1);
+    }
+
+    @Test
+    void given_cachedUserPastStaleTtlAndFailingCrowd_when_getUserByUsername_then_modelExceptionIsThrown()
+            throws Exception {
+        CrowdComponentContext context = new CrowdComponentContext(clientMock);
+
+        UserWithAttributes crowdUserMock = mock(UserWithAttributes.class);
+        when(crowdUserMock.getName()).thenReturn(USERNAME);
+        when(clientMock.getUserWithAttributes(USERNAME))
+                .thenReturn(crowdUserMock)
+                .thenThrow(new OperationFailedException());
+
+        new CrowdStorageProvider(sessionMock, modelMock, context).getUserByUsername(USERNAME, realmModelMock);
+
+        try {
+            Time.setOffset(CrowdStorageProviderFactory.DEFAULT_USER_CACHE_TTL
+                    + CrowdStorageProviderFactory.DEFAULT_USER_CACHE_STALE_TTL + 1);
+
+            assertThatThrownBy(() -> new CrowdStorageProvider(sessionMock, modelMock, context)
+                    .getUserByUsername(USERNAME, realmModelMock))
+                    .isExactlyInstanceOf(ModelException.class);
+        } finally {
+            Time.setOffset(0);
+        }
     }
 
     @Test
@@ -104,6 +250,53 @@ class CrowdStorageProviderTest {
         assertThat(crowdStorageProvider.getUserByUsername(USERNAME, realmModelMock)).isNull();
     }
 
+    @Test
+    void given_concurrentLookups_when_getUserByUsername_then_crowdIsQueriedOnce() throws Exception {
+        CrowdComponentContext context = new CrowdComponentContext(clientMock);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        UserWithAttributes crowdUserMock = mock(UserWithAttributes.class);
+        when(crowdUserMock.getName()).thenReturn(USERNAME);
+        when(clientMock.getUserWithAttributes(USERNAME)).thenAnswer(invocation -> {
+            started.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return crowdUserMock;
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        try {
+            Future<UserModel> first = executor.submit(() -> new CrowdStorageProvider(sessionMock, modelMock, context)
+                    .getUserByUsername(USERNAME, realmModelMock));
+            assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+
+            Future<UserModel> second = executor.submit(() -> new CrowdStorageProvider(sessionMock, modelMock, context)
+                    .getUserByUsername(USERNAME, realmModelMock));
+
+            while (context.getUserRequests().getCoalescedCount() == 0) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+
+            assertThat(first.get(5, TimeUnit.SECONDS)).extracting("entity.name").isEqualTo(USERNAME);
+            assertThat(second.get(5, TimeUnit.SECONDS)).extracting("entity.name").isEqualTo(USERNAME);
+            verify(clientMock, times(1)).getUserWithAttributes(USERNAME);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void given_unknownCrowdUser_when_getUserByUsernameRepeatedly_then_crowdIsNotQueriedAgain() throws Exception {
+        when(clientMock.getUserWithAttributes(USERNAME)).thenThrow(new UserNotFoundException("Boom!"));
+
+        crowdStorageProvider.getUserByUsername(USERNAME, realmModelMock);
+
+        assertThat(crowdStorageProvider.getUserByUsername(USERNAME.toUpperCase(), realmModelMock)).isNull();
+        verify(clientMock, times(1)).getUserWithAttributes(USERNAME);
+    }
+
     @Test
     void given_getUserWithAttributesThrowsOperationFailedException_when_getUserByUsername_then_exceptionIsThrown() throws Exception {
         runGetUserByUsernameExceptionTest(new OperationFailedException());
@@ -119,6 +312,23 @@ class CrowdStorageProviderTest {
         runGetUserByUsernameExceptionTest(new ApplicationPermissionException());
     }
 
+    @Test
+    void given_repeatedlyFailingCrowd_when_getUserByUsername_then_requestsFailFast() throws Exception {
+        OperationFailedException exception = new OperationFailedException();
+        when(clientMock.getUserWithAttributes(USERNAME)).thenThrow(exception);
+
+        for (int i = 0; i < CrowdStorageProviderFactory.DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD; i++) {
+            assertThatThrownBy(() -> crowdStorageProvider.getUserByUsername(USERNAME, realmModelMock))
+                    .hasCause(exception);
+        }
+
+        assertThatThrownBy(() -> crowdStorageProvider.getUserByUsername(USERNAME, realmModelMock))
+                .isExactlyInstanceOf(ModelException.class)
+                .hasNoCause();
+        verify(clientMock, times(CrowdStorageProviderFactory.DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD))
+                .getUserWithAttributes(USERNAME);
+    }
+
     private void runGetUserByUsernameExceptionTest(Exception exception) throws Exception {
         when(clientMock.getUserWithAttributes(USERNAME)).thenThrow(exception);
 
@@ -147,6 +357,14 @@ class CrowdStorageProviderTest {
         verify(crowdStorageProvider).searchForUser(params, realmModelMock, 0, 1);
     }
 
+    @Test
+    void given_unknownEmail_when_getUserByEmailRepeatedly_then_crowdIsNotQueriedAgain() throws Exception {
+        crowdStorageProvider.getUserByEmail("email", realmModelMock);
+
+        assertThat(crowdStorageProvider.getUserByEmail("EMAIL", realmModelMock)).isNull();
+        verify(clientMock, times(1)).searchUsers(any(SearchRestriction.class), eq(0), eq(1));
+    }
+
     // UserQueryProvider methods
 
     @Test
@@ -155,11 +373,30 @@ class CrowdStorageProviderTest {
         expectedResult.add("user1");
         expectedResult.add("user2");
 
-        when(clientMock.searchUserNames(CrowdStorageProvider.NOOP_SEARCH_RESTRICTION, 0, Integer.MAX_VALUE)).thenReturn(expectedResult);
+        when(clientMock.searchUserNames(CrowdStorageProvider.NOOP_SEARCH_RESTRICTION, 0, 1000))
+                .thenReturn(expectedResult);
 
         assertThat(crowdStorageProvider.getUsersCount(realmModelMock)).isEqualTo(2);
     }
 
+    @Test
+    void given_morePagesOfUsers_when_getUsersCount_then_allPagesAreCounted() throws Exception {
+        List<String> firstPage = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            firstPage.add("user" + i);
+        }
+
+        List<String> secondPage = new ArrayList<>();
+        secondPage.add("user1000");
+
+        when(clientMock.searchUserNames(CrowdStorageProvider.NOOP_SEARCH_RESTRICTION, 0, 1000))
+                .thenReturn(firstPage);
+        when(clientMock.searchUserNames(CrowdStorageProvider.NOOP_SEARCH_RESTRICTION, 1000, 1000))
+                .thenReturn(secondPage);
+
+        assertThat(crowdStorageProvider.getUsersCount(realmModelMock)).isEqualTo(1001);
+    }
+
     @Test
     void given_searchUserNamesThrowsOperationFailedException_when_getUsersCount_then_ExceptionsIsThrown() throws Exception {
         runGetUsersCountExceptionTest(new OperationFailedException());
@@ -176,7 +413,7 @@ class CrowdStorageProviderTest {
     }
 
     private void runGetUsersCountExceptionTest(Exception exception) throws Exception {
-        when(clientMock.searchUserNames(CrowdStorageProvider.NOOP_SEARCH_RESTRICTION, 0, Integer.MAX_VALUE)).thenThrow(exception);
+        when(clientMock.searchUserNames(CrowdStorageProvider.NOOP_SEARCH_RESTRICTION, 0, 1000)).thenThrow(exception);
 
         assertThatThrownBy(() -> crowdStorageProvider.getUsersCount(realmModelMock))
                 .isExactlyInstanceOf(ModelException.class)
@@ -205,16 +442,28 @@ class CrowdStorageProviderTest {
     }
 
     @Test
-    void when_searchForUserWithString_then_searchForUserWithParamsIsCalled() {
+    void when_searchForUserWithString_then_plannedSearchRestrictionIsUsed() throws Exception {
         crowdStorageProvider.searchForUser("search", realmModelMock, 0, Integer.MAX_VALUE);
 
-        Map<String, String> params = new HashMap<>();
-        params.put("first", "search");
-        params.put("last", "search");
-        params.put("email", "search");
-        params.put("username", "search");
+        verify(clientMock).searchUsers(
+                CrowdSearchPlanner.plan("search"), 0, CrowdStorageProvider.SEARCH_PAGE_SIZE);
+    }
 
-        verify(crowdStorageProvider).searchForUser(params, realmModelMock, 0, Integer.MAX_VALUE);
+    @Test
+    void given_inlineWildcardSearch_when_searchForUser_then_resultsAreFiltered() throws Exception {
+        User matchingUserMock = mock(User.class);
+        when(matchingUserMock.getName()).thenReturn("jdoe");
+        User otherUserMock = mock(User.class);
+        when(otherUserMock.getName()).thenReturn("mdoe");
+
+        when(clientMock.searchUsers(CrowdSearchPlanner.plan("j*doe"), 0, CrowdStorageProvider.SEARCH_PAGE_SIZE))
+                .thenReturn(Arrays.asList(otherUserMock, matchingUserMock));
+
+        assertThat(crowdStorageProvider.searchForUser("j*doe", realmModelMock, 0, 10))
+                .hasSize(1)
+                .element(0)
+                .extracting("entity.name")
+                .isEqualTo("jdoe");
     }
 
     @Test
@@ -228,26 +477,29 @@ class CrowdStorageProviderTest {
 
     @Test
     void given_emptyParamsMap_when_searchForUser_then_expectedValuesAreReturned() throws Exception {
-        UserWithAttributes userMock = mock(UserWithAttributes.class);
+        User userMock = mock(User.class);
+        when(userMock.getName()).thenReturn(USERNAME);
 
-        List<UserWithAttributes> users = new ArrayList<>();
+        List<User> users = new ArrayList<>();
         users.add(userMock);
 
-        when(clientMock.searchUsersWithAttributes(CrowdStorageProvider.NOOP_SEARCH_RESTRICTION, 0, Integer.MAX_VALUE))
+        when(clientMock.searchUsers(
+                CrowdStorageProvider.NOOP_SEARCH_RESTRICTION, 0, CrowdStorageProvider.SEARCH_PAGE_SIZE))
                 .thenReturn(users);
 
         assertThat(crowdStorageProvider.searchForUser(new HashMap<>(), realmModelMock, 0, Integer.MAX_VALUE))
                 .hasSize(1)
                 .element(0)
-                .extracting("entity")
-                .isEqualTo(userMock);
+                .extracting("entity.name")
+                .isEqualTo(USERNAME);
     }
 
     @Test
     void given_paramsMap_when_searchForUser_then_expectedValuesAreReturned() throws Exception {
-        UserWithAttributes userMock = mock(UserWithAttributes.class);
+        User userMock = mock(User.class);
+        when(userMock.getName()).thenReturn(USERNAME);
 
-        List<UserWithAttributes> users = new ArrayList<>();
+        List<User> users = new ArrayList<>();
         users.add(userMock);
 
         Map<String, String> params = new HashMap<>();
@@ -265,33 +517,96 @@ class CrowdStorageProviderTest {
                         MatchMode.CONTAINS,
                         "value"));
 
-        when(clientMock.searchUsersWithAttributes(searchRestriction, 0, Integer.MAX_VALUE))
+        when(clientMock.searchUsers(searchRestriction, 0, CrowdStorageProvider.SEARCH_PAGE_SIZE))
                 .thenReturn(users);
 
         assertThat(crowdStorageProvider.searchForUser(params, realmModelMock, 0, Integer.MAX_VALUE))
                 .hasSize(1)
                 .element(0)
-                .extracting("entity")
-                .isEqualTo(userMock);
+                .extracting("entity.name")
+                .isEqualTo(USERNAME);
+    }
+
+    @Test
+    void given_morePagesOfUsers_when_searchForUser_then_pagesAreFetchedUntilLimit() throws Exception {
+        List<User> firstPage = new ArrayList<>();
+        for (int i = 0; i < CrowdStorageProvider.SEARCH_PAGE_SIZE; i++) {
+            firstPage.add(mock(User.class));
+        }
+
+        List<User> secondPage = new ArrayList<>(firstPage);
+
+        when(clientMock.searchUsers(
+                CrowdStorageProvider.NOOP_SEARCH_RESTRICTION, 10, CrowdStorageProvider.SEARCH_PAGE_SIZE))
+                .thenReturn(firstPage);
+        when(clientMock.searchUsers(
+                CrowdStorageProvider.NOOP_SEARCH_RESTRICTION, 10 + CrowdStorageProvider.SEARCH_PAGE_SIZE, 100))
+                .thenReturn(secondPage.subList(0, 100));
+
+        List<UserModel> users = crowdStorageProvider.searchForUser(
+                new HashMap<>(), realmModelMock, 10, CrowdStorageProvider.SEARCH_PAGE_SIZE + 100);
+
+        assertThat(users).hasSize(CrowdStorageProvider.SEARCH_PAGE_SIZE + 100);
     }
 
     @Test
-    void given_searchUsersWithAttributesThrowsInvalidAuthenticationException_when_searchForUser_then_ExceptionsIsThrown() throws Exception {
+    void given_unboundedSearch_when_searchForUser_then_resultsAreLimitedToMaxSearchResults() throws Exception {
+        List<User> page = new ArrayList<>();
+        for (int i = 0; i < CrowdStorageProvider.SEARCH_PAGE_SIZE; i++) {
+            page.add(mock(User.class));
+        }
+
+        when(clientMock.searchUsers(
+                eq(CrowdStorageProvider.NOOP_SEARCH_RESTRICTION), anyInt(), eq(CrowdStorageProvider.SEARCH_PAGE_SIZE)))
+                .thenReturn(page);
+
+        assertThat(crowdStorageProvider.searchForUser(new HashMap<>(), realmModelMock, 0, Integer.MAX_VALUE))
+                .hasSize(CrowdStorageProviderFactory.DEFAULT_SEARCH_MAX_RESULTS);
+    }
+
+    @Test
+    void given_searchResult_when_getAttribute_then_attributesAreLoadedOnDemand() throws Exception {
+        User userMock = mock(User.class);
+        when(userMock.getName()).thenReturn(USERNAME);
+
+        UserWithAttributes userWithAttributesMock = mock(UserWithAttributes.class);
+        when(userWithAttributesMock.getKeys()).thenReturn(Collections.singleton("attr"));
+        when(userWithAttributesMock.getValues("attr")).thenReturn(Collections.singleton("value"));
+
+        when(clientMock.searchUsers(
+                CrowdStorageProvider.NOOP_SEARCH_RESTRICTION, 0, CrowdStorageProvider.SEARCH_PAGE_SIZE))
+                .thenReturn(Collections.singletonList(userMock));
+        when(clientMock.getUserWithAttributes(USERNAME)).thenReturn(userWithAttributesMock);
+
+        List<UserModel> users =
+                crowdStorageProvider.searchForUser(new HashMap<>(), realmModelMock, 0, Integer.MAX_VALUE);
+
+        assertThat(((CrowdUserAdapter) users.get(0)).isLite()).isTrue();
+        verify(clientMock, never()).getUserWithAttributes(anyString());
+
+        assertThat(users.get(0).getFirstAttribute("attr")).isEqualTo("value");
+        assertThat(users.get(0).getFirstAttribute("attr")).isEqualTo("value");
+        verify(clientMock, times(1)).getUserWithAttributes(USERNAME);
+    }
+
+    @Test
+    void given_searchUsersThrowsInvalidAuthenticationException_when_searchForUser_then_ExceptionsIsThrown() throws Exception {
         runSearchForUserExceptionTest(new InvalidAuthenticationException("Boom!"));
     }
 
     @Test
-    void given_searchUsersWithAttributesThrowsOperationFailedException_when_searchForUser_then_ExceptionsIsThrown() throws Exception {
+    void given_searchUsersThrowsOperationFailedException_when_searchForUser_then_ExceptionsIsThrown() throws Exception {
         runSearchForUserExceptionTest(new OperationFailedException());
     }
 
     @Test
-    void given_searchUsersWithAttributesThrowsApplicationPermissionException_when_searchForUser_then_ExceptionsIsThrown() throws Exception {
+    void given_searchUsersThrowsApplicationPermissionException_when_searchForUser_then_ExceptionsIsThrown() throws Exception {
         runSearchForUserExceptionTest(new ApplicationPermissionException());
     }
 
     private void runSearchForUserExceptionTest(Exception exception) throws Exception {
-        when(clientMock.searchUsersWithAttributes(CrowdStorageProvider.NOOP_SEARCH_RESTRICTION, 0, Integer.MAX_VALUE))
+        when(clientMock.searchUsers(
+                CrowdStorageProvider.NOOP_SEARCH_RESTRICTION, 0, CrowdStorageProvider.SEARCH_PAGE_SIZE))
                 .thenThrow(exception);
 
         assertThatThrownBy(() -> crowdStorageProvider.searchForUser(
@@ -323,14 +638,72 @@ class CrowdStorageProviderTest {
         GroupModel groupMock = mock(GroupModel.class);
         when(groupMock.getName()).thenReturn("group name");
 
+        UserWithAttributes crowdUserMock = mock(UserWithAttributes.class);
+        when(crowdUserMock.getName()).thenReturn(USERNAME);
+
+        List<User> userList = new ArrayList<>();
+        userList.add(crowdUserMock);
+
+        when(clientMock.getUsersOfGroup("group name", 0, CrowdStorageProvider.SEARCH_PAGE_SIZE)).thenReturn(userList);
+
+        List<UserModel> groupMembers = crowdStorageProvider.getGroupMembers(
+                realmModelMock, groupMock, 0, Integer.MAX_VALUE);
+        assertThat(groupMembers.get(0)).extracting("entity.name").isEqualTo(USERNAME);
+    }
+
+    @Test
+    void given_groupMembers_when_getGroupsOfOneMember_then_groupsOfAllMembersAreResolvedAsBatch() throws Exception {
+        GroupModel groupMock = mock(GroupModel.class);
+        when(groupMock.getName()).thenReturn("group name");
+
+        UserWithAttributes firstUserMock = mock(UserWithAttributes.class);
+        when(firstUserMock.getName()).thenReturn("first");
+        UserWithAttributes secondUserMock = mock(UserWithAttributes.class);
+        when(secondUserMock.getName()).thenReturn("second");
+
         List<User> userList = new ArrayList<>();
-        userList.add(mock(UserWithAttributes.class));
+        userList.add(firstUserMock);
+        userList.add(secondUserMock);
+        when(clientMock.getUsersOfGroup("group name", 0, CrowdStorageProvider.SEARCH_PAGE_SIZE)).thenReturn(userList);
 
-        when(clientMock.getUsersOfGroup("group name", 0, Integer.MAX_VALUE)).thenReturn(userList);
+        GroupWithAttributes crowdGroupMock = mock(GroupWithAttributes.class);
+        when(crowdGroupMock.getName()).thenReturn("crowd group");
+        when(clientMock.getGroupsForUser("first", 0, Integer.MAX_VALUE))
+                .thenReturn(Collections.singletonList(crowdGroupMock));
+        when(clientMock.getGroupsForUser("second", 0, Integer.MAX_VALUE))
+                .thenReturn(Collections.singletonList(crowdGroupMock));
 
         List<UserModel> groupMembers = crowdStorageProvider.getGroupMembers(
                 realmModelMock, groupMock, 0, Integer.MAX_VALUE);
-        assertThat(groupMembers.get(0)).extracting("entity").isEqualTo(userList.get(0));
+
+        Set<GroupModel> firstGroups = ((CrowdUserAdapter) groupMembers.get(0)).getGroupsInternal();
+        Set<GroupModel> secondGroups = ((CrowdUserAdapter) groupMembers.get(1)).getGroupsInternal();
+
+        verify(clientMock).getGroupsForUser("first", 0, Integer.MAX_VALUE);
+        verify(clientMock).getGroupsForUser("second", 0, Integer.MAX_VALUE);
+        verify(clientMock, times(1)).getParentGroupsForGroup("crowd group", 0, 1);
+        verify(clientMock, times(1)).getChildGroupsOfGroup("crowd group", 0, Integer.MAX_VALUE);
+        assertThat(firstGroups).hasSize(1);
+        assertThat(secondGroups.iterator().next()).isSameAs(firstGroups.iterator().next());
+    }
+
+    @Test
+    void given_unboundedRequest_when_getGroupMembers_then_membersAreLimitedToMaxSearchResults() throws Exception {
+        GroupModel groupMock = mock(GroupModel.class);
+        when(groupMock.getName()).thenReturn("group name");
+
+        List<User> page = new ArrayList<>();
+        for (int i = 0; i < CrowdStorageProvider.SEARCH_PAGE_SIZE; i++) {
+            page.add(mock(User.class));
+        }
+
+        when(clientMock.getUsersOfGroup(eq("group name"), anyInt(), eq(CrowdStorageProvider.SEARCH_PAGE_SIZE)))
+                .thenReturn(page);
+
+        assertThat(crowdStorageProvider.getGroupMembers(realmModelMock, groupMock, 0, Integer.MAX_VALUE))
+                .hasSize(CrowdStorageProviderFactory.DEFAULT_SEARCH_MAX_RESULTS);
+        verify(clientMock, times(CrowdStorageProviderFactory.DEFAULT_SEARCH_MAX_RESULTS
+                / CrowdStorageProvider.SEARCH_PAGE_SIZE)).getUsersOfGroup(anyString(), anyInt(), anyInt());
     }
 
     @Test
@@ -338,7 +711,7 @@ class CrowdStorageProviderTest {
         GroupModel groupMock = mock(GroupModel.class);
         when(groupMock.getName()).thenReturn("group name");
 
-        when(clientMock.getUsersOfGroup("group name", 0, Integer.MAX_VALUE))
+        when(clientMock.getUsersOfGroup("group name", 0, CrowdStorageProvider.SEARCH_PAGE_SIZE))
                 .thenThrow(new GroupNotFoundException("Boom!"));
 
         assertThat(crowdStorageProvider.getGroupMembers(realmModelMock, groupMock, 0, Integer.MAX_VALUE))
@@ -364,7 +737,7 @@ class CrowdStorageProviderTest {
         GroupModel groupMock = mock(GroupModel.class);
         when(groupMock.getName()).thenReturn("group name");
 
-        when(clientMock.getUsersOfGroup("group name", 0, Integer.MAX_VALUE)).thenThrow(exception);
+        when(clientMock.getUsersOfGroup("group name", 0, CrowdStorageProvider.SEARCH_PAGE_SIZE)).thenThrow(exception);
 
         assertThatThrownBy(() -> crowdStorageProvider.getGroupMembers(realmModelMock, groupMock, 0, Integer.MAX_VALUE))
                 .isExactlyInstanceOf(ModelException.class)
@@ -474,6 +847,54 @@ class CrowdStorageProviderTest {
                 .hasCause(exception);
     }
 
+    // CredentialInputUpdater methods
+
+    @Test
+    void given_importEnabledAndPassword_when_updateCredential_then_readOnlyExceptionIsThrown() {
+        CrowdComponentContext contextMock = mock(CrowdComponentContext.class);
+        when(contextMock.isImportEnabled()).thenReturn(true);
+        CrowdStorageProvider importProvider = new CrowdStorageProvider(sessionMock, modelMock, contextMock);
+        CredentialInput input = new UserCredentialModel("id", PasswordCredentialModel.TYPE, "password");
+
+        assertThatThrownBy(() -> importProvider.updateCredential(realmModelMock, mock(UserModel.class), input))
+                .isExactlyInstanceOf(ReadOnlyException.class);
+    }
+
+    @Test
+    void given_importDisabledAndPassword_when_updateCredential_then_falseIsReturned() {
+        CredentialInput input = new UserCredentialModel("id", PasswordCredentialModel.TYPE, "password");
+
+        assertThat(crowdStorageProvider.updateCredential(realmModelMock, mock(UserModel.class), input)).isFalse();
+    }
+
+    @Test
+    void given_otherCredentialType_when_updateCredential_then_falseIsReturned() {
+        CredentialInput input = new UserCredentialModel("id", OTPCredentialModel.TYPE, "otp");
+
+        assertThat(crowdStorageProvider.updateCredential(realmModelMock, mock(UserModel.class), input)).isFalse();
+    }
+
+    @Test
+    void when_getDisableableCredentialTypes_then_emptySetIsReturned() {
+        assertThat(crowdStorageProvider.getDisableableCredentialTypes(realmModelMock, mock(UserModel.class)))
+                .isEmpty();
+    }
+
+    // ImportedUserValidation methods
+
+    @Test
+    void given_importedUser_when_validate_then_readOnlyUserIsReturned() {
+        UserModel localUserMock = mock(UserModel.class);
+        when(modelMock.getId()).thenReturn("model id");
+
+        UserModel validatedUser = crowdStorageProvider.validate(realmModelMock, localUserMock);
+
+        assertThat(validatedUser).isInstanceOf(ReadOnlyCrowdUserDelegate.class);
+        assertThatThrownBy(() -> validatedUser.setEmail("other@example.com"))
+                .isExactlyInstanceOf(ReadOnlyException.class);
+        verify(localUserMock, never()).setEmail(anyString());
+    }
+
     // Provider method implementations
 
     @Test
@@ -22,6 +22,7 @@
 
 package it.schm.keycloak.storage.crowd;
 
+import com.atlassian.crowd.model.user.User;
 import com.atlassian.crowd.model.user.UserWithAttributes;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -39,6 +40,7 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.assertj.core.api.Assertions.*;
 import static org.mockito.Mockito.*;
@@ -62,68 +64,68 @@ class CrowdUserAdapterTest {
     @BeforeEach
     void setupGroupAdapter() {
         when(modelMock.getId()).thenReturn(MODEL_ID);
-        when(userMock.getName()).thenReturn(USER_NAME);
-
-        crowdUserAdapter = new CrowdUserAdapter(sessionMock, realmMock, modelMock, userMock);
+        lenient().when(userMock.getName()).thenReturn(USER_NAME);
     }
 
     @Test
     void when_getId_then_expectedValueIsReturned() {
-        assertThat(crowdUserAdapter.getId()).isEqualTo(StorageId.keycloakId(modelMock, userMock.getName()));
+        assertThat(crowdUserAdapter().getId()).isEqualTo(StorageId.keycloakId(modelMock, userMock.getName()));
     }
 
     @Test
     void when_getUsername_then_expectedValueIsReturned() {
-        assertThat(crowdUserAdapter.getUsername()).isEqualTo(USER_NAME);
+        assertThat(crowdUserAdapter().getUsername()).isEqualTo(USER_NAME);
     }
 
     @Test
     void when_setUsername_then_readOnlyExceptionIsThrown() {
-        assertThatThrownBy(() -> crowdUserAdapter.setUsername("new name")).isExactlyInstanceOf(ReadOnlyException.class);
+        assertThatThrownBy(() -> crowdUserAdapter().setUsername("new name"))
+                .isExactlyInstanceOf(ReadOnlyException.class);
     }
 
     @Test
     void when_getEmail_then_expectedValueIsReturned() {
         when(userMock.getEmailAddress()).thenReturn(USER_EMAIL);
-        assertThat(crowdUserAdapter.getEmail()).isEqualTo(USER_EMAIL);
+        assertThat(crowdUserAdapter().getEmail()).isEqualTo(USER_EMAIL);
     }
 
     @Test
     void when_setEmail_then_readOnlyExceptionIsThrown() {
-        assertThatThrownBy(() -> crowdUserAdapter.setEmail("new email")).isExactlyInstanceOf(ReadOnlyException.class);
+        assertThatThrownBy(() -> crowdUserAdapter().setEmail("new email")).isExactlyInstanceOf(ReadOnlyException.class);
     }
 
     @Test
     void when_isEmailVerified_then_trueIsReturned() {
-        assertThat(crowdUserAdapter.isEmailVerified()).isTrue();
+        assertThat(crowdUserAdapter().isEmailVerified()).isTrue();
     }
 
     @Test
     void when_setEmailVerified_then_readOnlyExceptionIsThrown() {
-        assertThatThrownBy(() -> crowdUserAdapter.setEmailVerified(true)).isExactlyInstanceOf(ReadOnlyException.class);
+        assertThatThrownBy(() -> crowdUserAdapter().setEmailVerified(true))
+                .isExactlyInstanceOf(ReadOnlyException.class);
     }
 
     @Test
     void when_getFirstName_then_expectedValueIsReturned() {
         when(userMock.getFirstName()).thenReturn(USER_FIRST_NAME);
-        assertThat(crowdUserAdapter.getFirstName()).isEqualTo(USER_FIRST_NAME);
+        assertThat(crowdUserAdapter().getFirstName()).isEqualTo(USER_FIRST_NAME);
     }
 
     @Test
     void when_setFirstName_then_readOnlyExceptionIsThrown() {
-        assertThatThrownBy(() -> crowdUserAdapter.setFirstName("new name"))
+        assertThatThrownBy(() -> crowdUserAdapter().setFirstName("new name"))
                 .isExactlyInstanceOf(ReadOnlyException.class);
     }
 
     @Test
     void when_getLastName_then_expectedValueIsReturned() {
         when(userMock.getLastName()).thenReturn(USER_LAST_NAME);
-        assertThat(crowdUserAdapter.getLastName()).isEqualTo(USER_LAST_NAME);
+        assertThat(crowdUserAdapter().getLastName()).isEqualTo(USER_LAST_NAME);
     }
 
     @Test
     void when_setLastName_then_readOnlyExceptionIsThrown() {
-        assertThatThrownBy(() -> crowdUserAdapter.setLastName("new name"))
+        assertThatThrownBy(() -> crowdUserAdapter().setLastName("new name"))
                 .isExactlyInstanceOf(ReadOnlyException.class);
     }
 
@@ -132,7 +134,7 @@ class CrowdUserAdapterTest {
         Set<GroupModel> groups = new HashSet<>();
         groups.add(mock(GroupModel.class));
 
-        crowdUserAdapter.setGroupsInternal(groups);
+        crowdUserAdapter().setGroupsInternal(groups);
     }
 
     @Test
@@ -140,14 +142,56 @@ class CrowdUserAdapterTest {
         Set<GroupModel> groups = new HashSet<>();
         groups.add(mock(GroupModel.class));
 
-        crowdUserAdapter.setGroupsInternal(groups);
+        crowdUserAdapter().setGroupsInternal(groups);
 
-        assertThat(crowdUserAdapter.getGroupsInternal()).containsExactlyElementsOf(groups);
+        assertThat(crowdUserAdapter().getGroupsInternal()).containsExactlyElementsOf(groups);
+    }
+
+    @Test
+    void given_groupsLoader_when_getGroupsInternal_then_groupsAreLoadedOnce() {
+        Set<GroupModel> groups = new HashSet<>();
+        groups.add(mock(GroupModel.class));
+
+        AtomicInteger calls = new AtomicInteger();
+        crowdUserAdapter().setGroupsLoader(() -> {
+            calls.incrementAndGet();
+            return groups;
+        });
+
+        assertThat(calls).hasValue(0);
+        assertThat(crowdUserAdapter().getGroupsInternal()).containsExactlyElementsOf(groups);
+        assertThat(crowdUserAdapter().getGroupsInternal()).containsExactlyElementsOf(groups);
+        assertThat(calls).hasValue(1);
+    }
+
+    @Test
+    void given_noGroupsNorLoader_when_getGroupsInternal_then_emptySetIsReturned() {
+        assertThat(crowdUserAdapter().getGroupsInternal()).isEmpty();
+    }
+
+    @Test
+    void given_groupsLoaderReturningNull_when_getGroupsInternal_then_emptySetIsReturned() {
+        crowdUserAdapter().setGroupsLoader(() -> null);
+
+        assertThat(crowdUserAdapter().getGroupsInternal()).isEmpty();
+    }
+
+    @Test
+    void given_groupsSetDirectly_when_getGroupsInternal_then_groupsLoaderIsNotCalled() {
+        Set<GroupModel> groups = new HashSet<>();
+        groups.add(mock(GroupModel.class));
+
+        crowdUserAdapter().setGroupsLoader(() -> {
+            throw new IllegalStateException("Boom!");
+        });
+        crowdUserAdapter().setGroupsInternal(groups);
+
+        assertThat(crowdUserAdapter().getGroupsInternal()).containsExactlyElementsOf(groups);
     }
 
     @Test
     void when_removeAttribute_then_readOnlyExceptionIsThrown() {
-        assertThatThrownBy(() -> crowdUserAdapter.removeAttribute("attr"))
+        assertThatThrownBy(() -> crowdUserAdapter().removeAttribute("attr"))
                 .isExactlyInstanceOf(ReadOnlyException.class);
     }
 
@@ -156,12 +200,12 @@ class CrowdUserAdapterTest {
         String displayName = "display name";
         when(userMock.getDisplayName()).thenReturn(displayName);
 
-        assertThat(crowdUserAdapter.getAttribute(CrowdUserAdapter.ATTR_DISPLAY_NAME)).contains(displayName);
+        assertThat(crowdUserAdapter().getAttribute(CrowdUserAdapter.ATTR_DISPLAY_NAME)).contains(displayName);
     }
 
     @Test
     void given_unknownCrowdUserAttribute_when_getAttribute_then_expectedValueIsReturned() {
-        assertThat(crowdUserAdapter.getAttribute("attr")).isEmpty();
+        assertThat(crowdUserAdapter().getAttribute("attr")).isEmpty();
     }
 
     @Test
@@ -172,7 +216,7 @@ class CrowdUserAdapterTest {
         when(userMock.getKeys()).thenReturn(keys);
         when(userMock.getValues("attr")).thenReturn(null);
 
-        assertThat(crowdUserAdapter.getAttribute("attr")).isEmpty();
+        assertThat(crowdUserAdapter().getAttribute("attr")).isEmpty();
     }
 
     @Test
@@ -186,7 +230,7 @@ class CrowdUserAdapterTest {
         when(userMock.getKeys()).thenReturn(keys);
         when(userMock.getValues("attr")).thenReturn(values);
 
-        assertThat(crowdUserAdapter.getAttribute("attr")).containsAll(values);
+        assertThat(crowdUserAdapter().getAttribute("attr")).containsAll(values);
     }
 
     @Test
@@ -194,7 +238,7 @@ class CrowdUserAdapterTest {
         List<String> values = new ArrayList<>();
         values.add("value");
 
-        assertThatThrownBy(() -> crowdUserAdapter.setAttribute("attr", values))
+        assertThatThrownBy(() -> crowdUserAdapter().setAttribute("attr", values))
                 .isExactlyInstanceOf(ReadOnlyException.class);
     }
 
@@ -203,24 +247,31 @@ class CrowdUserAdapterTest {
         String displayName = "display name";
         when(userMock.getDisplayName()).thenReturn(displayName);
 
-        assertThat(crowdUserAdapter.getFirstAttribute(CrowdUserAdapter.ATTR_DISPLAY_NAME)).isEqualTo(displayName);
+        assertThat(crowdUserAdapter().getFirstAttribute(CrowdUserAdapter.ATTR_DISPLAY_NAME)).isEqualTo(displayName);
     }
 
     @Test
     void given_unknownCrowdUserAttribute_when_getFirstAttribute_then_expectedValueIsReturned() {
-        assertThat(crowdUserAdapter.getFirstAttribute("attr")).isNull();
+        assertThat(crowdUserAdapter().getFirstAttribute("attr")).isNull();
     }
 
     @Test
     void given_knownCrowdUserAttribute_when_getFirstAttribute_then_expectedValueIsReturned() {
-        when(userMock.getValue("attr")).thenReturn("value");
+        Set<String> keys = new HashSet<>();
+        keys.add("attr");
+
+        Set<String> values = new HashSet<>();
+        values.add("value");
+
+        when(userMock.getKeys()).thenReturn(keys);
+        when(userMock.getValues("attr")).thenReturn(values);
 
-        assertThat(crowdUserAdapter.getFirstAttribute("attr")).isEqualTo("value");
+        assertThat(crowdUserAdapter().getFirstAttribute("attr")).isEqualTo("value");
     }
 
     @Test
     void when_setSingleAttribute_then_readOnlyExceptionIsThrown() {
-        assertThatThrownBy(() -> crowdUserAdapter.setSingleAttribute("attr", "value"))
+        assertThatThrownBy(() -> crowdUserAdapter().setSingleAttribute("attr", "value"))
                 .isExactlyInstanceOf(ReadOnlyException.class);
     }
 
@@ -243,9 +294,126 @@ class CrowdUserAdapterTest {
         List<String> displayNameValue = new ArrayList<>();
         displayNameValue.add(displayName);
 
-        assertThat(crowdUserAdapter.getAttributes()).containsOnly(
+        assertThat(crowdUserAdapter().getAttributes()).containsOnly(
                 entry(CrowdUserAdapter.ATTR_DISPLAY_NAME, displayNameValue),
                 entry("attr", new ArrayList<>(values)));
     }
 
+    @Test
+    void when_getAttributesRepeatedly_then_sameImmutableValuesAreReturned() {
+        Set<String> keys = new HashSet<>();
+        keys.add("attr");
+
+        Set<String> values = new HashSet<>();
+        values.add("value");
+
+        when(userMock.getKeys()).thenReturn(keys);
+        when(userMock.getValues("attr")).thenReturn(values);
+
+        assertThat(crowdUserAdapter().getAttributes()).isSameAs(crowdUserAdapter().getAttributes());
+        assertThat(crowdUserAdapter().getAttribute("attr")).isSameAs(crowdUserAdapter().getAttribute("attr"));
+        assertThatThrownBy(() -> crowdUserAdapter().getAttributes().put("attr", new ArrayList<>()))
+                .isExactlyInstanceOf(UnsupportedOperationException.class);
+        assertThatThrownBy(() -> crowdUserAdapter().getAttribute("attr").add("other value"))
+                .isExactlyInstanceOf(UnsupportedOperationException.class);
+        verify(userMock, times(1)).getKeys();
+    }
+
+    @Test
+    void when_isLite_then_falseIsReturned() {
+        assertThat(crowdUserAdapter().isLite()).isFalse();
+    }
+
+    @Test
+    void given_liteAdapter_when_getUsername_then_attributesAreNotLoaded() {
+        User liteUserMock = mock(User.class);
+        when(liteUserMock.getName()).thenReturn(USER_NAME);
+        CrowdUserRecord liteUser = CrowdUserRecord.withoutAttributes(modelMock, liteUserMock);
+
+        CrowdUserAdapter liteAdapter = new CrowdUserAdapter(sessionMock, realmMock, modelMock, liteUser, () -> {
+            throw new IllegalStateException("Boom!");
+        });
+
+        assertThat(liteAdapter.getUsername()).isEqualTo(USER_NAME);
+        assertThat(liteAdapter.isLite()).isTrue();
+    }
+
+    @Test
+    void given_liteAdapter_when_getDisplayName_then_attributesAreNotLoaded() {
+        User liteUserMock = mock(User.class);
+        when(liteUserMock.getName()).thenReturn(USER_NAME);
+        when(liteUserMock.getDisplayName()).thenReturn("display name");
+        CrowdUserRecord liteUser = CrowdUserRecord.withoutAttributes(modelMock, liteUserMock);
+
+        CrowdUserAdapter liteAdapter = new CrowdUserAdapter(sessionMock, realmMock, modelMock, liteUser, () -> {
+            throw new IllegalStateException("Boom!");
+        });
+
+        assertThat(liteAdapter.getFirstAttribute(CrowdUserAdapter.ATTR_DISPLAY_NAME)).isEqualTo("display name");
+        assertThat(liteAdapter.isLite()).isTrue();
+    }
+
+    @Test
+    void given_liteAdapterWithoutDisplayName_when_getDisplayName_then_emptyListIsReturned() {
+        User liteUserMock = mock(User.class);
+        when(liteUserMock.getName()).thenReturn(USER_NAME);
+        CrowdUserRecord liteUser = CrowdUserRecord.withoutAttributes(modelMock, liteUserMock);
+
+        CrowdUserAdapter liteAdapter = new CrowdUserAdapter(sessionMock, realmMock, modelMock, liteUser, () -> {
+            throw new IllegalStateException("Boom!");
+        });
+
+        assertThat(liteAdapter.getAttribute(CrowdUserAdapter.ATTR_DISPLAY_NAME)).isEmpty();
+        assertThat(liteAdapter.getFirstAttribute(CrowdUserAdapter.ATTR_DISPLAY_NAME)).isNull();
+    }
+
+    @Test
+    void given_liteAdapter_when_getAttribute_then_attributesAreLoadedOnce() {
+        User liteUserMock = mock(User.class);
+        when(liteUserMock.getName()).thenReturn(USER_NAME);
+        CrowdUserRecord liteUser = CrowdUserRecord.withoutAttributes(modelMock, liteUserMock);
+
+        Set<String> keys = new HashSet<>();
+        keys.add("attr");
+
+        Set<String> values = new HashSet<>();
+        values.add("value");
+
+        when(userMock.getKeys()).thenReturn(keys);
+        when(userMock.getValues("attr")).thenReturn(values);
+
+        AtomicInteger calls = new AtomicInteger();
+        CrowdUserAdapter liteAdapter = new CrowdUserAdapter(sessionMock, realmMock, modelMock, liteUser, () -> {
+            calls.incrementAndGet();
+            return CrowdUserRecord.of(modelMock, userMock);
+        });
+
+        assertThat(liteAdapter.getAttribute("attr")).containsAll(values);
+        assertThat(liteAdapter.getAttribute("attr")).containsAll(values);
+        assertThat(liteAdapter.isLite()).isFalse();
+        assertThat(calls).hasValue(1);
+    }
+
+    @Test
+    void given_liteAdapterOfRemovedUser_when_getAttributes_then_onlyDisplayNameIsReturned() {
+        User liteUserMock = mock(User.class);
+        when(liteUserMock.getName()).thenReturn(USER_NAME);
+        when(liteUserMock.getDisplayName()).thenReturn("display name");
+        CrowdUserRecord liteUser = CrowdUserRecord.withoutAttributes(modelMock, liteUserMock);
+
+        CrowdUserAdapter liteAdapter = new CrowdUserAdapter(sessionMock, realmMock, modelMock, liteUser, () -> null);
+
+        assertThat(liteAdapter.getAttributes()).containsOnlyKeys(CrowdUserAdapter.ATTR_DISPLAY_NAME);
+        assertThat(liteAdapter.getFirstAttribute("attr")).isNull();
+    }
+
+    private CrowdUserAdapter crowdUserAdapter() {
+        if (crowdUserAdapter == null) {
+            crowdUserAdapter = new CrowdUserAdapter(
+                    sessionMock, realmMock, modelMock, CrowdUserRecord.of(modelMock, userMock));
+        }
+
+        return crowdUserAdapter;
+    }
+
 }
@@ -0,0 +1,215 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd;
+
+import com.atlassian.crowd.model.user.UserWithAttributes;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class CrowdUserImporterTest {
+
+    private static final String MODEL_ID = "model id";
+    private static final String USERNAME = "jdoe";
+
+    @Mock private KeycloakSession sessionMock;
+    @Mock private RealmModel realmMock;
+    @Mock private ComponentModel modelMock;
+    @Mock private UserProvider localStorageMock;
+    @Mock private UserWithAttributes crowdUserMock;
+    @Mock private UserModel localUserMock;
+
+    private CrowdUserImporter importer;
+
+    @BeforeEach
+    void setup() {
+        when(sessionMock.userLocalStorage()).thenReturn(localStorageMock);
+        when(modelMock.getId()).thenReturn(MODEL_ID);
+        when(crowdUserMock.getName()).thenReturn(USERNAME);
+
+        importer = new CrowdUserImporter(sessionMock, realmMock, modelMock);
+    }
+
+    @Test
+    void given_unknownUser_when_importUser_then_linkedUserIsAdded() {
+        when(localStorageMock.addUser(realmMock, USERNAME)).thenReturn(localUserMock);
+        when(crowdUserMock.isActive()).thenReturn(true);
+        when(crowdUserMock.getEmailAddress()).thenReturn("jdoe@example.com");
+        when(crowdUserMock.getDisplayName()).thenReturn("John Doe");
+
+        assertThat(importer.importUser(crowdUser(), Collections.emptySet())).isSameAs(localUserMock);
+
+        verify(localUserMock).setFederationLink(MODEL_ID);
+        verify(localUserMock).setEnabled(true);
+        verify(localUserMock).setEmail("jdoe@example.com");
+        verify(localUserMock).setAttribute(
+                CrowdUserAdapter.ATTR_DISPLAY_NAME, Collections.singletonList("John Doe"));
+        assertThat(importer.getAddedCount()).isEqualTo(1);
+        assertThat(importer.getUpdatedCount()).isZero();
+    }
+
+    @Test
+    void given_importedUser_when_importUser_then_userIsUpdated() {
+        when(localStorageMock.getUserByUsername(USERNAME, realmMock)).thenReturn(localUserMock);
+        when(localUserMock.getFederationLink()).thenReturn(MODEL_ID);
+        when(crowdUserMock.getFirstName()).thenReturn("John");
+
+        assertThat(importer.importUser(crowdUser(), Collections.emptySet())).isSameAs(localUserMock);
+
+        verify(localStorageMock, never()).addUser(any(), anyString());
+        verify(localUserMock).setFirstName("John");
+        verify(localUserMock).removeAttribute(CrowdUserAdapter.ATTR_DISPLAY_NAME);
+        assertThat(importer.getAddedCount()).isZero();
+        assertThat(importer.getUpdatedCount()).isEqualTo(1);
+    }
+
+    @Test
+    void given_unlinkedLocalUser_when_importUser_then_userIsSkipped() {
+        when(localStorageMock.getUserByUsername(USERNAME, realmMock)).thenReturn(localUserMock);
+        when(localUserMock.getFederationLink()).thenReturn(null);
+
+        assertThat(importer.importUser(crowdUser(), Collections.emptySet())).isNull();
+
+        verify(localUserMock, never()).setEmail(any());
+        assertThat(importer.getUpdatedCount()).isZero();
+    }
+
+    @Test
+    void given_nestedCrowdGroup_when_importUser_then_groupsAreCreatedAndJoined() {
+        when(localStorageMock.addUser(realmMock, USERNAME)).thenReturn(localUserMock);
+
+        GroupModel crowdParentMock = mock(GroupModel.class);
+        when(crowdParentMock.getName()).thenReturn("parent");
+
+        GroupModel crowdGroupMock = mock(GroupModel.class);
+        when(crowdGroupMock.getName()).thenReturn("child");
+        when(crowdGroupMock.getParent()).thenReturn(crowdParentMock);
+
+        GroupModel localParentMock = mock(GroupModel.class);
+        when(localParentMock.getId()).thenReturn("parent id");
+        when(localParentMock.getSubGroups()).thenReturn(Collections.emptySet());
+
+        GroupModel localGroupMock = mock(GroupModel.class);
+        when(realmMock.createGroup("parent")).thenReturn(localParentMock);
+        when(realmMock.createGroup("child")).thenReturn(localGroupMock);
+
+        importer.importUser(crowdUser(), Collections.singleton(crowdGroupMock));
+
+        verify(localParentMock).setSingleAttribute(CrowdUserImporter.ATTR_FEDERATION_LINK, MODEL_ID);
+        verify(localGroupMock).setSingleAttribute(CrowdUserImporter.ATTR_FEDERATION_LINK, MODEL_ID);
+        verify(realmMock).moveGroup(localGroupMock, localParentMock);
+        verify(localUserMock).joinGroup(localGroupMock);
+        verify(localUserMock, never()).joinGroup(localParentMock);
+    }
+
+    @Test
+    void given_previouslyImportedGroup_when_importUser_then_groupIsReused() {
+        when(localStorageMock.addUser(realmMock, USERNAME)).thenReturn(localUserMock);
+
+        GroupModel crowdGroupMock = mock(GroupModel.class);
+        when(crowdGroupMock.getName()).thenReturn("group");
+
+        GroupModel localGroupMock = mock(GroupModel.class);
+        when(localGroupMock.getName()).thenReturn("group");
+        when(localGroupMock.getFirstAttribute(CrowdUserImporter.ATTR_FEDERATION_LINK)).thenReturn(MODEL_ID);
+        when(realmMock.getTopLevelGroups()).thenReturn(Collections.singletonList(localGroupMock));
+
+        importer.importUser(crowdUser(), Collections.singleton(crowdGroupMock));
+
+        verify(realmMock, never()).createGroup(anyString());
+        verify(localUserMock).joinGroup(localGroupMock);
+    }
+
+    @Test
+    void given_unmarkedLocalGroupWithSameName_when_importUser_then_groupIsSkipped() {
+        when(localStorageMock.addUser(realmMock, USERNAME)).thenReturn(localUserMock);
+
+        GroupModel crowdGroupMock = mock(GroupModel.class);
+        when(crowdGroupMock.getName()).thenReturn("group");
+
+        GroupModel localGroupMock = mock(GroupModel.class);
+        when(localGroupMock.getName()).thenReturn("group");
+        when(realmMock.getTopLevelGroups()).thenReturn(Collections.singletonList(localGroupMock));
+
+        importer.importUser(crowdUser(), Collections.singleton(crowdGroupMock));
+
+        verify(realmMock, never()).createGroup(anyString());
+        verify(localUserMock, never()).joinGroup(any());
+    }
+
+    @Test
+    void given_unknownGroups_when_importUser_then_userIsImportedWithoutGroups() {
+        when(localStorageMock.addUser(realmMock, USERNAME)).thenReturn(localUserMock);
+
+        assertThat(importer.importUser(crowdUser(), null)).isSameAs(localUserMock);
+
+        verify(localUserMock, never()).joinGroup(any());
+    }
+
+    @Test
+    void given_removedCrowdMembership_when_importUser_then_onlyImportedGroupIsLeft() {
+        when(localStorageMock.getUserByUsername(USERNAME, realmMock)).thenReturn(localUserMock);
+        when(localUserMock.getFederationLink()).thenReturn(MODEL_ID);
+
+        GroupModel importedGroupMock = mock(GroupModel.class);
+        when(importedGroupMock.getFirstAttribute(CrowdUserImporter.ATTR_FEDERATION_LINK)).thenReturn(MODEL_ID);
+
+        GroupModel localGroupMock = mock(GroupModel.class);
+
+        Set<GroupModel> currentGroups = new HashSet<>();
+        currentGroups.add(importedGroupMock);
+        currentGroups.add(localGroupMock);
+        when(localUserMock.getGroups()).thenReturn(currentGroups);
+
+        importer.importUser(crowdUser(), Collections.emptySet());
+
+        verify(localUserMock).leaveGroup(importedGroupMock);
+        verify(localUserMock, never()).leaveGroup(localGroupMock);
+    }
+
+    private CrowdUserRecord crowdUser() {
+        return CrowdUserRecord.of(modelMock, crowdUserMock);
+    }
+
+}
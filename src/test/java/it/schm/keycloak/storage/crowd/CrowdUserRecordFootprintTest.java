@@ -0,0 +1,94 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd;
+
+import com.atlassian.crowd.model.user.UserTemplateWithAttributes;
+import com.atlassian.crowd.model.user.UserWithAttributes;
+import org.junit.jupiter.api.Test;
+import org.keycloak.component.ComponentModel;
+import org.openjdk.jol.info.GraphLayout;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Measures the memory retained by {@link CrowdUserRecord}s compared to the client's users with attributes they
+ * replace, for users with {@value #ATTRIBUTES} attributes each, {@value #MULTI_VALUED_ATTRIBUTES} of them with
+ * {@value #VALUES} values. The measured sizes depend on the JVM and are part of the assertion's description.
+ */
+class CrowdUserRecordFootprintTest {
+
+    private static final int USERS = 1000;
+    private static final int ATTRIBUTES = 12;
+    private static final int MULTI_VALUED_ATTRIBUTES = 2;
+    private static final int VALUES = 3;
+
+    @Test
+    void given_usersWithAttributes_when_of_then_recordsRetainLessThanHalfOfTheUsers() {
+        ComponentModel modelMock = mock(ComponentModel.class);
+        when(modelMock.getId()).thenReturn("model id");
+
+        List<UserWithAttributes> users = IntStream.range(0, USERS).mapToObj(this::createUser).collect(toList());
+        List<CrowdUserRecord> records = users.stream()
+                .map(user -> CrowdUserRecord.of(modelMock, user))
+                .collect(toList());
+
+        long bytesPerUser = GraphLayout.parseInstance(users).totalSize() / USERS;
+        long bytesPerRecord = GraphLayout.parseInstance(records).totalSize() / USERS;
+
+        assertThat(bytesPerRecord)
+                .as("retained bytes per user: %d as record, %d as client user", bytesPerRecord, bytesPerUser)
+                .isLessThan(bytesPerUser / 2);
+    }
+
+    private UserWithAttributes createUser(int index) {
+        UserTemplateWithAttributes user = new UserTemplateWithAttributes("user" + index, 1L);
+        user.setEmailAddress("user" + index + "@example.com");
+        user.setFirstName("First" + index);
+        user.setLastName("Last" + index);
+        user.setDisplayName("First" + index + " Last" + index);
+        user.setActive(true);
+
+        for (int attribute = 0; attribute < ATTRIBUTES; attribute++) {
+            int valueCount = attribute < MULTI_VALUED_ATTRIBUTES ? VALUES : 1;
+            Set<String> values = new HashSet<>();
+
+            for (int value = 0; value < valueCount; value++) {
+                values.add("value " + index + "-" + attribute + "-" + value);
+            }
+
+            // a new instance of the attribute name for every user, as read by the rest client
+            user.setAttribute("attribute" + attribute, values);
+        }
+
+        return user;
+    }
+
+}
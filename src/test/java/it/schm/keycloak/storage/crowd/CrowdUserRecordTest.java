@@ -0,0 +1,175 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd;
+
+import com.atlassian.crowd.model.user.UserWithAttributes;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.storage.StorageId;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class CrowdUserRecordTest {
+
+    @Mock private ComponentModel modelMock;
+    @Mock private UserWithAttributes userMock;
+
+    private static final String MODEL_ID = "model id";
+    private static final String USER_NAME = "username";
+
+    @BeforeEach
+    void setup() {
+        when(modelMock.getId()).thenReturn(MODEL_ID);
+        when(userMock.getName()).thenReturn(USER_NAME);
+    }
+
+    @Test
+    void when_of_then_detailsAreCopied() {
+        when(userMock.getEmailAddress()).thenReturn("jdoe@example.com");
+        when(userMock.getFirstName()).thenReturn("John");
+        when(userMock.getLastName()).thenReturn("Doe");
+        when(userMock.getDisplayName()).thenReturn("John Doe");
+        when(userMock.isActive()).thenReturn(true);
+
+        CrowdUserRecord record = CrowdUserRecord.of(modelMock, userMock);
+
+        assertThat(record.getKeycloakId()).isEqualTo(StorageId.keycloakId(modelMock, USER_NAME));
+        assertThat(record.getName()).isEqualTo(USER_NAME);
+        assertThat(record.getEmailAddress()).isEqualTo("jdoe@example.com");
+        assertThat(record.getFirstName()).isEqualTo("John");
+        assertThat(record.getLastName()).isEqualTo("Doe");
+        assertThat(record.getDisplayName()).isEqualTo("John Doe");
+        assertThat(record.isActive()).isTrue();
+    }
+
+    @Test
+    void given_singleAndMultipleValues_when_getValues_then_expectedValuesAreReturned() {
+        Set<String> values = new HashSet<>();
+        values.add("first");
+        values.add("second");
+
+        stubAttributes("single", Collections.singleton("value"), "multi", values);
+
+        CrowdUserRecord record = CrowdUserRecord.of(modelMock, userMock);
+
+        assertThat(record.getValues("single")).containsExactly("value");
+        assertThat(record.getValues("multi")).containsExactlyInAnyOrderElementsOf(values);
+    }
+
+    @Test
+    void given_nullValues_when_getValues_then_attributeIsSkipped() {
+        stubAttributes("attr", Collections.singleton("value"), "null attr", null);
+
+        CrowdUserRecord record = CrowdUserRecord.of(modelMock, userMock);
+        Map<String, List<String>> attributes = new HashMap<>();
+        record.forEachAttribute(attributes::put);
+
+        assertThat(record.getValues("null attr")).isEmpty();
+        assertThat(attributes).containsOnlyKeys("attr");
+    }
+
+    @Test
+    void given_attributeFilter_when_of_then_droppedAttributesAreSkipped() {
+        Set<String> keys = new HashSet<>();
+        keys.add("attr");
+        keys.add("dropped attr");
+
+        when(userMock.getKeys()).thenReturn(keys);
+        when(userMock.getValues("attr")).thenReturn(Collections.singleton("value"));
+
+        CrowdUserRecord record = CrowdUserRecord.of(modelMock, userMock, AttributeFilter.of("attr", null));
+
+        assertThat(record.getValues("attr")).containsExactly("value");
+        assertThat(record.getValues("dropped attr")).isEmpty();
+        verify(userMock, never()).getValues("dropped attr");
+    }
+
+    @Test
+    void given_unknownKey_when_getValues_then_emptyListIsReturned() {
+        assertThat(CrowdUserRecord.of(modelMock, userMock).getValues("attr")).isEmpty();
+    }
+
+    @Test
+    void when_getValues_then_unmodifiableListIsReturned() {
+        Set<String> values = new HashSet<>();
+        values.add("first");
+        values.add("second");
+
+        stubAttributes("single", Collections.singleton("value"), "multi", values);
+
+        CrowdUserRecord record = CrowdUserRecord.of(modelMock, userMock);
+
+        assertThatThrownBy(() -> record.getValues("single").add("other value"))
+                .isExactlyInstanceOf(UnsupportedOperationException.class);
+        assertThatThrownBy(() -> record.getValues("multi").add("other value"))
+                .isExactlyInstanceOf(UnsupportedOperationException.class);
+    }
+
+    @Test
+    void when_forEachAttribute_then_internedKeysAreProvided() {
+        String key = new String("attr");
+        when(userMock.getKeys()).thenReturn(Collections.singleton(key));
+        when(userMock.getValues(key)).thenReturn(Collections.singleton("value"));
+
+        Map<String, List<String>> attributes = new HashMap<>();
+        CrowdUserRecord.of(modelMock, userMock).forEachAttribute(attributes::put);
+
+        assertThat(attributes).containsOnly(entry("attr", Collections.singletonList("value")));
+        assertThat(attributes.keySet().iterator().next()).isSameAs("attr".intern());
+    }
+
+    @Test
+    void when_withoutAttributes_then_noAttributesAreCopied() {
+        CrowdUserRecord record = CrowdUserRecord.withoutAttributes(modelMock, userMock);
+        Map<String, List<String>> attributes = new HashMap<>();
+        record.forEachAttribute(attributes::put);
+
+        assertThat(record.getName()).isEqualTo(USER_NAME);
+        assertThat(attributes).isEmpty();
+        verify(userMock, never()).getKeys();
+    }
+
+    private void stubAttributes(String key, Set<String> values, String otherKey, Set<String> otherValues) {
+        Set<String> keys = new HashSet<>();
+        keys.add(key);
+        keys.add(otherKey);
+
+        when(userMock.getKeys()).thenReturn(keys);
+        when(userMock.getValues(key)).thenReturn(values);
+        when(userMock.getValues(otherKey)).thenReturn(otherValues);
+    }
+
+}
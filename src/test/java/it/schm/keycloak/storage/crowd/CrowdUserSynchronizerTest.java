@@ -0,0 +1,173 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd;
+
+import com.atlassian.crowd.model.user.UserWithAttributes;
+import com.atlassian.crowd.search.query.entity.restriction.MatchMode;
+import com.atlassian.crowd.search.query.entity.restriction.TermRestriction;
+import com.atlassian.crowd.search.query.entity.restriction.constants.UserTermKeys;
+import com.atlassian.crowd.service.client.CrowdClient;
+import it.schm.keycloak.storage.crowd.group.CrowdGroupMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.storage.user.SynchronizationResult;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class CrowdUserSynchronizerTest {
+
+    private static final String MODEL_ID = "model id";
+    private static final String REALM_ID = "realm id";
+
+    @Mock private CrowdComponentContext contextMock;
+    @Mock private CrowdClient clientMock;
+    @Mock private KeycloakSessionFactory sessionFactoryMock;
+    @Mock private KeycloakSession sessionMock;
+    @Mock private KeycloakTransactionManager transactionManagerMock;
+    @Mock private RealmProvider realmProviderMock;
+    @Mock private RealmModel realmMock;
+    @Mock private UserProvider localStorageMock;
+    @Mock private ComponentModel modelMock;
+
+    private CrowdUserSynchronizer synchronizer;
+
+    @BeforeEach
+    void setup() {
+        when(contextMock.getClient()).thenReturn(clientMock);
+        lenient().when(contextMock.getAttributeFilter()).thenReturn(AttributeFilter.ALL);
+        lenient().when(contextMock.getGroupMapperSettings()).thenReturn(new CrowdGroupMapper.Settings());
+        when(sessionFactoryMock.create()).thenReturn(sessionMock);
+        when(sessionMock.getTransactionManager()).thenReturn(transactionManagerMock);
+        when(sessionMock.realms()).thenReturn(realmProviderMock);
+        when(realmProviderMock.getRealm(REALM_ID)).thenReturn(realmMock);
+
+        synchronizer = new CrowdUserSynchronizer(contextMock, sessionFactoryMock, REALM_ID, modelMock);
+    }
+
+    @Test
+    void given_newCrowdUser_when_syncAll_then_userIsAdded() throws Exception {
+        UserWithAttributes crowdUserMock = mock(UserWithAttributes.class);
+        when(crowdUserMock.getName()).thenReturn("jdoe");
+
+        UserModel localUserMock = mock(UserModel.class);
+
+        when(modelMock.getId()).thenReturn(MODEL_ID);
+        when(clientMock.searchUsersWithAttributes(CrowdStorageProvider.NOOP_SEARCH_RESTRICTION, 0,
+                CrowdUserSynchronizer.BATCH_SIZE)).thenReturn(Collections.singletonList(crowdUserMock));
+        when(clientMock.getGroupsForUser("jdoe", 0, Integer.MAX_VALUE)).thenReturn(Collections.emptyList());
+        when(sessionMock.userLocalStorage()).thenReturn(localStorageMock);
+        when(localStorageMock.addUser(realmMock, "jdoe")).thenReturn(localUserMock);
+
+        SynchronizationResult result = synchronizer.syncAll();
+
+        assertThat(result.getAdded()).isEqualTo(1);
+        assertThat(result.getRemoved()).isZero();
+        verify(localUserMock).setFederationLink(MODEL_ID);
+    }
+
+    @Test
+    void given_conflictingLocalUser_when_syncAll_then_userIsCountedAsFailed() throws Exception {
+        UserWithAttributes crowdUserMock = mock(UserWithAttributes.class);
+        when(crowdUserMock.getName()).thenReturn("jdoe");
+
+        UserModel localUserMock = mock(UserModel.class);
+
+        when(modelMock.getId()).thenReturn(MODEL_ID);
+        when(clientMock.searchUsersWithAttributes(CrowdStorageProvider.NOOP_SEARCH_RESTRICTION, 0,
+                CrowdUserSynchronizer.BATCH_SIZE)).thenReturn(Collections.singletonList(crowdUserMock));
+        when(clientMock.getGroupsForUser("jdoe", 0, Integer.MAX_VALUE)).thenReturn(Collections.emptyList());
+        when(sessionMock.userLocalStorage()).thenReturn(localStorageMock);
+        when(localStorageMock.getUserByUsername("jdoe", realmMock)).thenReturn(localUserMock);
+        when(localStorageMock.getUsers(realmMock, 0, CrowdUserSynchronizer.BATCH_SIZE, false))
+                .thenReturn(Collections.singletonList(localUserMock));
+
+        SynchronizationResult result = synchronizer.syncAll();
+
+        assertThat(result.getFailed()).isEqualTo(1);
+        assertThat(result.getRemoved()).isZero();
+        verify(localStorageMock, never()).removeUser(any(), any());
+    }
+
+    @Test
+    void given_importedUserMissingInCrowd_when_syncAll_then_userIsRemoved() throws Exception {
+        UserModel removedUserMock = mock(UserModel.class);
+        when(removedUserMock.getUsername()).thenReturn("removed");
+        when(removedUserMock.getFederationLink()).thenReturn(MODEL_ID);
+
+        UserModel localUserMock = mock(UserModel.class);
+        when(localUserMock.getFederationLink()).thenReturn(null);
+
+        when(modelMock.getId()).thenReturn(MODEL_ID);
+        when(clientMock.searchUsersWithAttributes(CrowdStorageProvider.NOOP_SEARCH_RESTRICTION, 0,
+                CrowdUserSynchronizer.BATCH_SIZE)).thenReturn(Collections.emptyList());
+        when(sessionMock.userLocalStorage()).thenReturn(localStorageMock);
+        when(localStorageMock.getUsers(realmMock, 0, CrowdUserSynchronizer.BATCH_SIZE, false))
+                .thenReturn(Arrays.asList(removedUserMock, localUserMock));
+        when(localStorageMock.getUserByUsername("removed", realmMock)).thenReturn(removedUserMock);
+
+        SynchronizationResult result = synchronizer.syncAll();
+
+        assertThat(result.getRemoved()).isEqualTo(1);
+        verify(localStorageMock).removeUser(realmMock, removedUserMock);
+        verify(localStorageMock, never()).removeUser(realmMock, localUserMock);
+    }
+
+    @Test
+    void given_lastSync_when_syncSince_then_onlyUpdatedUsersAreSynchronized() throws Exception {
+        Date lastSync = new Date();
+
+        when(clientMock.searchUsersWithAttributes(
+                new TermRestriction<>(UserTermKeys.UPDATED_DATE, MatchMode.GREATER_THAN, lastSync), 0,
+                CrowdUserSynchronizer.BATCH_SIZE)).thenReturn(Collections.emptyList());
+
+        SynchronizationResult result = synchronizer.syncSince(lastSync);
+
+        assertThat(result.getAdded()).isZero();
+        verify(localStorageMock, never()).getUsers(any(), anyInt(), anyInt(), anyBoolean());
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PagingIteratorTest {
+
+    private final List<int[]> requestedPages = new ArrayList<>();
+
+    private BiFunction<Integer, Integer, List<Integer>> pagesOf(int total) {
+        return (index, size) -> {
+            requestedPages.add(new int[] {index, size});
+            return IntStream.range(index, Math.min(index + size, total)).boxed().collect(Collectors.toList());
+        };
+    }
+
+    @Test
+    void given_fewerResultsThanRequested_when_iterating_then_allResultsAreReturned() {
+        List<Integer> results = new ArrayList<>();
+        new PagingIterator<>(pagesOf(25), 0, 100, 10).forEachRemaining(results::add);
+
+        assertThat(results).containsExactlyElementsOf(IntStream.range(0, 25).boxed().collect(Collectors.toList()));
+        assertThat(requestedPages).hasSize(3);
+    }
+
+    @Test
+    void given_moreResultsThanRequested_when_iterating_then_iterationStopsAtMaxResults() {
+        List<Integer> results = new ArrayList<>();
+        new PagingIterator<>(pagesOf(100), 5, 15, 10).forEachRemaining(results::add);
+
+        assertThat(results).containsExactlyElementsOf(IntStream.range(5, 20).boxed().collect(Collectors.toList()));
+        assertThat(requestedPages).containsExactly(new int[] {5, 10}, new int[] {15, 5});
+    }
+
+    @Test
+    void given_noResults_when_next_then_exceptionIsThrown() {
+        PagingIterator<Integer> iterator = new PagingIterator<>(pagesOf(0), 0, 10, 10);
+
+        assertThat(iterator.hasNext()).isFalse();
+        assertThatThrownBy(iterator::next).isExactlyInstanceOf(NoSuchElementException.class);
+    }
+
+    @Test
+    void when_created_then_noPageIsFetched() {
+        new PagingIterator<>(pagesOf(100), 0, 10, 10);
+
+        assertThat(requestedPages).isEmpty();
+    }
+
+}
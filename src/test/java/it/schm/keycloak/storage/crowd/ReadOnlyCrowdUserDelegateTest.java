@@ -0,0 +1,100 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.storage.ReadOnlyException;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class ReadOnlyCrowdUserDelegateTest {
+
+    private static final String MODEL_ID = "model id";
+
+    @Mock private UserModel localUserMock;
+    @Mock private GroupModel groupMock;
+
+    private ReadOnlyCrowdUserDelegate user;
+
+    @BeforeEach
+    void setup() {
+        user = new ReadOnlyCrowdUserDelegate(localUserMock, MODEL_ID);
+    }
+
+    @Test
+    void when_getEmail_then_emailOfImportedUserIsReturned() {
+        when(localUserMock.getEmail()).thenReturn("jdoe@example.com");
+
+        assertThat(user.getEmail()).isEqualTo("jdoe@example.com");
+    }
+
+    @Test
+    void when_setAttribute_then_readOnlyExceptionIsThrown() {
+        assertThatThrownBy(() -> user.setAttribute("name", Collections.singletonList("value")))
+                .isExactlyInstanceOf(ReadOnlyException.class);
+        verify(localUserMock, never()).setAttribute(any(), any());
+    }
+
+    @Test
+    void when_setEnabled_then_readOnlyExceptionIsThrown() {
+        assertThatThrownBy(() -> user.setEnabled(false)).isExactlyInstanceOf(ReadOnlyException.class);
+        verify(localUserMock, never()).setEnabled(false);
+    }
+
+    @Test
+    void given_importedGroup_when_joinGroup_then_readOnlyExceptionIsThrown() {
+        when(groupMock.getFirstAttribute(CrowdUserImporter.ATTR_FEDERATION_LINK)).thenReturn(MODEL_ID);
+
+        assertThatThrownBy(() -> user.joinGroup(groupMock)).isExactlyInstanceOf(ReadOnlyException.class);
+        verify(localUserMock, never()).joinGroup(groupMock);
+    }
+
+    @Test
+    void given_localGroup_when_joinGroup_then_groupIsJoined() {
+        user.joinGroup(groupMock);
+
+        verify(localUserMock).joinGroup(groupMock);
+    }
+
+    @Test
+    void given_localGroup_when_leaveGroup_then_groupIsLeft() {
+        user.leaveGroup(groupMock);
+
+        verify(localUserMock).leaveGroup(groupMock);
+    }
+
+}
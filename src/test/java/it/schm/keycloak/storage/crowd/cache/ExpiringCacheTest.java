@@ -0,0 +1,210 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd.cache;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ExpiringCacheTest {
+
+    private final AtomicLong clock = new AtomicLong();
+
+    private ExpiringCache<String, String> cache;
+
+    @BeforeEach
+    void setup() {
+        cache = new ExpiringCache<>(1000, 2, clock::get);
+    }
+
+    @Test
+    void given_cachedValue_when_get_then_valueIsReturned() {
+        cache.put("key", "value");
+
+        assertThat(cache.get("key")).isEqualTo("value");
+        assertThat(cache.getHitCount()).isEqualTo(1);
+        assertThat(cache.getMissCount()).isZero();
+    }
+
+    @Test
+    void given_unknownKey_when_get_then_nullIsReturned() {
+        assertThat(cache.get("key")).isNull();
+        assertThat(cache.getHitCount()).isZero();
+        assertThat(cache.getMissCount()).isEqualTo(1);
+    }
+
+    @Test
+    void given_expiredValue_when_get_then_nullIsReturned() {
+        cache.put("key", "value");
+        clock.addAndGet(1000);
+
+        assertThat(cache.get("key")).isNull();
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    void given_expiredValueWithinStaleTimeToLive_when_getStale_then_staleValueIsReturned() {
+        cache = new ExpiringCache<>(1000, 500, 2, clock::get);
+        cache.put("key", "value");
+        clock.addAndGet(1000);
+
+        assertThat(cache.get("key")).isNull();
+        assertThat(cache.getStale("key")).isEqualTo("value");
+        assertThat(cache.getStaleHitCount()).isEqualTo(1);
+        assertThat(cache.getMissCount()).isEqualTo(1);
+    }
+
+    @Test
+    void given_unexpiredValue_when_getStale_then_valueIsReturnedAsFresh() {
+        cache = new ExpiringCache<>(1000, 500, 2, clock::get);
+        cache.put("key", "value");
+
+        assertThat(cache.getStale("key")).isEqualTo("value");
+        assertThat(cache.getStaleHitCount()).isZero();
+    }
+
+    @Test
+    void given_valuePastStaleTimeToLive_when_getStale_then_nullIsReturned() {
+        cache = new ExpiringCache<>(1000, 500, 2, clock::get);
+        cache.put("key", "value");
+        clock.addAndGet(1500);
+
+        assertThat(cache.getStale("key")).isNull();
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    void given_noStaleTimeToLive_when_getStale_then_expiredValueIsNotReturned() {
+        cache.put("key", "value");
+        clock.addAndGet(1000);
+
+        assertThat(cache.getStale("key")).isNull();
+    }
+
+    @Test
+    void given_frequentlyReadValueAboutToExpire_when_getHotEntries_then_valueIsReturned() {
+        cache.put("hot", "value");
+        cache.put("cold", "value");
+        cache.get("hot");
+        cache.get("hot");
+        clock.addAndGet(500);
+
+        assertThat(cache.getHotEntries(500, 2)).containsOnlyKeys("hot");
+    }
+
+    @Test
+    void given_frequentlyReadValueNotAboutToExpire_when_getHotEntries_then_nothingIsReturned() {
+        cache.put("hot", "value");
+        cache.get("hot");
+
+        assertThat(cache.getHotEntries(500, 1)).isEmpty();
+    }
+
+    @Test
+    void given_rewrittenValue_when_getHotEntries_then_readsAreCountedAgain() {
+        cache.put("hot", "value");
+        cache.get("hot");
+        cache.put("hot", "new value");
+        clock.addAndGet(500);
+
+        assertThat(cache.getHotEntries(500, 1)).isEmpty();
+    }
+
+    @Test
+    void given_expiredValue_when_getHotEntries_then_nothingIsReturned() {
+        cache = new ExpiringCache<>(1000, 500, 2, clock::get);
+        cache.put("hot", "value");
+        cache.get("hot");
+        clock.addAndGet(1000);
+
+        assertThat(cache.getHotEntries(500, 1)).isEmpty();
+    }
+
+    @Test
+    void given_fullCache_when_put_then_leastRecentlyUsedValueIsEvicted() {
+        cache.put("first", "value");
+        cache.put("second", "value");
+        cache.get("first");
+
+        cache.put("third", "value");
+
+        assertThat(cache.get("first")).isEqualTo("value");
+        assertThat(cache.get("second")).isNull();
+        assertThat(cache.get("third")).isEqualTo("value");
+    }
+
+    @Test
+    void when_invalidate_then_valueIsRemoved() {
+        cache.put("key", "value");
+        cache.put("other", "value");
+
+        cache.invalidate("key");
+
+        assertThat(cache.get("key")).isNull();
+        assertThat(cache.get("other")).isEqualTo("value");
+    }
+
+    @Test
+    void when_invalidateAll_then_allValuesAreRemoved() {
+        cache.put("key", "value");
+        cache.put("other", "value");
+
+        cache.invalidateAll();
+
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    void when_toString_then_statisticsAreIncluded() {
+        cache = new ExpiringCache<>(1000, 500, 2, clock::get);
+        cache.put("key", "value");
+        cache.get("key");
+        clock.addAndGet(1000);
+        cache.getStale("key");
+
+        assertThat(cache).hasToString("size=1, hits=1, stale hits=1, misses=0");
+    }
+
+    @Test
+    void given_zeroTimeToLive_when_put_then_nothingIsCached() {
+        cache = new ExpiringCache<>(0, 2, clock::get);
+        cache.put("key", "value");
+
+        assertThat(cache.isEnabled()).isFalse();
+        assertThat(cache.get("key")).isNull();
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    void given_zeroMaxEntries_when_put_then_nothingIsCached() {
+        cache = new ExpiringCache<>(1000, 0, clock::get);
+        cache.put("key", "value");
+
+        assertThat(cache.isEnabled()).isFalse();
+        assertThat(cache.get("key")).isNull();
+    }
+
+}
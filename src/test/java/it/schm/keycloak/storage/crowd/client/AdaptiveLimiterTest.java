@@ -0,0 +1,173 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd.client;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AdaptiveLimiterTest {
+
+    private final AdaptiveLimiter limiter = new AdaptiveLimiter(1, 10, 0);
+
+    @AfterEach
+    void clearInterrupt() {
+        Thread.interrupted();
+    }
+
+    @Test
+    void when_getLimit_then_limitIsClampedToMax() {
+        assertThat(limiter.getLimit()).isEqualTo(10);
+        assertThat(limiter.isEnabled()).isTrue();
+    }
+
+    @Test
+    void given_failedRequest_when_release_then_limitIsLowered() {
+        limiter.tryAcquire(OperationType.LOOKUP);
+        limiter.release(OperationType.LOOKUP, 10, true);
+
+        assertThat(limiter.getLimit()).isEqualTo(9);
+        assertThat(limiter.getInFlight()).isZero();
+    }
+
+    @Test
+    void given_slowRequest_when_release_then_limitIsLowered() {
+        limiter.tryAcquire(OperationType.LOOKUP);
+        limiter.release(OperationType.LOOKUP, 20, false);
+        limiter.tryAcquire(OperationType.LOOKUP);
+        limiter.release(OperationType.LOOKUP, 100, false);
+
+        assertThat(limiter.getLimit()).isEqualTo(9);
+    }
+
+    @Test
+    void given_slowRequestOfOtherType_when_release_then_limitIsKept() {
+        limiter.tryAcquire(OperationType.LOOKUP);
+        limiter.release(OperationType.LOOKUP, 20, false);
+        limiter.tryAcquire(OperationType.LOOKUP);
+        limiter.release(OperationType.SEARCH, 100, false);
+
+        assertThat(limiter.getLimit()).isEqualTo(10);
+    }
+
+    @Test
+    void given_usedLimit_when_release_then_limitIsRaised() {
+        AdaptiveLimiter smallLimiter = new AdaptiveLimiter(1, 2, 0);
+        smallLimiter.tryAcquire(OperationType.LOOKUP);
+        smallLimiter.release(OperationType.LOOKUP, 10, true);
+
+        assertThat(smallLimiter.getLimit()).isEqualTo(1);
+
+        smallLimiter.tryAcquire(OperationType.LOOKUP);
+        smallLimiter.release(OperationType.LOOKUP, 10, false);
+
+        assertThat(smallLimiter.getLimit()).isEqualTo(2);
+    }
+
+    @Test
+    void given_unusedLimit_when_release_then_limitIsKept() {
+        limiter.tryAcquire(OperationType.LOOKUP);
+        limiter.release(OperationType.LOOKUP, 10, true);
+
+        for (int i = 0; i < 10; i++) {
+            limiter.tryAcquire(OperationType.LOOKUP);
+            limiter.release(OperationType.LOOKUP, 10, false);
+        }
+
+        assertThat(limiter.getLimit()).isEqualTo(9);
+    }
+
+    @Test
+    void given_repeatedlyFailedRequests_when_release_then_limitStaysAboveMin() {
+        AdaptiveLimiter minLimiter = new AdaptiveLimiter(5, 10, 0);
+
+        for (int i = 0; i < 20; i++) {
+            minLimiter.tryAcquire(OperationType.LOOKUP);
+            minLimiter.release(OperationType.LOOKUP, 10, true);
+        }
+
+        assertThat(minLimiter.getLimit()).isEqualTo(5);
+    }
+
+    @Test
+    void given_exhaustedLimit_when_tryAcquire_then_requestIsRejected() {
+        AdaptiveLimiter singleLimiter = new AdaptiveLimiter(1, 1, 0);
+
+        assertThat(singleLimiter.tryAcquire(OperationType.LOOKUP)).isTrue();
+        assertThat(singleLimiter.tryAcquire(OperationType.LOOKUP)).isFalse();
+        assertThat(singleLimiter.getRejectedCount()).isEqualTo(1);
+    }
+
+    @Test
+    void given_limitExhaustedBySearches_when_tryAcquireAuthentication_then_requestIsPermittedUpToMax() {
+        AdaptiveLimiter smallLimiter = new AdaptiveLimiter(1, 2, 0);
+        smallLimiter.tryAcquire(OperationType.SEARCH);
+        smallLimiter.release(OperationType.SEARCH, 10, true);
+        smallLimiter.tryAcquire(OperationType.SEARCH);
+
+        assertThat(smallLimiter.tryAcquire(OperationType.SEARCH)).isFalse();
+        assertThat(smallLimiter.tryAcquire(OperationType.AUTHENTICATION)).isTrue();
+        assertThat(smallLimiter.tryAcquire(OperationType.AUTHENTICATION)).isFalse();
+    }
+
+    @Test
+    void given_cancelledRequest_when_tryAcquire_then_requestIsPermitted() {
+        AdaptiveLimiter singleLimiter = new AdaptiveLimiter(1, 1, 0);
+        singleLimiter.tryAcquire(OperationType.LOOKUP);
+        singleLimiter.cancel();
+
+        assertThat(singleLimiter.tryAcquire(OperationType.LOOKUP)).isTrue();
+        assertThat(singleLimiter.getLimit()).isEqualTo(1);
+    }
+
+    @Test
+    void given_interruptedThread_when_tryAcquire_then_requestIsRejected() {
+        AdaptiveLimiter waitingLimiter = new AdaptiveLimiter(1, 1, 1000);
+        waitingLimiter.tryAcquire(OperationType.LOOKUP);
+
+        Thread.currentThread().interrupt();
+
+        assertThat(waitingLimiter.tryAcquire(OperationType.LOOKUP)).isFalse();
+        assertThat(Thread.currentThread().isInterrupted()).isTrue();
+    }
+
+    @Test
+    void given_disabledLimiter_when_tryAcquire_then_requestIsPermitted() {
+        AdaptiveLimiter disabledLimiter = AdaptiveLimiter.disabled();
+
+        assertThat(disabledLimiter.isEnabled()).isFalse();
+        assertThat(disabledLimiter.tryAcquire(OperationType.LOOKUP)).isTrue();
+        assertThat(disabledLimiter.getLimit()).isZero();
+    }
+
+    @Test
+    void when_toString_then_statisticsAreIncluded() {
+        AdaptiveLimiter singleLimiter = new AdaptiveLimiter(1, 1, 0);
+        singleLimiter.tryAcquire(OperationType.LOOKUP);
+        singleLimiter.tryAcquire(OperationType.LOOKUP);
+
+        assertThat(singleLimiter).hasToString("limit=1, in flight=1, rejected=1");
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd.client;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BulkheadTest {
+
+    private final Bulkhead bulkhead = new Bulkhead(Collections.singletonMap(OperationType.SEARCH, 1), 0);
+
+    @AfterEach
+    void clearInterrupt() {
+        Thread.interrupted();
+    }
+
+    @Test
+    void given_unlimitedType_when_tryAcquire_then_permitIsAcquired() {
+        assertThat(bulkhead.tryAcquire(OperationType.AUTHENTICATION)).isTrue();
+        assertThat(bulkhead.tryAcquire(OperationType.AUTHENTICATION)).isTrue();
+        assertThat(bulkhead.getLimit(OperationType.AUTHENTICATION)).isZero();
+    }
+
+    @Test
+    void given_exhaustedPermits_when_tryAcquire_then_requestIsRejected() {
+        assertThat(bulkhead.tryAcquire(OperationType.SEARCH)).isTrue();
+        assertThat(bulkhead.tryAcquire(OperationType.SEARCH)).isFalse();
+        assertThat(bulkhead.getRejectedCount()).isEqualTo(1);
+    }
+
+    @Test
+    void given_releasedPermit_when_tryAcquire_then_permitIsAcquired() {
+        bulkhead.tryAcquire(OperationType.SEARCH);
+        bulkhead.release(OperationType.SEARCH);
+
+        assertThat(bulkhead.tryAcquire(OperationType.SEARCH)).isTrue();
+    }
+
+    @Test
+    void given_exhaustedSearchPermits_when_tryAcquireOtherType_then_permitIsAcquired() {
+        bulkhead.tryAcquire(OperationType.SEARCH);
+
+        assertThat(bulkhead.tryAcquire(OperationType.AUTHENTICATION)).isTrue();
+    }
+
+    @Test
+    void given_interruptedThread_when_tryAcquire_then_requestIsRejected() {
+        Bulkhead waitingBulkhead = new Bulkhead(Collections.singletonMap(OperationType.SEARCH, 1), 1000);
+        waitingBulkhead.tryAcquire(OperationType.SEARCH);
+
+        Thread.currentThread().interrupt();
+
+        assertThat(waitingBulkhead.tryAcquire(OperationType.SEARCH)).isFalse();
+        assertThat(Thread.currentThread().isInterrupted()).isTrue();
+    }
+
+    @Test
+    void given_nonPositiveLimit_when_getLimit_then_typeIsNotLimited() {
+        Bulkhead unlimitedBulkhead = new Bulkhead(Collections.singletonMap(OperationType.SEARCH, 0), 0);
+
+        assertThat(unlimitedBulkhead.getLimit(OperationType.SEARCH)).isZero();
+        assertThat(Bulkhead.unlimited().tryAcquire(OperationType.SEARCH)).isTrue();
+    }
+
+    @Test
+    void when_toString_then_statisticsAreIncluded() {
+        bulkhead.tryAcquire(OperationType.SEARCH);
+        bulkhead.tryAcquire(OperationType.SEARCH);
+
+        assertThat(bulkhead).hasToString("search=1/1, rejected=1");
+    }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd.client;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CircuitBreakerTest {
+
+    private final AtomicLong now = new AtomicLong(1000);
+
+    private final CircuitBreaker breaker = new CircuitBreaker(2, 500, 1000, now::get);
+
+    @Test
+    void given_closedBreaker_when_tryAcquire_then_callIsPermitted() {
+        assertThat(breaker.tryAcquire()).isTrue();
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    void given_consecutiveFailures_when_tryAcquire_then_callIsRejected() {
+        breaker.onFailure();
+        breaker.onFailure();
+
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(breaker.tryAcquire()).isFalse();
+        assertThat(breaker.getRejectedCount()).isEqualTo(1);
+    }
+
+    @Test
+    void given_successInBetween_when_onFailure_then_breakerStaysClosed() {
+        breaker.onFailure();
+        breaker.onSuccess(0);
+        breaker.onFailure();
+
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    void given_slowCalls_when_onSuccess_then_breakerOpens() {
+        breaker.onSuccess(500);
+        breaker.onSuccess(800);
+
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+    }
+
+    @Test
+    void given_elapsedOpenDuration_when_tryAcquire_then_singleProbeIsPermitted() {
+        openBreaker();
+        now.addAndGet(1000);
+
+        assertThat(breaker.tryAcquire()).isTrue();
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+        assertThat(breaker.tryAcquire()).isFalse();
+    }
+
+    @Test
+    void given_successfulProbe_when_onSuccess_then_breakerCloses() {
+        openBreaker();
+        now.addAndGet(1000);
+        breaker.tryAcquire();
+
+        breaker.onSuccess(0);
+
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+        assertThat(breaker.tryAcquire()).isTrue();
+    }
+
+    @Test
+    void given_failedProbe_when_onFailure_then_breakerOpensAgain() {
+        openBreaker();
+        now.addAndGet(1000);
+        breaker.tryAcquire();
+
+        breaker.onFailure();
+
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+        now.addAndGet(999);
+        assertThat(breaker.tryAcquire()).isFalse();
+    }
+
+    @Test
+    void given_halfOpenBreaker_when_otherCallsComplete_then_onlyProbeClosesBreaker() throws InterruptedException {
+        CountDownLatch probeAcquired = new CountDownLatch(1);
+        CountDownLatch otherCallsCompleted = new CountDownLatch(1);
+        Thread probe = new Thread(() -> {
+            breaker.tryAcquire();
+            probeAcquired.countDown();
+
+            try {
+                otherCallsCompleted.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            breaker.onSuccess(0);
+        });
+        openBreaker();
+        now.addAndGet(1000);
+
+        probe.start();
+        probeAcquired.await();
+        breaker.onSuccess(0);
+        breaker.onFailure();
+
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+
+        otherCallsCompleted.countDown();
+        probe.join();
+
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    void given_openBreaker_when_onSuccessOfEarlierCall_then_breakerStaysOpen() {
+        openBreaker();
+
+        breaker.onSuccess(0);
+
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+    }
+
+    @Test
+    void given_disabledBreaker_when_onFailure_then_callsArePermitted() {
+        CircuitBreaker disabledBreaker = new CircuitBreaker(0, 500, 1000, now::get);
+
+        disabledBreaker.onFailure();
+        disabledBreaker.onSuccess(1000);
+
+        assertThat(disabledBreaker.isEnabled()).isFalse();
+        assertThat(disabledBreaker.tryAcquire()).isTrue();
+        assertThat(disabledBreaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    void when_toString_then_statisticsAreIncluded() {
+        openBreaker();
+        breaker.tryAcquire();
+
+        assertThat(breaker).hasToString("state=OPEN, rejected=1");
+    }
+
+    private void openBreaker() {
+        breaker.onFailure();
+        breaker.onFailure();
+    }
+
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd.client;
+
+import com.atlassian.crowd.exception.OperationFailedException;
+import com.atlassian.crowd.exception.UserNotFoundException;
+import com.atlassian.crowd.model.user.User;
+import com.atlassian.crowd.search.query.entity.restriction.SearchRestriction;
+import com.atlassian.crowd.service.client.CrowdClient;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.keycloak.models.ModelException;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class GuardedCrowdClientTest {
+
+    @Mock private CrowdClient clientMock;
+    @Mock private CrowdClient authenticationClientMock;
+
+    private final CircuitBreaker breaker = new CircuitBreaker(2, 0, 60000);
+
+    @Test
+    void when_getUser_then_resultOfClientIsReturned() throws Exception {
+        User userMock = mock(User.class);
+        when(clientMock.getUser("user")).thenReturn(userMock);
+
+        assertThat(GuardedCrowdClient.wrap(clientMock, breaker).getUser("user")).isSameAs(userMock);
+    }
+
+    @Test
+    void given_clientPerOperationType_when_authenticateUser_then_authenticationClientIsUsed() throws Exception {
+        Map<OperationType, CrowdClient> clients = new EnumMap<>(OperationType.class);
+        clients.put(OperationType.AUTHENTICATION, authenticationClientMock);
+
+        CrowdClient client = GuardedCrowdClient.wrap(clientMock, clients, breaker);
+        client.authenticateUser("user", "password");
+        client.getUser("user");
+
+        verify(authenticationClientMock).authenticateUser("user", "password");
+        verify(clientMock, never()).authenticateUser(anyString(), anyString());
+        verify(clientMock).getUser("user");
+    }
+
+    @Test
+    void given_failingCrowd_when_getUser_then_breakerFailsFast() throws Exception {
+        OperationFailedException exception = new OperationFailedException();
+        when(clientMock.getUser("user")).thenThrow(exception);
+
+        SearchRestriction restriction = mock(SearchRestriction.class);
+        CrowdClient client = GuardedCrowdClient.wrap(clientMock, breaker);
+
+        assertThatThrownBy(() -> client.getUser("user")).isSameAs(exception);
+        assertThatThrownBy(() -> client.getUser("user")).isSameAs(exception);
+        assertThatThrownBy(() -> client.searchUsers(restriction, 0, 10))
+                .isExactlyInstanceOf(ModelException.class);
+
+        verify(clientMock, times(2)).getUser("user");
+        verify(clientMock, never()).searchUsers(restriction, 0, 10);
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+    }
+
+    @Test
+    void given_unknownUser_when_getUser_then_breakerStaysClosed() throws Exception {
+        UserNotFoundException exception = new UserNotFoundException("user");
+        when(clientMock.getUser("user")).thenThrow(exception);
+
+        CrowdClient client = GuardedCrowdClient.wrap(clientMock, breaker);
+
+        assertThatThrownBy(() -> client.getUser("user")).isSameAs(exception);
+        assertThatThrownBy(() -> client.getUser("user")).isSameAs(exception);
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    void given_exhaustedSearchPermits_when_searchUsers_then_requestIsRejected() throws Exception {
+        Bulkhead bulkhead = new Bulkhead(Collections.singletonMap(OperationType.SEARCH, 1), 0);
+        bulkhead.tryAcquire(OperationType.SEARCH);
+
+        SearchRestriction restriction = mock(SearchRestriction.class);
+        CrowdClient client = GuardedCrowdClient.wrap(clientMock, Collections.emptyMap(), breaker, bulkhead);
+
+        assertThatThrownBy(() -> client.searchUsers(restriction, 0, 10)).isExactlyInstanceOf(ModelException.class);
+        client.authenticateUser("user", "password");
+
+        verify(clientMock, never()).searchUsers(restriction, 0, 10);
+        verify(clientMock).authenticateUser("user", "password");
+    }
+
+    @Test
+    void given_limitedSearches_when_searchUsersRepeatedly_then_permitsAreReleased() throws Exception {
+        OperationFailedException exception = new OperationFailedException();
+        SearchRestriction restriction = mock(SearchRestriction.class);
+        when(clientMock.searchUsers(restriction, 0, 10)).thenThrow(exception);
+
+        Bulkhead bulkhead = new Bulkhead(Collections.singletonMap(OperationType.SEARCH, 1), 0);
+        CrowdClient client = GuardedCrowdClient.wrap(clientMock, Collections.emptyMap(), breaker, bulkhead);
+
+        assertThatThrownBy(() -> client.searchUsers(restriction, 0, 10)).isSameAs(exception);
+        assertThatThrownBy(() -> client.searchUsers(restriction, 0, 10)).isSameAs(exception);
+        assertThat(bulkhead.getRejectedCount()).isZero();
+    }
+
+    @Test
+    void given_exhaustedAdaptiveLimit_when_getUser_then_requestIsShed() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(1, 1, 0);
+        limiter.tryAcquire(OperationType.LOOKUP);
+
+        CrowdClient client = GuardedCrowdClient.wrap(
+                clientMock, Collections.emptyMap(), breaker, Bulkhead.unlimited(), limiter);
+
+        assertThatThrownBy(() -> client.getUser("user")).isExactlyInstanceOf(ModelException.class);
+
+        verify(clientMock, never()).getUser("user");
+        assertThat(limiter.getRejectedCount()).isEqualTo(1);
+    }
+
+    @Test
+    void given_congestedCrowdFullOfSearches_when_authenticateUser_then_authenticationIsAdmitted() throws Exception {
+        SearchRestriction restriction = mock(SearchRestriction.class);
+        AdaptiveLimiter limiter = new AdaptiveLimiter(4, 64, 0);
+        Bulkhead bulkhead = new Bulkhead(Collections.singletonMap(OperationType.SEARCH, 4), 0);
+
+        for (int i = 0; i < 40; i++) {
+            limiter.tryAcquire(OperationType.SEARCH);
+            limiter.release(OperationType.SEARCH, 5000, true);
+        }
+
+        for (int i = 0; i < 4; i++) {
+            bulkhead.tryAcquire(OperationType.SEARCH);
+            limiter.tryAcquire(OperationType.SEARCH);
+        }
+
+        CrowdClient client = GuardedCrowdClient.wrap(clientMock, Collections.emptyMap(), breaker, bulkhead, limiter);
+
+        assertThat(limiter.getLimit()).isEqualTo(4);
+        assertThatThrownBy(() -> client.searchUsers(restriction, 0, 10)).isExactlyInstanceOf(ModelException.class);
+
+        client.authenticateUser("user", "password");
+
+        verify(clientMock).authenticateUser("user", "password");
+        verify(clientMock, never()).searchUsers(restriction, 0, 10);
+        assertThat(limiter.getRejectedCount()).isZero();
+    }
+
+    @Test
+    void given_failingCrowd_when_getUser_then_adaptiveLimitIsLoweredAndReleased() throws Exception {
+        OperationFailedException exception = new OperationFailedException();
+        when(clientMock.getUser("user")).thenThrow(exception);
+
+        AdaptiveLimiter limiter = new AdaptiveLimiter(1, 10, 0);
+        CrowdClient client = GuardedCrowdClient.wrap(
+                clientMock, Collections.emptyMap(), breaker, Bulkhead.unlimited(), limiter);
+
+        assertThatThrownBy(() -> client.getUser("user")).isSameAs(exception);
+        assertThatThrownBy(() -> client.getUser("user")).isSameAs(exception);
+        assertThatThrownBy(() -> client.getUser("user")).isExactlyInstanceOf(ModelException.class);
+
+        assertThat(limiter.getLimit()).isEqualTo(8);
+        assertThat(limiter.getInFlight()).isZero();
+    }
+
+    @Test
+    void given_clientPerOperationType_when_shutdown_then_everyClientIsShutDownOnce() throws Exception {
+        Map<OperationType, CrowdClient> clients = new EnumMap<>(OperationType.class);
+        clients.put(OperationType.AUTHENTICATION, authenticationClientMock);
+
+        GuardedCrowdClient.wrap(clientMock, clients, breaker).shutdown();
+
+        verify(clientMock).shutdown();
+        verify(authenticationClientMock).shutdown();
+    }
+
+    @Test
+    void given_openBreaker_when_shutdown_then_clientIsShutDown() throws Exception {
+        breaker.onFailure();
+        breaker.onFailure();
+
+        GuardedCrowdClient.wrap(clientMock, breaker).shutdown();
+
+        verify(clientMock).shutdown();
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd.client;
+
+import com.atlassian.crowd.search.query.entity.restriction.SearchRestriction;
+import com.atlassian.crowd.service.client.CrowdClient;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class OperationTypeTest {
+
+    @Test
+    void given_authenticateUser_when_of_then_authenticationIsReturned() throws Exception {
+        assertThat(OperationType.of(CrowdClient.class.getMethod("authenticateUser", String.class, String.class)))
+                .isEqualTo(OperationType.AUTHENTICATION);
+    }
+
+    @Test
+    void given_searchUsers_when_of_then_searchIsReturned() throws Exception {
+        assertThat(OperationType.of(
+                CrowdClient.class.getMethod("searchUsers", SearchRestriction.class, int.class, int.class)))
+                .isEqualTo(OperationType.SEARCH);
+    }
+
+    @Test
+    void given_getGroupsForUser_when_of_then_groupIsReturned() throws Exception {
+        assertThat(OperationType.of(
+                CrowdClient.class.getMethod("getGroupsForUser", String.class, int.class, int.class)))
+                .isEqualTo(OperationType.GROUP);
+    }
+
+    @Test
+    void given_getUsersOfGroup_when_of_then_searchIsReturned() throws Exception {
+        assertThat(OperationType.of(
+                CrowdClient.class.getMethod("getUsersOfGroup", String.class, int.class, int.class)))
+                .isEqualTo(OperationType.SEARCH);
+    }
+
+    @Test
+    void given_anyClientMethod_when_of_then_typeIsMappedExplicitly() {
+        assertThat(CrowdClient.class.getMethods())
+                .allSatisfy(method -> assertThat(OperationType.isMapped(method)).as(method.getName()).isTrue());
+    }
+
+    @Test
+    void given_getUserWithAttributes_when_of_then_lookupIsReturned() throws Exception {
+        assertThat(OperationType.of(CrowdClient.class.getMethod("getUserWithAttributes", String.class)))
+                .isEqualTo(OperationType.LOOKUP);
+    }
+
+}
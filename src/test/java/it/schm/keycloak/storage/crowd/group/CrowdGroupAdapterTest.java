@@ -23,6 +23,7 @@
 package it.schm.keycloak.storage.crowd.group;
 
 import com.atlassian.crowd.model.group.GroupWithAttributes;
+import it.schm.keycloak.storage.crowd.AttributeFilter;
 import nl.jqno.equalsverifier.EqualsVerifier;
 import nl.jqno.equalsverifier.Warning;
 import org.junit.jupiter.api.BeforeEach;
@@ -43,6 +44,9 @@ import java.util.Set;
 
 import static org.assertj.core.api.Assertions.*;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -105,13 +109,24 @@ class CrowdGroupAdapterTest {
 
     @Test
     void given_knownAttribute_when_getFirstAttribute_then_expectedValueIsReturned() {
-        when(groupMock.getValue("attr")).thenReturn("value");
+        Set<String> keys = new HashSet<>();
+        keys.add("attr");
+
+        Set<String> values = new HashSet<>();
+        values.add("value");
+
+        when(groupMock.getKeys()).thenReturn(keys);
+        when(groupMock.getValues("attr")).thenReturn(values);
 
         assertThat(crowdGroupAdapter.getFirstAttribute("attr")).isEqualTo("value");
     }
 
     @Test
     void given_unknownAttribute_when_getAttribute_then_expectedValueIsReturned() {
+        Set<String> keys = new HashSet<>();
+        keys.add("attr");
+
+        when(groupMock.getKeys()).thenReturn(keys);
         when(groupMock.getValues("attr")).thenReturn(null);
 
         assertThat(crowdGroupAdapter.getAttribute("attr")).isEmpty();
@@ -119,14 +134,38 @@ class CrowdGroupAdapterTest {
 
     @Test
     void given_knownAttribute_when_getAttribute_then_expectedValueIsReturned() {
+        Set<String> keys = new HashSet<>();
+        keys.add("attr");
+
         Set<String> values = new HashSet<>();
         values.add("value");
 
+        when(groupMock.getKeys()).thenReturn(keys);
         when(groupMock.getValues("attr")).thenReturn(values);
 
         assertThat(crowdGroupAdapter.getAttribute("attr")).containsOnly("value");
     }
 
+    @Test
+    void when_getAttributesRepeatedly_then_sameImmutableValuesAreReturned() {
+        Set<String> keys = new HashSet<>();
+        keys.add("attr");
+
+        Set<String> values = new HashSet<>();
+        values.add("value");
+
+        when(groupMock.getKeys()).thenReturn(keys);
+        when(groupMock.getValues("attr")).thenReturn(values);
+
+        assertThat(crowdGroupAdapter.getAttributes()).isSameAs(crowdGroupAdapter.getAttributes());
+        assertThat(crowdGroupAdapter.getAttribute("attr")).isSameAs(crowdGroupAdapter.getAttribute("attr"));
+        assertThatThrownBy(() -> crowdGroupAdapter.getAttributes().put("attr", new ArrayList<>()))
+                .isExactlyInstanceOf(UnsupportedOperationException.class);
+        assertThatThrownBy(() -> crowdGroupAdapter.getAttribute("attr").add("other value"))
+                .isExactlyInstanceOf(UnsupportedOperationException.class);
+        verify(groupMock, times(1)).getKeys();
+    }
+
     @Test
     void when_getAttributes_then_expectedValueIsReturned() {
         Set<String> keys = new HashSet<>();
@@ -141,6 +180,26 @@ class CrowdGroupAdapterTest {
         assertThat(crowdGroupAdapter.getAttributes()).containsOnly(entry("attr", new ArrayList<>(values)));
     }
 
+    @Test
+    void given_attributeFilter_when_getAttributes_then_droppedAttributesAreLeftOut() {
+        Set<String> keys = new HashSet<>();
+        keys.add("attr");
+        keys.add("dropped attr");
+
+        Set<String> values = new HashSet<>();
+        values.add("value");
+
+        when(groupMock.getKeys()).thenReturn(keys);
+        when(groupMock.getValues("attr")).thenReturn(values);
+
+        CrowdGroupAdapter filteredAdapter =
+                new CrowdGroupAdapter(modelMock, groupMock, AttributeFilter.of(null, "dropped attr"));
+
+        assertThat(filteredAdapter.getAttributes()).containsOnlyKeys("attr");
+        assertThat(filteredAdapter.getFirstAttribute("dropped attr")).isNull();
+        verify(groupMock, never()).getValues("dropped attr");
+    }
+
     @Test
     void when_getParent_then_expectedValueIsReturned() {
         GroupModel parentGroupMock = mock(GroupModel.class);
@@ -230,12 +289,66 @@ class CrowdGroupAdapterTest {
                 .isExactlyInstanceOf(ReadOnlyException.class);
     }
 
+    @Test
+    void given_frozenAdapter_when_setParent_then_readOnlyExceptionIsThrown() {
+        crowdGroupAdapter.freeze();
+
+        assertThatThrownBy(() -> crowdGroupAdapter.setParent(mock(GroupModel.class)))
+                .isExactlyInstanceOf(ReadOnlyException.class);
+    }
+
+    @Test
+    void given_frozenAdapter_when_addChild_then_readOnlyExceptionIsThrown() {
+        crowdGroupAdapter.freeze();
+
+        assertThatThrownBy(() -> crowdGroupAdapter.addChild(mock(GroupModel.class)))
+                .isExactlyInstanceOf(ReadOnlyException.class);
+        assertThatThrownBy(() -> crowdGroupAdapter.getSubGroups().add(mock(GroupModel.class)))
+                .isExactlyInstanceOf(UnsupportedOperationException.class);
+    }
+
+    @Test
+    void given_frozenAdapter_when_removeChild_then_readOnlyExceptionIsThrown() {
+        crowdGroupAdapter.freeze();
+
+        assertThatThrownBy(() -> crowdGroupAdapter.removeChild(mock(GroupModel.class)))
+                .isExactlyInstanceOf(ReadOnlyException.class);
+    }
+
+    @Test
+    void when_freeze_then_parentAndChildrenAreFrozen() {
+        GroupWithAttributes parentMock = mock(GroupWithAttributes.class);
+        GroupWithAttributes childMock = mock(GroupWithAttributes.class);
+
+        CrowdGroupAdapter parent = new CrowdGroupAdapter(modelMock, parentMock);
+        CrowdGroupAdapter child = new CrowdGroupAdapter(modelMock, childMock);
+        crowdGroupAdapter.setParent(parent);
+        crowdGroupAdapter.addChild(child);
+
+        assertThat(crowdGroupAdapter.isFrozen()).isFalse();
+
+        crowdGroupAdapter.freeze();
+
+        assertThat(crowdGroupAdapter.isFrozen()).isTrue();
+        assertThat(parent.isFrozen()).isTrue();
+        assertThat(child.isFrozen()).isTrue();
+    }
+
+    @Test
+    void given_differentParentsAndChildren_when_equals_then_trueIsReturned() {
+        CrowdGroupAdapter other = new CrowdGroupAdapter(modelMock, groupMock);
+        other.setParent(mock(GroupModel.class));
+        other.addChild(mock(GroupModel.class));
+
+        assertThat(other).isEqualTo(crowdGroupAdapter).hasSameHashCodeAs(crowdGroupAdapter);
+    }
+
     @Test
     void equalsAndHashcode() {
         EqualsVerifier.forClass(CrowdGroupAdapter.class)
                 .suppress(Warning.STRICT_INHERITANCE, Warning.NONFINAL_FIELDS)
                 .usingGetClass()
-                .withIgnoredFields("group")
+                .withIgnoredFields("group", "parent", "subGroups", "frozen", "attributes")
                 .verify();
     }
 
@@ -0,0 +1,187 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd.group;
+
+import com.atlassian.crowd.embedded.api.SearchRestriction;
+import com.atlassian.crowd.exception.OperationFailedException;
+import com.atlassian.crowd.model.group.GroupWithAttributes;
+import com.atlassian.crowd.service.client.CrowdClient;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class CrowdGroupHierarchyTest {
+
+    @Mock private CrowdClient clientMock;
+
+    @Test
+    void when_load_then_groupsAndRelationsAreResolved() throws Exception {
+        GroupWithAttributes parentMock = createGroupMockWithName("parent");
+        GroupWithAttributes otherParentMock = createGroupMockWithName("another parent");
+        GroupWithAttributes childMock = createGroupMockWithName("child");
+
+        when(clientMock.searchGroupsWithAttributes(any(SearchRestriction.class), eq(0), eq(1000)))
+                .thenReturn(Arrays.asList(parentMock, otherParentMock, childMock));
+        when(clientMock.getNamesOfChildGroupsOfGroup("parent", 0, Integer.MAX_VALUE))
+                .thenReturn(Arrays.asList("child", "unknown"));
+        when(clientMock.getNamesOfChildGroupsOfGroup("another parent", 0, Integer.MAX_VALUE))
+                .thenReturn(Collections.singletonList("child"));
+        when(clientMock.getNamesOfChildGroupsOfGroup("child", 0, Integer.MAX_VALUE))
+                .thenReturn(Collections.emptyList());
+
+        CrowdGroupHierarchy hierarchy = CrowdGroupHierarchy.load(clientMock);
+
+        assertThat(hierarchy.size()).isEqualTo(3);
+        assertThat(hierarchy.contains("child")).isTrue();
+        assertThat(hierarchy.contains("unknown")).isFalse();
+        assertThat(hierarchy.getGroup("parent")).isSameAs(parentMock);
+        assertThat(hierarchy.getChildren("parent")).containsExactly("child");
+        assertThat(hierarchy.getChildren("child")).isEmpty();
+        assertThat(hierarchy.getParents("child")).containsExactly("another parent", "parent");
+        assertThat(hierarchy.getParents("parent")).isEmpty();
+    }
+
+    @Test
+    void given_cyclicNesting_when_load_then_nestingClosingTheCycleIsRemoved() throws Exception {
+        GroupWithAttributes firstMock = createGroupMockWithName("first");
+        GroupWithAttributes secondMock = createGroupMockWithName("second");
+        GroupWithAttributes thirdMock = createGroupMockWithName("third");
+
+        when(clientMock.searchGroupsWithAttributes(any(SearchRestriction.class), eq(0), eq(1000)))
+                .thenReturn(Arrays.asList(thirdMock, secondMock, firstMock));
+        when(clientMock.getNamesOfChildGroupsOfGroup("first", 0, Integer.MAX_VALUE))
+                .thenReturn(Arrays.asList("first", "second"));
+        when(clientMock.getNamesOfChildGroupsOfGroup("second", 0, Integer.MAX_VALUE))
+                .thenReturn(Collections.singletonList("third"));
+        when(clientMock.getNamesOfChildGroupsOfGroup("third", 0, Integer.MAX_VALUE))
+                .thenReturn(Collections.singletonList("first"));
+
+        CrowdGroupHierarchy hierarchy = CrowdGroupHierarchy.load(clientMock);
+
+        assertThat(hierarchy.getChildren("first")).containsExactly("second");
+        assertThat(hierarchy.getChildren("second")).containsExactly("third");
+        assertThat(hierarchy.getChildren("third")).isEmpty();
+        assertThat(hierarchy.getParents("first")).isEmpty();
+        assertThat(hierarchy.getParents("second")).containsExactly("first");
+        assertThat(hierarchy.getParents("third")).containsExactly("second");
+    }
+
+    @Test
+    void given_deeplyNestedGroups_when_loadOnSmallStack_then_snapshotIsLoaded() throws Exception {
+        List<GroupWithAttributes> groups = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            groups.add(createGroupMockWithName("group " + i));
+        }
+
+        when(clientMock.searchGroupsWithAttributes(any(SearchRestriction.class), anyInt(), eq(1000)))
+                .thenAnswer(invocation -> {
+                    int startIndex = invocation.getArgument(1);
+                    return groups.subList(startIndex, Math.min(startIndex + 1000, groups.size()));
+                });
+        when(clientMock.getNamesOfChildGroupsOfGroup(any(String.class), eq(0), eq(Integer.MAX_VALUE)))
+                .thenAnswer(invocation -> {
+                    int index = Integer.parseInt(invocation.<String>getArgument(0).substring("group ".length()));
+                    return index + 1 < groups.size()
+                            ? Collections.singletonList("group " + (index + 1)) : Collections.emptyList();
+                });
+
+        AtomicReference<Object> result = new AtomicReference<>();
+        Thread thread = new Thread(null, () -> {
+            try {
+                result.set(CrowdGroupHierarchy.load(clientMock));
+            } catch (Throwable e) {
+                result.set(e);
+            }
+        }, "small stack", 256 * 1024);
+        thread.start();
+        thread.join();
+
+        assertThat(result.get()).isInstanceOf(CrowdGroupHierarchy.class);
+
+        CrowdGroupHierarchy hierarchy = (CrowdGroupHierarchy) result.get();
+        assertThat(hierarchy.getChildren("group 0")).containsExactly("group 1");
+        assertThat(hierarchy.getParents("group 9999")).containsExactly("group 9998");
+    }
+
+    @Test
+    void given_morePagesOfGroups_when_load_then_allPagesAreRetrieved() throws Exception {
+        List<GroupWithAttributes> firstPage = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            firstPage.add(createGroupMockWithName("group " + i));
+        }
+
+        when(clientMock.searchGroupsWithAttributes(any(SearchRestriction.class), eq(0), eq(1000)))
+                .thenReturn(firstPage);
+        when(clientMock.searchGroupsWithAttributes(any(SearchRestriction.class), eq(1000), eq(1000)))
+                .thenReturn(Collections.singletonList(createGroupMockWithName("last group")));
+        when(clientMock.getNamesOfChildGroupsOfGroup(any(String.class), eq(0), eq(Integer.MAX_VALUE)))
+                .thenReturn(Collections.emptyList());
+
+        CrowdGroupHierarchy hierarchy = CrowdGroupHierarchy.load(clientMock);
+
+        assertThat(hierarchy.size()).isEqualTo(1001);
+        assertThat(hierarchy.contains("last group")).isTrue();
+    }
+
+    @Test
+    void given_moreGroupsThanMaximum_when_load_then_noSnapshotIsLoaded() throws Exception {
+        when(clientMock.searchGroupsWithAttributes(any(SearchRestriction.class), eq(0), eq(1000)))
+                .thenReturn(Arrays.asList(createGroupMockWithName("group"), createGroupMockWithName("other group")));
+
+        assertThat(CrowdGroupHierarchy.load(clientMock, 1)).isNull();
+
+        verify(clientMock, never()).getNamesOfChildGroupsOfGroup(any(String.class), anyInt(), anyInt());
+    }
+
+    @Test
+    void given_searchGroupsWithAttributesThrowsException_when_load_then_exceptionIsThrown() throws Exception {
+        OperationFailedException exception = new OperationFailedException();
+        when(clientMock.searchGroupsWithAttributes(any(SearchRestriction.class), eq(0), eq(1000)))
+                .thenThrow(exception);
+
+        assertThatThrownBy(() -> CrowdGroupHierarchy.load(clientMock)).isSameAs(exception);
+    }
+
+    private GroupWithAttributes createGroupMockWithName(String name) {
+        GroupWithAttributes groupMock = mock(GroupWithAttributes.class);
+        when(groupMock.getName()).thenReturn(name);
+
+        return groupMock;
+    }
+
+}
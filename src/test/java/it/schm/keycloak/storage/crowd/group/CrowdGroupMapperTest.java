@@ -33,16 +33,20 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.models.GroupModel;
 import org.keycloak.models.ModelException;
+import org.keycloak.storage.ReadOnlyException;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
@@ -51,7 +55,6 @@ class CrowdGroupMapperTest {
     @Mock private ComponentModel modelMock;
     @Mock private CrowdClient clientMock;
 
-    @InjectMocks
     private CrowdGroupMapper crowdGroupMapper;
 
     private static final String USERNAME = "username";
@@ -60,7 +63,9 @@ class CrowdGroupMapperTest {
 
     @BeforeEach
     void setup() {
-        when(crowdUserAdapterMock.getUsername()).thenReturn(USERNAME);
+        lenient().when(crowdUserAdapterMock.getUsername()).thenReturn(USERNAME);
+
+        crowdGroupMapper = new CrowdGroupMapper(modelMock, clientMock, new CrowdGroupMapper.Settings());
     }
 
     @Test
@@ -138,6 +143,493 @@ class CrowdGroupMapperTest {
         expectedGroups.add(groupWithChildrenAdapter);
 
         assertThat(groupModelArgumentCaptor.getValue()).containsExactlyInAnyOrderElementsOf(expectedGroups);
+        assertThat(groupModelArgumentCaptor.getValue())
+                .extracting(CrowdGroupMapperTest::pathOf)
+                .containsExactlyInAnyOrder("singleGroupMock",
+                        "grandParentGroupMock/parentGroupMock/groupWithParentsMock", "groupWithChildrenMock");
+        assertThat(groupModelArgumentCaptor.getValue())
+                .extracting(CrowdGroupMapperTest::treeOf)
+                .containsExactlyInAnyOrder("singleGroupMock", "groupWithParentsMock",
+                        "groupWithChildrenMock[firstChildGroupMock[grandChildGroupMock], secondChildGroupMock]");
+    }
+
+    @Test
+    void given_groupHierarchy_when_onLoadUser_then_groupsAreResolvedFromHierarchy() throws Exception {
+        GroupWithAttributes groupMock = createGroupMockWithName("groupMock");
+        GroupWithAttributes parentGroupMock = createGroupMockWithName("parentGroupMock");
+        GroupWithAttributes childGroupMock = createGroupMockWithName("childGroupMock");
+
+        Map<String, GroupWithAttributes> groups = new HashMap<>();
+        groups.put("groupMock", groupMock);
+        groups.put("parentGroupMock", parentGroupMock);
+        groups.put("childGroupMock", childGroupMock);
+
+        Map<String, List<String>> parents = new HashMap<>();
+        parents.put("groupMock", Collections.singletonList("parentGroupMock"));
+        parents.put("childGroupMock", Collections.singletonList("groupMock"));
+
+        Map<String, List<String>> children = new HashMap<>();
+        children.put("parentGroupMock", Collections.singletonList("groupMock"));
+        children.put("groupMock", Collections.singletonList("childGroupMock"));
+
+        CrowdGroupHierarchy hierarchy = new CrowdGroupHierarchy(groups, parents, children);
+
+        List<Group> userGroups = new ArrayList<>();
+        userGroups.add(groupMock);
+        when(clientMock.getGroupsForUser(USERNAME, 0, Integer.MAX_VALUE)).thenReturn(userGroups);
+
+        new CrowdGroupMapper(modelMock, clientMock, new CrowdGroupMapper.Settings().withGroupHierarchy(() -> hierarchy))
+                .onLoadUser(crowdUserAdapterMock);
+
+        verify(crowdUserAdapterMock).setGroupsInternal(groupModelArgumentCaptor.capture());
+        verify(clientMock).getGroupsForUser(USERNAME, 0, Integer.MAX_VALUE);
+        verifyNoMoreInteractions(clientMock);
+
+        CrowdGroupAdapter groupAdapter = new CrowdGroupAdapter(modelMock, groupMock);
+        groupAdapter.setParent(new CrowdGroupAdapter(modelMock, parentGroupMock));
+        groupAdapter.addChild(new CrowdGroupAdapter(modelMock, childGroupMock));
+
+        assertThat(groupModelArgumentCaptor.getValue()).containsExactly(groupAdapter);
+        assertThat(groupModelArgumentCaptor.getValue())
+                .extracting(CrowdGroupMapperTest::pathOf, CrowdGroupMapperTest::treeOf)
+                .containsExactly(tuple("parentGroupMock/groupMock", "groupMock[childGroupMock]"));
+    }
+
+    @Test
+    void given_diamondShapedHierarchy_when_onLoadUser_then_sharedSubGroupIsResolvedOnce() throws Exception {
+        Map<String, GroupWithAttributes> groups = new HashMap<>();
+        for (String name : Arrays.asList("top", "left", "right", "bottom", "leaf")) {
+            groups.put(name, createGroupMockWithName(name));
+        }
+
+        Map<String, List<String>> children = new HashMap<>();
+        children.put("top", Arrays.asList("left", "right"));
+        children.put("left", Collections.singletonList("bottom"));
+        children.put("right", Collections.singletonList("bottom"));
+        children.put("bottom", Collections.singletonList("leaf"));
+
+        CrowdGroupHierarchy hierarchy = new CrowdGroupHierarchy(groups, new HashMap<>(), children);
+
+        when(clientMock.getGroupsForUser(USERNAME, 0, Integer.MAX_VALUE))
+                .thenReturn(Collections.singletonList(groups.get("top")));
+
+        GroupModel group = new CrowdGroupMapper(modelMock, clientMock, new CrowdGroupMapper.Settings()
+                .withGroupHierarchy(() -> hierarchy)).loadGroups(USERNAME).iterator().next();
+
+        assertThat(treeOf(group)).isEqualTo("top[left[bottom[leaf]], right[bottom[leaf]]]");
+
+        List<GroupModel> bottoms = group.getSubGroups().stream()
+                .map(subGroup -> subGroup.getSubGroups().iterator().next())
+                .collect(Collectors.toList());
+
+        assertThat(bottoms).hasSize(2);
+        assertThat(bottoms.get(0)).isSameAs(bottoms.get(1));
+    }
+
+    @Test
+    void given_groupMissingFromHierarchy_when_onLoadUser_then_groupIsResolvedFromCrowd() throws Exception {
+        CrowdGroupHierarchy hierarchy =
+                new CrowdGroupHierarchy(new HashMap<>(), new HashMap<>(), new HashMap<>());
+
+        GroupWithAttributes groupMock = createGroupMockWithName("groupMock");
+
+        List<Group> userGroups = new ArrayList<>();
+        userGroups.add(groupMock);
+        when(clientMock.getGroupsForUser(USERNAME, 0, Integer.MAX_VALUE)).thenReturn(userGroups);
+        when(clientMock.getParentGroupsForGroup("groupMock", 0, 1)).thenReturn(Collections.emptyList());
+        when(clientMock.getChildGroupsOfGroup("groupMock", 0, Integer.MAX_VALUE)).thenReturn(Collections.emptyList());
+
+        new CrowdGroupMapper(modelMock, clientMock, new CrowdGroupMapper.Settings().withGroupHierarchy(() -> hierarchy))
+                .onLoadUser(crowdUserAdapterMock);
+
+        verify(crowdUserAdapterMock).setGroupsInternal(groupModelArgumentCaptor.capture());
+        assertThat(groupModelArgumentCaptor.getValue()).containsExactly(new CrowdGroupAdapter(modelMock, groupMock));
+    }
+
+    @Test
+    void given_groupWalker_when_onLoadUser_then_groupsAreResolvedConcurrently() throws Exception {
+        GroupWithAttributes groupMock = createGroupMockWithName("groupMock");
+        GroupWithAttributes parentGroupMock = createGroupMockWithName("parentGroupMock");
+        GroupWithAttributes childGroupMock = createGroupMockWithName("childGroupMock");
+
+        List<Group> userGroups = new ArrayList<>();
+        userGroups.add(groupMock);
+        when(clientMock.getGroupsForUser(USERNAME, 0, Integer.MAX_VALUE)).thenReturn(userGroups);
+        when(clientMock.getParentGroupsForGroup("groupMock", 0, 1))
+                .thenReturn(Collections.singletonList(parentGroupMock));
+        when(clientMock.getParentGroupsForGroup("parentGroupMock", 0, 1)).thenReturn(Collections.emptyList());
+        when(clientMock.getChildGroupsOfGroup("groupMock", 0, Integer.MAX_VALUE))
+                .thenReturn(Collections.singletonList(childGroupMock));
+        when(clientMock.getChildGroupsOfGroup("childGroupMock", 0, Integer.MAX_VALUE))
+                .thenReturn(Collections.emptyList());
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            CrowdGroupWalker walker = new CrowdGroupWalker(executor, 2, 5000, CrowdGroupWalker.DEFAULT_MAX_DEPTH);
+            new CrowdGroupMapper(modelMock, clientMock, new CrowdGroupMapper.Settings().withGroupWalker(walker))
+                    .onLoadUser(crowdUserAdapterMock);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        verify(crowdUserAdapterMock).setGroupsInternal(groupModelArgumentCaptor.capture());
+
+        CrowdGroupAdapter groupAdapter = new CrowdGroupAdapter(modelMock, groupMock);
+        groupAdapter.setParent(new CrowdGroupAdapter(modelMock, parentGroupMock));
+        groupAdapter.addChild(new CrowdGroupAdapter(modelMock, childGroupMock));
+
+        assertThat(groupModelArgumentCaptor.getValue()).containsExactly(groupAdapter);
+        assertThat(groupModelArgumentCaptor.getValue())
+                .extracting(CrowdGroupMapperTest::pathOf, CrowdGroupMapperTest::treeOf)
+                .containsExactly(tuple("parentGroupMock/groupMock", "groupMock[childGroupMock]"));
+    }
+
+    @Test
+    void given_groupWalkerAndFailingLookup_when_onLoadUser_then_exceptionIsThrown() throws Exception {
+        GroupWithAttributes groupMock = createGroupMockWithName("groupMock");
+        OperationFailedException exception = new OperationFailedException();
+
+        List<Group> userGroups = new ArrayList<>();
+        userGroups.add(groupMock);
+        when(clientMock.getGroupsForUser(USERNAME, 0, Integer.MAX_VALUE)).thenReturn(userGroups);
+        when(clientMock.getParentGroupsForGroup("groupMock", 0, 1)).thenThrow(exception);
+        lenient().when(clientMock.getChildGroupsOfGroup("groupMock", 0, Integer.MAX_VALUE))
+                .thenReturn(Collections.emptyList());
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            CrowdGroupWalker walker = new CrowdGroupWalker(executor, 2, 5000, CrowdGroupWalker.DEFAULT_MAX_DEPTH);
+            CrowdGroupMapper mapper = new CrowdGroupMapper(modelMock, clientMock, new CrowdGroupMapper.Settings()
+                    .withGroupWalker(walker));
+
+            assertThatThrownBy(() -> mapper.onLoadUser(crowdUserAdapterMock))
+                    .isExactlyInstanceOf(ModelException.class)
+                    .hasCause(exception);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void given_sharedParent_when_onLoadUser_then_parentIsRetrievedOnce() throws Exception {
+        GroupWithAttributes firstGroupMock = createGroupMockWithName("firstGroupMock");
+        GroupWithAttributes secondGroupMock = createGroupMockWithName("secondGroupMock");
+        GroupWithAttributes parentGroupMock = createGroupMockWithName("parentGroupMock");
+
+        List<Group> userGroups = new ArrayList<>();
+        userGroups.add(firstGroupMock);
+        userGroups.add(secondGroupMock);
+        when(clientMock.getGroupsForUser(USERNAME, 0, Integer.MAX_VALUE)).thenReturn(userGroups);
+        when(clientMock.getParentGroupsForGroup("firstGroupMock", 0, 1))
+                .thenReturn(Collections.singletonList(parentGroupMock));
+        when(clientMock.getParentGroupsForGroup("secondGroupMock", 0, 1))
+                .thenReturn(Collections.singletonList(parentGroupMock));
+
+        CrowdGroupWalker walker = new CrowdGroupWalker(CrowdGroupWalker.DEFAULT_MAX_DEPTH);
+        new CrowdGroupMapper(modelMock, clientMock, new CrowdGroupMapper.Settings().withGroupWalker(walker))
+                .onLoadUser(crowdUserAdapterMock);
+
+        verify(crowdUserAdapterMock).setGroupsInternal(groupModelArgumentCaptor.capture());
+        verify(clientMock, times(1)).getParentGroupsForGroup("parentGroupMock", 0, 1);
+        assertThat(walker.getSavedCallCount()).isEqualTo(1);
+        assertThat(groupModelArgumentCaptor.getValue())
+                .extracting(group -> group.getParent().getName())
+                .containsExactly("parentGroupMock", "parentGroupMock");
+    }
+
+    @Test
+    void given_cyclicNesting_when_onLoadUser_then_walkTerminates() throws Exception {
+        GroupWithAttributes groupMock = createGroupMockWithName("groupMock");
+        GroupWithAttributes otherGroupMock = createGroupMockWithName("otherGroupMock");
+
+        List<Group> userGroups = new ArrayList<>();
+        userGroups.add(groupMock);
+        when(clientMock.getGroupsForUser(USERNAME, 0, Integer.MAX_VALUE)).thenReturn(userGroups);
+        when(clientMock.getParentGroupsForGroup("groupMock", 0, 1))
+                .thenReturn(Collections.singletonList(otherGroupMock));
+        when(clientMock.getParentGroupsForGroup("otherGroupMock", 0, 1))
+                .thenReturn(Collections.singletonList(groupMock));
+        when(clientMock.getChildGroupsOfGroup("groupMock", 0, Integer.MAX_VALUE))
+                .thenReturn(Collections.singletonList(otherGroupMock));
+        when(clientMock.getChildGroupsOfGroup("otherGroupMock", 0, Integer.MAX_VALUE))
+                .thenReturn(Collections.singletonList(groupMock));
+
+        crowdGroupMapper.onLoadUser(crowdUserAdapterMock);
+
+        verify(crowdUserAdapterMock).setGroupsInternal(groupModelArgumentCaptor.capture());
+        verify(clientMock, times(1)).getParentGroupsForGroup("groupMock", 0, 1);
+        verify(clientMock, times(1)).getChildGroupsOfGroup("groupMock", 0, Integer.MAX_VALUE);
+
+        GroupModel group = groupModelArgumentCaptor.getValue().iterator().next();
+        assertThat(group.getParent().getName()).isEqualTo("otherGroupMock");
+        assertThat(group.getParent().getParent()).isNull();
+        assertThat(group.getSubGroups()).extracting(GroupModel::getName).containsExactly("otherGroupMock");
+    }
+
+    @Test
+    void given_maxDepth_when_onLoadUser_then_deeperGroupsAreNotRetrieved() throws Exception {
+        GroupWithAttributes groupMock = createGroupMockWithName("groupMock");
+        GroupWithAttributes parentGroupMock = createGroupMockWithName("parentGroupMock");
+
+        List<Group> userGroups = new ArrayList<>();
+        userGroups.add(groupMock);
+        when(clientMock.getGroupsForUser(USERNAME, 0, Integer.MAX_VALUE)).thenReturn(userGroups);
+        when(clientMock.getParentGroupsForGroup("groupMock", 0, 1))
+                .thenReturn(Collections.singletonList(parentGroupMock));
+
+        new CrowdGroupMapper(modelMock, clientMock, new CrowdGroupMapper.Settings()
+                .withGroupWalker(new CrowdGroupWalker(1)))
+                .onLoadUser(crowdUserAdapterMock);
+
+        verify(crowdUserAdapterMock).setGroupsInternal(groupModelArgumentCaptor.capture());
+        verify(clientMock, never()).getParentGroupsForGroup("parentGroupMock", 0, 1);
+        assertThat(groupModelArgumentCaptor.getValue().iterator().next().getParent().getName())
+                .isEqualTo("parentGroupMock");
+    }
+
+    @Test
+    void given_nestedStrategy_when_onLoadUser_then_allMembershipsAreRetrievedWithOneCall() throws Exception {
+        GroupWithAttributes groupMock = createGroupMockWithName("groupMock");
+        GroupWithAttributes parentGroupMock = createGroupMockWithName("parentGroupMock");
+
+        List<Group> nestedGroups = new ArrayList<>();
+        nestedGroups.add(groupMock);
+        nestedGroups.add(parentGroupMock);
+        when(clientMock.getGroupsForNestedUser(USERNAME, 0, Integer.MAX_VALUE)).thenReturn(nestedGroups);
+
+        new CrowdGroupMapper(modelMock, clientMock, new CrowdGroupMapper.Settings()
+                .withMembershipStrategy(MembershipStrategy.NESTED))
+                .onLoadUser(crowdUserAdapterMock);
+
+        verify(crowdUserAdapterMock).setGroupsInternal(groupModelArgumentCaptor.capture());
+        verify(clientMock).getGroupsForNestedUser(USERNAME, 0, Integer.MAX_VALUE);
+        verifyNoMoreInteractions(clientMock);
+
+        assertThat(groupModelArgumentCaptor.getValue()).containsExactlyInAnyOrder(
+                new CrowdGroupAdapter(modelMock, groupMock), new CrowdGroupAdapter(modelMock, parentGroupMock));
+    }
+
+    @Test
+    void given_nestedStrategyAndGroupHierarchy_when_loadGroups_then_subGroupsAreResolvedFromHierarchy()
+            throws Exception {
+        Map<String, GroupWithAttributes> groups = new HashMap<>();
+        for (String name : Arrays.asList("parent", "group", "sibling", "child")) {
+            groups.put(name, createGroupMockWithName(name));
+        }
+
+        Map<String, List<String>> parents = new HashMap<>();
+        parents.put("group", Collections.singletonList("parent"));
+        parents.put("sibling", Collections.singletonList("parent"));
+        parents.put("child", Collections.singletonList("sibling"));
+
+        Map<String, List<String>> children = new HashMap<>();
+        children.put("parent", Arrays.asList("group", "sibling"));
+        children.put("sibling", Collections.singletonList("child"));
+
+        CrowdGroupHierarchy hierarchy = new CrowdGroupHierarchy(groups, parents, children);
+
+        when(clientMock.getGroupsForNestedUser(USERNAME, 0, Integer.MAX_VALUE))
+                .thenReturn(Arrays.asList(groups.get("group"), groups.get("parent")));
+
+        Set<GroupModel> userGroups = new CrowdGroupMapper(modelMock, clientMock, new CrowdGroupMapper.Settings()
+                .withGroupHierarchy(() -> hierarchy)
+                .withMembershipStrategy(MembershipStrategy.NESTED))
+                .loadGroups(USERNAME);
+
+        assertThat(userGroups)
+                .extracting(CrowdGroupMapperTest::pathOf, CrowdGroupMapperTest::treeOf)
+                .containsExactlyInAnyOrder(
+                        tuple("parent/group", "group"),
+                        tuple("parent", "parent[group, sibling[child]]"));
+    }
+
+    @Test
+    void given_nestedStrategyAndGroupHierarchy_when_onLoadUser_then_parentsAreLinkedThroughMemberships()
+            throws Exception {
+        GroupWithAttributes groupMock = createGroupMockWithName("groupMock");
+        GroupWithAttributes parentGroupMock = createGroupMockWithName("parentGroupMock");
+
+        Map<String, List<String>> parents = new HashMap<>();
+        parents.put("groupMock", Arrays.asList("otherParentGroupMock", "parentGroupMock"));
+
+        CrowdGroupHierarchy hierarchy = new CrowdGroupHierarchy(new HashMap<>(), parents, new HashMap<>());
+
+        List<Group> nestedGroups = new ArrayList<>();
+        nestedGroups.add(groupMock);
+        nestedGroups.add(parentGroupMock);
+        when(clientMock.getGroupsForNestedUser(USERNAME, 0, Integer.MAX_VALUE)).thenReturn(nestedGroups);
+
+        new CrowdGroupMapper(modelMock, clientMock, new CrowdGroupMapper.Settings()
+                .withGroupHierarchy(() -> hierarchy)
+                .withMembershipStrategy(MembershipStrategy.NESTED))
+                .onLoadUser(crowdUserAdapterMock);
+
+        verify(crowdUserAdapterMock).setGroupsInternal(groupModelArgumentCaptor.capture());
+
+        CrowdGroupAdapter groupAdapter = new CrowdGroupAdapter(modelMock, groupMock);
+        groupAdapter.setParent(new CrowdGroupAdapter(modelMock, parentGroupMock));
+
+        assertThat(groupModelArgumentCaptor.getValue()).containsExactlyInAnyOrder(
+                groupAdapter, new CrowdGroupAdapter(modelMock, parentGroupMock));
+        assertThat(groupModelArgumentCaptor.getValue())
+                .extracting(CrowdGroupMapperTest::pathOf)
+                .containsExactlyInAnyOrder("parentGroupMock/groupMock", "parentGroupMock");
+    }
+
+    @Test
+    void given_nestedStrategyAndFailingLookup_when_onLoadUser_then_exceptionIsThrown() throws Exception {
+        UserNotFoundException exception = new UserNotFoundException("Boom!");
+        when(clientMock.getGroupsForNestedUser(USERNAME, 0, Integer.MAX_VALUE)).thenThrow(exception);
+
+        CrowdGroupMapper mapper = new CrowdGroupMapper(modelMock, clientMock, new CrowdGroupMapper.Settings()
+                .withMembershipStrategy(MembershipStrategy.NESTED));
+
+        assertThatThrownBy(() -> mapper.onLoadUser(crowdUserAdapterMock))
+                .isExactlyInstanceOf(ModelException.class)
+                .hasCause(exception);
+    }
+
+    @Test
+    void given_usersSharingGroup_when_loadGroups_then_groupIsResolvedOnce() throws Exception {
+        GroupWithAttributes groupMock = createGroupMockWithName("groupMock");
+        GroupWithAttributes parentGroupMock = createGroupMockWithName("parentGroupMock");
+
+        when(clientMock.getGroupsForUser("first", 0, Integer.MAX_VALUE))
+                .thenReturn(Collections.singletonList(groupMock));
+        when(clientMock.getGroupsForUser("second", 0, Integer.MAX_VALUE))
+                .thenReturn(Collections.singletonList(groupMock));
+        when(clientMock.getParentGroupsForGroup("groupMock", 0, 1))
+                .thenReturn(Collections.singletonList(parentGroupMock));
+
+        Map<String, Set<GroupModel>> groups = crowdGroupMapper.loadGroups(Arrays.asList("first", "second"));
+
+        verify(clientMock, times(1)).getParentGroupsForGroup("groupMock", 0, 1);
+        verify(clientMock, times(1)).getChildGroupsOfGroup("groupMock", 0, Integer.MAX_VALUE);
+        assertThat(groups).containsOnlyKeys("first", "second");
+        assertThat(groups.get("first").iterator().next())
+                .isSameAs(groups.get("second").iterator().next())
+                .extracting(group -> group.getParent().getName())
+                .isEqualTo("parentGroupMock");
+    }
+
+    @Test
+    void given_groupPool_when_loadGroupsInSeveralSessions_then_snapshotGroupsAreShared() throws Exception {
+        GroupWithAttributes groupMock = createGroupMockWithName("groupMock");
+        CrowdGroupHierarchy hierarchy = createHierarchyOf(groupMock);
+
+        when(clientMock.getGroupsForUser("first", 0, Integer.MAX_VALUE))
+                .thenReturn(Collections.singletonList(groupMock));
+        when(clientMock.getGroupsForUser("second", 0, Integer.MAX_VALUE))
+                .thenReturn(Collections.singletonList(groupMock));
+
+        CrowdGroupPool pool = new CrowdGroupPool();
+
+        GroupModel first = new CrowdGroupMapper(modelMock, clientMock, new CrowdGroupMapper.Settings()
+                .withGroupHierarchy(() -> hierarchy).withGroupPool(pool)).loadGroups("first").iterator().next();
+        GroupModel second = new CrowdGroupMapper(modelMock, clientMock, new CrowdGroupMapper.Settings()
+                .withGroupHierarchy(() -> hierarchy).withGroupPool(pool)).loadGroups("second").iterator().next();
+
+        assertThat(second).isSameAs(first);
+        assertThat(pool.size()).isEqualTo(1);
+        assertThat(pool.getHitCount()).isEqualTo(1);
+        assertThat(pool.getMissCount()).isEqualTo(1);
+    }
+
+    @Test
+    void given_groupPool_when_loadGroups_then_parentsAndChildrenAreShared() throws Exception {
+        Map<String, GroupWithAttributes> groups = new HashMap<>();
+        for (String name : Arrays.asList("top", "left", "right", "bottom")) {
+            groups.put(name, createGroupMockWithName(name));
+        }
+
+        Map<String, List<String>> parents = new HashMap<>();
+        parents.put("left", Collections.singletonList("top"));
+        parents.put("right", Collections.singletonList("top"));
+        parents.put("bottom", Arrays.asList("left", "right"));
+
+        Map<String, List<String>> children = new HashMap<>();
+        children.put("top", Arrays.asList("left", "right"));
+        children.put("left", Collections.singletonList("bottom"));
+        children.put("right", Collections.singletonList("bottom"));
+
+        CrowdGroupHierarchy hierarchy = new CrowdGroupHierarchy(groups, parents, children);
+
+        when(clientMock.getGroupsForUser("first", 0, Integer.MAX_VALUE))
+                .thenReturn(Collections.singletonList(groups.get("left")));
+        when(clientMock.getGroupsForUser("second", 0, Integer.MAX_VALUE))
+                .thenReturn(Collections.singletonList(groups.get("right")));
+
+        CrowdGroupPool pool = new CrowdGroupPool();
+        CrowdGroupMapper mapper = new CrowdGroupMapper(modelMock, clientMock, new CrowdGroupMapper.Settings()
+                .withGroupHierarchy(() -> hierarchy).withGroupPool(pool));
+
+        GroupModel left = mapper.loadGroups("first").iterator().next();
+        GroupModel right = mapper.loadGroups("second").iterator().next();
+
+        assertThat(pathOf(left)).isEqualTo("top/left");
+        assertThat(treeOf(left)).isEqualTo("left[bottom]");
+        assertThat(right.getParent()).isSameAs(left.getParent());
+        assertThat(right.getSubGroups().iterator().next()).isSameAs(left.getSubGroups().iterator().next());
+        assertThat(pool.size()).isEqualTo(4);
+    }
+
+    @Test
+    void given_newSnapshot_when_loadGroups_then_groupsAreResolvedAgain() throws Exception {
+        GroupWithAttributes groupMock = createGroupMockWithName("groupMock");
+        CrowdGroupHierarchy firstHierarchy = createHierarchyOf(groupMock);
+        CrowdGroupHierarchy secondHierarchy = createHierarchyOf(groupMock);
+
+        when(clientMock.getGroupsForUser(USERNAME, 0, Integer.MAX_VALUE))
+                .thenReturn(Collections.singletonList(groupMock));
+
+        CrowdGroupPool pool = new CrowdGroupPool();
+
+        GroupModel first = new CrowdGroupMapper(modelMock, clientMock, new CrowdGroupMapper.Settings()
+                .withGroupHierarchy(() -> firstHierarchy).withGroupPool(pool)).loadGroups(USERNAME).iterator().next();
+        GroupModel second = new CrowdGroupMapper(modelMock, clientMock, new CrowdGroupMapper.Settings()
+                .withGroupHierarchy(() -> secondHierarchy).withGroupPool(pool)).loadGroups(USERNAME).iterator().next();
+
+        assertThat(second).isNotSameAs(first).isEqualTo(first);
+        assertThat(pool.getMissCount()).isEqualTo(2);
+    }
+
+    @Test
+    void when_loadGroups_then_resolvedGroupsAreFrozen() throws Exception {
+        GroupWithAttributes groupMock = createGroupMockWithName("groupMock");
+        GroupWithAttributes parentGroupMock = createGroupMockWithName("parentGroupMock");
+
+        when(clientMock.getGroupsForUser(USERNAME, 0, Integer.MAX_VALUE))
+                .thenReturn(Collections.singletonList(groupMock));
+        when(clientMock.getParentGroupsForGroup("groupMock", 0, 1))
+                .thenReturn(Collections.singletonList(parentGroupMock));
+
+        GroupModel group = crowdGroupMapper.loadGroups(USERNAME).iterator().next();
+
+        assertThat(((CrowdGroupAdapter) group).isFrozen()).isTrue();
+        assertThat(((CrowdGroupAdapter) group.getParent()).isFrozen()).isTrue();
+        assertThatThrownBy(() -> group.setParent(null)).isExactlyInstanceOf(ReadOnlyException.class);
+    }
+
+    private CrowdGroupHierarchy createHierarchyOf(GroupWithAttributes group) {
+        Map<String, GroupWithAttributes> groups = new HashMap<>();
+        groups.put(group.getName(), group);
+
+        return new CrowdGroupHierarchy(groups, new HashMap<>(), new HashMap<>());
+    }
+
+    private static String pathOf(GroupModel group) {
+        return group.getParent() == null ? group.getName() : pathOf(group.getParent()) + "/" + group.getName();
+    }
+
+    private static String treeOf(GroupModel group) {
+        if (group.getSubGroups().isEmpty()) {
+            return group.getName();
+        }
+
+        return group.getSubGroups().stream()
+                .map(CrowdGroupMapperTest::treeOf)
+                .sorted()
+                .collect(Collectors.joining(", ", group.getName() + "[", "]"));
     }
 
     private GroupWithAttributes createGroupMockWithName(String name) {
@@ -0,0 +1,105 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd.group;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+class CrowdGroupPoolTest {
+
+    private final CrowdGroupPool pool = new CrowdGroupPool();
+
+    private final CrowdGroupHierarchy hierarchy = createHierarchy();
+
+    @Test
+    void given_pooledGroup_when_intern_then_pooledAdapterIsReturned() {
+        AtomicInteger calls = new AtomicInteger();
+        Function<String, CrowdGroupAdapter> resolver = name -> {
+            calls.incrementAndGet();
+            return mock(CrowdGroupAdapter.class);
+        };
+
+        CrowdGroupAdapter first = pool.intern(hierarchy, "group", resolver);
+        CrowdGroupAdapter second = pool.intern(hierarchy, "group", resolver);
+
+        assertThat(second).isSameAs(first);
+        assertThat(calls).hasValue(1);
+        assertThat(pool.size()).isEqualTo(1);
+        assertThat(pool.getHitCount()).isEqualTo(1);
+        assertThat(pool.getMissCount()).isEqualTo(1);
+    }
+
+    @Test
+    void given_resolverInterningOtherAdapters_when_intern_then_allAdaptersArePooled() {
+        CrowdGroupAdapter parent = mock(CrowdGroupAdapter.class);
+        CrowdGroupAdapter adapter = pool.intern(hierarchy, "group", name -> {
+            pool.intern(hierarchy, Arrays.asList("parent", 1), () -> parent);
+            return mock(CrowdGroupAdapter.class);
+        });
+
+        assertThat(pool.intern(hierarchy, "group", name -> null)).isSameAs(adapter);
+        assertThat(pool.intern(hierarchy, Arrays.asList("parent", 1), () -> null)).isSameAs(parent);
+        assertThat(pool.size()).isEqualTo(2);
+    }
+
+    @Test
+    void given_otherGroup_when_intern_then_otherAdapterIsResolved() {
+        CrowdGroupAdapter first = pool.intern(hierarchy, "group", name -> mock(CrowdGroupAdapter.class));
+        CrowdGroupAdapter second = pool.intern(hierarchy, "other group", name -> mock(CrowdGroupAdapter.class));
+
+        assertThat(second).isNotSameAs(first);
+        assertThat(pool.size()).isEqualTo(2);
+    }
+
+    @Test
+    void given_newSnapshot_when_intern_then_previouslyPooledAdaptersAreDropped() {
+        pool.intern(hierarchy, "group", name -> mock(CrowdGroupAdapter.class));
+        pool.intern(hierarchy, "other group", name -> mock(CrowdGroupAdapter.class));
+
+        CrowdGroupAdapter adapter = mock(CrowdGroupAdapter.class);
+
+        assertThat(pool.intern(createHierarchy(), "group", name -> adapter)).isSameAs(adapter);
+        assertThat(pool.size()).isEqualTo(1);
+        assertThat(pool.getMissCount()).isEqualTo(3);
+    }
+
+    @Test
+    void when_toString_then_statisticsAreIncluded() {
+        pool.intern(hierarchy, "group", name -> mock(CrowdGroupAdapter.class));
+        pool.intern(hierarchy, "group", name -> mock(CrowdGroupAdapter.class));
+
+        assertThat(pool).hasToString("size=1, hits=1, misses=1");
+    }
+
+    private static CrowdGroupHierarchy createHierarchy() {
+        return new CrowdGroupHierarchy(new HashMap<>(), new HashMap<>(), new HashMap<>());
+    }
+
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd.group;
+
+import com.atlassian.crowd.model.group.GroupWithAttributes;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.keycloak.models.ModelException;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class CrowdGroupWalkerTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(8);
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void given_parentChain_when_walk_then_parentsAreCollected() {
+        Map<String, List<GroupWithAttributes>> parents = new HashMap<>();
+        parents.put("group", Collections.singletonList(createGroupMock("parent")));
+        parents.put("parent", Collections.singletonList(createGroupMock("grandparent")));
+
+        CrowdGroupHierarchy hierarchy = new CrowdGroupWalker(executor, 4, 5000, CrowdGroupWalker.DEFAULT_MAX_DEPTH)
+                .walk(Collections.singletonList(createGroupMock("group")), lookup(parents), lookup(new HashMap<>()));
+
+        assertThat(hierarchy.size()).isEqualTo(3);
+        assertThat(hierarchy.getParents("group")).containsExactly("parent");
+        assertThat(hierarchy.getParents("parent")).containsExactly("grandparent");
+        assertThat(hierarchy.getParents("grandparent")).isEmpty();
+    }
+
+    @Test
+    void given_subGroupTree_when_walk_then_childrenAreCollected() {
+        Map<String, List<GroupWithAttributes>> children = new HashMap<>();
+        children.put("group", Arrays.asList(createGroupMock("first"), createGroupMock("second")));
+        children.put("first", Collections.singletonList(createGroupMock("grandchild")));
+
+        CrowdGroupHierarchy hierarchy = new CrowdGroupWalker(executor, 4, 5000, CrowdGroupWalker.DEFAULT_MAX_DEPTH)
+                .walk(Collections.singletonList(createGroupMock("group")), lookup(new HashMap<>()), lookup(children));
+
+        assertThat(hierarchy.getChildren("group")).containsExactly("first", "second");
+        assertThat(hierarchy.getChildren("first")).containsExactly("grandchild");
+        assertThat(hierarchy.getGroup("grandchild").getName()).isEqualTo("grandchild");
+    }
+
+    @Test
+    void given_sharedDescendants_when_walk_then_everyGroupIsLookedUpOnce() {
+        Map<String, List<GroupWithAttributes>> children = new HashMap<>();
+        children.put("first", Collections.singletonList(createGroupMock("shared")));
+        children.put("second", Collections.singletonList(createGroupMock("shared")));
+        children.put("shared", Collections.singletonList(createGroupMock("leaf")));
+
+        AtomicInteger lookups = new AtomicInteger();
+        Function<String, List<GroupWithAttributes>> childLoader = name -> {
+            lookups.incrementAndGet();
+            return children.getOrDefault(name, Collections.emptyList());
+        };
+
+        CrowdGroupWalker walker = new CrowdGroupWalker(CrowdGroupWalker.DEFAULT_MAX_DEPTH);
+        walker.walk(Arrays.asList(createGroupMock("first"), createGroupMock("second")),
+                lookup(new HashMap<>()), childLoader);
+
+        assertThat(lookups).hasValue(4);
+        assertThat(walker.getCallCount()).isEqualTo(6);
+        assertThat(walker.getSavedCallCount()).isEqualTo(1);
+    }
+
+    @Test
+    void given_cyclicNesting_when_walk_then_walkTerminates() {
+        Map<String, List<GroupWithAttributes>> parents = new HashMap<>();
+        parents.put("group", Collections.singletonList(createGroupMock("other")));
+        parents.put("other", Collections.singletonList(createGroupMock("group")));
+
+        CrowdGroupWalker walker = new CrowdGroupWalker(CrowdGroupWalker.DEFAULT_MAX_DEPTH);
+        CrowdGroupHierarchy hierarchy = walker.walk(Collections.singletonList(createGroupMock("group")),
+                lookup(parents), lookup(new HashMap<>()));
+
+        assertThat(hierarchy.getParents("group")).containsExactly("other");
+        assertThat(hierarchy.getParents("other")).containsExactly("group");
+        assertThat(walker.getSavedCallCount()).isEqualTo(1);
+    }
+
+    @Test
+    void given_maxDepth_when_walk_then_deeperGroupsAreNotLookedUp() {
+        List<String> lookedUp = Collections.synchronizedList(new ArrayList<>());
+        Function<String, List<GroupWithAttributes>> parentLoader = name -> {
+            lookedUp.add(name);
+            return Collections.singletonList(createGroupMock(name + "/parent"));
+        };
+
+        new CrowdGroupWalker(2).walk(Collections.singletonList(createGroupMock("group")), parentLoader,
+                lookup(new HashMap<>()));
+
+        assertThat(lookedUp).containsExactly("group", "group/parent");
+    }
+
+    @Test
+    void given_groupFirstReachedBeyondMaxDepth_when_reachedAtLowerDepth_then_groupIsWalked() {
+        Map<String, List<GroupWithAttributes>> children = new HashMap<>();
+        children.put("long", Collections.singletonList(createGroupMock("middle")));
+        children.put("middle", Collections.singletonList(createGroupMock("shared")));
+        children.put("short", Collections.singletonList(createGroupMock("shared")));
+        children.put("shared", Collections.singletonList(createGroupMock("leaf")));
+
+        Function<String, List<GroupWithAttributes>> childLoader = name -> {
+            if ("short".equals(name)) {
+                sleep(200);
+            }
+
+            return children.getOrDefault(name, Collections.emptyList());
+        };
+
+        CrowdGroupHierarchy hierarchy = new CrowdGroupWalker(executor, 4, 5000, 2)
+                .walk(Arrays.asList(createGroupMock("long"), createGroupMock("short")), lookup(new HashMap<>()),
+                        childLoader);
+
+        assertThat(hierarchy.getChildren("short")).containsExactly("shared");
+        assertThat(hierarchy.getChildren("shared")).containsExactly("leaf");
+    }
+
+    @Test
+    void given_manyLookups_when_walk_then_parallelismIsNotExceeded() {
+        List<GroupWithAttributes> subGroups = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            subGroups.add(createGroupMock("child " + i));
+        }
+
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        Function<String, List<GroupWithAttributes>> slowLookup = name -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            sleep(20);
+            running.decrementAndGet();
+
+            return "group".equals(name) ? subGroups : Collections.emptyList();
+        };
+
+        CrowdGroupHierarchy hierarchy = new CrowdGroupWalker(executor, 2, 5000, CrowdGroupWalker.DEFAULT_MAX_DEPTH)
+                .walk(Collections.singletonList(createGroupMock("group")), lookup(new HashMap<>()), slowLookup);
+
+        assertThat(hierarchy.getChildren("group")).hasSize(10);
+        assertThat(maxRunning).hasValueBetween(1, 2);
+    }
+
+    @Test
+    void given_slowLookup_when_walk_then_walkTimesOut() {
+        CountDownLatch latch = new CountDownLatch(1);
+        Function<String, List<GroupWithAttributes>> blockingLookup = name -> {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            return Collections.emptyList();
+        };
+
+        assertThatThrownBy(() -> new CrowdGroupWalker(executor, 2, 50, CrowdGroupWalker.DEFAULT_MAX_DEPTH)
+                .walk(Collections.singletonList(createGroupMock("group")), blockingLookup, blockingLookup))
+                .isExactlyInstanceOf(ModelException.class)
+                .hasMessageContaining("Timed out");
+    }
+
+    @Test
+    void given_failingLookup_when_walk_then_exceptionIsThrown() {
+        ModelException exception = new ModelException("Boom!");
+
+        assertThatThrownBy(() -> new CrowdGroupWalker(executor, 2, 5000, CrowdGroupWalker.DEFAULT_MAX_DEPTH)
+                .walk(Collections.singletonList(createGroupMock("group")), name -> {
+                    throw exception;
+                }, lookup(new HashMap<>())))
+                .isSameAs(exception);
+    }
+
+    private static GroupWithAttributes createGroupMock(String name) {
+        GroupWithAttributes groupMock = mock(GroupWithAttributes.class);
+        when(groupMock.getName()).thenReturn(name);
+
+        return groupMock;
+    }
+
+    private static Function<String, List<GroupWithAttributes>> lookup(Map<String, List<GroupWithAttributes>> groups) {
+        return name -> groups.getOrDefault(name, Collections.emptyList());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
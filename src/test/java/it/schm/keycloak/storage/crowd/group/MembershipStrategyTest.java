@@ -0,0 +1,43 @@
+/*
+ * Copyright © 2020 Sam Schmit
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the “Software”), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package it.schm.keycloak.storage.crowd.group;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MembershipStrategyTest {
+
+    @Test
+    void given_configValue_when_fromConfigValue_then_matchingStrategyIsReturned() {
+        assertThat(MembershipStrategy.fromConfigValue("nested")).isEqualTo(MembershipStrategy.NESTED);
+        assertThat(MembershipStrategy.fromConfigValue("DIRECT")).isEqualTo(MembershipStrategy.DIRECT);
+    }
+
+    @Test
+    void given_unknownConfigValue_when_fromConfigValue_then_directStrategyIsReturned() {
+        assertThat(MembershipStrategy.fromConfigValue(null)).isEqualTo(MembershipStrategy.DIRECT);
+        assertThat(MembershipStrategy.fromConfigValue("unknown")).isEqualTo(MembershipStrategy.DIRECT);
+    }
+
+}